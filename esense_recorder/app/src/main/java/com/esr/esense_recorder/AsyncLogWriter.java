@@ -0,0 +1,359 @@
+package com.esr.esense_recorder;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Asynchronous writer of a log with two preallocated buffers.
+ *
+ * <p>
+ * Producers append records to the active buffer while a background thread writes the other one
+ * to the output (a file stream or memory-mapped segments). The buffers are swapped when the
+ * active buffer is half full, when the flush interval has elapsed, or when a flush or a sync is
+ * requested. Appending never waits for the file: a record that does not fit in the active buffer
+ * is dropped and counted, and <code>write()</code> returns <code>false</code> as when the writer
+ * is closed or has failed, which <code>isOpen()</code> tells apart. Durability is
+ * explicit: <code>sync()</code> waits until the records appended before the call have been
+ * written and synced to the storage device, and concurrent sync requests are grouped in a
+ * single file sync.
+ * </p>
+ */
+public class AsyncLogWriter implements Closeable {
+    // Debug
+    @SuppressWarnings("unused")
+    private static final String DEBUG_TAG = "eSenseRecorder-Debug";
+
+    // Default size of each buffer
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // Default maximum delay between an append and the write of the record
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+    private final ByteOutput output;
+    private final long flushIntervalNanos;
+    private final int flushThreshold;
+    private final Thread writerThread;
+
+    // State shared with the writer thread, guarded by lock
+    private final Object lock = new Object();
+    private byte[] activeBuffer;
+    private int activeLength = 0;
+    private byte[] drainBuffer;
+    private long appendedBytes = 0;
+    private long syncTarget = 0;
+    private long syncedBytes = 0;
+    private boolean flushRequested = false;
+    private boolean closing = false;
+
+    // Error of the writer thread, appends fail once set
+    private volatile @Nullable IOException error;
+
+    // Metrics
+    private final long startNanoTime;
+    private volatile long droppedRecords = 0;
+    private volatile long droppedBytes = 0;
+    private volatile long writtenBytes = 0;
+    private volatile long writeCount = 0;
+    private volatile long totalWriteNanos = 0;
+    private volatile long maxWriteNanos = 0;
+    private volatile long syncCount = 0;
+    private volatile long totalSyncNanos = 0;
+
+    /**
+     * Constructor, starts the writer thread.
+     *
+     * @param output the output to write to, closed by <code>close()</code>.
+     * @param bufferSize the size of each buffer, i.e. the maximum amount of pending data.
+     * @param flushIntervalMillis the maximum delay between an append and the write of the record.
+     * @param threadName the name of the writer thread.
+     */
+    public AsyncLogWriter(ByteOutput output, int bufferSize, long flushIntervalMillis,
+                          String threadName) {
+        if (bufferSize < 2) {
+            throw new IllegalArgumentException("Illegal buffer size: " + bufferSize);
+        }
+        this.output = output;
+        this.flushIntervalNanos = flushIntervalMillis * 1000000;
+        this.flushThreshold = bufferSize / 2;
+        activeBuffer = new byte[bufferSize];
+        drainBuffer = new byte[bufferSize];
+        startNanoTime = System.nanoTime();
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, threadName);
+        writerThread.start();
+    }
+
+    /**
+     * Appends a record without waiting for the file. The record is either appended entirely or
+     * dropped.
+     *
+     * @param bytes the array containing the record.
+     * @param offset the offset of the record in the array.
+     * @param length the length of the record.
+     * @return <code>true</code> if the record has been appended, <code>false</code> if it has
+     * been dropped because the buffer is full or if the writer is closed or has failed.
+     */
+    public boolean write(byte[] bytes, int offset, int length) {
+        if (error != null) {
+            return false;
+        }
+        synchronized (lock) {
+            if (closing) {
+                return false;
+            }
+            if (activeLength + length > activeBuffer.length) {
+                droppedRecords++;
+                droppedBytes += length;
+                return false;
+            }
+            System.arraycopy(bytes, offset, activeBuffer, activeLength, length);
+            activeLength += length;
+            appendedBytes += length;
+            if (activeLength >= flushThreshold && activeLength - length < flushThreshold) {
+                lock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Asks the writer thread to write the pending records without waiting for the flush interval.
+     */
+    public void flush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the records appended before the call are written and synced to the storage
+     * device. Must not be called on a thread that cannot wait, e.g. the sensor thread.
+     *
+     * @param timeoutMillis the maximum waiting time in ms.
+     * @return <code>true</code> if the records are durable, <code>false</code> on timeout, error
+     * or interruption.
+     */
+    public boolean sync(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        synchronized (lock) {
+            long target = appendedBytes;
+            if (target > syncTarget) {
+                syncTarget = target;
+                lock.notifyAll();
+            }
+            while (syncedBytes < target && error == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || !writerThread.isAlive()) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return error == null;
+        }
+    }
+
+    /**
+     * Writes and syncs the pending records, stops the writer thread and closes the file.
+     *
+     * @throws IOException if the records cannot be written or the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        output.close();
+        IOException e = error;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether records can still be appended, e.g. to know whether a record that was not
+     * appended has been dropped or the writer has failed.
+     *
+     * @return <code>true</code> if the writer is neither closed nor failed.
+     */
+    public boolean isOpen() {
+        if (error != null) {
+            return false;
+        }
+        synchronized (lock) {
+            return !closing;
+        }
+    }
+
+    /**
+     * Returns the error that stopped the writer thread.
+     *
+     * @return the error, or <code>null</code> if none.
+     */
+    public @Nullable IOException getError() {
+        return error;
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Returns the mean duration of the writes of a buffer to the file.
+     *
+     * @return the mean write latency in ns.
+     */
+    public long getMeanWriteLatencyNanos() {
+        long count = writeCount;
+        return (count == 0) ? 0 : totalWriteNanos / count;
+    }
+
+    /**
+     * Returns the maximum duration of the writes of a buffer to the file.
+     *
+     * @return the maximum write latency in ns.
+     */
+    public long getMaxWriteLatencyNanos() {
+        return maxWriteNanos;
+    }
+
+    /**
+     * Returns the mean duration of the file syncs.
+     *
+     * @return the mean sync latency in ns.
+     */
+    public long getMeanSyncLatencyNanos() {
+        long count = syncCount;
+        return (count == 0) ? 0 : totalSyncNanos / count;
+    }
+
+    /**
+     * Returns the mean throughput since the writer was created.
+     *
+     * @return the number of bytes written per second.
+     */
+    public double getBytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanoTime;
+        return (elapsed <= 0) ? 0 : writtenBytes * 1E9 / elapsed;
+    }
+
+    /**
+     * Loop of the writer thread.
+     */
+    private void drain() {
+        long lastDrainNanoTime = System.nanoTime();
+        while (true) {
+            byte[] buffer;
+            int length;
+            long appended;
+            boolean syncNow;
+            boolean last;
+            synchronized (lock) {
+                // Wait for a reason to write
+                while (!closing && !flushRequested && syncTarget <= syncedBytes
+                        && activeLength < flushThreshold) {
+                    long remaining = lastDrainNanoTime + flushIntervalNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        if (activeLength > 0) {
+                            break;
+                        }
+                        lastDrainNanoTime = System.nanoTime();
+                        remaining = flushIntervalNanos;
+                    }
+                    try {
+                        lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    } catch (InterruptedException e) {
+                        // Interruptions are ignored, the thread stops when the writer is closed
+                    }
+                }
+                // Swap the buffers
+                buffer = activeBuffer;
+                length = activeLength;
+                activeBuffer = drainBuffer;
+                activeLength = 0;
+                drainBuffer = buffer;
+                appended = appendedBytes;
+                flushRequested = false;
+                last = closing;
+                syncNow = last || syncTarget > syncedBytes;
+            }
+            lastDrainNanoTime = System.nanoTime();
+            try {
+                if (length > 0) {
+                    long start = System.nanoTime();
+                    output.write(buffer, 0, length);
+                    output.flush();
+                    long duration = System.nanoTime() - start;
+                    writeCount++;
+                    totalWriteNanos += duration;
+                    if (duration > maxWriteNanos) {
+                        maxWriteNanos = duration;
+                    }
+                    writtenBytes += length;
+                }
+                if (syncNow) {
+                    long start = System.nanoTime();
+                    output.sync();
+                    syncCount++;
+                    totalSyncNanos += System.nanoTime() - start;
+                }
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "AsyncLogWriter: Unable to write log file.", e);
+                error = e;
+            }
+            synchronized (lock) {
+                if (syncNow && error == null) {
+                    syncedBytes = appended;
+                }
+                // Release the waiting syncs
+                lock.notifyAll();
+                if (error != null || last) {
+                    return;
+                }
+            }
+        }
+    }
+}
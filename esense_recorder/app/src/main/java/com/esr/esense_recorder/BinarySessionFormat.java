@@ -0,0 +1,71 @@
+package com.esr.esense_recorder;
+
+import io.esense.esenselib.ImuDeltaCodec;
+
+/**
+ * Constants of the binary session format.
+ *
+ * <p>
+ * A session file starts with a header, followed by records. All values are big-endian.
+ * <pre>
+ * header:  int magic "ESRB", short version, long start time (ms since epoch),
+ *          int sampling rate (Hz, -1 if unknown), UTF device name (empty if unknown),
+ *          config, int CRC32C of the previous header bytes (from version 2)
+ * config:  byte 1 followed by the ordinals of acc. range, gyro. range, acc. LPF and gyro. LPF
+ *          (one byte each), or byte 0 if the configuration is unknown
+ * records: byte record type, int content length (from version 2), record content,
+ *          int CRC32C of the type, length and content (from version 2)
+ *   RECORD_SAMPLE_BLOCK: byte encoding, int sample count n, then the samples:
+ *     ENCODING_RAW: columns of n values: long elapsed time (ns since start),
+ *          int lost packets, byte packet index, short acc. X, Y, Z and gyro. X, Y, Z
+ *          (ADC values)
+ *     ENCODING_DELTA: int length, then the block encoded by <code>ImuDeltaCodec</code>
+ *          with the elapsed times, rounded to the microsecond (about 5 bytes per sample, from
+ *          version 3; the delta blocks of previous versions are not supported)
+ *   RECORD_EVENT: long elapsed time (ms since start), short field count, UTF fields
+ *   RECORD_CONFIG: config, applies to the following samples
+ *   RECORD_END: no content, written when the session is closed
+ * </pre>
+ * A file without end record has been truncated, e.g. by a crash, and can still be read up to the
+ * last complete record. From version 2, each record is checksummed, so that a corrupted record
+ * is detected and can be skipped by searching the next valid record.
+ * </p>
+ */
+public final class BinarySessionFormat {
+    // File identification
+    public static final int MAGIC = 0x45535242;
+    public static final int VERSION = 3;
+    // Extension of the session files
+    public static final String FILE_EXTENSION = ".esrb";
+
+    // Record types
+    public static final int RECORD_SAMPLE_BLOCK = 1;
+    public static final int RECORD_EVENT = 2;
+    public static final int RECORD_CONFIG = 3;
+    public static final int RECORD_END = 4;
+
+    // Encodings of the sample blocks
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_DELTA = 1;
+    // First version of the current delta encoding, with the sample times in microseconds
+    static final int DELTA_ENCODING_VERSION = 3;
+
+    // Size of a sample in a raw sample block
+    static final int RAW_SAMPLE_SIZE = 8 + 4 + 1 + 6 * 2;
+    // Size of the encoding and sample count of a sample block
+    static final int BLOCK_HEADER_SIZE = 1 + 4;
+    // Size of the length of a delta encoded block
+    static final int DELTA_LENGTH_SIZE = 4;
+    // Limit of the number of samples in a block, to reject corrupted files
+    static final int MAX_BLOCK_SAMPLES = 1 << 16;
+    // Size of the record type and content length of a record (from version 2)
+    static final int RECORD_FRAME_SIZE = 1 + 4;
+    // Size of the checksum of the header and of a record (from version 2)
+    static final int CHECKSUM_SIZE = 4;
+    // Limit of the content length of a record, to reject corrupted files
+    static final int MAX_RECORD_LENGTH = BLOCK_HEADER_SIZE + DELTA_LENGTH_SIZE
+            + ImuDeltaCodec.getMaxEncodedSize(MAX_BLOCK_SAMPLES);
+
+    private BinarySessionFormat() {
+    }
+}
@@ -0,0 +1,577 @@
+package com.esr.esense_recorder;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.ImuDeltaCodec;
+import io.esense.esenselib.SampleBlock;
+import io.esense.esenselib.SampleSink;
+
+/**
+ * Streaming reader of a session in the binary session format (see
+ * <code>BinarySessionFormat</code>).
+ *
+ * <p>
+ * The header is read by the constructor. Records are then read one by one with
+ * <code>readRecord()</code>, and their content is available from the getters until the next
+ * record is read. The samples of a block are delivered in a reused <code>SampleBlock</code> in
+ * which the sample times are the elapsed times since the start of the session in ns, and the
+ * timestamps are the corresponding times in ms since epoch.
+ * </p>
+ * <p>
+ * From version 2, the checksum of each record is verified before its content is read. By default
+ * a corrupted record is an error; when corrupted records are skipped, the reader searches the
+ * next record with a valid checksum and counts the skipped bytes, so that everything else can be
+ * salvaged.
+ * </p>
+ */
+public class BinarySessionReader implements Closeable {
+
+    // Initial size of the buffer of the records
+    private static final int RECORD_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream rawInput;
+    private final DataInputStream input;
+
+    // Header
+    private final int version;
+    private final long startTimeMillis;
+    private final int samplingRate;
+    private final String deviceName;
+
+    // Current configuration, updated by configuration records
+    private @Nullable ESenseConfig config;
+
+    // Content of the last sample block
+    private SampleBlock block = new SampleBlock(BinarySessionWriter.DEFAULT_BLOCK_SIZE);
+    private byte[] blockBytes = new byte[0];
+    private final ESenseEvent sample = ESenseEvent.obtain();
+    private @Nullable ImuDeltaCodec deltaCodec;
+
+    // Content of the last event
+    private long eventElapsedMillis;
+    private String[] eventFields = new String[0];
+
+    // End of file state
+    private boolean ended = false;
+    private boolean truncated = false;
+
+    // Buffer of the records (from version 2), records are read from readPosition
+    private byte[] recordBytes = new byte[0];
+    private int readPosition = 0;
+    private int readLimit = 0;
+    // Offset in the stream of the start of the buffer
+    private long bufferOffset;
+    private final RecordInput recordInput = new RecordInput();
+    private final DataInputStream recordData = new DataInputStream(recordInput);
+    private final Crc32c checksum = new Crc32c();
+
+    // Corrupted records
+    private boolean skipCorruptRecords = false;
+    private long corruptRecordCount = 0;
+    private long skippedBytes = 0;
+    private long lastCorruptOffset = -1;
+    // Search of the next valid record after a corrupted one
+    private boolean resyncing = false;
+    private boolean resyncFromIncompleteRecord;
+    private long resyncOffset;
+    private long resyncSkippedBytes;
+
+    /**
+     * Constructor, reads the header of the session.
+     *
+     * @param input the stream to read from, buffered by the caller if needed.
+     * @throws IOException if the header cannot be read or the stream is not a session.
+     */
+    public BinarySessionReader(InputStream input) throws IOException {
+        this.rawInput = input;
+        this.input = new DataInputStream(input);
+        HeaderInput headerInput = new HeaderInput(input, checksum);
+        DataInputStream header = new DataInputStream(headerInput);
+        if (header.readInt() != BinarySessionFormat.MAGIC) {
+            throw new IOException("Not a binary session");
+        }
+        version = header.readUnsignedShort();
+        if (version > BinarySessionFormat.VERSION) {
+            throw new IOException("Unsupported session version: " + version);
+        }
+        startTimeMillis = header.readLong();
+        samplingRate = header.readInt();
+        deviceName = header.readUTF();
+        config = readConfigContent(header);
+        if (version >= 2) {
+            if (this.input.readInt() != (int) checksum.getValue()) {
+                throw new IOException("Corrupted session header");
+            }
+            bufferOffset = headerInput.getCount() + BinarySessionFormat.CHECKSUM_SIZE;
+        }
+    }
+
+    /**
+     * Skips the corrupted records instead of failing (from version 2). The skipped bytes are
+     * counted, see <code>getCorruptRecordCount()</code> and <code>getSkippedBytes()</code>.
+     *
+     * @param skipCorruptRecords <code>true</code> to skip the corrupted records.
+     */
+    public void setSkipCorruptRecords(boolean skipCorruptRecords) {
+        this.skipCorruptRecords = skipCorruptRecords;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the type of the record (see <code>BinarySessionFormat</code>), or
+     * <code>RECORD_END</code> at the end of the session, including when the file has been
+     * truncated.
+     * @throws IOException if the record cannot be read or is corrupted.
+     */
+    public int readRecord() throws IOException {
+        if (ended) {
+            return BinarySessionFormat.RECORD_END;
+        }
+        if (version >= 2) {
+            return readCheckedRecord();
+        }
+        int type = input.read();
+        if (type < 0) {
+            // No end record
+            truncated = true;
+            ended = true;
+            return BinarySessionFormat.RECORD_END;
+        }
+        try {
+            readContent(type, input);
+        } catch (EOFException e) {
+            // Incomplete last record
+            truncated = true;
+            ended = true;
+            block.clear();
+            return BinarySessionFormat.RECORD_END;
+        }
+        return type;
+    }
+
+    /**
+     * Reads the remaining records and passes the samples to a sink, e.g. to replay a recorded
+     * session through a <code>SamplePipeline</code>. The other records are read as by
+     * <code>readRecord()</code>. The sink is flushed at the end, but not closed.
+     *
+     * @param sink the sink of the samples.
+     * @return the number of samples read.
+     * @throws IOException if a record cannot be read or the sink fails.
+     */
+    public long readSamples(SampleSink sink) throws IOException {
+        long count = 0;
+        int type;
+        while ((type = readRecord()) != BinarySessionFormat.RECORD_END) {
+            if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK && block.getSize() > 0) {
+                sink.onSamples(block);
+                count += block.getSize();
+            }
+        }
+        sink.flush();
+        return count;
+    }
+
+    /**
+     * Returns the number of corrupted records skipped so far. Consecutive corrupted records
+     * count as one.
+     *
+     * @return the number of corrupted records.
+     */
+    public long getCorruptRecordCount() {
+        return corruptRecordCount;
+    }
+
+    /**
+     * Returns the number of bytes of the corrupted records skipped so far.
+     *
+     * @return the number of skipped bytes.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * Returns the offset in the stream of the last corrupted record skipped.
+     *
+     * @return the offset in bytes, or -1 if none.
+     */
+    public long getLastCorruptOffset() {
+        return lastCorruptOffset;
+    }
+
+    /**
+     * Returns <code>true</code> if the session ended without end record, i.e. the last records
+     * may be missing.
+     *
+     * @return <code>true</code> if the session has been truncated.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns the name of the device.
+     *
+     * @return the device name, or an empty string if unknown.
+     */
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * Returns the sensor configuration of the samples read so far.
+     *
+     * @return the sensor configuration, or <code>null</code> if unknown.
+     */
+    public @Nullable ESenseConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the samples of the last sample block record. The block is reused by the next
+     * sample block record.
+     *
+     * @return the block of samples.
+     */
+    public SampleBlock getBlock() {
+        return block;
+    }
+
+    public long getEventElapsedMillis() {
+        return eventElapsedMillis;
+    }
+
+    public String[] getEventFields() {
+        return eventFields;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Reads a record with its checksum (from version 2), skipping the corrupted records if
+     * enabled.
+     */
+    private int readCheckedRecord() throws IOException {
+        int frameSize = BinarySessionFormat.RECORD_FRAME_SIZE;
+        while (true) {
+            if (!fill(frameSize)) {
+                // No end record
+                endResync(false);
+                truncated = true;
+                ended = true;
+                block.clear();
+                return BinarySessionFormat.RECORD_END;
+            }
+            int type = recordBytes[readPosition] & 0xff;
+            int length = getInt(recordBytes, readPosition + 1);
+            int total = frameSize + length + BinarySessionFormat.CHECKSUM_SIZE;
+            boolean valid = false;
+            boolean incomplete = false;
+            if (type >= BinarySessionFormat.RECORD_SAMPLE_BLOCK
+                    && type <= BinarySessionFormat.RECORD_END
+                    && length >= 0 && length <= BinarySessionFormat.MAX_RECORD_LENGTH) {
+                if (fill(total)) {
+                    checksum.reset();
+                    checksum.update(recordBytes, readPosition, frameSize + length);
+                    valid = (int) checksum.getValue()
+                            == getInt(recordBytes, readPosition + frameSize + length);
+                } else {
+                    incomplete = true;
+                }
+            }
+            long offset = bufferOffset + readPosition;
+            if (valid) {
+                endResync(true);
+                recordInput.set(recordBytes, readPosition + frameSize, length);
+                readPosition += total;
+                try {
+                    readContent(type, recordData);
+                    return type;
+                } catch (IOException e) {
+                    // Valid checksum but invalid content, the record cannot be resynchronized
+                    if (!skipCorruptRecords) {
+                        throw new IOException("Invalid record at offset " + offset, e);
+                    }
+                    corruptRecordCount++;
+                    lastCorruptOffset = offset;
+                    skippedBytes += total;
+                    block.clear();
+                    continue;
+                }
+            }
+            if (incomplete && !resyncing && !skipCorruptRecords) {
+                // Incomplete last record
+                truncated = true;
+                ended = true;
+                block.clear();
+                return BinarySessionFormat.RECORD_END;
+            }
+            if (!skipCorruptRecords) {
+                throw new IOException("Corrupted record at offset " + offset);
+            }
+            if (!resyncing) {
+                // Incomplete record is a truncation unless a valid record follows
+                resyncing = true;
+                resyncFromIncompleteRecord = incomplete;
+                resyncOffset = offset;
+                resyncSkippedBytes = 0;
+            }
+            readPosition++;
+            resyncSkippedBytes++;
+        }
+    }
+
+    /**
+     * Ends the search of a valid record, at a valid record or at the end of the stream.
+     */
+    private void endResync(boolean recordFound) {
+        if (!resyncing) {
+            return;
+        }
+        resyncing = false;
+        if (recordFound || !resyncFromIncompleteRecord) {
+            corruptRecordCount++;
+            lastCorruptOffset = resyncOffset;
+            skippedBytes += resyncSkippedBytes + (recordFound ? 0 : readLimit - readPosition);
+        }
+    }
+
+    /**
+     * Ensures that the buffer holds a number of bytes from the read position.
+     *
+     * @return <code>false</code> if the end of the stream is reached before.
+     */
+    private boolean fill(int count) throws IOException {
+        if (readLimit - readPosition >= count) {
+            return true;
+        }
+        if (readPosition > 0) {
+            System.arraycopy(recordBytes, readPosition, recordBytes, 0, readLimit - readPosition);
+            readLimit -= readPosition;
+            bufferOffset += readPosition;
+            readPosition = 0;
+        }
+        if (recordBytes.length < count) {
+            recordBytes = Arrays.copyOf(recordBytes, Math.max(count, RECORD_BUFFER_SIZE));
+        }
+        while (readLimit < count) {
+            int n = rawInput.read(recordBytes, readLimit, recordBytes.length - readLimit);
+            if (n < 0) {
+                return false;
+            }
+            readLimit += n;
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private void readContent(int type, DataInputStream in) throws IOException {
+        switch (type) {
+            case BinarySessionFormat.RECORD_SAMPLE_BLOCK:
+                readSampleBlock(in);
+                break;
+            case BinarySessionFormat.RECORD_EVENT:
+                readEvent(in);
+                break;
+            case BinarySessionFormat.RECORD_CONFIG:
+                config = readConfigContent(in);
+                break;
+            case BinarySessionFormat.RECORD_END:
+                ended = true;
+                break;
+            default:
+                throw new IOException("Unknown record type: " + type);
+        }
+    }
+
+    private void readSampleBlock(DataInputStream in) throws IOException {
+        int encoding = in.readUnsignedByte();
+        int count = in.readInt();
+        if (count < 0 || count > BinarySessionFormat.MAX_BLOCK_SAMPLES) {
+            throw new IOException("Invalid sample count: " + count);
+        }
+        if (encoding == BinarySessionFormat.ENCODING_DELTA) {
+            if (version < BinarySessionFormat.DELTA_ENCODING_VERSION) {
+                throw new IOException("Unsupported delta encoding of version " + version);
+            }
+            readDeltaSampleBlock(in, count);
+            return;
+        } else if (encoding != BinarySessionFormat.ENCODING_RAW) {
+            throw new IOException("Unsupported sample encoding: " + encoding);
+        }
+        int length = count * BinarySessionFormat.RAW_SAMPLE_SIZE;
+        if (blockBytes.length < length) {
+            blockBytes = new byte[length];
+        }
+        in.readFully(blockBytes, 0, length);
+        if (block.getCapacity() < count) {
+            block = new SampleBlock(count);
+        }
+        block.clear();
+        // Column offsets
+        ByteBuffer buffer = ByteBuffer.wrap(blockBytes, 0, length);
+        int lostOffset = count * 8;
+        int indexOffset = lostOffset + count * 4;
+        int accOffset = indexOffset + count;
+        int gyroOffset = accOffset + count * 6;
+        short[] acc = sample.getAccel();
+        short[] gyro = sample.getGyro();
+        for (int i = 0; i < count; i++) {
+            long elapsedNanos = buffer.getLong(i * 8);
+            sample.setSampleTimeNanos(elapsedNanos);
+            sample.setTimestamp(startTimeMillis + elapsedNanos / 1000000);
+            sample.setLostPackets(buffer.getInt(lostOffset + i * 4));
+            sample.setPacketIndex(buffer.get(indexOffset + i) & 0xff);
+            for (int axis = 0; axis < 3; axis++) {
+                acc[axis] = buffer.getShort(accOffset + (axis * count + i) * 2);
+                gyro[axis] = buffer.getShort(gyroOffset + (axis * count + i) * 2);
+            }
+            block.add(sample);
+        }
+    }
+
+    private void readDeltaSampleBlock(DataInputStream in, int count) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > ImuDeltaCodec.getMaxEncodedSize(count)) {
+            throw new IOException("Invalid block length: " + length);
+        }
+        if (blockBytes.length < length) {
+            blockBytes = new byte[length];
+        }
+        in.readFully(blockBytes, 0, length);
+        block.clear();
+        if (count == 0) {
+            return;
+        }
+        if (block.getCapacity() < count) {
+            block = new SampleBlock(count);
+        }
+        if (deltaCodec == null || !deltaCodec.canDecode(count)) {
+            deltaCodec = new ImuDeltaCodec(Math.max(count, BinarySessionWriter.DEFAULT_BLOCK_SIZE));
+        }
+        try {
+            deltaCodec.decode(blockBytes, 0, length, count, 0, block);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted sample block", e);
+        }
+        long[] sampleTimes = block.getSampleTimes();
+        long[] timestamps = block.getTimestamps();
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = startTimeMillis + sampleTimes[i] / 1000000;
+        }
+    }
+
+    private void readEvent(DataInputStream in) throws IOException {
+        eventElapsedMillis = in.readLong();
+        int fieldCount = in.readUnsignedShort();
+        String[] fields = new String[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            fields[i] = in.readUTF();
+        }
+        eventFields = fields;
+    }
+
+    private @Nullable ESenseConfig readConfigContent(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() == 0) {
+            return null;
+        }
+        int accRange = in.readUnsignedByte();
+        int gyroRange = in.readUnsignedByte();
+        int accLPF = in.readUnsignedByte();
+        int gyroLPF = in.readUnsignedByte();
+        try {
+            return new ESenseConfig(ESenseConfig.AccRange.values()[accRange],
+                    ESenseConfig.GyroRange.values()[gyroRange],
+                    ESenseConfig.AccLPF.values()[accLPF],
+                    ESenseConfig.GyroLPF.values()[gyroLPF]);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid sensor configuration");
+        }
+    }
+
+    /**
+     * Stream over the content of a record in the record buffer.
+     */
+    private static class RecordInput extends ByteArrayInputStream {
+        RecordInput() {
+            super(new byte[0]);
+        }
+
+        void set(byte[] bytes, int offset, int length) {
+            buf = bytes;
+            pos = offset;
+            count = offset + length;
+            mark = offset;
+        }
+    }
+
+    /**
+     * Stream counting the bytes of the header and computing their checksum.
+     */
+    private static class HeaderInput extends FilterInputStream {
+        private final Checksum checksum;
+        private long count = 0;
+
+        HeaderInput(InputStream input, Checksum checksum) {
+            super(input);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                checksum.update(b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = in.read(bytes, offset, length);
+            if (n > 0) {
+                checksum.update(bytes, offset, n);
+                count += n;
+            }
+            return n;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
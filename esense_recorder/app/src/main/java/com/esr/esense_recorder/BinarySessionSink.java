@@ -0,0 +1,138 @@
+package com.esr.esense_recorder;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.SampleBlock;
+import io.esense.esenselib.SampleSink;
+
+/**
+ * Sample sink writing the session in the binary session format, to a file or to a local socket.
+ *
+ * <p>
+ * The samples are regrouped in full blocks of the writer, whatever the size of the blocks
+ * delivered to the sink, and partial blocks are only written by the periodic flushes. Only the
+ * header and the samples are written: the events of the log are recorded by the text log.
+ * </p>
+ */
+public class BinarySessionSink implements SampleSink {
+    // Size of the stream buffer
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BinarySessionWriter writer;
+    private final @Nullable Closeable resource;
+    private final ESenseEvent event = ESenseEvent.obtain();
+
+    /**
+     * Constructor.
+     *
+     * @param output the stream to write to, buffered by the caller if needed, closed with the
+     *               sink.
+     * @param resource a resource closed after the stream, e.g. a socket, or <code>null</code>.
+     * @param encoding the encoding of the blocks, <code>BinarySessionFormat.ENCODING_RAW</code>
+     *                 or <code>BinarySessionFormat.ENCODING_DELTA</code>.
+     */
+    public BinarySessionSink(OutputStream output, @Nullable Closeable resource, int encoding) {
+        this.writer = new BinarySessionWriter(output, BinarySessionWriter.DEFAULT_BLOCK_SIZE,
+                encoding);
+        this.resource = resource;
+    }
+
+    /**
+     * Creates a sink writing to a new file.
+     *
+     * @param file the session file.
+     * @param encoding the encoding of the blocks.
+     * @return the sink.
+     * @throws IOException if the file cannot be created.
+     */
+    public static BinarySessionSink createFile(File file, int encoding) throws IOException {
+        return new BinarySessionSink(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), null, encoding);
+    }
+
+    /**
+     * Creates a sink streaming to a local socket, e.g. to another application of the device.
+     *
+     * @param socketName the name of the socket in the abstract namespace.
+     * @param encoding the encoding of the blocks.
+     * @return the sink.
+     * @throws IOException if the socket cannot be connected.
+     */
+    public static BinarySessionSink connectLocalSocket(String socketName, int encoding)
+            throws IOException {
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(socketName));
+            return new BinarySessionSink(
+                    new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE), socket,
+                    encoding);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the header of the session. Must be called once, before the sink receives samples.
+     *
+     * @param deviceName the name of the device, or <code>null</code> if unknown.
+     * @param samplingRate the sampling rate in Hz, or -1 if unknown.
+     * @param config the sensor configuration, or <code>null</code> if unknown.
+     * @param startTimeMillis the start time of the session, in ms since epoch.
+     * @param startNanoTime the start time of the session in the <code>System.nanoTime()</code>
+     *                      time base.
+     * @throws IOException if the header cannot be written.
+     */
+    public void writeHeader(@Nullable String deviceName, int samplingRate,
+                            @Nullable ESenseConfig config, long startTimeMillis,
+                            long startNanoTime) throws IOException {
+        writer.writeHeader(deviceName, samplingRate, config, startTimeMillis, startNanoTime);
+        writer.flush();
+    }
+
+    @Override
+    public void onSamples(SampleBlock block) throws IOException {
+        int size = block.getSize();
+        for (int i = 0; i < size; i++) {
+            block.getEvent(i, event);
+            writer.writeSample(event);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.close();
+        } finally {
+            if (resource != null) {
+                resource.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of samples written since the start of the session.
+     *
+     * @return the number of samples.
+     */
+    public long getSampleCount() {
+        return writer.getSampleCount();
+    }
+}
@@ -0,0 +1,331 @@
+package com.esr.esense_recorder;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.ImuDeltaCodec;
+import io.esense.esenselib.SampleBlock;
+
+/**
+ * Streaming writer of a session in the binary session format (see
+ * <code>BinarySessionFormat</code>).
+ *
+ * <p>
+ * Samples are grouped in blocks of columns before being written, so that the writer does not
+ * allocate per sample. The writer is not thread-safe: it is meant to be used from a single
+ * logging thread.
+ * </p>
+ * <p>
+ * Blocks are written in the raw encoding, or in the delta encoding of
+ * <code>ImuDeltaCodec</code>, which is about 5 times smaller for typical head motion, with the
+ * sample times rounded to the microsecond. The header and each record are followed by their
+ * CRC32C.
+ * </p>
+ */
+public class BinarySessionWriter implements Closeable {
+    // Default number of samples per block
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private final DataOutputStream output;
+    private final SampleBlock pendingBlock;
+    // Content of the header and of the records other than sample blocks
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+    private final DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    private final byte[] frame = new byte[BinarySessionFormat.RECORD_FRAME_SIZE];
+    private final Crc32c checksum = new Crc32c();
+    private final ByteBuffer blockBuffer;
+    private final int encoding;
+    private final @Nullable ImuDeltaCodec deltaCodec;
+
+    // Time base of the elapsed times, in the System.nanoTime() time base
+    private long startNanoTime;
+    private boolean headerWritten = false;
+    private boolean closed = false;
+    private long sampleCount = 0;
+
+    /**
+     * Constructor, with the raw encoding of the blocks.
+     *
+     * @param output the stream to write to, buffered by the caller if needed.
+     * @param blockSize the number of samples per block.
+     */
+    public BinarySessionWriter(OutputStream output, int blockSize) {
+        this(output, blockSize, BinarySessionFormat.ENCODING_RAW);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param output the stream to write to, buffered by the caller if needed.
+     * @param blockSize the number of samples per block.
+     * @param encoding the encoding of the blocks, <code>BinarySessionFormat.ENCODING_RAW</code>
+     *                 or <code>BinarySessionFormat.ENCODING_DELTA</code>.
+     */
+    public BinarySessionWriter(OutputStream output, int blockSize, int encoding) {
+        this.output = new DataOutputStream(output);
+        this.encoding = encoding;
+        pendingBlock = new SampleBlock(blockSize);
+        int blockLength;
+        if (encoding == BinarySessionFormat.ENCODING_RAW) {
+            deltaCodec = null;
+            blockLength = blockSize * BinarySessionFormat.RAW_SAMPLE_SIZE;
+        } else if (encoding == BinarySessionFormat.ENCODING_DELTA) {
+            deltaCodec = new ImuDeltaCodec(blockSize);
+            blockLength = BinarySessionFormat.DELTA_LENGTH_SIZE
+                    + ImuDeltaCodec.getMaxEncodedSize(blockSize);
+        } else {
+            throw new IllegalArgumentException("Unknown sample encoding: " + encoding);
+        }
+        blockBuffer = ByteBuffer.allocate(BinarySessionFormat.BLOCK_HEADER_SIZE + blockLength);
+    }
+
+    /**
+     * Writes the header of the session. Must be called once, before any record.
+     *
+     * @param deviceName the name of the device, or <code>null</code> if unknown.
+     * @param samplingRate the sampling rate in Hz, or -1 if unknown.
+     * @param config the sensor configuration, or <code>null</code> if unknown.
+     * @param startTimeMillis the start time of the session, in ms since epoch.
+     * @param startNanoTime the start time of the session in the <code>System.nanoTime()</code>
+     *                      time base, origin of the elapsed times of the samples.
+     * @throws IOException if the header cannot be written.
+     */
+    public void writeHeader(@Nullable String deviceName, int samplingRate,
+                            @Nullable ESenseConfig config, long startTimeMillis,
+                            long startNanoTime) throws IOException {
+        if (headerWritten) {
+            throw new IllegalStateException("The header has already been written");
+        }
+        this.startNanoTime = startNanoTime;
+        recordBuffer.reset();
+        recordOutput.writeInt(BinarySessionFormat.MAGIC);
+        recordOutput.writeShort(BinarySessionFormat.VERSION);
+        recordOutput.writeLong(startTimeMillis);
+        recordOutput.writeInt(samplingRate);
+        recordOutput.writeUTF((deviceName == null) ? "" : deviceName);
+        writeConfigContent(config);
+        checksum.reset();
+        checksum.update(recordBuffer.getBytes(), 0, recordBuffer.size());
+        output.write(recordBuffer.getBytes(), 0, recordBuffer.size());
+        output.writeInt((int) checksum.getValue());
+        headerWritten = true;
+    }
+
+    /**
+     * Adds a sample to the pending block, which is written when full.
+     *
+     * @param evt the sensor event, with its reconstructed sample time.
+     * @throws IOException if a block cannot be written.
+     */
+    public void writeSample(ESenseEvent evt) throws IOException {
+        checkOpen();
+        pendingBlock.add(evt);
+        sampleCount++;
+        if (pendingBlock.isFull()) {
+            writePendingBlock();
+        }
+    }
+
+    /**
+     * Writes the samples of a block, after the pending samples.
+     *
+     * @param block the block of samples, with their reconstructed sample times.
+     * @throws IOException if the block cannot be written.
+     */
+    public void writeBlock(SampleBlock block) throws IOException {
+        checkOpen();
+        writePendingBlock();
+        int size = block.getSize();
+        int offset = 0;
+        int maxCount = pendingBlock.getCapacity();
+        while (offset < size) {
+            int count = Math.min(maxCount, size - offset);
+            writeBlockRecord(block, offset, count);
+            offset += count;
+        }
+        sampleCount += size;
+    }
+
+    /**
+     * Writes an event, e.g. the start or the end of the log, after the pending samples.
+     *
+     * @param elapsedMillis the elapsed time since the start of the session in ms.
+     * @param fields the fields of the event.
+     * @throws IOException if the event cannot be written.
+     */
+    public void writeEvent(long elapsedMillis, String... fields) throws IOException {
+        checkOpen();
+        writePendingBlock();
+        recordBuffer.reset();
+        recordOutput.writeLong(elapsedMillis);
+        recordOutput.writeShort(fields.length);
+        for (String field : fields) {
+            recordOutput.writeUTF((field == null) ? "" : field);
+        }
+        writeRecord(BinarySessionFormat.RECORD_EVENT, recordBuffer.getBytes(), recordBuffer.size());
+    }
+
+    /**
+     * Writes a change of the sensor configuration, which applies to the following samples.
+     *
+     * @param config the new sensor configuration, or <code>null</code> if unknown.
+     * @throws IOException if the configuration cannot be written.
+     */
+    public void writeConfig(@Nullable ESenseConfig config) throws IOException {
+        checkOpen();
+        writePendingBlock();
+        recordBuffer.reset();
+        writeConfigContent(config);
+        writeRecord(BinarySessionFormat.RECORD_CONFIG, recordBuffer.getBytes(), recordBuffer.size());
+    }
+
+    /**
+     * Writes the pending samples and flushes the stream.
+     *
+     * @throws IOException if the samples cannot be written.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        writePendingBlock();
+        output.flush();
+    }
+
+    /**
+     * Writes the pending samples and the end record, and closes the stream.
+     *
+     * @throws IOException if the session cannot be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (headerWritten) {
+                writePendingBlock();
+                writeRecord(BinarySessionFormat.RECORD_END, frame, 0);
+            }
+            output.flush();
+        } finally {
+            closed = true;
+            output.close();
+        }
+    }
+
+    /**
+     * Returns the number of samples written since the start of the session.
+     *
+     * @return the number of samples.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The session writer is closed");
+        }
+        if (!headerWritten) {
+            throw new IllegalStateException("The header must be written first");
+        }
+    }
+
+    private void writePendingBlock() throws IOException {
+        if (pendingBlock.getSize() > 0) {
+            writeBlockRecord(pendingBlock, 0, pendingBlock.getSize());
+            pendingBlock.clear();
+        }
+    }
+
+    private void writeBlockRecord(SampleBlock block, int offset, int count) throws IOException {
+        ByteBuffer buffer = blockBuffer;
+        buffer.clear();
+        buffer.put((byte) encoding);
+        buffer.putInt(count);
+        if (deltaCodec != null) {
+            int lengthPosition = buffer.position();
+            int dataPosition = lengthPosition + BinarySessionFormat.DELTA_LENGTH_SIZE;
+            int length = deltaCodec.encode(block, offset, count, startNanoTime,
+                    buffer.array(), dataPosition);
+            buffer.putInt(lengthPosition, length);
+            writeRecord(BinarySessionFormat.RECORD_SAMPLE_BLOCK, buffer.array(),
+                    dataPosition + length);
+            return;
+        }
+        int end = offset + count;
+        long[] sampleTimes = block.getSampleTimes();
+        for (int i = offset; i < end; i++) {
+            buffer.putLong(sampleTimes[i] - startNanoTime);
+        }
+        int[] lostPackets = block.getLostPackets();
+        for (int i = offset; i < end; i++) {
+            buffer.putInt(lostPackets[i]);
+        }
+        int[] packetIndexes = block.getPacketIndexes();
+        for (int i = offset; i < end; i++) {
+            buffer.put((byte) packetIndexes[i]);
+        }
+        putColumn(buffer, block.getAccX(), offset, end);
+        putColumn(buffer, block.getAccY(), offset, end);
+        putColumn(buffer, block.getAccZ(), offset, end);
+        putColumn(buffer, block.getGyroX(), offset, end);
+        putColumn(buffer, block.getGyroY(), offset, end);
+        putColumn(buffer, block.getGyroZ(), offset, end);
+        writeRecord(BinarySessionFormat.RECORD_SAMPLE_BLOCK, buffer.array(), buffer.position());
+    }
+
+    /**
+     * Writes a record: type, content length, content and CRC32C of the previous bytes.
+     */
+    private void writeRecord(int type, byte[] content, int length) throws IOException {
+        if (length > BinarySessionFormat.MAX_RECORD_LENGTH) {
+            throw new IOException("Record too long: " + length);
+        }
+        frame[0] = (byte) type;
+        frame[1] = (byte) (length >>> 24);
+        frame[2] = (byte) (length >>> 16);
+        frame[3] = (byte) (length >>> 8);
+        frame[4] = (byte) length;
+        checksum.reset();
+        checksum.update(frame, 0, frame.length);
+        checksum.update(content, 0, length);
+        output.write(frame, 0, frame.length);
+        output.write(content, 0, length);
+        output.writeInt((int) checksum.getValue());
+    }
+
+    private static void putColumn(ByteBuffer buffer, short[] column, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            buffer.putShort(column[i]);
+        }
+    }
+
+    private void writeConfigContent(@Nullable ESenseConfig config) throws IOException {
+        if (config == null) {
+            recordOutput.writeByte(0);
+        } else {
+            recordOutput.writeByte(1);
+            recordOutput.writeByte(config.getAccRange().ordinal());
+            recordOutput.writeByte(config.getGyroRange().ordinal());
+            recordOutput.writeByte(config.getAccLPF().ordinal());
+            recordOutput.writeByte(config.getGyroLPF().ordinal());
+        }
+    }
+
+    /**
+     * Byte array stream giving access to its array, to write the records without copy.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        byte[] getBytes() {
+            return buf;
+        }
+    }
+}
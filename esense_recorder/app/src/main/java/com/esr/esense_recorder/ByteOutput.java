@@ -0,0 +1,35 @@
+package com.esr.esense_recorder;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the bytes of a log, e.g. a file stream or memory-mapped segments.
+ * Implementations are not thread-safe.
+ */
+public interface ByteOutput extends Closeable {
+
+    /**
+     * Writes bytes.
+     *
+     * @param bytes the array containing the bytes.
+     * @param offset the offset of the bytes in the array.
+     * @param length the number of bytes.
+     * @throws IOException if the bytes cannot be written.
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Writes the bytes buffered by the output, if any.
+     *
+     * @throws IOException if the bytes cannot be written.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Writes the bytes buffered by the output and syncs them to the storage device.
+     *
+     * @throws IOException if the bytes cannot be written or synced.
+     */
+    void sync() throws IOException;
+}
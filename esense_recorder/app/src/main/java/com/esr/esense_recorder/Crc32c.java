@@ -0,0 +1,92 @@
+package com.esr.esense_recorder;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as <code>java.util.zip.CRC32C</code> which is only available
+ * from API level 26.
+ *
+ * <p>
+ * The checksum is computed 8 bytes at a time with 8 lookup tables ("slicing-by-8"), which is
+ * several times faster than the byte-wise algorithm. The tables are shared by all instances.
+ * </p>
+ */
+public class Crc32c implements Checksum {
+    // Reversed Castagnoli polynomial
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[] TABLE = createTable();
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        int[] table = TABLE;
+        int c = crc;
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            int low = c ^ ((bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8
+                    | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 3] & 0xff) << 24);
+            c = table[7 * 256 + (low & 0xff)]
+                    ^ table[6 * 256 + ((low >>> 8) & 0xff)]
+                    ^ table[5 * 256 + ((low >>> 16) & 0xff)]
+                    ^ table[4 * 256 + (low >>> 24)]
+                    ^ table[3 * 256 + (bytes[i + 4] & 0xff)]
+                    ^ table[2 * 256 + (bytes[i + 5] & 0xff)]
+                    ^ table[256 + (bytes[i + 6] & 0xff)]
+                    ^ table[bytes[i + 7] & 0xff];
+        }
+        for (; i < end; i++) {
+            c = (c >>> 8) ^ table[(c ^ bytes[i]) & 0xff];
+        }
+        crc = c;
+    }
+
+    /**
+     * Updates the checksum with bytes.
+     *
+     * @param bytes the bytes.
+     */
+    public void update(byte[] bytes) {
+        update(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Computes the tables of the slicing-by-8 algorithm: table k gives the CRC of a byte followed
+     * by k zero bytes.
+     */
+    private static int[] createTable() {
+        int[] table = new int[8 * 256];
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int bit = 0; bit < 8; bit++) {
+                c = ((c & 1) != 0) ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+            }
+            table[n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            int c = table[n];
+            for (int k = 1; k < 8; k++) {
+                c = (c >>> 8) ^ table[c & 0xff];
+                table[k * 256 + n] = c;
+            }
+        }
+        return table;
+    }
+}
@@ -6,20 +6,28 @@ import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 
+import io.esense.esenselib.ConversionKernel;
 import io.esense.esenselib.ESenseConfig;
 import io.esense.esenselib.ESenseConnectionListener;
 import io.esense.esenselib.ESenseEvent;
 import io.esense.esenselib.ESenseEventListener;
 import io.esense.esenselib.ESenseManager;
+import io.esense.esenselib.ESenseSensorBatchListener;
 import io.esense.esenselib.ESenseSensorListener;
+import io.esense.esenselib.PacketSequenceTracker;
+import io.esense.esenselib.SampleBatcher;
+import io.esense.esenselib.SampleBlock;
+import io.esense.esenselib.SampleRingBuffer;
 import io.esense.esenselib.SamplingStatus;
+import io.esense.esenselib.TimestampReconstructor;
 
 /**
  * Encapsulation of the <code>ESenseManager</code> to allows for:
  * <ul>
- *     <li>Multiple listeners,</li>
+ *     <li>Multiple listeners, including listeners to blocks of samples,</li>
  *     <li>Instantiation without argument (in particular the context and name of the device),</li>
- *     <li>Storing last known values.</li>
+ *     <li>Storing last known values,</li>
+ *     <li>Keeping a history of the recent sensor samples.</li>
  * </ul>
  */
 public class ESenseController implements ESenseConnectionListener, ESenseEventListener,
@@ -28,6 +36,13 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
     // Connection timeout in seconds
     private static final int CONNECTION_TIMEOUT_MS = 1500;
 
+    // Number of samples kept in the sensor history (about 80 seconds at 100Hz)
+    private static final int SENSOR_HISTORY_CAPACITY = 8192;
+
+    // Default size and latency of the blocks delivered to batch listeners
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final long DEFAULT_BATCH_LATENCY_MS = 500;
+
     // Connection state (including "connecting" state)
     private ESenseConnectionState state = ESenseConnectionState.DISCONNECTED;
 
@@ -37,6 +52,20 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
     // List of listeners
     private ArrayList<ESenseListener> listeners = new ArrayList<>();
 
+    // List of listeners to sensor data only (e.g. asynchronous dispatchers)
+    private ArrayList<ESenseSensorListener> sensorListeners = new ArrayList<>();
+
+    // Copies of the listener lists for the sensor notifications, replaced on every change
+    private volatile ESenseSensorListener[] sensorTargets = new ESenseSensorListener[0];
+    private volatile ESenseSensorBatchListener[] batchTargets = new ESenseSensorBatchListener[0];
+
+    // Groups the sensor samples for batch listeners. The batcher is not thread-safe: it is fed on
+    // the sensor notification thread and flushed or replaced from other threads, always with
+    // batcherLock held.
+    private final Object batcherLock = new Object();
+    private SampleBatcher sampleBatcher = createSampleBatcher(DEFAULT_BATCH_SIZE,
+            DEFAULT_BATCH_LATENCY_MS);
+
     // Connected device name
     private String deviceName;
 
@@ -51,8 +80,8 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
     // Sampling rate for sensor notifications
     private int samplingRate = -1;
 
-    // Last known sensor data
-    private ESenseEvent lastSensorData = null;
+    // History of sensor data, filled from the recycled events of the manager
+    private final SampleRingBuffer sensorHistory = new SampleRingBuffer(SENSOR_HISTORY_CAPACITY);
 
     /**
      * Adds a listener to eSense events.
@@ -63,6 +92,7 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
         synchronized (this) {
             if (listener != null && !listeners.contains(listener)) {
                 listeners.add(listener);
+                updateSensorTargets();
             }
         }
     }
@@ -75,6 +105,92 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
     public void removeListener(ESenseListener listener) {
         synchronized (this) {
             listeners.remove(listener);
+            updateSensorTargets();
+        }
+    }
+
+    /**
+     * Adds a listener to sensor data only. Sensor data are delivered on the sensor notification
+     * thread, use an <code>AsyncSensorDispatcher</code> for listeners doing slow operations.
+     *
+     * @param listener the listener to add.
+     */
+    public void addSensorListener(ESenseSensorListener listener) {
+        synchronized (this) {
+            if (listener != null && !sensorListeners.contains(listener)) {
+                sensorListeners.add(listener);
+                updateSensorTargets();
+            }
+        }
+    }
+
+    /**
+     * Removes a listener to sensor data.
+     *
+     * @param listener the listener to remove.
+     */
+    public void removeSensorListener(ESenseSensorListener listener) {
+        synchronized (this) {
+            sensorListeners.remove(listener);
+            updateSensorTargets();
+        }
+    }
+
+    /**
+     * Adds a listener to blocks of sensor samples. Blocks are delivered on the sensor notification
+     * thread, see {@link #setBatchParameters(int, long)} for their size.
+     *
+     * @param listener the listener to add.
+     */
+    public void addBatchListener(ESenseSensorBatchListener listener) {
+        synchronized (this) {
+            if (listener == null) {
+                return;
+            }
+            for (ESenseSensorBatchListener l: batchTargets) {
+                if (l == listener) {
+                    return;
+                }
+            }
+            ESenseSensorBatchListener[] targets = new ESenseSensorBatchListener[
+                    batchTargets.length+1];
+            System.arraycopy(batchTargets, 0, targets, 0, batchTargets.length);
+            targets[batchTargets.length] = listener;
+            batchTargets = targets;
+        }
+    }
+
+    /**
+     * Removes a listener to blocks of sensor samples.
+     *
+     * @param listener the listener to remove.
+     */
+    public void removeBatchListener(ESenseSensorBatchListener listener) {
+        synchronized (this) {
+            ArrayList<ESenseSensorBatchListener> targets = new ArrayList<>();
+            for (ESenseSensorBatchListener l: batchTargets) {
+                if (l != listener) {
+                    targets.add(l);
+                }
+            }
+            batchTargets = targets.toArray(new ESenseSensorBatchListener[0]);
+        }
+    }
+
+    /**
+     * Sets the size of the blocks delivered to batch listeners. A block is delivered when it
+     * contains <code>maxSamples</code> samples or when its samples span
+     * <code>maxLatencyMillis</code>. Samples waiting in the current block are delivered first,
+     * so this can be called while sensor notifications are active.
+     *
+     * @param maxSamples the maximum number of samples in a block.
+     * @param maxLatencyMillis the maximum time span of a block in milliseconds.
+     */
+    public void setBatchParameters(int maxSamples, long maxLatencyMillis) {
+        SampleBatcher batcher = createSampleBatcher(maxSamples, maxLatencyMillis);
+        synchronized (batcherLock) {
+            sampleBatcher.flush();
+            sampleBatcher = batcher;
         }
     }
 
@@ -164,13 +280,52 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
     }
 
     /**
-     * Returns the last known  raw sensor data. Retrieving sensor data with this method is not
-     * recommended for the gyroscope due to the potential lost of data sample.
+     * Returns a copy of the last known raw sensor data, or <code>null</code> if there is no
+     * sample. Retrieving sensor data with this method is not recommended for the gyroscope due to
+     * the potential lost of data sample, use {@link #getSensorHistory()} instead.
      *
-     * @return the last known raw sensor data.
+     * @return a copy of the last known raw sensor data.
      */
     public ESenseEvent getLastSensorData() {
-        return lastSensorData;
+        ESenseEvent evt = ESenseEvent.obtain();
+        if (!sensorHistory.getLatest(evt)) {
+            evt.recycle();
+            return null;
+        }
+        return evt;
+    }
+
+    /**
+     * Returns the tracker of lost, duplicated and out-of-order sensor packets of the current
+     * session, or <code>null</code> if there is no device.
+     *
+     * @return the packet sequence tracker.
+     */
+    public @Nullable PacketSequenceTracker getSequenceTracker() {
+        ESenseManager manager = eSenseManager;
+        return (manager == null) ? null : manager.getSequenceTracker();
+    }
+
+    /**
+     * Returns the reconstructor of the sample times of the current session, with the estimated
+     * clock drift and notification jitter, or <code>null</code> if there is no device.
+     *
+     * @return the timestamp reconstructor.
+     */
+    public @Nullable TimestampReconstructor getTimestampReconstructor() {
+        ESenseManager manager = eSenseManager;
+        return (manager == null) ? null : manager.getTimestampReconstructor();
+    }
+
+    /**
+     * Returns the history of recent sensor samples. The history is filled on the sensor
+     * notification thread and can be read from any thread without lock using
+     * <code>copyRange</code> or <code>copyLatest</code>.
+     *
+     * @return the history of sensor samples.
+     */
+    public SampleRingBuffer getSensorHistory() {
+        return sensorHistory;
     }
 
     /**
@@ -178,16 +333,30 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
      * @return the converted sensor data.
      */
     public double[][] getConvertedSensorData() {
-        if (eSenseConfig == null || lastSensorData == null) {
-            return null;
-        } else {
-            double[] convAcc = lastSensorData.convertAccToG(eSenseConfig);
-            double[] convGyro = lastSensorData.convertGyroToDegPerSecond(eSenseConfig);
-            double[][] conv = new double[2][3];
-            System.arraycopy(convAcc, 0, conv[0], 0, 3);
-            System.arraycopy(convGyro, 0, conv[1], 0, 3);
-            return conv;
-        }
+        double[][] conv = new double[2][3];
+        return getConvertedSensorData(conv) ? conv : null;
+    }
+
+    /**
+     * Converts the last sensor data without allocation.
+     * @param dest 2x3 array receiving the acceleration in g and the rotational speed in deg/s.
+     * @return <code>true</code> if the data has been converted, <code>false</code> if there is
+     * no sensor data or no configuration.
+     */
+    public boolean getConvertedSensorData(double[][] dest) {
+        ESenseConfig config = eSenseConfig;
+        if (config == null) {
+            return false;
+        }
+        ESenseEvent sensorData = getLastSensorData();
+        if (sensorData == null) {
+            return false;
+        }
+        ConversionKernel kernel = config.getConversionKernel();
+        kernel.convertAcc(sensorData.getAccel(), dest[0]);
+        kernel.convertGyro(sensorData.getGyro(), dest[1]);
+        sensorData.recycle();
+        return true;
     }
 
     /**
@@ -244,6 +413,9 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
             SamplingStatus status = eSenseManager.registerSensorListener(this,
                     samplingRate);
             if (status == SamplingStatus.STARTED) {
+                synchronized (batcherLock) {
+                    sampleBatcher.reset();
+                }
                 sensorNotificationsActive = true;
                 this.samplingRate = samplingRate;
                 // Notify listeners
@@ -267,6 +439,10 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
                 state == ESenseConnectionState.CONNECTED) {
             if (sensorNotificationsActive) {
                 eSenseManager.unregisterEventListener();
+                // Deliver the last incomplete block, samples may still be arriving
+                synchronized (batcherLock) {
+                    sampleBatcher.flush();
+                }
                 // Notify listeners
                 ArrayList<ESenseListener> targets;
                 synchronized (this) {
@@ -287,7 +463,7 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
         deviceName = null;
         sensorNotificationsActive = false;
         samplingRate = -1;
-        lastSensorData = null;
+        sensorHistory.clear();
         lastNotificationNanoTime = -1;
         lastNotificationPeriodNano = -1;
     }
@@ -479,7 +655,13 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
 
     @Override
     public void onSensorChanged(ESenseEvent evt) {
-        lastSensorData = evt;
+        // The event is recycled by the manager after this call
+        sensorHistory.add(evt);
+        if (batchTargets.length > 0) {
+            synchronized (batcherLock) {
+                sampleBatcher.onSensorChanged(evt);
+            }
+        }
         long nanoTime = System.nanoTime();
         if (lastNotificationNanoTime > 0) {
             lastNotificationPeriodNano = nanoTime-lastNotificationNanoTime;
@@ -487,16 +669,40 @@ public class ESenseController implements ESenseConnectionListener, ESenseEventLi
             lastNotificationPeriodNano = -1;
         }
         lastNotificationNanoTime = nanoTime;
-        // Inform listeners
-        ArrayList<ESenseListener> targets;
-        synchronized (this) {
-            if (listeners.isEmpty()) {
-                return;
-            }
-            targets = new ArrayList<>(listeners);
-        }
-        for (ESenseListener l: targets) {
+        // Inform listeners, without copying the list for every sample
+        for (ESenseSensorListener l: sensorTargets) {
             l.onSensorChanged(evt);
         }
     }
+
+    /**
+     * Updates the copy of the listener lists used for sensor notifications. Must be called with
+     * the lock held.
+     */
+    private void updateSensorTargets() {
+        ESenseSensorListener[] targets = new ESenseSensorListener[
+                listeners.size()+sensorListeners.size()];
+        int i = 0;
+        for (ESenseListener l: listeners) {
+            targets[i++] = l;
+        }
+        for (ESenseSensorListener l: sensorListeners) {
+            targets[i++] = l;
+        }
+        sensorTargets = targets;
+    }
+
+    /**
+     * Creates the batcher delivering blocks of samples to the batch listeners.
+     */
+    private SampleBatcher createSampleBatcher(int maxSamples, long maxLatencyMillis) {
+        return new SampleBatcher(new ESenseSensorBatchListener() {
+            @Override
+            public void onSensorBatch(SampleBlock block) {
+                for (ESenseSensorBatchListener l: batchTargets) {
+                    l.onSensorBatch(block);
+                }
+            }
+        }, maxSamples, maxLatencyMillis);
+    }
 }
@@ -0,0 +1,41 @@
+package com.esr.esense_recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Byte output writing directly to a file stream.
+ */
+public class FileByteOutput implements ByteOutput {
+    private final FileOutputStream output;
+
+    /**
+     * Constructor.
+     *
+     * @param output the file stream, closed by <code>close()</code>.
+     */
+    public FileByteOutput(FileOutputStream output) {
+        this.output = output;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        output.write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        output.flush();
+        output.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
@@ -0,0 +1,193 @@
+package com.esr.esense_recorder;
+
+import android.os.Debug;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Byte output compressing the bytes in the gzip format before writing them to another output.
+ *
+ * <p>
+ * Each <code>flush()</code> or <code>sync()</code> ends the pending deflate block with a sync
+ * flush point, so that all the bytes written before are decodable from the file even if the
+ * gzip trailer is never written, e.g. if the application dies: <code>zcat</code> or a
+ * <code>GZIPInputStream</code> read such a file up to the last flush point before reporting
+ * its unexpected end. The <code>AsyncLogWriter</code> flushes its output after each buffer, so
+ * that the flush points follow the buffers. The compression ratio and the CPU time spent
+ * compressing are measured, to trade storage against battery.
+ * </p>
+ */
+public class GzipByteOutput implements ByteOutput {
+    // Size of the buffer of compressed bytes
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+    // Header: magic, deflate method, no flag, no time, no extra flag, unknown OS
+    private static final byte[] GZIP_HEADER = new byte[] {
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final ByteOutput output;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+    private boolean headerWritten = false;
+    private boolean closed = false;
+
+    // Metrics, written by the thread using the output
+    private volatile long inputBytes = 0;
+    private volatile long outputBytes = 0;
+    private volatile long cpuTimeNanos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param output the output of the compressed bytes, closed by <code>close()</code>.
+     * @param level the compression level, in range [0-9] or
+     *              <code>Deflater.DEFAULT_COMPRESSION</code>.
+     */
+    public GzipByteOutput(ByteOutput output, int level) {
+        this.output = output;
+        // Raw deflate, the gzip header and trailer are written here
+        deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("The gzip output is closed");
+        }
+        long start = Debug.threadCpuTimeNanos();
+        writeHeader();
+        crc.update(bytes, offset, length);
+        deflater.setInput(bytes, offset, length);
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+        inputBytes += length;
+        cpuTimeNanos += Debug.threadCpuTimeNanos() - start;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        syncFlush();
+        output.flush();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (closed) {
+            return;
+        }
+        syncFlush();
+        output.sync();
+    }
+
+    /**
+     * Ends the compressed stream with the gzip trailer and closes the output.
+     *
+     * @throws IOException if the bytes cannot be written or the output cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long start = Debug.threadCpuTimeNanos();
+            writeHeader();
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            cpuTimeNanos += Debug.threadCpuTimeNanos() - start;
+            // Trailer: CRC32 and length of the uncompressed bytes, little endian
+            writeIntLE(buffer, 0, (int) crc.getValue());
+            writeIntLE(buffer, 4, (int) inputBytes);
+            writeCompressed(buffer, 8);
+        } finally {
+            deflater.end();
+            output.close();
+        }
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written.
+     *
+     * @return the number of bytes.
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * Returns the number of compressed bytes written to the output, including the gzip header
+     * and trailer.
+     *
+     * @return the number of bytes.
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Returns the compression ratio achieved so far.
+     *
+     * @return the number of uncompressed bytes per compressed byte, 0 if nothing was written.
+     */
+    public double getCompressionRatio() {
+        long compressed = outputBytes;
+        return (compressed == 0) ? 0 : (double) inputBytes / compressed;
+    }
+
+    /**
+     * Returns the CPU time of the thread using the output spent compressing, including the
+     * hand-off of the compressed bytes to the output.
+     *
+     * @return the CPU time in ns.
+     */
+    public long getCpuTimeNanos() {
+        return cpuTimeNanos;
+    }
+
+    private void syncFlush() throws IOException {
+        long start = Debug.threadCpuTimeNanos();
+        writeHeader();
+        int count;
+        do {
+            count = deflate(Deflater.SYNC_FLUSH);
+        } while (count == buffer.length);
+        cpuTimeNanos += Debug.threadCpuTimeNanos() - start;
+    }
+
+    private int deflate(int flush) throws IOException {
+        int count = deflater.deflate(buffer, 0, buffer.length, flush);
+        if (count > 0) {
+            writeCompressed(buffer, count);
+        }
+        return count;
+    }
+
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            headerWritten = true;
+            writeCompressed(GZIP_HEADER, GZIP_HEADER.length);
+        }
+    }
+
+    private void writeCompressed(byte[] bytes, int length) throws IOException {
+        output.write(bytes, 0, length);
+        outputBytes += length;
+    }
+
+    private static void writeIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+}
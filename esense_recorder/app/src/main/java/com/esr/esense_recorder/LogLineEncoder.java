@@ -0,0 +1,244 @@
+package com.esr.esense_recorder;
+
+/**
+ * Encoder of log lines into a reusable UTF-8 byte buffer.
+ *
+ * <p>
+ * Fields are appended with typed methods, so that integers and decimals are written digit by
+ * digit without boxing, formatting or intermediate strings: encoding a line does not allocate,
+ * except when the buffer has to grow. Decimals are written with a fixed number of decimal
+ * digits, without exponent. Digits are always ASCII, whatever the default locale.
+ * </p>
+ */
+public class LogLineEncoder {
+    // Default initial capacity of the buffer
+    public static final int DEFAULT_CAPACITY = 256;
+    // Maximum number of decimal digits of a decimal field
+    public static final int MAX_DECIMALS = 15;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final String separator;
+    private final String terminator;
+
+    private byte[] buffer;
+    private int length = 0;
+    private int fieldCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param separator the field separator.
+     * @param terminator the line terminator.
+     */
+    public LogLineEncoder(String separator, String terminator) {
+        this(separator, terminator, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param separator the field separator.
+     * @param terminator the line terminator.
+     * @param capacity the initial capacity of the buffer in bytes.
+     */
+    public LogLineEncoder(String separator, String terminator, int capacity) {
+        this.separator = separator;
+        this.terminator = terminator;
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Clears the buffer to start a new line.
+     *
+     * @return this encoder.
+     */
+    public LogLineEncoder reset() {
+        length = 0;
+        fieldCount = 0;
+        return this;
+    }
+
+    /**
+     * Appends an integer field.
+     *
+     * @param value the value.
+     * @return this encoder.
+     */
+    public LogLineEncoder append(long value) {
+        startField();
+        putLong(value);
+        return this;
+    }
+
+    /**
+     * Appends a decimal field with a fixed number of decimal digits, rounded half up.
+     *
+     * @param value the value.
+     * @param decimals the number of decimal digits in range [0-15].
+     * @return this encoder.
+     */
+    public LogLineEncoder append(double value, int decimals) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Illegal number of decimals: " + decimals);
+        }
+        startField();
+        if (Double.isNaN(value)) {
+            putString("NaN");
+            return this;
+        }
+        if (Double.isInfinite(value)) {
+            putString((value > 0) ? "Infinity" : "-Infinity");
+            return this;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        double scaled = Math.abs(value) * scale;
+        if (scaled >= Long.MAX_VALUE) {
+            // Out of the range of the digit by digit encoding, should not happen with sensor data
+            putString(Double.toString(value));
+            return this;
+        }
+        long units = Math.round(scaled);
+        if (value < 0 && units != 0) {
+            put((byte) '-');
+        }
+        putLong(units / scale);
+        if (decimals > 0) {
+            put((byte) '.');
+            long fraction = units % scale;
+            // Leading zeros of the fraction
+            for (int i = decimals - 1; i > 0 && fraction < POWERS_OF_TEN[i]; i--) {
+                put((byte) '0');
+            }
+            putLong(fraction);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a text field.
+     *
+     * @param value the text.
+     * @return this encoder.
+     */
+    public LogLineEncoder append(String value) {
+        startField();
+        putString(value);
+        return this;
+    }
+
+    /**
+     * Terminates the line.
+     *
+     * @return this encoder.
+     */
+    public LogLineEncoder endLine() {
+        putString(terminator);
+        return this;
+    }
+
+    /**
+     * Returns the buffer containing the encoded line, valid until the next change.
+     *
+     * @return the buffer, of which the first <code>getLength()</code> bytes are used.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    private void startField() {
+        if (fieldCount > 0) {
+            putString(separator);
+        }
+        fieldCount++;
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            putString(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        // Write the digits backwards
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        int pos = length + digits;
+        do {
+            buffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        length += digits;
+    }
+
+    private void putString(String value) {
+        int count = value.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else {
+                i = putNonAscii(value, i);
+            }
+        }
+    }
+
+    /**
+     * Encodes a non-ASCII character in UTF-8.
+     *
+     * @return the index of the last char consumed.
+     */
+    private int putNonAscii(String value, int index) {
+        char c = value.charAt(index);
+        ensureCapacity(4 + value.length() - index);
+        if (c < 0x800) {
+            buffer[length++] = (byte) (0xc0 | (c >> 6));
+            buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired surrogate
+            buffer[length++] = (byte) '?';
+        } else {
+            buffer[length++] = (byte) (0xe0 | (c >> 12));
+            buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return index;
+    }
+
+    private void put(byte b) {
+        ensureCapacity(1);
+        buffer[length++] = b;
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > buffer.length) {
+            byte[] larger = new byte[Math.max(buffer.length * 2, length + count)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+}
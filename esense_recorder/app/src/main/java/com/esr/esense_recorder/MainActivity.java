@@ -15,17 +15,27 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
+import java.util.zip.Deflater;
 
 import io.esense.esenselib.ESenseConfig;
 import io.esense.esenselib.ESenseEvent;
 import io.esense.esenselib.ESenseManager;
+import io.esense.esenselib.ESenseSensorListener;
+import io.esense.esenselib.OverflowPolicy;
+import io.esense.esenselib.SampleFanOut;
+import io.esense.esenselib.SampleQueue;
+import io.esense.esenselib.TriggeredRecorder;
+import io.esense.esenselib.WaitStrategy;
 
 public class MainActivity extends BluetoothCheckActivity implements BluetoothCheckCallback,
         ESenseListener {
@@ -68,8 +78,52 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
     ESenseController eSenseController = new ESenseController();
 
     // Logger (null is not logging)
-    private SimpleLogger logger;
-    private long startLogNanoTime;
+    private volatile SimpleLogger logger;
+    private volatile long startLogNanoTime;
+
+    // Write the log through memory-mapped segments instead of a file stream (for long recordings)
+    public static final boolean LOG_MAPPED_SEGMENTS = false;
+    // Compress the log files with gzip, at the given level in range [0-9]
+    public static final boolean LOG_COMPRESSED = false;
+    public static final int LOG_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    // Logs are split in segments by size and duration of the samples (0 for no limit), e.g.
+    // 16 MB and 15 min for long recordings. With no limit, the log is a single file as before,
+    // without segment footers and manifest.
+    public static final long LOG_SEGMENT_MAX_BYTES = 0;
+    public static final long LOG_SEGMENT_MAX_DURATION_MS = 0;
+
+    // Sensor samples are logged on a dedicated thread, not on the Bluetooth callback thread
+    public static final int LOG_QUEUE_CAPACITY = 1024;
+    // Samples sacrificed when a log falls behind, reported as lost packets in the log
+    public static final OverflowPolicy LOG_OVERFLOW_POLICY = OverflowPolicy.DROP_NEWEST;
+    // Opt-in for the text log only: under pressure, every other sample is kept instead of
+    // dropping runs of samples (OverflowPolicy.DECIMATE)
+    public static final boolean LOG_TEXT_DECIMATE = false;
+
+    // Additional destinations of the samples of a log, each with its own queue and thread: a
+    // binary session file next to the text log, and a binary session stream to a local socket
+    // (null for none), e.g. for another application
+    public static final boolean LOG_BINARY = false;
+    public static final int LOG_BINARY_ENCODING = BinarySessionFormat.ENCODING_DELTA;
+    public static final @Nullable String LOG_STREAM_SOCKET_NAME = null;
+    private static final String TEXT_LOG_SINK = "eSenseRecorder-Log";
+    private static final String BINARY_LOG_SINK = "eSenseRecorder-Binary";
+    private static final String STREAM_SINK = "eSenseRecorder-Stream";
+    private final SampleFanOut sampleFanOut = new SampleFanOut();
+    // Consumer of the samples of the text log, added to the fan-out while logging
+    private ESenseSensorListener textLogTarget;
+
+    // Triggered log: only the episodes around triggers (motion, button) are logged, with the
+    // samples of the pre-trigger duration and until the hold duration after the last trigger
+    public static final boolean LOG_TRIGGERED = false;
+    public static final long LOG_PRE_TRIGGER_MS = 5000;
+    public static final long LOG_TRIGGER_HOLD_MS = 5000;
+    public static final double LOG_TRIGGER_GYRO_THRESHOLD_DEG_PER_S = 60;
+    public static final int LOG_TRIGGER_SMOOTHING_SAMPLES = 10;
+    // History of the triggered log, for the pre-trigger duration at the highest sampling rate
+    private static final int LOG_TRIGGER_HISTORY_CAPACITY =
+            (int) (LOG_PRE_TRIGGER_MS * 100 / 1000) + 1;
+    private @Nullable TriggeredRecorder triggeredRecorder;
 
     // Log parameters
     private @NonNull String logSeparator = "\t";
@@ -83,12 +137,123 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
     private DecimalFormat convAccFormat = new DecimalFormat("00.00");
     private DecimalFormat convGyroFormat = new DecimalFormat("00.00");
 
+    // Converted sensor data of the sensor data panel, only used on the UI thread
+    private final double[][] convSensorData = new double[2][3];
+
     // Flag for pending log (after config read and start sensor)
     private boolean pendingStartLog = false;
 
     private String LAST_SAMPLING_RATE_KEY = "LAST_SAMPLING_RATE_KEY";
     private int lastSamplingRate = 25;
 
+    // Writes sensor data to the log, called on the thread of the sensor log dispatcher
+    private final ESenseSensorListener sensorLogListener = new ESenseSensorListener() {
+        // Conversion and encoding buffers, only used on the log thread
+        private final double[] convAccBuffer = new double[3];
+        private final double[] convGyroBuffer = new double[3];
+        private LogLineEncoder line;
+        private String sensorEventMessage;
+        private String packetsLostMessage;
+
+        @Override
+        public void onSensorChanged(ESenseEvent evt) {
+            SimpleLogger logger = MainActivity.this.logger;
+            if (logger == null) {
+                return;
+            }
+            if (line == null) {
+                line = new LogLineEncoder(logSeparator, logTerminator);
+                sensorEventMessage = getString(R.string.log_sensor_event_message);
+                packetsLostMessage = getString(R.string.log_packets_lost_message);
+            }
+            // Reconstructed time of the sample, not of its arrival or processing
+            long elapsedMillis = (evt.getSampleTimeNanos()-startLogNanoTime)/1000000;
+            // Gap marker, the sample does not follow the previous one
+            if (evt.getLostPackets() > 0) {
+                line.reset()
+                        .append(elapsedMillis)
+                        .append(packetsLostMessage)
+                        .append(evt.getLostPackets())
+                        .endLine();
+                logger.log(MainActivity.this, line);
+            }
+            short[] acc = evt.getAccel();
+            short[] gyro = evt.getGyro();
+            line.reset()
+                    .append(elapsedMillis)
+                    .append(sensorEventMessage)
+                    .append(acc[0]).append(acc[1]).append(acc[2])
+                    .append(gyro[0]).append(gyro[1]).append(gyro[2]);
+            ESenseConfig config = eSenseController.getESenseConfig();
+            if (config != null) {
+                double[] convAcc = evt.convertAccToG(config, convAccBuffer);
+                double[] convGyro = evt.convertGyroToDegPerSecond(config, convGyroBuffer);
+                int decimals = TsvSessionConverter.CONVERTED_VALUE_DECIMALS;
+                line.append(convAcc[0], decimals)
+                        .append(convAcc[1], decimals)
+                        .append(convAcc[2], decimals)
+                        .append(convGyro[0], decimals)
+                        .append(convGyro[1], decimals)
+                        .append(convGyro[2], decimals);
+            } else {
+                line.append("-").append("-").append("-")
+                        .append("-").append("-").append("-");
+            }
+            line.endLine();
+            if (!logger.logSample(MainActivity.this, line, elapsedMillis)) {
+                // Log failed
+                logger.closeLog(MainActivity.this);
+                onLogFailed(logger);
+            }
+        }
+    };
+
+    // Writes the episodes of the triggered log, called on the thread of the sensor log dispatcher
+    private final TriggeredRecorder.Listener triggerLogListener = new TriggeredRecorder.Listener() {
+        @Override
+        public void onEpisodeStarted(int triggers, long firstSampleTimeNanos,
+                                     long triggerSampleTimeNanos) {
+            SimpleLogger logger = MainActivity.this.logger;
+            if (logger == null) {
+                return;
+            }
+            StringBuilder sources = new StringBuilder();
+            if ((triggers & TriggeredRecorder.TRIGGER_MOTION) != 0) {
+                sources.append(getString(R.string.log_trigger_motion)).append(' ');
+            }
+            if ((triggers & TriggeredRecorder.TRIGGER_BUTTON) != 0) {
+                sources.append(getString(R.string.log_trigger_button)).append(' ');
+            }
+            if ((triggers & TriggeredRecorder.TRIGGER_API) != 0) {
+                sources.append(getString(R.string.log_trigger_api)).append(' ');
+            }
+            logger.log(MainActivity.this, logSeparator, logTerminator,
+                    (firstSampleTimeNanos-startLogNanoTime)/1000000,
+                    getString(R.string.log_trigger_start_message),
+                    sources.toString().trim(),
+                    (triggerSampleTimeNanos-startLogNanoTime)/1000000);
+        }
+
+        @Override
+        public void onEpisodeEnded(long lastSampleTimeNanos) {
+            SimpleLogger logger = MainActivity.this.logger;
+            if (logger == null) {
+                return;
+            }
+            logger.log(MainActivity.this, logSeparator, logTerminator,
+                    (lastSampleTimeNanos-startLogNanoTime)/1000000,
+                    getString(R.string.log_trigger_end_message));
+        }
+    };
+
+    // Reports the failure of a destination of the samples, called on the thread of the sink
+    private final SampleFanOut.Listener sinkFailureListener = new SampleFanOut.Listener() {
+        @Override
+        public void onSinkFailed(String name, Exception error) {
+            showToast(getString(R.string.toast_sink_failed, name));
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -120,6 +285,17 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
         convAccFormat = new DecimalFormat(getString(R.string.conv_acc_data_decimal_format));
         convGyroFormat = new DecimalFormat(getString(R.string.conv_gyro_data_decimal_format));
 
+        // Consumer of the sensor log
+        textLogTarget = sensorLogListener;
+        if (LOG_TRIGGERED) {
+            triggeredRecorder = new TriggeredRecorder(sensorLogListener,
+                    LOG_TRIGGER_HISTORY_CAPACITY, LOG_PRE_TRIGGER_MS * 1000000,
+                    LOG_TRIGGER_HOLD_MS * 1000000);
+            triggeredRecorder.setListener(triggerLogListener);
+            textLogTarget = triggeredRecorder;
+        }
+        sampleFanOut.setListener(sinkFailureListener);
+
         // Retrieve defaults
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         lastSamplingRate = prefs.getInt(LAST_SAMPLING_RATE_KEY, lastSamplingRate);
@@ -416,13 +592,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
             stopRecordButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
-                    logger.log(MainActivity.this, logSeparator, logTerminator,
-                            String.format(
-                                    Locale.getDefault(), "%d", elapsedMillis),
-                            getString(R.string.log_stop_message));
-                    logger.closeLog(MainActivity.this);
-                    logger = null;
+                    stopLog(getString(R.string.log_stop_message));
                     updateLoggerPanel();
                 }
             });
@@ -489,45 +659,55 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
      */
     private void startLog() {
         pendingStartLog = false;
-        if (logger != null && logger.isLogging()) {
-            logger.closeLog(this);
-        }
+        stopLog(null);
         // Create logger
         String folderName = getString(R.string.log_folder);
         SimpleDateFormat logFileFormat = new SimpleDateFormat(
                 getString(R.string.log_file_date_pattern), Locale.getDefault());
-        logger = new SimpleLogger(folderName, logFileFormat.format(new Date()));
+        String logName = logFileFormat.format(new Date());
+        logger = new SimpleLogger(folderName, logName, LOG_MAPPED_SEGMENTS);
+        logger.setRotation(LOG_SEGMENT_MAX_BYTES, LOG_SEGMENT_MAX_DURATION_MS,
+                logSeparator, logTerminator);
+        logger.setCompression(LOG_COMPRESSED, LOG_COMPRESSION_LEVEL);
         // First log
         startLogNanoTime = System.nanoTime();
+        long startLogTimeMillis = System.currentTimeMillis();
         SimpleDateFormat dateFormat = new SimpleDateFormat(
                 getString(R.string.log_start_date_pattern), Locale.getDefault());
         String date = dateFormat.format(new Date());
         // configuration details
         ESenseConfig config = eSenseController.getESenseConfig();
+        if (triggeredRecorder != null) {
+            // New history, motion threshold in ADC units of the current range
+            triggeredRecorder.reset();
+            triggeredRecorder.setMotionTrigger((config == null) ? 0 :
+                    LOG_TRIGGER_GYRO_THRESHOLD_DEG_PER_S * config.getGyroSensitivityFactor(),
+                    LOG_TRIGGER_SMOOTHING_SAMPLES);
+        }
         if (config != null) {
             logger.log(this, logSeparator, logTerminator,
                     "0",
-                    "sampling rate",
+                    TsvSessionConverter.SAMPLING_RATE_LABEL,
                     lastSamplingRate
             );
             logger.log(this, logSeparator, logTerminator,
                     "0",
-                    "acc. range",
+                    TsvSessionConverter.ACC_RANGE_LABEL,
                     config.getAccRange().toString()
                     );
             logger.log(this, logSeparator, logTerminator,
                     "0",
-                    "gyro. range",
+                    TsvSessionConverter.GYRO_RANGE_LABEL,
                     config.getGyroRange().toString()
             );
             logger.log(this, logSeparator, logTerminator,
                     "0",
-                    "acc. LPF",
+                    TsvSessionConverter.ACC_LPF_LABEL,
                     config.getAccLPF().toString()
             );
             logger.log(this, logSeparator, logTerminator,
                     "0",
-                    "gyro. LPF",
+                    TsvSessionConverter.GYRO_LPF_LABEL,
                     config.getGyroLPF().toString()
             );
         }
@@ -539,10 +719,98 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
             logger.closeLog(this);
             logger = null;
             showToast(getString(R.string.toast_log_failed));
+        } else {
+            sampleFanOut.addListener(TEXT_LOG_SINK, textLogTarget, LOG_QUEUE_CAPACITY,
+                    WaitStrategy.BLOCK,
+                    LOG_TEXT_DECIMATE ? OverflowPolicy.DECIMATE : LOG_OVERFLOW_POLICY);
+            openSessionSinks(logger.getLogDirectory(), logName, config, startLogTimeMillis);
         }
         updateLoggerPanel();
     }
 
+    /**
+     * Stops the log after its queued samples, and closes the additional destinations of the
+     * samples.
+     *
+     * @param message The message of the last line of the log, or null for none.
+     */
+    private void stopLog(@Nullable String message) {
+        // Write the queued samples first, no sample reaches the logger afterwards
+        SampleQueue queue = sampleFanOut.getQueue(TEXT_LOG_SINK);
+        if (queue != null) {
+            sampleFanOut.remove(TEXT_LOG_SINK);
+            Log.i(DEBUG_TAG, String.format(Locale.US,
+                    "Log queue: %d samples, %d dropped, %d decimated, high-water mark %d/%d.",
+                    queue.getPublishedCount(), queue.getDroppedCount(),
+                    queue.getDecimatedCount(), queue.getHighWaterMark(),
+                    queue.getCapacity()));
+        }
+        if (logger != null) {
+            if (message != null && logger.isLogging()) {
+                long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
+                logger.log(this, logSeparator, logTerminator,
+                        String.format(
+                                Locale.getDefault(), "%d", elapsedMillis),
+                        message);
+            }
+            logger.closeLog(this);
+            logger = null;
+        }
+        closeSessionSinks();
+    }
+
+    /**
+     * Opens the additional destinations of the samples of a log.
+     */
+    private void openSessionSinks(@Nullable File logDirectory, String logName,
+                                  @Nullable ESenseConfig config, long startLogTimeMillis) {
+        if (LOG_BINARY && logDirectory != null) {
+            File file = new File(logDirectory, logName + BinarySessionFormat.FILE_EXTENSION);
+            try {
+                BinarySessionSink sink = BinarySessionSink.createFile(file, LOG_BINARY_ENCODING);
+                addSessionSink(BINARY_LOG_SINK, sink, config, startLogTimeMillis,
+                        LOG_OVERFLOW_POLICY);
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Unable to create binary log.", e);
+                showToast(getString(R.string.toast_sink_failed, BINARY_LOG_SINK));
+            }
+        }
+        if (LOG_STREAM_SOCKET_NAME != null) {
+            try {
+                BinarySessionSink sink = BinarySessionSink.connectLocalSocket(
+                        LOG_STREAM_SOCKET_NAME, LOG_BINARY_ENCODING);
+                // A live stream favors the latest samples
+                addSessionSink(STREAM_SINK, sink, config, startLogTimeMillis,
+                        OverflowPolicy.DROP_OLDEST);
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Unable to connect sample stream.", e);
+                showToast(getString(R.string.toast_sink_failed, STREAM_SINK));
+            }
+        }
+    }
+
+    private void addSessionSink(String name, BinarySessionSink sink,
+                                @Nullable ESenseConfig config, long startLogTimeMillis,
+                                OverflowPolicy overflowPolicy) throws IOException {
+        try {
+            sink.writeHeader(eSenseController.getDeviceName(), lastSamplingRate, config,
+                    startLogTimeMillis, startLogNanoTime);
+        } catch (IOException e) {
+            sink.close();
+            throw e;
+        }
+        sampleFanOut.addSink(name, sink, BinarySessionWriter.DEFAULT_BLOCK_SIZE,
+                LOG_QUEUE_CAPACITY, WaitStrategy.BLOCK, overflowPolicy);
+    }
+
+    /**
+     * Closes the additional destinations of the samples of a log, after their queued samples.
+     */
+    private void closeSessionSinks() {
+        sampleFanOut.remove(BINARY_LOG_SINK);
+        sampleFanOut.remove(STREAM_SINK);
+    }
+
     /**
      * Asks for the sampling rate and start the sensors (asynchronously)
      */
@@ -607,6 +875,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
     protected void onResume() {
         super.onResume();
         eSenseController.addListener(this);
+        eSenseController.addSensorListener(sampleFanOut);
         updateUI();
         // Start handler for regular sensor fields updates
         uiUpdateHandler.postDelayed(new Runnable() {
@@ -630,25 +899,37 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
     protected void onPause() {
         super.onPause();
         eSenseController.removeListener(this);
+        eSenseController.removeSensorListener(sampleFanOut);
         // Stop UI update handler
         uiUpdateHandler.removeCallbacksAndMessages(null);
         // Close connection and logger on finishing
         if (isFinishing()) {
             // Stop log
-            if (logger != null && logger.isLogging()) {
-                long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
-                logger.log(MainActivity.this, logSeparator, logTerminator,
-                        String.format(
-                                Locale.getDefault(), "%d", elapsedMillis),
-                        getString(R.string.log_stop_message));
-                logger.closeLog(this);
-                logger = null;
-            }
+            stopLog(getString(R.string.log_stop_message));
             // Disconnect
             eSenseController.disconnect();
         }
     }
 
+    /**
+     * Forgets a failed logger on the UI thread, unless the log has been stopped or another log
+     * has been started meanwhile.
+     *
+     * @param failedLogger The logger that failed, already closed.
+     */
+    private void onLogFailed(final SimpleLogger failedLogger) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (logger == failedLogger) {
+                    logger = null;
+                    showToast(getString(R.string.toast_log_failed));
+                    updateLoggerPanel();
+                }
+            }
+        });
+    }
+
     /**
      * Shows a toast.
      *
@@ -912,7 +1193,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
                     return;
                 }
                 ESenseEvent rawSensorData = eSenseController.getLastSensorData();
-                double[][] convSensorData = eSenseController.getConvertedSensorData();
+                boolean hasConvSensorData = eSenseController.getConvertedSensorData(convSensorData);
                 // Start stop buttons
                 if (startSensorButton != null && stopSensorButton != null) {
                     if (eSenseController.getState() != ESenseConnectionState.CONNECTED) {
@@ -976,9 +1257,12 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
                         rawGyroZLabel.setText(R.string.unknown_value_text);
                     }
                 }
+                if (rawSensorData != null) {
+                    rawSensorData.recycle();
+                }
                 // Converted data
                 if (convAccXLabel != null && convAccYLabel != null && convAccZLabel != null) {
-                    if (convSensorData != null) {
+                    if (hasConvSensorData) {
                         convAccXLabel.setText(convAccFormat.format(convSensorData[0][0]));
                         convAccYLabel.setText(convAccFormat.format(convSensorData[0][1]));
                         convAccZLabel.setText(convAccFormat.format(convSensorData[0][2]));
@@ -989,7 +1273,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
                     }
                 }
                 if (convGyroXLabel != null && convGyroYLabel != null && convGyroZLabel != null) {
-                    if (convSensorData != null) {
+                    if (hasConvSensorData) {
                         convGyroXLabel.setText(convGyroFormat.format(convSensorData[1][0]));
                         convGyroYLabel.setText(convGyroFormat.format(convSensorData[1][1]));
                         convGyroZLabel.setText(convGyroFormat.format(convSensorData[1][2]));
@@ -1029,15 +1313,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
     @Override
     public void onDisconnected(ESenseManager manager) {
         // Stop log
-        if (logger != null && logger.isLogging()) {
-            long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
-            logger.log(this, logSeparator, logTerminator,
-                    String.format(
-                            Locale.getDefault(), "%d", elapsedMillis),
-                    getString(R.string.log_disconnection_message));
-            logger.closeLog(this);
-            logger = null;
-        }
+        stopLog(getString(R.string.log_disconnection_message));
         // Toast and UI update
         showToast(getString(R.string.toast_message_device_disconnected));
         updateUI();
@@ -1050,6 +1326,10 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
 
     @Override
     public void onButtonEventChanged(boolean pressed) {
+        // Trigger an episode of the triggered log
+        if (triggeredRecorder != null && pressed) {
+            triggeredRecorder.trigger(TriggeredRecorder.TRIGGER_BUTTON);
+        }
         // Log event
         if (logger != null && logger.isLogging()) {
             long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
@@ -1099,36 +1379,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
 
     @Override
     public void onSensorChanged(ESenseEvent evt) {
-        // Log sensor data
-        if (logger != null) {
-            long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
-            String elapsed = String.format(Locale.getDefault(), "%d", elapsedMillis);
-            ESenseConfig config = eSenseController.getESenseConfig();
-            double[] convAcc = null;
-            double[] convGyro = null;
-            if (config != null) {
-                convAcc = evt.convertAccToG(config);
-                convGyro = evt.convertGyroToDegPerSecond(config);
-            }
-            if (!logger.log(this, logSeparator, logTerminator,
-                    elapsed,
-                    getString(R.string.log_sensor_event_message),
-                    evt.getAccel()[0], evt.getAccel()[1], evt.getAccel()[2],
-                    evt.getGyro()[0], evt.getGyro()[1], evt.getGyro()[2],
-                    (convAcc==null)?("-"):(convAcc[0]),
-                    (convAcc==null)?("-"):(convAcc[1]),
-                    (convAcc==null)?("-"):(convAcc[2]),
-                    (convGyro==null)?("-"):(convGyro[0]),
-                    (convGyro==null)?("-"):(convGyro[1]),
-                    (convGyro==null)?("-"):(convGyro[2])
-                    )) {
-                // Log failed
-                logger.closeLog(this);
-                logger = null;
-                showToast(getString(R.string.toast_log_failed));
-                updateLoggerPanel();
-            }
-        }
+        // Sensor data are logged by the sensor log dispatcher thread.
         // No UI update. This is made in separate handler.
     }
 
@@ -1148,15 +1399,7 @@ public class MainActivity extends BluetoothCheckActivity implements BluetoothChe
     @Override
     public void onSensorNotificationsStopped() {
         // Stop log
-        if (logger != null && logger.isLogging()) {
-            long elapsedMillis = (System.nanoTime()-startLogNanoTime)/1000000;
-            logger.log(this, logSeparator, logTerminator,
-                    String.format(
-                            Locale.getDefault(), "%d", elapsedMillis),
-                    getString(R.string.log_sensors_stopped_message));
-            logger.closeLog(this);
-            logger = null;
-        }
+        stopLog(getString(R.string.log_sensors_stopped_message));
         updateLoggerPanel();
         updateSensorDataPanel();
     }
@@ -0,0 +1,270 @@
+package com.esr.esense_recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Byte output writing a file through memory-mapped segments.
+ *
+ * <p>
+ * The file is extended by a whole segment at a time and the segment is mapped in memory, so that
+ * writes are memory copies. When a segment is full, the next one is mapped from the end of the
+ * data. The last bytes of the current segment hold a trailer with the length of the data, updated
+ * on every write: if the application dies before <code>close()</code>, the file can be truncated
+ * to its data with <code>recover(File)</code>. On close, the file is truncated to the length of
+ * the data.
+ * </p>
+ * <p>
+ * A mapping cannot be released explicitly, only by the garbage collector once the segment is no
+ * longer referenced. A file of bounded length, e.g. a log segment with a size limit, should
+ * therefore be written through a single mapping sized with <code>getSegmentSize(long)</code>.
+ * Without bound, the large default segments keep the number of mappings low.
+ * </p>
+ */
+public class MappedSegmentWriter implements ByteOutput {
+    // Default size of the segments
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Maximum size of a segment sized to the length of a file, to bound the mapped address space
+    public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Trailer at the end of the current segment: magic and length of the data
+    static final long TRAILER_MAGIC = 0x4553525345474D31L;
+    static final int TRAILER_SIZE = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int segmentSize;
+
+    // Current segment
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private int segmentCapacity;
+
+    // Length of the data in the file
+    private long length = 0;
+    private long segmentCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Constructor, creates or truncates the file and maps the first segment.
+     *
+     * @param file the file to write.
+     * @param segmentSize the size of the segments, including the trailer.
+     * @throws IOException if the file cannot be created or mapped.
+     */
+    public MappedSegmentWriter(File file, int segmentSize) throws IOException {
+        if (segmentSize <= TRAILER_SIZE) {
+            throw new IllegalArgumentException("Illegal segment size: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        try {
+            channel.truncate(0);
+            mapSegment();
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("The segment writer is closed");
+        }
+        while (length > 0) {
+            int position = (int) (this.length - segmentStart);
+            int room = segmentCapacity - position;
+            if (room == 0) {
+                mapSegment();
+                continue;
+            }
+            int count = Math.min(room, length);
+            segment.position(position);
+            segment.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            this.length += count;
+        }
+        // Commit the data for recovery
+        segment.putLong(segmentCapacity + 8, this.length);
+    }
+
+    @Override
+    public void flush() {
+        // Writes are visible in the file as soon as they are done
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (!closed) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Syncs the data, truncates the file to the length of the data and closes it.
+     *
+     * @throws IOException if the file cannot be synced, truncated or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            segment.force();
+            segment = null;
+            channel.truncate(length);
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the length of the data written.
+     *
+     * @return the length in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of segments mapped since the file was created.
+     *
+     * @return the number of segments.
+     */
+    public long getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Returns the size of the segments to write a file of bounded length through a single
+     * mapping.
+     *
+     * @param maxLength the maximum length of the data of the file.
+     * @return the size of a segment holding the data and the trailer, or the default segment size
+     * if it would exceed <code>MAX_SEGMENT_SIZE</code>.
+     */
+    public static int getSegmentSize(long maxLength) {
+        if (maxLength <= 0 || maxLength > MAX_SEGMENT_SIZE - TRAILER_SIZE) {
+            return DEFAULT_SEGMENT_SIZE;
+        }
+        return (int) maxLength + TRAILER_SIZE;
+    }
+
+    /**
+     * Truncates a file left by a writer that was not closed to the length of its data. The
+     * length is read from the trailer. If the application died while mapping a new segment, the
+     * trailer is missing and the zero bytes at the end of the file are removed.
+     *
+     * @param file the file to recover.
+     * @return the length of the recovered file, or -1 if the file does not end with a segment.
+     * @throws IOException if the file cannot be read or truncated.
+     */
+    public static long recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long fileLength = raf.length();
+            if (fileLength < TRAILER_SIZE) {
+                return -1;
+            }
+            raf.seek(fileLength - TRAILER_SIZE);
+            long magic = raf.readLong();
+            long dataLength = raf.readLong();
+            if (magic == TRAILER_MAGIC) {
+                if (dataLength < 0 || dataLength > fileLength - TRAILER_SIZE) {
+                    return -1;
+                }
+            } else if (magic == 0 && dataLength == 0) {
+                dataLength = findEndOfData(raf, fileLength - TRAILER_SIZE);
+                // The data may end with the trailer of the previous segment, at the length it
+                // holds, whose last bytes may be zero
+                for (long position = Math.max(0, dataLength - TRAILER_SIZE);
+                     position <= dataLength - 8; position++) {
+                    raf.seek(position);
+                    if (raf.readLong() == TRAILER_MAGIC && raf.readLong() == position) {
+                        dataLength = position;
+                        break;
+                    }
+                }
+            } else {
+                return -1;
+            }
+            raf.setLength(dataLength);
+            return dataLength;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a file ends with the trailer of a segment, or with zero bytes
+     * in place of the trailer, i.e. it has been left by a writer that was not closed.
+     *
+     * @param file the file to check.
+     * @return <code>true</code> if the file must be recovered.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean needsRecovery(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = raf.length();
+            if (fileLength < TRAILER_SIZE) {
+                return false;
+            }
+            raf.seek(fileLength - TRAILER_SIZE);
+            long magic = raf.readLong();
+            long dataLength = raf.readLong();
+            // Zero bytes if the application died while mapping a new segment
+            return magic == TRAILER_MAGIC || (magic == 0 && dataLength == 0);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps a new segment at the end of the data and writes its trailer.
+     */
+    private void mapSegment() throws IOException {
+        MappedByteBuffer previous = segment;
+        segmentStart = length;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentSize);
+        segmentCapacity = segmentSize - TRAILER_SIZE;
+        segment.putLong(segmentCapacity, TRAILER_MAGIC);
+        segment.putLong(segmentCapacity + 8, length);
+        segmentCount++;
+        if (previous != null) {
+            // The previous segment is complete, its pages can be written back and it is no longer
+            // referenced, so that it can be unmapped
+            previous.force();
+        }
+    }
+
+    /**
+     * Returns the position after the last non-zero byte before the given position.
+     */
+    private static long findEndOfData(RandomAccessFile raf, long end) throws IOException {
+        byte[] chunk = new byte[8192];
+        long position = end;
+        while (position > 0) {
+            int count = (int) Math.min(chunk.length, position);
+            raf.seek(position - count);
+            raf.readFully(chunk, 0, count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (chunk[i] != 0) {
+                    return position - count + i + 1;
+                }
+            }
+            position -= count;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,358 @@
+package com.esr.esense_recorder;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.esense.esenselib.SampleBlock;
+
+/**
+ * Verifies the binary sessions of a directory in parallel, one file per thread, and salvages the
+ * damaged ones.
+ *
+ * <p>
+ * Each record of a session is checked against its CRC32C (from version 2 of the format). A
+ * damaged session is rewritten in a salvage directory with all its valid records, and an event
+ * marking each skipped range, so that the original file is never modified.
+ * </p>
+ */
+public class SessionVerifier {
+    // Debug
+    @SuppressWarnings("unused")
+    private static final String DEBUG_TAG = "eSenseRecorder-Debug";
+
+    // Message of the events marking the skipped data in a salvaged session
+    public static final String SKIPPED_DATA_MESSAGE = "Corrupted data skipped.";
+    // Maximum number of offsets of corrupted records kept in a report
+    public static final int MAX_REPORTED_OFFSETS = 100;
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Result of the verification of a session file.
+     */
+    public static class Report {
+        private final File file;
+        private final long length;
+        private int version = -1;
+        private long recordCount = 0;
+        private long sampleCount = 0;
+        private long corruptRecordCount = 0;
+        private long skippedBytes = 0;
+        private final ArrayList<Long> corruptOffsets = new ArrayList<>();
+        private boolean truncated = false;
+        private @Nullable String error;
+        private @Nullable File salvagedFile;
+        private long durationNanos;
+
+        Report(File file) {
+            this.file = file;
+            this.length = file.length();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the version of the session format.
+         *
+         * @return the version, or -1 if the header is unreadable.
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        public long getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * Returns the number of ranges of corrupted records.
+         *
+         * @return the number of corrupted records.
+         */
+        public long getCorruptRecordCount() {
+            return corruptRecordCount;
+        }
+
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        /**
+         * Returns the offsets of the first corrupted records, at most
+         * <code>MAX_REPORTED_OFFSETS</code>.
+         *
+         * @return the offsets in bytes.
+         */
+        public List<Long> getCorruptOffsets() {
+            return corruptOffsets;
+        }
+
+        /**
+         * Returns <code>true</code> if the session has no end record, i.e. its last records
+         * are missing.
+         *
+         * @return <code>true</code> if the session has been truncated.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Returns the error that stopped the verification, e.g. an unreadable header.
+         *
+         * @return the error message, or <code>null</code> if none.
+         */
+        public @Nullable String getError() {
+            return error;
+        }
+
+        /**
+         * Returns the salvaged copy of a damaged session.
+         *
+         * @return the salvaged file, or <code>null</code> if the session is intact or has not
+         * been salvaged.
+         */
+        public @Nullable File getSalvagedFile() {
+            return salvagedFile;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * Returns <code>true</code> if the session is complete and no record is corrupted.
+         *
+         * @return <code>true</code> if the session is intact.
+         */
+        public boolean isIntact() {
+            return error == null && !truncated && corruptRecordCount == 0;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + ": " + (isIntact() ? "intact" : "damaged")
+                    + ", " + sampleCount + " samples in " + recordCount + " records"
+                    + (truncated ? ", truncated" : "")
+                    + ((corruptRecordCount > 0) ? ", " + corruptRecordCount
+                    + " corrupted records (" + skippedBytes + " bytes) at " + corruptOffsets : "")
+                    + ((error != null) ? ", error: " + error : "")
+                    + ((salvagedFile != null) ? ", salvaged to " + salvagedFile.getName() : "");
+        }
+    }
+
+    private final int threadCount;
+
+    /**
+     * Constructor.
+     *
+     * @param threadCount the number of files verified in parallel, e.g. the number of cores.
+     */
+    public SessionVerifier(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Illegal thread count: " + threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Verifies the binary sessions of a directory, i.e. its files with the extension of the
+     * format, in parallel.
+     *
+     * @param directory the directory of the sessions.
+     * @param salvageDirectory the directory of the salvaged copies of the damaged sessions, or
+     *                         <code>null</code> to only verify.
+     * @return the reports, in the order of the file names.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public List<Report> verifyDirectory(File directory, @Nullable final File salvageDirectory)
+            throws InterruptedException {
+        ArrayList<Report> reports = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return reports;
+        }
+        Arrays.sort(files);
+        if (salvageDirectory != null && !salvageDirectory.exists() && !salvageDirectory.mkdirs()) {
+            Log.e(DEBUG_TAG, "SessionVerifier: Unable to create salvage directory.");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            ArrayList<Future<Report>> results = new ArrayList<>();
+            for (final File file : files) {
+                if (!file.isFile() || !file.getName().endsWith(BinarySessionFormat.FILE_EXTENSION)) {
+                    continue;
+                }
+                results.add(executor.submit(new Callable<Report>() {
+                    @Override
+                    public Report call() {
+                        return verifyFile(file, (salvageDirectory == null) ? null :
+                                new File(salvageDirectory, file.getName()));
+                    }
+                }));
+            }
+            for (Future<Report> result : results) {
+                try {
+                    reports.add(result.get());
+                } catch (ExecutionException e) {
+                    // Unexpected, errors are reported by verifyFile
+                    Log.e(DEBUG_TAG, "SessionVerifier: Verification failed.", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return reports;
+    }
+
+    /**
+     * Verifies a session file on the calling thread.
+     *
+     * @param file the session file.
+     * @param salvageFile the file of the salvaged copy if the session is damaged, or
+     *                    <code>null</code> to only verify.
+     * @return the report.
+     */
+    public Report verifyFile(File file, @Nullable File salvageFile) {
+        long start = System.nanoTime();
+        Report report = new Report(file);
+        try {
+            scan(report);
+        } catch (IOException e) {
+            report.error = e.getMessage();
+        }
+        if (salvageFile != null && !report.isIntact() && report.version >= 0) {
+            try {
+                salvage(file, salvageFile);
+                report.salvagedFile = salvageFile;
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "SessionVerifier: Unable to salvage " + file.getName() + ".", e);
+                if (salvageFile.exists() && !salvageFile.delete()) {
+                    Log.e(DEBUG_TAG, "SessionVerifier: Unable to delete partial salvage.");
+                }
+            }
+        }
+        report.durationNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Reads all the records of a session, skipping the corrupted ones.
+     */
+    private static void scan(Report report) throws IOException {
+        BinarySessionReader reader = new BinarySessionReader(
+                new BufferedInputStream(new FileInputStream(report.file), READ_BUFFER_SIZE));
+        try {
+            report.version = reader.getVersion();
+            reader.setSkipCorruptRecords(true);
+            long corruptRecords = 0;
+            int type;
+            while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+                report.recordCount++;
+                if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                    report.sampleCount += reader.getBlock().getSize();
+                }
+                if (reader.getCorruptRecordCount() != corruptRecords) {
+                    corruptRecords = reader.getCorruptRecordCount();
+                    addCorruptOffset(report, reader.getLastCorruptOffset());
+                }
+            }
+            if (reader.getCorruptRecordCount() != corruptRecords) {
+                addCorruptOffset(report, reader.getLastCorruptOffset());
+            }
+            report.corruptRecordCount = reader.getCorruptRecordCount();
+            report.skippedBytes = reader.getSkippedBytes();
+            report.truncated = reader.isTruncated();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void addCorruptOffset(Report report, long offset) {
+        if (report.corruptOffsets.size() < MAX_REPORTED_OFFSETS) {
+            report.corruptOffsets.add(offset);
+        }
+    }
+
+    /**
+     * Copies the valid records of a session to a new session, with an event at each skipped
+     * range.
+     */
+    private static void salvage(File file, File salvageFile) throws IOException {
+        BinarySessionReader reader = new BinarySessionReader(
+                new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+        try {
+            reader.setSkipCorruptRecords(true);
+            BinarySessionWriter writer = new BinarySessionWriter(
+                    new BufferedOutputStream(new FileOutputStream(salvageFile), READ_BUFFER_SIZE),
+                    BinarySessionWriter.DEFAULT_BLOCK_SIZE, BinarySessionFormat.ENCODING_DELTA);
+            try {
+                // Elapsed times are kept: the sample times of the reader are relative to 0
+                writer.writeHeader(reader.getDeviceName(), reader.getSamplingRate(),
+                        reader.getConfig(), reader.getStartTimeMillis(), 0);
+                long corruptRecords = 0;
+                long skippedBytes = 0;
+                long lastElapsedMillis = 0;
+                int type;
+                while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+                    if (reader.getCorruptRecordCount() != corruptRecords) {
+                        writer.writeEvent(lastElapsedMillis, SKIPPED_DATA_MESSAGE,
+                                String.valueOf(reader.getLastCorruptOffset()),
+                                String.valueOf(reader.getSkippedBytes() - skippedBytes));
+                        corruptRecords = reader.getCorruptRecordCount();
+                        skippedBytes = reader.getSkippedBytes();
+                    }
+                    if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                        SampleBlock block = reader.getBlock();
+                        if (block.getSize() > 0) {
+                            writer.writeBlock(block);
+                            lastElapsedMillis =
+                                    block.getSampleTimes()[block.getSize() - 1] / 1000000;
+                        }
+                    } else if (type == BinarySessionFormat.RECORD_EVENT) {
+                        writer.writeEvent(reader.getEventElapsedMillis(),
+                                reader.getEventFields());
+                        lastElapsedMillis = reader.getEventElapsedMillis();
+                    } else if (type == BinarySessionFormat.RECORD_CONFIG) {
+                        writer.writeConfig(reader.getConfig());
+                    }
+                }
+                if (reader.getCorruptRecordCount() != corruptRecords) {
+                    writer.writeEvent(lastElapsedMillis, SKIPPED_DATA_MESSAGE,
+                            String.valueOf(reader.getLastCorruptOffset()),
+                            String.valueOf(reader.getSkippedBytes() - skippedBytes));
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -5,13 +5,31 @@ import android.media.MediaScannerConnection;
 import android.os.Environment;
 import android.util.Log;
 
-import java.io.BufferedWriter;
+import androidx.annotation.Nullable;
+
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * Yet another logger.
+ * Yet another logger. Methods are synchronized so that lines written from different threads are
+ * not interleaved. Lines are handed to an <code>AsyncLogWriter</code>, so that logging never waits
+ * for the file: lines are dropped if the writer cannot keep up. Dropped samples are not counted
+ * as logged, a line holding their number is written before the next logged sample.
+ *
+ * <p>
+ * With rotation enabled, a session is split in segment files by size or duration. Each segment
+ * starts with a copy of the lines logged before the first sample (configuration and start of the
+ * log) and ends with a footer line holding its sample count, the time range of its samples, its
+ * length and the CRC32 of the bytes before the footer. A manifest file lists the segments of the
+ * session and is rewritten at each rotation, so that a crash loses at most the lines pending in
+ * the writer of the open segment.
+ * </p>
  */
 public class SimpleLogger {
     // Debug
@@ -20,116 +38,605 @@ public class SimpleLogger {
     @SuppressWarnings("unused")
     private static final boolean DEBUG = true;
 
+    // Message of the footer line of a segment
+    public static final String SEGMENT_FOOTER_MESSAGE = "Segment end.";
+    // Message of the line reporting the samples dropped by the writer
+    public static final String SAMPLES_DROPPED_MESSAGE = "Samples dropped.";
+    // Suffix of the manifest file of a session
+    public static final String MANIFEST_SUFFIX = "_manifest.txt";
+    // Extensions of the log files
+    public static final String TEXT_EXTENSION = ".txt";
+    public static final String COMPRESSED_EXTENSION = ".txt.gz";
+    // Maximum size of the lines repeated at the start of each segment
+    private static final int MAX_SESSION_HEADER_SIZE = 4096;
+    // Bytes written to a segment once its size limit is reached: the last line and the footer
+    private static final int MAX_SEGMENT_OVERSHOOT = 64 * 1024;
+
+    // Results of writeBytes()
+    private static final int WRITTEN = 0;
+    private static final int DROPPED = 1;
+    private static final int FAILED = 2;
+
     private String logFolderName;
     private String logFileName;
+    private boolean mappedSegments;
+
+    // Compression of the log files
+    private boolean compressed = false;
+    private int compressionLevel = Deflater.BEST_SPEED;
 
+    // Rotation parameters, 0 if not limited
+    private long maxSegmentBytes = 0;
+    private long maxSegmentMillis = 0;
+    private String rotationSeparator = "\t";
+    private String rotationTerminator = "\n";
+
+    private File logDirectory;
+    // Directory of the log files instead of the folder in the downloads directory
+    private @Nullable File fixedLogDirectory;
+    private String sessionName;
     private File logFile;
-    private FileOutputStream logFileOutputStream;
-    private BufferedWriter logFileWriter;
+    private AsyncLogWriter logFileWriter;
+    // Set once the log is closed or has failed, no log file is created afterwards
+    private boolean closed = false;
+    private GzipByteOutput compressedOutput;
+
+    // Lines logged before the first sample, repeated at the start of each segment
+    private final byte[] sessionHeader = new byte[MAX_SESSION_HEADER_SIZE];
+    private int sessionHeaderLength = 0;
+    private boolean sessionHeaderComplete = false;
+
+    // State of the open segment
+    private int segmentIndex = 0;
+    private final CRC32 segmentCrc = new CRC32();
+    private long segmentBytes;
+    private long segmentSamples;
+    private long segmentFirstMillis;
+    private long segmentLastMillis;
+    private long segmentDroppedStart;
+
+    // Samples dropped by the writer since the last logged sample
+    private long droppedSamples = 0;
+    private LogLineEncoder droppedSamplesLine;
+
+    // Manifest lines of the closed segments
+    private final ArrayList<String> closedSegments = new ArrayList<>();
+
+    // Encoder of the lines logged from elements, reused
+    private LogLineEncoder lineEncoder;
+    private String lineSeparator;
+    private String lineTerminator;
 
     public SimpleLogger(String logFolderName, String logFileName) {
+        this(logFolderName, logFileName, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param logFolderName the name of the log folder in the downloads directory.
+     * @param logFileName the name of the log file, without extension.
+     * @param mappedSegments <code>true</code> to write the file through memory-mapped segments
+     *                       (see <code>MappedSegmentWriter</code>), e.g. for long recordings.
+     */
+    public SimpleLogger(String logFolderName, String logFileName, boolean mappedSegments) {
         this.logFolderName = logFolderName;
         this.logFileName = logFileName;
+        this.mappedSegments = mappedSegments;
+    }
+
+    /**
+     * Enables the rotation of the log in segments. Must be called before the first line is
+     * logged.
+     *
+     * @param maxSegmentBytes the size after which a new segment is started, 0 for no limit.
+     * @param maxSegmentMillis the time range of the samples after which a new segment is
+     *                         started in ms, 0 for no limit.
+     * @param separator the field separator of the footer and manifest lines.
+     * @param terminator the line terminator of the footer and manifest lines.
+     */
+    public synchronized void setRotation(long maxSegmentBytes, long maxSegmentMillis,
+                                         String separator, String terminator) {
+        if (logFileWriter != null) {
+            throw new IllegalStateException("The log has already started");
+        }
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.rotationSeparator = separator;
+        this.rotationTerminator = terminator;
+    }
+
+    /**
+     * Enables the gzip compression of the log files on the writer thread. Must be called before
+     * the first line is logged. The lines are decodable up to the last write of the writer, even
+     * if the log is not closed.
+     *
+     * @param compressed <code>true</code> to compress the log files.
+     * @param level the compression level in range [0-9], e.g. <code>Deflater.BEST_SPEED</code>.
+     */
+    public synchronized void setCompression(boolean compressed, int level) {
+        if (logFileWriter != null) {
+            throw new IllegalStateException("The log has already started");
+        }
+        this.compressed = compressed;
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Returns the directory of the log files.
+     *
+     * @return the log directory, or <code>null</code> if the log has not started.
+     */
+    public synchronized @Nullable File getLogDirectory() {
+        return logDirectory;
+    }
+
+    private String getExtension() {
+        return compressed ? COMPRESSED_EXTENSION : TEXT_EXTENSION;
+    }
+
+    /**
+     * Sets the directory of the log files instead of the folder in the downloads directory, e.g.
+     * for the unit tests on the development machine.
+     *
+     * @param directory the log directory.
+     */
+    synchronized void setLogDirectory(File directory) {
+        fixedLogDirectory = directory;
+    }
+
+    private boolean isRotating() {
+        return maxSegmentBytes > 0 || maxSegmentMillis > 0;
     }
 
     private boolean createLogFile(Context context) {
         try {
-            // Close previous log
-            closeLog(context);
-            // Check storage
-            if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-                Log.e(DEBUG_TAG, "SimpleLogger: No external storage for log file.");
-                return false;
+            if (fixedLogDirectory != null) {
+                logDirectory = fixedLogDirectory;
+            } else {
+                // Check storage
+                if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+                    Log.e(DEBUG_TAG, "SimpleLogger: No external storage for log file.");
+                    return false;
+                }
+                logDirectory = new File(Environment.getExternalStoragePublicDirectory(
+                        Environment.DIRECTORY_DOWNLOADS), logFolderName);
             }
             // Create log file and directory
-            File logDirectory = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DOWNLOADS), logFolderName);
             if (!logDirectory.exists()) {
                 if (!logDirectory.mkdirs()) {
                     Log.e(DEBUG_TAG, "SimpleLogger: Unable to create log directory.");
                     return false;
                 }
             }
-            logFile = new File(logDirectory, logFileName+".txt");
+            if (mappedSegments) {
+                recoverLogFiles(context, logDirectory);
+            }
+            sessionName = logFileName;
             int logIdx = 0;
-            while (logFile.exists()) {
+            while (sessionExists(sessionName)) {
                 logIdx++;
-                logFile = new File(logDirectory, logFileName
-                        +"("+Integer.toString(logIdx)+").txt");
+                sessionName = logFileName+"("+Integer.toString(logIdx)+")";
             }
-            logFile.createNewFile();
-            logFileOutputStream = new FileOutputStream(logFile);
-            logFileWriter = new BufferedWriter(new OutputStreamWriter(logFileOutputStream));
-            indexLogFile(context);
+            sessionHeaderLength = 0;
+            sessionHeaderComplete = false;
+            segmentIndex = 0;
+            closedSegments.clear();
+            droppedSamples = 0;
+            openSegment(context);
         } catch (Exception e) {
             Log.e(DEBUG_TAG, "SimpleLogger: Unable to create log file.", e);
             logFileWriter = null;
-            logFileOutputStream = null;
             return false;
         }
         return true;
     }
 
+    private boolean sessionExists(String name) {
+        if (isRotating()) {
+            return new File(logDirectory, name+MANIFEST_SUFFIX).exists()
+                    || new File(logDirectory, segmentFileName(name, 1)).exists();
+        } else {
+            return new File(logDirectory, name+getExtension()).exists();
+        }
+    }
+
+    private String segmentFileName(String sessionName, int index) {
+        return String.format(Locale.US, "%s_%03d%s", sessionName, index, getExtension());
+    }
+
+    /**
+     * Opens the next segment, or the single log file without rotation.
+     */
+    private void openSegment(Context context) throws IOException {
+        segmentIndex++;
+        if (isRotating()) {
+            logFile = new File(logDirectory, segmentFileName(sessionName, segmentIndex));
+        } else {
+            logFile = new File(logDirectory, sessionName+getExtension());
+        }
+        logFile.createNewFile();
+        ByteOutput output;
+        if (mappedSegments) {
+            // A single mapping for a segment of limited size
+            int mappedSize = (maxSegmentBytes > 0)
+                    ? MappedSegmentWriter.getSegmentSize(maxSegmentBytes + MAX_SEGMENT_OVERSHOOT)
+                    : MappedSegmentWriter.DEFAULT_SEGMENT_SIZE;
+            output = new MappedSegmentWriter(logFile, mappedSize);
+        } else {
+            output = new FileByteOutput(new FileOutputStream(logFile));
+        }
+        if (compressed) {
+            compressedOutput = new GzipByteOutput(output, compressionLevel);
+            output = compressedOutput;
+        } else {
+            compressedOutput = null;
+        }
+        logFileWriter = new AsyncLogWriter(output,
+                AsyncLogWriter.DEFAULT_BUFFER_SIZE, AsyncLogWriter.DEFAULT_FLUSH_INTERVAL_MS,
+                "eSenseRecorder-LogWriter");
+        segmentCrc.reset();
+        segmentBytes = 0;
+        segmentSamples = 0;
+        segmentFirstMillis = 0;
+        segmentLastMillis = 0;
+        segmentDroppedStart = 0;
+        if (isRotating()) {
+            // Make the segment self-contained
+            writeBytes(sessionHeader, 0, sessionHeaderLength);
+            writeManifest(true);
+        }
+        indexLogFile(context);
+    }
+
+    /**
+     * Writes the footer of the open segment and closes it.
+     */
+    private void closeSegment(Context context) throws IOException {
+        AsyncLogWriter writer = logFileWriter;
+        if (droppedSamples > 0) {
+            writeDroppedSamples(segmentLastMillis);
+        }
+        if (isRotating()) {
+            // Footer, the checksum covers the bytes before the footer
+            long crc = segmentCrc.getValue();
+            long bytes = segmentBytes;
+            LogLineEncoder footer = new LogLineEncoder(rotationSeparator, rotationTerminator);
+            footer.append(segmentLastMillis)
+                    .append(SEGMENT_FOOTER_MESSAGE)
+                    .append(segmentSamples)
+                    .append(segmentFirstMillis)
+                    .append(segmentLastMillis)
+                    .append(bytes)
+                    .append(String.format(Locale.US, "%08x", crc))
+                    .endLine();
+            writer.write(footer.getBuffer(), 0, footer.getLength());
+            // Writes and syncs the pending lines
+            writer.close();
+            closedSegments.add(manifestLine(logFile.getName(), "closed", segmentSamples,
+                    segmentFirstMillis, segmentLastMillis, bytes,
+                    writer.getDroppedRecords() - segmentDroppedStart, crc));
+            writeManifest(false);
+        } else {
+            // Writes and syncs the pending lines
+            writer.close();
+        }
+        if (writer.getDroppedRecords() > 0) {
+            Log.w(DEBUG_TAG, "SimpleLogger: " + writer.getDroppedRecords()
+                    + " lines dropped.");
+        }
+        GzipByteOutput gzip = compressedOutput;
+        if (gzip != null) {
+            Log.i(DEBUG_TAG, String.format(Locale.US,
+                    "SimpleLogger: %s compressed %.2fx, %d ms CPU for %d bytes.",
+                    logFile.getName(), gzip.getCompressionRatio(),
+                    gzip.getCpuTimeNanos() / 1000000, gzip.getInputBytes()));
+        }
+        indexLogFile(context);
+    }
+
+    private String manifestLine(String fileName, String state, long samples, long firstMillis,
+                                long lastMillis, long bytes, long droppedLines, long crc) {
+        LogLineEncoder line = new LogLineEncoder(rotationSeparator, rotationTerminator);
+        line.append(fileName).append(state).append(samples).append(firstMillis)
+                .append(lastMillis).append(bytes).append(droppedLines)
+                .append(String.format(Locale.US, "%08x", crc)).endLine();
+        return new String(line.getBuffer(), 0, line.getLength(), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Replaces the manifest of the session, listing the closed segments and the open one.
+     */
+    private void writeManifest(boolean withOpenSegment) throws IOException {
+        LogLineEncoder header = new LogLineEncoder(rotationSeparator, rotationTerminator);
+        header.append("file").append("state").append("samples").append("first (ms)")
+                .append("last (ms)").append("bytes").append("dropped lines").append("crc32")
+                .endLine();
+        File manifest = new File(logDirectory, sessionName+MANIFEST_SUFFIX);
+        File temp = new File(logDirectory, sessionName+MANIFEST_SUFFIX+".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(header.getBuffer(), 0, header.getLength());
+            Charset charset = Charset.forName("UTF-8");
+            for (String line : closedSegments) {
+                output.write(line.getBytes(charset));
+            }
+            if (withOpenSegment) {
+                output.write(manifestLine(logFile.getName(), "open", 0, 0, 0, 0, 0, 0)
+                        .getBytes(charset));
+            }
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(manifest)) {
+            throw new IOException("Unable to replace the manifest " + manifest.getName());
+        }
+    }
+
+    /**
+     * Truncates the log files left by a crash while writing through memory-mapped segments.
+     */
+    private void recoverLogFiles(Context context, File logDirectory) {
+        File[] files = logDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try {
+                if (file.isFile() && (file.getName().endsWith(TEXT_EXTENSION)
+                        || file.getName().endsWith(COMPRESSED_EXTENSION))
+                        && MappedSegmentWriter.needsRecovery(file)) {
+                    long length = MappedSegmentWriter.recover(file);
+                    Log.w(DEBUG_TAG, "SimpleLogger: Recovered " + length + " bytes of "
+                            + file.getName() + ".");
+                    indexFile(context, file);
+                }
+            } catch (Exception e) {
+                Log.e(DEBUG_TAG, "SimpleLogger: Unable to recover log file.", e);
+            }
+        }
+    }
+
     private void indexLogFile(Context context) {
-        if (logFile != null && logFile.exists()) {
+        indexFile(context, logFile);
+    }
+
+    private void indexFile(Context context, File file) {
+        if (file != null && file.exists()) {
+            String mimeType = file.getName().endsWith(COMPRESSED_EXTENSION) ?
+                    "application/gzip" : "text/plain";
             MediaScannerConnection.scanFile(context,
-                    new String[]{logFile.getAbsolutePath()},
-                    new String[]{"text/plain"}, null);
+                    new String[]{file.getAbsolutePath()},
+                    new String[]{mimeType}, null);
         }
     }
 
-    public boolean isLogging() {
+    public synchronized boolean isLogging() {
         return logFileWriter != null;
     }
 
-    public void flushLog() {
-        try {
-            if (logFileWriter != null) {
-                logFileWriter.flush();
-            }
-        } catch (Exception e) {
-            Log.e(DEBUG_TAG, "SimpleLogger: Unable to flush to log file.", e);
+    /**
+     * Asks for the write of the pending lines, without waiting.
+     */
+    public synchronized void flushLog() {
+        if (logFileWriter != null) {
+            logFileWriter.flush();
+        }
+    }
+
+    /**
+     * Waits until the lines logged so far are written and synced to the storage device.
+     *
+     * @param timeoutMillis the maximum waiting time in ms.
+     * @return <code>true</code> if the lines are durable.
+     */
+    public boolean syncLog(long timeoutMillis) {
+        AsyncLogWriter writer;
+        synchronized (this) {
+            writer = logFileWriter;
         }
+        // Wait outside the lock so that logging continues meanwhile
+        return writer != null && writer.sync(timeoutMillis);
     }
 
-    public void closeLog(Context context) {
+    public synchronized void closeLog(Context context) {
+        closed = true;
         try {
             if (logFileWriter != null) {
-                logFileWriter.flush();
-                logFileWriter.close();
-                logFileOutputStream.close();
-                indexLogFile(context);
+                closeSegment(context);
+                if (isRotating()) {
+                    indexFile(context, new File(logDirectory, sessionName+MANIFEST_SUFFIX));
+                }
             }
         } catch (Exception e) {
             Log.e(DEBUG_TAG, "SimpleLogger: Unable to close log file.", e);
         }
         logFileWriter = null;
-        logFileOutputStream = null;
     }
 
-    public boolean log(Context context, String separator, String terminator, Object... elements) {
+    /**
+     * Returns the compressed output of the log file, e.g. to read its compression ratio and CPU
+     * time.
+     *
+     * @return the compressed output, or <code>null</code> if not logging or not compressing.
+     */
+    public synchronized @Nullable GzipByteOutput getCompressedOutput() {
+        return (logFileWriter == null) ? null : compressedOutput;
+    }
+
+    /**
+     * Returns the writer of the log file, e.g. to read its metrics.
+     *
+     * @return the log writer, or <code>null</code> if not logging.
+     */
+    public synchronized @Nullable AsyncLogWriter getLogWriter() {
+        return logFileWriter;
+    }
+
+    /**
+     * Logs a line built from elements. Integers and strings are encoded without intermediate
+     * strings, other numbers with their <code>toString()</code> method.
+     *
+     * @param context the context, to create the log file.
+     * @param separator the field separator.
+     * @param terminator the line terminator.
+     * @param elements the fields of the line.
+     * @return <code>true</code> if the line has been logged or dropped, <code>false</code> if
+     * the log failed or is closed.
+     */
+    public synchronized boolean log(Context context, String separator, String terminator, Object... elements) {
+        if (lineEncoder == null || !separator.equals(lineSeparator)
+                || !terminator.equals(lineTerminator)) {
+            lineEncoder = new LogLineEncoder(separator, terminator);
+            lineSeparator = separator;
+            lineTerminator = terminator;
+        }
+        LogLineEncoder line = lineEncoder.reset();
+        for (Object o : elements) {
+            if (o instanceof Integer || o instanceof Long || o instanceof Short
+                    || o instanceof Byte) {
+                line.append(((Number)o).longValue());
+            } else if (o instanceof Number) {
+                line.append(o.toString());
+            } else if (o instanceof String) {
+                line.append((String)o);
+            } else {
+                line.append("");
+            }
+        }
+        line.endLine();
+        return log(context, line);
+    }
+
+    /**
+     * Logs a line encoded by the caller, without allocation.
+     *
+     * @param context the context, to create the log file.
+     * @param line the encoded line, including its terminator.
+     * @return <code>true</code> if the line has been logged or dropped, <code>false</code> if
+     * the log failed or is closed.
+     */
+    public synchronized boolean log(Context context, LogLineEncoder line) {
         if (logFileWriter == null) {
-            if (!createLogFile(context)) {
+            // Started by the first line, but never after closeLog()
+            if (closed || !createLogFile(context)) {
                 return false;
             }
         }
-        try {
-            for (int i=0; i<elements.length; i++) {
-                Object o = elements[i];
-                if (o instanceof Number) {
-                    logFileWriter.write(((Number)o).toString());
-                } else if (o instanceof String) {
-                    logFileWriter.write((String)o);
-                }
-                if (i<elements.length-1) {
-                    logFileWriter.write(separator);
-                }
+        if (!sessionHeaderComplete) {
+            // Keep the lines preceding the samples for the next segments
+            int length = line.getLength();
+            if (sessionHeaderLength + length <= sessionHeader.length) {
+                System.arraycopy(line.getBuffer(), 0, sessionHeader, sessionHeaderLength, length);
+                sessionHeaderLength += length;
             }
-            logFileWriter.write(terminator);
-        } catch (Exception e) {
-            Log.e(DEBUG_TAG, "SimpleLogger: Unable to write line.", e);
+        }
+        return writeBytes(line.getBuffer(), 0, line.getLength()) != FAILED;
+    }
+
+    /**
+     * Logs the line of a sample encoded by the caller, without allocation. Samples are counted in
+     * the footer of the segment, and may start a new segment. A sample dropped by the writer is
+     * not counted, it is reported by a line before the next logged sample.
+     *
+     * @param context the context, to create the log file.
+     * @param line the encoded line, including its terminator.
+     * @param elapsedMillis the elapsed time of the sample in ms.
+     * @return <code>true</code> if the line has been logged or dropped, <code>false</code> if
+     * the log failed or is closed.
+     */
+    public synchronized boolean logSample(Context context, LogLineEncoder line,
+                                          long elapsedMillis) {
+        if (logFileWriter == null) {
+            // A late sample after closeLog() never creates a new log file
+            if (closed || !createLogFile(context)) {
+                return false;
+            }
+        }
+        sessionHeaderComplete = true;
+        if (segmentSamples > 0 && isRotating()
+                && ((maxSegmentBytes > 0 && segmentBytes >= maxSegmentBytes)
+                || (maxSegmentMillis > 0
+                        && elapsedMillis - segmentFirstMillis >= maxSegmentMillis))) {
+            try {
+                closeSegment(context);
+                openSegment(context);
+            } catch (Exception e) {
+                Log.e(DEBUG_TAG, "SimpleLogger: Unable to rotate log file.", e);
+                logFileWriter = null;
+                closed = true;
+                return false;
+            }
+        }
+        if (droppedSamples > 0) {
+            // Report the dropped samples before the sample, or drop it too to keep the order
+            int result = writeDroppedSamples(elapsedMillis);
+            if (result != WRITTEN) {
+                return onSampleNotWritten(result);
+            }
+        }
+        int result = writeBytes(line.getBuffer(), 0, line.getLength());
+        if (result != WRITTEN) {
+            return onSampleNotWritten(result);
+        }
+        if (segmentSamples == 0) {
+            segmentFirstMillis = elapsedMillis;
+        }
+        segmentLastMillis = elapsedMillis;
+        segmentSamples++;
+        return true;
+    }
+
+    /**
+     * Counts a sample that was dropped by the writer.
+     *
+     * @return <code>false</code> if the log failed.
+     */
+    private boolean onSampleNotWritten(int result) {
+        if (result == FAILED) {
             return false;
         }
+        droppedSamples++;
         return true;
     }
+
+    /**
+     * Writes the line reporting the samples dropped since the last logged sample.
+     */
+    private int writeDroppedSamples(long elapsedMillis) {
+        if (droppedSamplesLine == null) {
+            droppedSamplesLine = new LogLineEncoder(rotationSeparator, rotationTerminator);
+        }
+        LogLineEncoder line = droppedSamplesLine.reset()
+                .append(elapsedMillis)
+                .append(SAMPLES_DROPPED_MESSAGE)
+                .append(droppedSamples)
+                .endLine();
+        int result = writeBytes(line.getBuffer(), 0, line.getLength());
+        if (result == WRITTEN) {
+            droppedSamples = 0;
+        }
+        return result;
+    }
+
+    /**
+     * Hands bytes to the writer of the open segment and updates its length and checksum.
+     *
+     * @return <code>WRITTEN</code>, <code>DROPPED</code> if the writer cannot keep up, which
+     * counts the dropped line, or <code>FAILED</code> if the writer is closed or has failed.
+     */
+    private int writeBytes(byte[] bytes, int offset, int length) {
+        AsyncLogWriter writer = logFileWriter;
+        if (!writer.write(bytes, offset, length)) {
+            if (writer.isOpen()) {
+                return DROPPED;
+            }
+            Log.e(DEBUG_TAG, "SimpleLogger: Unable to write line.", writer.getError());
+            return FAILED;
+        }
+        segmentCrc.update(bytes, offset, length);
+        segmentBytes += length;
+        return WRITTEN;
+    }
 }
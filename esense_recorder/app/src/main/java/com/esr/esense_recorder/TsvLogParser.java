@@ -0,0 +1,582 @@
+package com.esr.esense_recorder;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.SampleBlock;
+
+/**
+ * Streaming parser of the text logs written by <code>MainActivity</code> with the
+ * <code>SimpleLogger</code>, or by the <code>TsvSessionConverter</code>.
+ *
+ * <p>
+ * The log is read from a channel, e.g. a <code>FileChannel</code>, into a reused byte buffer and
+ * the lines are parsed in place: the message of a line is matched against the known messages
+ * byte by byte, and the numbers of the sample lines are parsed directly from the bytes into
+ * primitive fields, so that parsing a sample line does not allocate. Strings are only created for
+ * the configuration and event lines. Lines are read one by one with <code>readLine()</code>, or
+ * sample lines are read into the columns of a block with <code>readSamples()</code>.
+ * </p>
+ * <p>
+ * The packet indexes are not logged: the samples get consecutive indexes, skipping the packets
+ * lost before them, or dropped by the logger.
+ * </p>
+ */
+public class TsvLogParser implements Closeable {
+    // Line types
+    public static final int LINE_END = 0;
+    public static final int LINE_SAMPLE = 1;
+    public static final int LINE_PACKETS_LOST = 2;
+    public static final int LINE_CONFIG = 3;
+    public static final int LINE_SEGMENT_FOOTER = 4;
+    public static final int LINE_EVENT = 5;
+
+    // Default size of the read buffer, also the maximum length of a line
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // Field written when a converted value is unknown
+    private static final byte UNKNOWN_VALUE = '-';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final double[] POWERS_OF_TEN = new double[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private final byte separator;
+
+    // Encoded messages
+    private final byte[] sensorEventMessage;
+    private final byte[] packetsLostMessage;
+    private final byte[] samplesDroppedMessage;
+    private final byte[] segmentFooterMessage;
+    private final byte[][] configLabels;
+
+    // Position of the unparsed bytes in the buffer
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfInput = false;
+    private long lineNumber = 0;
+
+    // Fields of the current line, as offsets in the buffer
+    private static final int MAX_FIELDS = 32;
+    private final int[] fieldStarts = new int[MAX_FIELDS];
+    private final int[] fieldEnds = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    // Content of the current line
+    private int lineType = LINE_END;
+    private long elapsedMillis;
+    private final short[] acc = new short[3];
+    private final short[] gyro = new short[3];
+    private final double[] convertedAcc = new double[3];
+    private final double[] convertedGyro = new double[3];
+    private boolean hasConvertedValues;
+    private int lostPackets;
+    private @Nullable String[] eventFields;
+
+    // State of the log
+    private int pendingLostPackets = 0;
+    private int packetIndex = -1;
+    private int samplingRate = -1;
+    private final String[] configValues = new String[4];
+    private @Nullable ESenseConfig config;
+
+    /**
+     * Constructor, with the default buffer size.
+     *
+     * @param channel the channel of the log, e.g. a <code>FileChannel</code>.
+     * @param separator the field separator, a single ASCII character.
+     * @param sensorEventMessage the message of the sample lines.
+     * @param packetsLostMessage the message of the lost packet lines.
+     */
+    public TsvLogParser(ReadableByteChannel channel, String separator, String sensorEventMessage,
+                        String packetsLostMessage) {
+        this(channel, separator, sensorEventMessage, packetsLostMessage, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param channel the channel of the log, e.g. a <code>FileChannel</code>.
+     * @param separator the field separator, a single ASCII character.
+     * @param sensorEventMessage the message of the sample lines.
+     * @param packetsLostMessage the message of the lost packet lines.
+     * @param bufferSize the size of the read buffer, i.e. the maximum length of a line.
+     */
+    public TsvLogParser(ReadableByteChannel channel, String separator, String sensorEventMessage,
+                        String packetsLostMessage, int bufferSize) {
+        if (separator.length() != 1 || separator.charAt(0) >= 0x80) {
+            throw new IllegalArgumentException("The separator must be a single ASCII character");
+        }
+        this.channel = channel;
+        this.separator = (byte) separator.charAt(0);
+        this.sensorEventMessage = sensorEventMessage.getBytes(UTF8);
+        this.packetsLostMessage = packetsLostMessage.getBytes(UTF8);
+        this.samplesDroppedMessage = SimpleLogger.SAMPLES_DROPPED_MESSAGE.getBytes(UTF8);
+        this.segmentFooterMessage = SimpleLogger.SEGMENT_FOOTER_MESSAGE.getBytes(UTF8);
+        configLabels = new byte[][] {
+                TsvSessionConverter.SAMPLING_RATE_LABEL.getBytes(UTF8),
+                TsvSessionConverter.ACC_RANGE_LABEL.getBytes(UTF8),
+                TsvSessionConverter.GYRO_RANGE_LABEL.getBytes(UTF8),
+                TsvSessionConverter.ACC_LPF_LABEL.getBytes(UTF8),
+                TsvSessionConverter.GYRO_LPF_LABEL.getBytes(UTF8)};
+        buffer = ByteBuffer.allocate(bufferSize);
+        bytes = buffer.array();
+    }
+
+    /**
+     * Reads and parses the next line.
+     *
+     * @return the type of the line, <code>LINE_END</code> at the end of the log.
+     * @throws IOException if the log cannot be read or a line is invalid.
+     */
+    public int readLine() throws IOException {
+        while (true) {
+            if (!nextLine()) {
+                lineType = LINE_END;
+                return lineType;
+            }
+            if (fieldCount == 1 && fieldStarts[0] == fieldEnds[0]) {
+                // Empty line
+                continue;
+            }
+            parseLine();
+            return lineType;
+        }
+    }
+
+    /**
+     * Reads sample lines into a block, after the samples it already contains, until the block is
+     * full or another type of line is read. Lost packet lines are counted in the next sample. The
+     * sample times of the block are the elapsed times in ns and its timestamps the elapsed times
+     * in ms.
+     *
+     * @param dest the destination block.
+     * @return the number of samples read, the type of the last line read being
+     * <code>LINE_SAMPLE</code> if the block is full, <code>LINE_END</code> at the end of the log,
+     * or the type of the line to handle otherwise.
+     * @throws IOException if the log cannot be read or a line is invalid.
+     */
+    public int readSamples(SampleBlock dest) throws IOException {
+        ESenseEvent evt = ESenseEvent.obtain();
+        try {
+            int count = 0;
+            while (!dest.isFull()) {
+                int type = readLine();
+                if (type == LINE_SAMPLE) {
+                    getSample(evt);
+                    dest.add(evt);
+                    count++;
+                } else if (type != LINE_PACKETS_LOST) {
+                    break;
+                }
+            }
+            return count;
+        } finally {
+            evt.recycle();
+        }
+    }
+
+    /**
+     * Returns the type of the current line.
+     *
+     * @return the line type, <code>LINE_END</code> at the end of the log.
+     */
+    public int getLineType() {
+        return lineType;
+    }
+
+    /**
+     * Returns the number of the current line, starting at 1.
+     *
+     * @return the line number.
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Returns the elapsed time of the current line.
+     *
+     * @return the elapsed time since the start of the log in ms.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Copies the current sample line into an event. The sample time of the event is the elapsed
+     * time in ns and its timestamp the elapsed time in ms.
+     *
+     * @param dest the event to fill.
+     */
+    public void getSample(ESenseEvent dest) {
+        System.arraycopy(acc, 0, dest.getAccel(), 0, 3);
+        System.arraycopy(gyro, 0, dest.getGyro(), 0, 3);
+        dest.setTimestamp(elapsedMillis);
+        dest.setSampleTimeNanos(elapsedMillis * 1000000);
+        dest.setPacketIndex(packetIndex);
+        dest.setLostPackets(lostPackets);
+    }
+
+    /**
+     * Returns the raw accelerometer values of the current sample line.
+     *
+     * @return the ADC values, valid until the next line is read.
+     */
+    public short[] getAccel() {
+        return acc;
+    }
+
+    /**
+     * Returns the raw gyroscope values of the current sample line.
+     *
+     * @return the ADC values, valid until the next line is read.
+     */
+    public short[] getGyro() {
+        return gyro;
+    }
+
+    /**
+     * Returns <code>true</code> if the current sample line holds the converted values.
+     *
+     * @return <code>true</code> if the converted values are known.
+     */
+    public boolean hasConvertedValues() {
+        return hasConvertedValues;
+    }
+
+    /**
+     * Returns the converted accelerometer values of the current sample line.
+     *
+     * @return the values in g, NaN if unknown, valid until the next line is read.
+     */
+    public double[] getConvertedAccel() {
+        return convertedAcc;
+    }
+
+    /**
+     * Returns the converted gyroscope values of the current sample line.
+     *
+     * @return the values in deg/s, NaN if unknown, valid until the next line is read.
+     */
+    public double[] getConvertedGyro() {
+        return convertedGyro;
+    }
+
+    /**
+     * Returns the number of packets lost before the current sample, or the number of the current
+     * lost packet line.
+     *
+     * @return the number of lost packets.
+     */
+    public int getLostPackets() {
+        return lostPackets;
+    }
+
+    /**
+     * Returns the fields of the current event or configuration line, after the elapsed time.
+     *
+     * @return the message and the other fields, or <code>null</code> for other lines.
+     */
+    public @Nullable String[] getEventFields() {
+        return eventFields;
+    }
+
+    /**
+     * Returns the sampling rate read from the configuration lines so far.
+     *
+     * @return the sampling rate in Hz, or -1 if unknown.
+     */
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * Returns the sensor configuration read from the configuration lines so far.
+     *
+     * @return the sensor configuration, or <code>null</code> if unknown.
+     */
+    public @Nullable ESenseConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Splits the next line in fields.
+     *
+     * @return <code>false</code> at the end of the log.
+     */
+    private boolean nextLine() throws IOException {
+        int lineStart = position;
+        int scan = position;
+        while (true) {
+            // Look for the terminator in the buffered bytes
+            while (scan < limit && bytes[scan] != '\n') {
+                scan++;
+            }
+            if (scan < limit) {
+                position = scan + 1;
+                break;
+            }
+            if (endOfInput) {
+                if (lineStart == limit) {
+                    return false;
+                }
+                // Last line without terminator
+                position = limit;
+                break;
+            }
+            // Move the partial line to the start of the buffer and read more bytes
+            int partial = limit - lineStart;
+            if (partial == bytes.length) {
+                throw new IOException("Line " + (lineNumber + 1) + " longer than "
+                        + bytes.length + " bytes");
+            }
+            System.arraycopy(bytes, lineStart, bytes, 0, partial);
+            scan -= lineStart;
+            lineStart = 0;
+            buffer.clear();
+            buffer.position(partial);
+            int count;
+            do {
+                count = channel.read(buffer);
+            } while (count == 0);
+            limit = buffer.position();
+            if (count < 0) {
+                endOfInput = true;
+            }
+        }
+        lineNumber++;
+        int lineEnd = scan;
+        if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+            lineEnd--;
+        }
+        // Split the fields
+        fieldCount = 0;
+        int fieldStart = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || bytes[i] == separator) {
+                if (fieldCount == MAX_FIELDS) {
+                    break;
+                }
+                fieldStarts[fieldCount] = fieldStart;
+                fieldEnds[fieldCount] = i;
+                fieldCount++;
+                fieldStart = i + 1;
+            }
+        }
+        return true;
+    }
+
+    private void parseLine() throws IOException {
+        eventFields = null;
+        elapsedMillis = parseLong(0);
+        if (fieldCount < 2) {
+            lineType = LINE_EVENT;
+            eventFields = new String[0];
+            return;
+        }
+        if (fieldEquals(1, sensorEventMessage)) {
+            parseSample();
+        } else if (fieldEquals(1, packetsLostMessage)
+                || fieldEquals(1, samplesDroppedMessage)) {
+            // Samples dropped by the logger are gaps as well
+            lineType = LINE_PACKETS_LOST;
+            lostPackets = (fieldCount > 2) ? (int) parseLong(2) : 0;
+            pendingLostPackets += lostPackets;
+        } else if (fieldEquals(1, segmentFooterMessage)) {
+            lineType = LINE_SEGMENT_FOOTER;
+            eventFields = getStringFields();
+        } else {
+            for (int i = 0; i < configLabels.length; i++) {
+                if (fieldEquals(1, configLabels[i])) {
+                    lineType = LINE_CONFIG;
+                    eventFields = getStringFields();
+                    parseConfig(i, (fieldCount > 2) ? eventFields[1] : "");
+                    return;
+                }
+            }
+            lineType = LINE_EVENT;
+            eventFields = getStringFields();
+        }
+    }
+
+    private void parseSample() throws IOException {
+        if (fieldCount < 8) {
+            throw new IOException("Incomplete sample at line " + lineNumber);
+        }
+        lineType = LINE_SAMPLE;
+        for (int axis = 0; axis < 3; axis++) {
+            acc[axis] = (short) parseLong(2 + axis);
+            gyro[axis] = (short) parseLong(5 + axis);
+        }
+        hasConvertedValues = fieldCount >= 14 && !isUnknown(8);
+        for (int axis = 0; axis < 3; axis++) {
+            convertedAcc[axis] = hasConvertedValues ? parseDouble(8 + axis) : Double.NaN;
+            convertedGyro[axis] = hasConvertedValues ? parseDouble(11 + axis) : Double.NaN;
+        }
+        lostPackets = pendingLostPackets;
+        pendingLostPackets = 0;
+        packetIndex = (packetIndex + 1 + lostPackets) & 0xff;
+    }
+
+    private void parseConfig(int labelIndex, String value) {
+        if (labelIndex == 0) {
+            try {
+                samplingRate = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                samplingRate = -1;
+            }
+            return;
+        }
+        configValues[labelIndex - 1] = value;
+        ESenseConfig.AccRange accRange = findByLabel(ESenseConfig.AccRange.values(),
+                configValues[0]);
+        ESenseConfig.GyroRange gyroRange = findByLabel(ESenseConfig.GyroRange.values(),
+                configValues[1]);
+        ESenseConfig.AccLPF accLPF = findByLabel(ESenseConfig.AccLPF.values(), configValues[2]);
+        ESenseConfig.GyroLPF gyroLPF = findByLabel(ESenseConfig.GyroLPF.values(),
+                configValues[3]);
+        if (accRange != null && gyroRange != null && accLPF != null && gyroLPF != null) {
+            config = new ESenseConfig(accRange, gyroRange, accLPF, gyroLPF);
+        }
+    }
+
+    /**
+     * Returns the enumeration value of which the label is the given text.
+     */
+    private static @Nullable <E extends Enum<E>> E findByLabel(E[] values,
+                                                              @Nullable String label) {
+        if (label == null) {
+            return null;
+        }
+        for (E value : values) {
+            if (value.toString().equals(label)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private String[] getStringFields() {
+        String[] fields = new String[fieldCount - 1];
+        for (int i = 1; i < fieldCount; i++) {
+            fields[i - 1] = new String(bytes, fieldStarts[i], fieldEnds[i] - fieldStarts[i], UTF8);
+        }
+        return fields;
+    }
+
+    private boolean fieldEquals(int field, byte[] expected) {
+        int start = fieldStarts[field];
+        if (fieldEnds[field] - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isUnknown(int field) {
+        return fieldEnds[field] - fieldStarts[field] == 1
+                && bytes[fieldStarts[field]] == UNKNOWN_VALUE;
+    }
+
+    private long parseLong(int field) throws IOException {
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = i < end && bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            throw invalidNumber(field);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw invalidNumber(field);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal without exponent, as written by the <code>LogLineEncoder</code>. The
+     * division of the exact integer mantissa by an exact power of ten is correctly rounded, so
+     * that the result is the same as <code>Double.parseDouble()</code>.
+     */
+    private double parseDouble(int field) throws IOException {
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        boolean negative = i < end && bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                // Exponent, NaN or infinity
+                return parseDoubleSlow(field);
+            }
+        }
+        if (digits == 0) {
+            throw invalidNumber(field);
+        }
+        if (digits > 15 || decimals >= POWERS_OF_TEN.length) {
+            // The mantissa may not be exact
+            return parseDoubleSlow(field);
+        }
+        double value = (decimals > 0) ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private double parseDoubleSlow(int field) throws IOException {
+        String text = new String(bytes, fieldStarts[field], fieldEnds[field] - fieldStarts[field],
+                UTF8);
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw invalidNumber(field);
+        }
+    }
+
+    private IOException invalidNumber(int field) {
+        return new IOException("Invalid number in field " + (field + 1) + " at line "
+                + lineNumber);
+    }
+}
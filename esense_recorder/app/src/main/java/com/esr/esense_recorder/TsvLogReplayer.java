@@ -0,0 +1,229 @@
+package com.esr.esense_recorder;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.ESenseEventListener;
+import io.esense.esenselib.ESenseSensorListener;
+
+/**
+ * Replays a text log into sensor and event listeners, as if the samples were received from the
+ * device.
+ *
+ * <p>
+ * The samples are delivered at the pace of their elapsed times divided by the speed factor, e.g.
+ * 1 for real time or 10 for 10 times faster, or as fast as possible with a speed of 0. The pace is
+ * measured from the first replayed line, so that a log segment that does not start at 0 (e.g. a
+ * rotated segment) is replayed without an initial delay. The sample times of the events are in the
+ * <code>System.nanoTime()</code> time base, from the start of the replay plus the elapsed time
+ * since the first replayed line (not divided by the speed), so that the intervals between samples
+ * are the recorded ones. The timestamps are the start time of the replay in ms since epoch plus
+ * the same elapsed time. The events are obtained from the event pool and recycled after each call,
+ * as for live samples. The button lines, logged at each change of the button state, are replayed
+ * alternately as a press and a release, starting with a press. The configuration read from the
+ * log is reported once complete.
+ * </p>
+ */
+public class TsvLogReplayer {
+    // Debug
+    @SuppressWarnings("unused")
+    private static final String DEBUG_TAG = "eSenseRecorder-Debug";
+
+    // Delay under which the replay spins instead of sleeping, for precise pacing
+    private static final long SPIN_THRESHOLD_NANOS = 200000;
+
+    private final TsvLogParser parser;
+    private final ESenseSensorListener sensorListener;
+    private final @Nullable ESenseEventListener eventListener;
+    private final @Nullable String buttonEventMessage;
+    private final double speed;
+
+    private volatile boolean stopRequested = false;
+    private @Nullable Thread replayThread;
+    private volatile @Nullable IOException error;
+
+    // Statistics
+    private volatile long replayedSamples = 0;
+    private volatile long maxLatenessNanos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param parser the parser of the log, closed at the end of the replay.
+     * @param sensorListener the listener of the samples.
+     * @param eventListener the listener of the button presses and of the configuration, or
+     *                      <code>null</code>.
+     * @param buttonEventMessage the message of the button lines, or <code>null</code>.
+     * @param speed the speed factor, 1 for real time, 0 for as fast as possible.
+     */
+    public TsvLogReplayer(TsvLogParser parser, ESenseSensorListener sensorListener,
+                          @Nullable ESenseEventListener eventListener,
+                          @Nullable String buttonEventMessage, double speed) {
+        if (speed < 0 || Double.isNaN(speed) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("Illegal replay speed: " + speed);
+        }
+        this.parser = parser;
+        this.sensorListener = sensorListener;
+        this.eventListener = eventListener;
+        this.buttonEventMessage = buttonEventMessage;
+        this.speed = speed;
+    }
+
+    /**
+     * Starts the replay on a background thread.
+     *
+     * @param threadName the name of the replay thread.
+     */
+    public synchronized void start(String threadName) {
+        if (replayThread != null) {
+            throw new IllegalStateException("The replay has already started");
+        }
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "TsvLogReplayer: Unable to replay log.", e);
+                }
+            }
+        }, threadName);
+        replayThread.start();
+    }
+
+    /**
+     * Stops the replay and waits for the end of the replay thread, if any.
+     */
+    public void stop() {
+        stopRequested = true;
+        Thread thread;
+        synchronized (this) {
+            thread = replayThread;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            // Wake up the pacing, without interrupting the reads of the channel
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replays the log on the calling thread, until its end or until <code>stop()</code> is
+     * called.
+     *
+     * @return the number of replayed samples.
+     * @throws IOException if the log cannot be read or is invalid.
+     */
+    public long replay() throws IOException {
+        long startNanoTime = System.nanoTime();
+        long startTimeMillis = System.currentTimeMillis();
+        ESenseConfig reportedConfig = null;
+        boolean buttonPressed = false;
+        // Elapsed time of the first replayed line, origin of the pace
+        long firstElapsedMillis = -1;
+        try {
+            int type;
+            while (!stopRequested && (type = parser.readLine()) != TsvLogParser.LINE_END) {
+                if (type == TsvLogParser.LINE_SAMPLE) {
+                    if (firstElapsedMillis < 0) {
+                        firstElapsedMillis = parser.getElapsedMillis();
+                    }
+                    long elapsedMillis = parser.getElapsedMillis() - firstElapsedMillis;
+                    waitUntil(startNanoTime, elapsedMillis);
+                    ESenseEvent evt = ESenseEvent.obtain();
+                    try {
+                        parser.getSample(evt);
+                        evt.setSampleTimeNanos(startNanoTime + elapsedMillis * 1000000);
+                        evt.setTimestamp(startTimeMillis + elapsedMillis);
+                        sensorListener.onSensorChanged(evt);
+                    } finally {
+                        evt.recycle();
+                    }
+                    replayedSamples++;
+                } else if (eventListener != null) {
+                    if (type == TsvLogParser.LINE_CONFIG) {
+                        ESenseConfig config = parser.getConfig();
+                        if (config != null && config != reportedConfig) {
+                            reportedConfig = config;
+                            eventListener.onSensorConfigRead(config);
+                        }
+                    } else if (type == TsvLogParser.LINE_EVENT && buttonEventMessage != null) {
+                        String[] fields = parser.getEventFields();
+                        if (fields != null && fields.length > 0
+                                && buttonEventMessage.equals(fields[0])) {
+                            if (firstElapsedMillis < 0) {
+                                firstElapsedMillis = parser.getElapsedMillis();
+                            }
+                            waitUntil(startNanoTime,
+                                    parser.getElapsedMillis() - firstElapsedMillis);
+                            buttonPressed = !buttonPressed;
+                            eventListener.onButtonEventChanged(buttonPressed);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            parser.close();
+        }
+        return replayedSamples;
+    }
+
+    /**
+     * Returns the error that stopped the replay.
+     *
+     * @return the error, or <code>null</code> if none.
+     */
+    public @Nullable IOException getError() {
+        return error;
+    }
+
+    public long getReplayedSamples() {
+        return replayedSamples;
+    }
+
+    /**
+     * Returns the maximum delay between the scheduled time of a sample and its delivery, e.g.
+     * when a listener is too slow for the replay speed.
+     *
+     * @return the maximum lateness in ns.
+     */
+    public long getMaxLatenessNanos() {
+        return maxLatenessNanos;
+    }
+
+    /**
+     * Waits until the scheduled time of a line, from its elapsed time since the first replayed
+     * line.
+     */
+    private void waitUntil(long startNanoTime, long elapsedMillis) {
+        if (speed == 0) {
+            return;
+        }
+        long deadline = startNanoTime + (long) (elapsedMillis * 1000000 / speed);
+        long remaining = deadline - System.nanoTime();
+        while (remaining > 0 && !stopRequested) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.yield();
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        if (-remaining > maxLatenessNanos) {
+            maxLatenessNanos = -remaining;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.esr.esense_recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.esense.esenselib.ConversionKernel;
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.SampleBlock;
+
+/**
+ * Converts a binary session to the text log layout written by <code>MainActivity</code> with the
+ * <code>SimpleLogger</code>: one line per event and per sample, with the elapsed time in ms as
+ * first field. The lines are encoded and the converted values computed as during the recording,
+ * so that the text is identical to a text log of the same session.
+ */
+public class TsvSessionConverter {
+    // Labels of the configuration lines at the start of a log
+    public static final String SAMPLING_RATE_LABEL = "sampling rate";
+    public static final String ACC_RANGE_LABEL = "acc. range";
+    public static final String GYRO_RANGE_LABEL = "gyro. range";
+    public static final String ACC_LPF_LABEL = "acc. LPF";
+    public static final String GYRO_LPF_LABEL = "gyro. LPF";
+
+    // Number of decimal digits of the converted values
+    public static final int CONVERTED_VALUE_DECIMALS = 6;
+
+    // Field written when a converted value is unknown
+    private static final String UNKNOWN_VALUE = "-";
+
+    private final String sensorEventMessage;
+    private final String packetsLostMessage;
+
+    private final short[] acc = new short[3];
+    private final short[] gyro = new short[3];
+    private final double[] convAcc = new double[3];
+    private final double[] convGyro = new double[3];
+    private final LogLineEncoder line;
+
+    /**
+     * Constructor.
+     *
+     * @param separator the field separator.
+     * @param terminator the line terminator.
+     * @param sensorEventMessage the message of the sample lines.
+     * @param packetsLostMessage the message of the lost packet lines.
+     */
+    public TsvSessionConverter(String separator, String terminator, String sensorEventMessage,
+                               String packetsLostMessage) {
+        this.line = new LogLineEncoder(separator, terminator);
+        this.sensorEventMessage = sensorEventMessage;
+        this.packetsLostMessage = packetsLostMessage;
+    }
+
+    /**
+     * Converts a session from its current position to the end.
+     *
+     * @param reader the session reader, just after the header.
+     * @param output the stream of the text log.
+     * @return the number of converted samples.
+     * @throws IOException if the session cannot be read or the text cannot be written.
+     */
+    public long convert(BinarySessionReader reader, OutputStream output) throws IOException {
+        ESenseConfig config = reader.getConfig();
+        if (config != null) {
+            writeConfigLine(output, SAMPLING_RATE_LABEL, String.valueOf(reader.getSamplingRate()));
+            writeConfigLine(output, ACC_RANGE_LABEL, config.getAccRange().toString());
+            writeConfigLine(output, GYRO_RANGE_LABEL, config.getGyroRange().toString());
+            writeConfigLine(output, ACC_LPF_LABEL, config.getAccLPF().toString());
+            writeConfigLine(output, GYRO_LPF_LABEL, config.getGyroLPF().toString());
+        }
+        long sampleCount = 0;
+        int type;
+        while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+            if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                SampleBlock block = reader.getBlock();
+                writeBlock(output, block, reader.getConfig());
+                sampleCount += block.getSize();
+            } else if (type == BinarySessionFormat.RECORD_EVENT) {
+                line.reset().append(reader.getEventElapsedMillis());
+                for (String field : reader.getEventFields()) {
+                    line.append(field);
+                }
+                writeLine(output);
+            }
+        }
+        output.flush();
+        return sampleCount;
+    }
+
+    private void writeBlock(OutputStream output, SampleBlock block, ESenseConfig config)
+            throws IOException {
+        ConversionKernel kernel = (config == null) ? null : config.getConversionKernel();
+        long[] sampleTimes = block.getSampleTimes();
+        int[] lostPackets = block.getLostPackets();
+        for (int i = 0; i < block.getSize(); i++) {
+            long elapsedMillis = sampleTimes[i] / 1000000;
+            if (lostPackets[i] > 0) {
+                line.reset()
+                        .append(elapsedMillis)
+                        .append(packetsLostMessage)
+                        .append(lostPackets[i]);
+                writeLine(output);
+            }
+            acc[0] = block.getAccX()[i];
+            acc[1] = block.getAccY()[i];
+            acc[2] = block.getAccZ()[i];
+            gyro[0] = block.getGyroX()[i];
+            gyro[1] = block.getGyroY()[i];
+            gyro[2] = block.getGyroZ()[i];
+            line.reset()
+                    .append(elapsedMillis)
+                    .append(sensorEventMessage);
+            for (int axis = 0; axis < 3; axis++) {
+                line.append(acc[axis]);
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                line.append(gyro[axis]);
+            }
+            if (kernel != null) {
+                kernel.convertAcc(acc, convAcc);
+                kernel.convertGyro(gyro, convGyro);
+            }
+            appendConverted(convAcc, kernel != null);
+            appendConverted(convGyro, kernel != null);
+            writeLine(output);
+        }
+    }
+
+    private void appendConverted(double[] values, boolean known) {
+        for (int axis = 0; axis < 3; axis++) {
+            if (known) {
+                line.append(values[axis], CONVERTED_VALUE_DECIMALS);
+            } else {
+                line.append(UNKNOWN_VALUE);
+            }
+        }
+    }
+
+    private void writeConfigLine(OutputStream output, String label, String value)
+            throws IOException {
+        line.reset().append(0).append(label).append(value);
+        writeLine(output);
+    }
+
+    private void writeLine(OutputStream output) throws IOException {
+        line.endLine();
+        output.write(line.getBuffer(), 0, line.getLength());
+    }
+}
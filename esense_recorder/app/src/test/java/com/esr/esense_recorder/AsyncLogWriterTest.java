@@ -0,0 +1,188 @@
+package com.esr.esense_recorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Appends, drops, syncs and close of the asynchronous log writer on an output in memory, which
+ * will execute on the development machine (host).
+ */
+public class AsyncLogWriterTest {
+    // Long enough for the records to stay in the buffer until a flush, a sync or the close
+    private static final long FLUSH_INTERVAL_MS = 60000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void close_writesAndSyncsPendingRecords() throws IOException {
+        MemoryOutput output = new MemoryOutput(null);
+        AsyncLogWriter writer = new AsyncLogWriter(output, 1024, FLUSH_INTERVAL_MS, "Test");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            byte[] record = record(i, 12);
+            assertTrue(writer.write(record, 0, record.length));
+            expected.write(record);
+        }
+        assertTrue(writer.isOpen());
+        writer.close();
+        assertArrayEquals(expected.toByteArray(), output.getBytes());
+        assertTrue(output.closed);
+        assertEquals(1, output.syncCount);
+        assertEquals(expected.size(), writer.getWrittenBytes());
+        assertEquals(0, writer.getDroppedRecords());
+        // Closed
+        assertFalse(writer.isOpen());
+        assertNull(writer.getError());
+        byte[] record = record(10, 12);
+        assertFalse(writer.write(record, 0, record.length));
+        assertEquals(0, writer.getDroppedRecords());
+        writer.close();
+    }
+
+    @Test
+    public void fullBuffer_dropsRecordsWithoutWaiting() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        MemoryOutput output = new MemoryOutput(gate);
+        AsyncLogWriter writer = new AsyncLogWriter(output, 64, FLUSH_INTERVAL_MS, "Test");
+        try {
+            // Half full, handed to the writer thread which then waits for the gate
+            byte[] first = record(1, 40);
+            assertTrue(writer.write(first, 0, first.length));
+            assertTrue(output.writing.await(10, TimeUnit.SECONDS));
+            byte[] second = record(2, 40);
+            assertTrue(writer.write(second, 0, second.length));
+            // Does not fit in the other buffer
+            byte[] third = record(3, 40);
+            assertFalse(writer.write(third, 0, third.length));
+            assertTrue(writer.isOpen());
+            assertEquals(1, writer.getDroppedRecords());
+            assertEquals(40, writer.getDroppedBytes());
+            // Fits exactly
+            byte[] fourth = record(4, 24);
+            assertTrue(writer.write(fourth, 0, fourth.length));
+            gate.countDown();
+            writer.close();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(first);
+            expected.write(second);
+            expected.write(fourth);
+            assertArrayEquals(expected.toByteArray(), output.getBytes());
+            assertEquals(1, writer.getDroppedRecords());
+        } finally {
+            gate.countDown();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void sync_waitsForRecordsAppendedBefore() throws IOException {
+        MemoryOutput output = new MemoryOutput(null);
+        AsyncLogWriter writer = new AsyncLogWriter(output, 1024, FLUSH_INTERVAL_MS, "Test");
+        try {
+            byte[] record = record(1, 20);
+            assertTrue(writer.write(record, 0, record.length));
+            assertTrue(writer.sync(10000));
+            assertArrayEquals(record, output.getBytes());
+            assertEquals(1, output.syncCount);
+            assertEquals(1, writer.getSyncCount());
+            // Nothing new to sync
+            assertTrue(writer.sync(10000));
+            assertEquals(1, output.syncCount);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void failedOutput_stopsWriterWithError() throws Exception {
+        MemoryOutput output = new MemoryOutput(null);
+        output.failure = new IOException("No space left on device");
+        AsyncLogWriter writer = new AsyncLogWriter(output, 1024, FLUSH_INTERVAL_MS, "Test");
+        byte[] record = record(1, 20);
+        assertTrue(writer.write(record, 0, record.length));
+        assertFalse(writer.sync(10000));
+        assertFalse(writer.isOpen());
+        assertSame(output.failure, writer.getError());
+        // Failed, not dropped
+        assertFalse(writer.write(record, 0, record.length));
+        assertEquals(0, writer.getDroppedRecords());
+        try {
+            writer.close();
+            fail("The error is not thrown by close()");
+        } catch (IOException e) {
+            assertSame(output.failure, e);
+        }
+        assertTrue(output.closed);
+    }
+
+    /**
+     * Returns a record of a given length, ending with a line terminator.
+     */
+    private static byte[] record(int index, int length) {
+        byte[] record = new byte[length];
+        Arrays.fill(record, (byte) ('a' + index % 26));
+        byte[] prefix = Integer.toString(index).getBytes(UTF8);
+        System.arraycopy(prefix, 0, record, 0, prefix.length);
+        record[length - 1] = '\n';
+        return record;
+    }
+
+    /**
+     * Output in memory, whose writes may wait for a gate or fail.
+     */
+    private static class MemoryOutput implements ByteOutput {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final CountDownLatch gate;
+        final CountDownLatch writing = new CountDownLatch(1);
+        volatile IOException failure;
+        volatile int syncCount = 0;
+        volatile boolean closed = false;
+
+        MemoryOutput(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            writing.countDown();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            synchronized (this) {
+                this.bytes.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void sync() {
+            syncCount++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        synchronized byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+    }
+}
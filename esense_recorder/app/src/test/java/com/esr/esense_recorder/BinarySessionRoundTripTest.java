@@ -0,0 +1,227 @@
+package com.esr.esense_recorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.ImuDeltaCodec;
+import io.esense.esenselib.SampleBlock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of the binary session writer and reader, and detection of damaged sessions by the
+ * record checksums, which will execute on the development machine (host).
+ */
+public class BinarySessionRoundTripTest {
+    private static final String DEVICE_NAME = "eSense-0123";
+    private static final int SAMPLING_RATE = 100;
+    private static final long START_TIME_MILLIS = 1600000000000L;
+    private static final long START_NANO_TIME = 123456789012345L;
+    private static final int BLOCK_SIZE = 64;
+    // All the sample blocks are full with these counts
+    private static final int SAMPLE_COUNT = 1024;
+    // Size of the closing event and end records
+    private static final int TAIL_SIZE = 2 * BinarySessionFormat.RECORD_FRAME_SIZE + 8 + 2
+            + 2 + "Log stopped.".length() + 2 * BinarySessionFormat.CHECKSUM_SIZE;
+    private static final ESenseConfig CONFIG = new ESenseConfig(ESenseConfig.AccRange.G_4,
+            ESenseConfig.GyroRange.DEG_500, ESenseConfig.AccLPF.BW_5, ESenseConfig.GyroLPF.BW_5);
+
+    @Test
+    public void rawSession_roundTripIsExact() throws IOException {
+        checkRoundTrip(BinarySessionFormat.ENCODING_RAW, 0);
+    }
+
+    @Test
+    public void deltaSession_roundTripIsExactUpToTimeResolution() throws IOException {
+        checkRoundTrip(BinarySessionFormat.ENCODING_DELTA, ImuDeltaCodec.TIME_RESOLUTION_NANOS / 2);
+    }
+
+    @Test
+    public void truncatedSession_keepsCompleteRecords() throws IOException {
+        byte[] session = writeSession(BinarySessionFormat.ENCODING_DELTA);
+        // Cut in the last sample block, before the closing event and the end record
+        byte[] truncated = Arrays.copyOf(session, session.length - TAIL_SIZE - 20);
+        BinarySessionReader reader = new BinarySessionReader(new ByteArrayInputStream(truncated));
+        long samples = 0;
+        int type;
+        while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+            if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                samples += reader.getBlock().getSize();
+            }
+        }
+        assertTrue(reader.isTruncated());
+        assertEquals(SAMPLE_COUNT - BLOCK_SIZE, samples);
+        assertEquals(0, reader.getCorruptRecordCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedRecord_failsChecksum() throws IOException {
+        byte[] session = writeSession(BinarySessionFormat.ENCODING_RAW);
+        session[session.length / 2] ^= 0x10;
+        BinarySessionReader reader = new BinarySessionReader(new ByteArrayInputStream(session));
+        while (reader.readRecord() != BinarySessionFormat.RECORD_END) {
+            // Read until the corrupted record
+        }
+    }
+
+    @Test
+    public void corruptedRecord_isSkippedWhenEnabled() throws IOException {
+        byte[] session = writeSession(BinarySessionFormat.ENCODING_RAW);
+        session[session.length / 2] ^= 0x10;
+        BinarySessionReader reader = new BinarySessionReader(new ByteArrayInputStream(session));
+        reader.setSkipCorruptRecords(true);
+        long samples = 0;
+        int type;
+        int events = 0;
+        while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+            if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                samples += reader.getBlock().getSize();
+            } else if (type == BinarySessionFormat.RECORD_EVENT) {
+                events++;
+            }
+        }
+        assertFalse(reader.isTruncated());
+        assertEquals(1, reader.getCorruptRecordCount());
+        // A single block of samples is lost, the records around it are read
+        assertEquals(SAMPLE_COUNT - BLOCK_SIZE, samples);
+        assertEquals(2, events);
+        assertTrue(reader.getSkippedBytes() > BLOCK_SIZE * BinarySessionFormat.RAW_SAMPLE_SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptedHeader_failsChecksum() throws IOException {
+        byte[] session = writeSession(BinarySessionFormat.ENCODING_RAW);
+        // In the device name
+        session[20] ^= 0x01;
+        new BinarySessionReader(new ByteArrayInputStream(session));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFile_isRejected() throws IOException {
+        new BinarySessionReader(new ByteArrayInputStream("Not a session".getBytes("UTF-8")));
+    }
+
+    private static void checkRoundTrip(int encoding, long timeTolerance) throws IOException {
+        byte[] session = writeSession(encoding);
+        BinarySessionReader reader = new BinarySessionReader(new ByteArrayInputStream(session));
+        assertEquals(BinarySessionFormat.VERSION, reader.getVersion());
+        assertEquals(START_TIME_MILLIS, reader.getStartTimeMillis());
+        assertEquals(SAMPLING_RATE, reader.getSamplingRate());
+        assertEquals(DEVICE_NAME, reader.getDeviceName());
+        assertConfigEquals(CONFIG, reader.getConfig());
+
+        ESenseEvent expected = ESenseEvent.obtain();
+        int index = 0;
+        int events = 0;
+        boolean configChanged = false;
+        int type;
+        while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+            if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                SampleBlock block = reader.getBlock();
+                for (int i = 0; i < block.getSize(); i++, index++) {
+                    createSample(index, expected);
+                    long elapsed = expected.getSampleTimeNanos() - START_NANO_TIME;
+                    long time = block.getSampleTimes()[i];
+                    assertTrue(Math.abs(time - elapsed) <= timeTolerance);
+                    assertEquals(START_TIME_MILLIS + time / 1000000, block.getTimestamps()[i]);
+                    assertEquals(expected.getLostPackets(), block.getLostPackets()[i]);
+                    assertEquals(expected.getPacketIndex(), block.getPacketIndexes()[i]);
+                    assertEquals(expected.getAccel()[0], block.getAccX()[i]);
+                    assertEquals(expected.getAccel()[1], block.getAccY()[i]);
+                    assertEquals(expected.getAccel()[2], block.getAccZ()[i]);
+                    assertEquals(expected.getGyro()[0], block.getGyroX()[i]);
+                    assertEquals(expected.getGyro()[1], block.getGyroY()[i]);
+                    assertEquals(expected.getGyro()[2], block.getGyroZ()[i]);
+                }
+            } else if (type == BinarySessionFormat.RECORD_EVENT) {
+                events++;
+                if (events == 1) {
+                    assertEquals(0, reader.getEventElapsedMillis());
+                    assertEquals(2, reader.getEventFields().length);
+                    assertEquals("Log started.", reader.getEventFields()[0]);
+                    assertEquals("", reader.getEventFields()[1]);
+                } else {
+                    assertEquals(SAMPLE_COUNT * 10, reader.getEventElapsedMillis());
+                    assertEquals(1, reader.getEventFields().length);
+                }
+            } else if (type == BinarySessionFormat.RECORD_CONFIG) {
+                // Written after half of the samples
+                assertEquals(SAMPLE_COUNT / 2, index);
+                assertNull(reader.getConfig());
+                configChanged = true;
+            }
+        }
+        expected.recycle();
+        assertEquals(SAMPLE_COUNT, index);
+        assertEquals(2, events);
+        assertTrue(configChanged);
+        assertFalse(reader.isTruncated());
+        assertEquals(0, reader.getCorruptRecordCount());
+        reader.close();
+    }
+
+    /**
+     * Writes a session with events, a configuration change, samples written one by one and in
+     * blocks larger than the block size of the writer.
+     */
+    private static byte[] writeSession(int encoding) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinarySessionWriter writer = new BinarySessionWriter(output, BLOCK_SIZE, encoding);
+        writer.writeHeader(DEVICE_NAME, SAMPLING_RATE, CONFIG, START_TIME_MILLIS,
+                START_NANO_TIME);
+        writer.writeEvent(0, "Log started.", null);
+        ESenseEvent evt = ESenseEvent.obtain();
+        SampleBlock block = new SampleBlock(3 * BLOCK_SIZE);
+        int index = 0;
+        while (index < SAMPLE_COUNT / 2) {
+            createSample(index++, evt);
+            writer.writeSample(evt);
+        }
+        writer.writeConfig(null);
+        while (index < SAMPLE_COUNT) {
+            createSample(index++, evt);
+            block.add(evt);
+            if (block.isFull() || index == SAMPLE_COUNT) {
+                writer.writeBlock(block);
+                block.clear();
+            }
+        }
+        evt.recycle();
+        writer.writeEvent(SAMPLE_COUNT * 10, "Log stopped.");
+        assertEquals(SAMPLE_COUNT, writer.getSampleCount());
+        writer.close();
+        return output.toByteArray();
+    }
+
+    /**
+     * Fills an event with the values of a sample, with sample times at 100 Hz and a few lost
+     * packets.
+     */
+    private static void createSample(int index, ESenseEvent evt) {
+        int lost = (index % 97 == 13) ? 2 : 0;
+        evt.setSampleTimeNanos(START_NANO_TIME + index * 10000000L + (index * 7919L) % 3000);
+        evt.setTimestamp(START_TIME_MILLIS + index * 10);
+        evt.setPacketIndex((index * 3 + lost) & 0xff);
+        evt.setLostPackets(lost);
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        for (int axis = 0; axis < 3; axis++) {
+            acc[axis] = (short) (Math.sin(index * 0.01 + axis) * 8000);
+            gyro[axis] = (short) ((index * (axis + 1) * 37) % 65536 - 32768);
+        }
+    }
+
+    private static void assertConfigEquals(ESenseConfig expected, ESenseConfig actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getAccRange(), actual.getAccRange());
+        assertEquals(expected.getGyroRange(), actual.getGyroRange());
+        assertEquals(expected.getAccLPF(), actual.getAccLPF());
+        assertEquals(expected.getGyroLPF(), actual.getGyroLPF());
+    }
+}
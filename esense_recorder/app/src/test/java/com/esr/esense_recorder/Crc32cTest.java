@@ -0,0 +1,66 @@
+package com.esr.esense_recorder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * CRC-32C of known vectors and consistency of the sliced computation with the byte-wise one,
+ * which will execute on the development machine (host).
+ */
+public class Crc32cTest {
+
+    @Test
+    public void checksum_matchesKnownValues() throws Exception {
+        assertEquals(0xE3069283L, checksum("123456789".getBytes("US-ASCII")));
+        // Test vectors of RFC 3720, B.4
+        byte[] bytes = new byte[32];
+        assertEquals(0x8A9136AAL, checksum(bytes));
+        Arrays.fill(bytes, (byte) 0xff);
+        assertEquals(0x62A8AB43L, checksum(bytes));
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        assertEquals(0x46DD794EL, checksum(bytes));
+        assertEquals(0, checksum(new byte[0]));
+    }
+
+    @Test
+    public void update_isIndependentOfSplitting() {
+        byte[] bytes = new byte[1000];
+        new Random(5).nextBytes(bytes);
+        long expected = checksum(bytes);
+        Crc32c crc = new Crc32c();
+        for (int length = 0; length <= 20; length++) {
+            crc.reset();
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = Math.min(length + 1, bytes.length - offset);
+                if (count == 1) {
+                    crc.update(bytes[offset]);
+                } else {
+                    crc.update(bytes, offset, count);
+                }
+                offset += count;
+            }
+            assertEquals(expected, crc.getValue());
+        }
+    }
+
+    @Test
+    public void reset_restartsChecksum() {
+        Crc32c crc = new Crc32c();
+        crc.update(new byte[] {1, 2, 3});
+        crc.reset();
+        assertEquals(0, crc.getValue());
+    }
+
+    private static long checksum(byte[] bytes) {
+        Crc32c crc = new Crc32c();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+}
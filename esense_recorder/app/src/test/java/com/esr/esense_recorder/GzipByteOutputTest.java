@@ -0,0 +1,175 @@
+package com.esr.esense_recorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gzip framing and sync flush points of the compressed output, decoded by the gzip decoder of
+ * the JDK, which will execute on the development machine (host).
+ */
+public class GzipByteOutputTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void close_writesGzipStream() throws IOException {
+        MemoryOutput memory = new MemoryOutput();
+        GzipByteOutput output = new GzipByteOutput(memory, Deflater.BEST_SPEED);
+        byte[] lines = createLines(0, 500);
+        // In chunks, as handed by the writer
+        for (int offset = 0; offset < lines.length; offset += 1000) {
+            output.write(lines, offset, Math.min(1000, lines.length - offset));
+        }
+        output.close();
+        assertTrue(memory.closed);
+        byte[] compressed = memory.toByteArray();
+        assertEquals(0x1f, compressed[0] & 0xff);
+        assertEquals(0x8b, compressed[1] & 0xff);
+        // The trailer is checked by the decoder
+        assertArrayEquals(lines, decode(compressed));
+        assertEquals(lines.length, output.getInputBytes());
+        assertEquals(compressed.length, output.getOutputBytes());
+        assertTrue(output.getCompressionRatio() > 2);
+        // Closed
+        output.flush();
+        output.close();
+        try {
+            output.write(lines, 0, 1);
+            fail("Write after close");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void flush_makesBytesDecodableBeforeClose() throws IOException {
+        MemoryOutput memory = new MemoryOutput();
+        GzipByteOutput output = new GzipByteOutput(memory, Deflater.DEFAULT_COMPRESSION);
+        byte[] first = createLines(0, 100);
+        output.write(first, 0, first.length);
+        output.flush();
+        assertEquals(1, memory.flushCount);
+        // State of the file if the application dies now, without trailer
+        assertArrayEquals(first, decodeTruncated(memory.toByteArray()));
+
+        byte[] second = createLines(100, 100);
+        output.write(second, 0, second.length);
+        output.sync();
+        assertEquals(1, memory.syncCount);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), decodeTruncated(memory.toByteArray()));
+
+        // Not flushed, not decodable yet
+        byte[] third = createLines(200, 100);
+        output.write(third, 0, third.length);
+        assertArrayEquals(expected.toByteArray(), decodeTruncated(memory.toByteArray()));
+
+        output.close();
+        expected.write(third);
+        assertArrayEquals(expected.toByteArray(), decode(memory.toByteArray()));
+    }
+
+    @Test
+    public void emptyOutput_isValidGzipStream() throws IOException {
+        MemoryOutput memory = new MemoryOutput();
+        GzipByteOutput output = new GzipByteOutput(memory, Deflater.BEST_SPEED);
+        assertEquals(0, output.getCompressionRatio(), 0);
+        output.close();
+        assertEquals(0, decode(memory.toByteArray()).length);
+        assertEquals(0, output.getInputBytes());
+    }
+
+    /**
+     * Returns sample lines as logged, compressible like the logs.
+     */
+    private static byte[] createLines(int first, int count) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = first; i < first + count; i++) {
+            lines.append(10 * i).append("\tSensor notification.\t").append(i % 97)
+                    .append('\t').append(-i % 13).append('\t').append(1000 + i % 7)
+                    .append("\t-\t-\t-\n");
+        }
+        return lines.toString().getBytes(UTF8);
+    }
+
+    private static byte[] decode(byte[] compressed) throws IOException {
+        InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Decodes a gzip stream without trailer up to its unexpected end, as <code>zcat</code>.
+     */
+    private static byte[] decodeTruncated(byte[] compressed) throws IOException {
+        InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            fail("End of a stream without trailer");
+        } catch (EOFException e) {
+            // Expected
+        } finally {
+            input.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Output in memory, counting the flushes and syncs.
+     */
+    private static class MemoryOutput implements ByteOutput {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int flushCount = 0;
+        int syncCount = 0;
+        boolean closed = false;
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            this.bytes.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            flushCount++;
+        }
+
+        @Override
+        public void sync() {
+            syncCount++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
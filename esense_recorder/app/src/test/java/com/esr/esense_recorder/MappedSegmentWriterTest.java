@@ -0,0 +1,174 @@
+package com.esr.esense_recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes through memory-mapped segments, truncation on close and recovery of the files left by a
+ * writer that was not closed, which will execute on the development machine (host).
+ */
+public class MappedSegmentWriterTest {
+    // Small segments, so that a few hundred bytes span several of them
+    private static final int SEGMENT_SIZE = 64;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("MappedSegmentWriterTest", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void close_truncatesFileToData() throws IOException {
+        File file = new File(directory, "log.txt");
+        byte[] data = createData(200, new Random(3));
+        MappedSegmentWriter writer = new MappedSegmentWriter(file, SEGMENT_SIZE);
+        write(writer, data, new Random(5));
+        assertEquals(data.length, writer.getLength());
+        // 48 bytes of data per segment
+        assertEquals(5, writer.getSegmentCount());
+        writer.close();
+        assertArrayEquals(data, readFile(file));
+        assertFalse(MappedSegmentWriter.needsRecovery(file));
+        // Closed
+        try {
+            writer.write(data, 0, 1);
+            fail("Write after close");
+        } catch (IOException e) {
+            // Expected
+        }
+        writer.close();
+    }
+
+    @Test
+    public void unclosedFile_isTruncatedToTrailerLength() throws IOException {
+        File file = new File(directory, "log.txt");
+        byte[] data = createData(100, new Random(7));
+        MappedSegmentWriter writer = new MappedSegmentWriter(file, SEGMENT_SIZE);
+        try {
+            write(writer, data, new Random(11));
+            writer.sync();
+            // State of the file if the application dies now
+            File crashed = writeFile("crashed.txt", readFile(file));
+            assertEquals(3 * (SEGMENT_SIZE - MappedSegmentWriter.TRAILER_SIZE)
+                    + MappedSegmentWriter.TRAILER_SIZE, crashed.length());
+            assertTrue(MappedSegmentWriter.needsRecovery(crashed));
+            assertEquals(data.length, MappedSegmentWriter.recover(crashed));
+            assertArrayEquals(data, readFile(crashed));
+            assertFalse(MappedSegmentWriter.needsRecovery(crashed));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void zeroTrailer_isTruncatedToPreviousSegment() throws IOException {
+        // The length of the data at the end of the first segment, 256, ends with a zero byte
+        int segmentSize = 256 + MappedSegmentWriter.TRAILER_SIZE;
+        File file = new File(directory, "log.txt");
+        byte[] data = createData(256, new Random(13));
+        MappedSegmentWriter writer = new MappedSegmentWriter(file, segmentSize);
+        byte[] full;
+        try {
+            writer.write(data, 0, data.length);
+            writer.sync();
+            full = readFile(file);
+        } finally {
+            writer.close();
+        }
+        // The application died once the file was extended for the next segment, before its
+        // trailer was written: the trailer of the full segment is followed by zero bytes
+        File crashed = writeFile("crashed.txt", Arrays.copyOf(full, 256 + segmentSize));
+        assertTrue(MappedSegmentWriter.needsRecovery(crashed));
+        assertEquals(data.length, MappedSegmentWriter.recover(crashed));
+        assertArrayEquals(data, readFile(crashed));
+    }
+
+    @Test
+    public void zeroFile_isTruncatedToEmpty() throws IOException {
+        // Died before the trailer of the first segment was written
+        File crashed = writeFile("crashed.txt", new byte[SEGMENT_SIZE]);
+        assertTrue(MappedSegmentWriter.needsRecovery(crashed));
+        assertEquals(0, MappedSegmentWriter.recover(crashed));
+        assertEquals(0, crashed.length());
+    }
+
+    @Test
+    public void otherFiles_areNotRecovered() throws IOException {
+        File text = writeFile("text.txt", "0\tLog started.\n1\tLog stopped.\n".getBytes("UTF-8"));
+        assertFalse(MappedSegmentWriter.needsRecovery(text));
+        assertEquals(-1, MappedSegmentWriter.recover(text));
+        assertEquals(30, text.length());
+        File shortFile = writeFile("short.txt", new byte[4]);
+        assertFalse(MappedSegmentWriter.needsRecovery(shortFile));
+        assertEquals(-1, MappedSegmentWriter.recover(shortFile));
+    }
+
+    /**
+     * Writes data in chunks of random sizes.
+     */
+    private static void write(MappedSegmentWriter writer, byte[] data, Random random)
+            throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int count = Math.min(data.length - offset, 1 + random.nextInt(30));
+            writer.write(data, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Returns random printable bytes, without zero bytes as in the text logs.
+     */
+    private static byte[] createData(int length, Random random) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (' ' + random.nextInt(95));
+        }
+        return data;
+    }
+
+    private File writeFile(String name, byte[] bytes) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
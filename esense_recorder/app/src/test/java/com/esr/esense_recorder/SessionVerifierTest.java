@@ -0,0 +1,241 @@
+package com.esr.esense_recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import io.esense.esenselib.ESenseEvent;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verification and salvage of corrupted, truncated and unreadable binary sessions, which will
+ * execute on the development machine (host).
+ */
+public class SessionVerifierTest {
+    private static final int BLOCK_SIZE = 100;
+    private static final int SAMPLE_COUNT = 2000;
+    private static final long START_TIME_MILLIS = 1600000000000L;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("SessionVerifierTest", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void intactSession_isNotSalvaged() throws IOException {
+        File file = writeFile("intact", createSession());
+        File salvageFile = new File(directory, "salvaged");
+        SessionVerifier.Report report = new SessionVerifier(1).verifyFile(file, salvageFile);
+        assertTrue(report.toString(), report.isIntact());
+        assertEquals(BinarySessionFormat.VERSION, report.getVersion());
+        assertEquals(SAMPLE_COUNT, report.getSampleCount());
+        // Blocks and 2 events
+        assertEquals(SAMPLE_COUNT / BLOCK_SIZE + 2, report.getRecordCount());
+        assertNull(report.getSalvagedFile());
+        assertFalse(salvageFile.exists());
+    }
+
+    @Test
+    public void corruptedSession_isSalvagedWithValidRecords() throws IOException {
+        byte[] session = createSession();
+        // Two blocks far apart
+        session[session.length / 4] ^= 0x40;
+        session[session.length * 3 / 4] ^= 0x02;
+        File file = writeFile("corrupted", session);
+        File salvageFile = new File(directory, "salvaged");
+        SessionVerifier.Report report = new SessionVerifier(1).verifyFile(file, salvageFile);
+        assertFalse(report.isIntact());
+        assertFalse(report.isTruncated());
+        assertNull(report.getError());
+        assertEquals(2, report.getCorruptRecordCount());
+        assertEquals(2, report.getCorruptOffsets().size());
+        assertTrue(report.getCorruptOffsets().get(0) < session.length / 4);
+        assertTrue(report.getCorruptOffsets().get(1) > session.length / 2);
+        assertEquals(SAMPLE_COUNT - 2 * BLOCK_SIZE, report.getSampleCount());
+        assertEquals(salvageFile, report.getSalvagedFile());
+
+        // The salvaged session is intact, with the skipped ranges marked
+        Salvage salvage = readSalvage(salvageFile);
+        assertEquals(report.getSampleCount(), salvage.sampleCount);
+        assertEquals(2, salvage.skippedEventCount);
+        assertEquals(report.getSkippedBytes(), salvage.skippedBytes);
+        assertEquals(2, salvage.eventCount);
+        assertTrue(new SessionVerifier(1).verifyFile(salvageFile, null).isIntact());
+        // The original file is kept
+        assertEquals(session.length, file.length());
+    }
+
+    @Test
+    public void truncatedSession_isSalvagedWithEndRecord() throws IOException {
+        byte[] session = createSession();
+        File file = writeFile("truncated", Arrays.copyOf(session, session.length * 2 / 3));
+        File salvageFile = new File(directory, "salvaged");
+        SessionVerifier.Report report = new SessionVerifier(1).verifyFile(file, salvageFile);
+        assertFalse(report.isIntact());
+        assertTrue(report.isTruncated());
+        assertEquals(0, report.getCorruptRecordCount());
+        assertTrue(report.getSampleCount() > 0 && report.getSampleCount() < SAMPLE_COUNT);
+        assertEquals(0, report.getSampleCount() % BLOCK_SIZE);
+
+        Salvage salvage = readSalvage(salvageFile);
+        assertEquals(report.getSampleCount(), salvage.sampleCount);
+        assertEquals(0, salvage.skippedEventCount);
+        // The event of the start of the log only
+        assertEquals(1, salvage.eventCount);
+    }
+
+    @Test
+    public void damagedHeader_isReportedWithoutSalvage() throws IOException {
+        byte[] session = createSession();
+        // In the start time
+        session[8] ^= 0x01;
+        File file = writeFile("header", session);
+        File salvageFile = new File(directory, "salvaged");
+        SessionVerifier.Report report = new SessionVerifier(1).verifyFile(file, salvageFile);
+        assertFalse(report.isIntact());
+        assertNotNull(report.getError());
+        assertEquals(-1, report.getVersion());
+        assertEquals(0, report.getRecordCount());
+        assertNull(report.getSalvagedFile());
+        assertFalse(salvageFile.exists());
+    }
+
+    @Test
+    public void verifyDirectory_reportsSessionsInNameOrder() throws Exception {
+        byte[] session = createSession();
+        writeFile("c" + BinarySessionFormat.FILE_EXTENSION, session);
+        byte[] corrupted = session.clone();
+        corrupted[corrupted.length / 2] ^= 0x08;
+        writeFile("a" + BinarySessionFormat.FILE_EXTENSION, corrupted);
+        writeFile("b" + BinarySessionFormat.FILE_EXTENSION,
+                Arrays.copyOf(session, session.length / 2));
+        writeFile("notes.txt", new byte[] {1, 2, 3});
+        File salvageDirectory = new File(directory, "salvage");
+
+        List<SessionVerifier.Report> reports = new SessionVerifier(2).verifyDirectory(directory,
+                salvageDirectory);
+        assertEquals(3, reports.size());
+        assertEquals("a" + BinarySessionFormat.FILE_EXTENSION, reports.get(0).getFile().getName());
+        assertEquals(1, reports.get(0).getCorruptRecordCount());
+        assertTrue(reports.get(1).isTruncated());
+        assertTrue(reports.get(2).isIntact());
+        assertTrue(new File(salvageDirectory, "a" + BinarySessionFormat.FILE_EXTENSION).isFile());
+        assertTrue(new File(salvageDirectory, "b" + BinarySessionFormat.FILE_EXTENSION).isFile());
+        assertFalse(new File(salvageDirectory, "c" + BinarySessionFormat.FILE_EXTENSION).exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidThreadCount_isRejected() {
+        new SessionVerifier(0);
+    }
+
+    /**
+     * Creates a session of raw encoded full blocks, between a start and a stop event.
+     */
+    private static byte[] createSession() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinarySessionWriter writer = new BinarySessionWriter(output, BLOCK_SIZE,
+                BinarySessionFormat.ENCODING_RAW);
+        writer.writeHeader("eSense-0123", 100, null, START_TIME_MILLIS, 0);
+        writer.writeEvent(0, "Log started.");
+        ESenseEvent evt = ESenseEvent.obtain();
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            evt.setSampleTimeNanos(i * 10000000L);
+            evt.setPacketIndex(i & 0xff);
+            evt.getAccel()[0] = (short) i;
+            evt.getGyro()[1] = (short) -i;
+            writer.writeSample(evt);
+        }
+        evt.recycle();
+        writer.writeEvent(SAMPLE_COUNT * 10, "Log stopped.");
+        writer.close();
+        return output.toByteArray();
+    }
+
+    private File writeFile(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    /**
+     * Reads a salvaged session, which must be complete and intact.
+     */
+    private static Salvage readSalvage(File file) throws IOException {
+        BinarySessionReader reader = new BinarySessionReader(
+                new BufferedInputStream(new FileInputStream(file)));
+        Salvage salvage = new Salvage();
+        try {
+            assertEquals(START_TIME_MILLIS, reader.getStartTimeMillis());
+            long previousTime = -1;
+            int type;
+            while ((type = reader.readRecord()) != BinarySessionFormat.RECORD_END) {
+                if (type == BinarySessionFormat.RECORD_SAMPLE_BLOCK) {
+                    for (int i = 0; i < reader.getBlock().getSize(); i++) {
+                        long time = reader.getBlock().getSampleTimes()[i];
+                        assertTrue(time > previousTime);
+                        // The values match the times after the skipped blocks
+                        assertEquals((short) (time / 10000000), reader.getBlock().getAccX()[i]);
+                        previousTime = time;
+                    }
+                    salvage.sampleCount += reader.getBlock().getSize();
+                } else if (type == BinarySessionFormat.RECORD_EVENT) {
+                    String[] fields = reader.getEventFields();
+                    if (SessionVerifier.SKIPPED_DATA_MESSAGE.equals(fields[0])) {
+                        salvage.skippedEventCount++;
+                        salvage.skippedBytes += Long.parseLong(fields[2]);
+                    } else {
+                        salvage.eventCount++;
+                    }
+                }
+            }
+            assertFalse(reader.isTruncated());
+        } finally {
+            reader.close();
+        }
+        return salvage;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        assertTrue(file.delete());
+    }
+
+    /**
+     * Content of a salvaged session.
+     */
+    private static class Salvage {
+        long sampleCount = 0;
+        long eventCount = 0;
+        long skippedEventCount = 0;
+        long skippedBytes = 0;
+    }
+}
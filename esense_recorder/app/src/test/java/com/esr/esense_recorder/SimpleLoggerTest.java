@@ -0,0 +1,316 @@
+package com.esr.esense_recorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lines, footers and manifest of the log files written by the logger in a temporary directory,
+ * which will execute on the development machine (host).
+ */
+public class SimpleLoggerTest {
+    private static final String SEPARATOR = "\t";
+    private static final String TERMINATOR = "\n";
+    private static final String SENSOR_EVENT_MESSAGE = "Sensor notification.";
+    private static final String PACKETS_LOST_MESSAGE = "Packets lost.";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("SimpleLoggerTest", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void droppedSample_isReportedAndNotCounted() throws IOException {
+        SimpleLogger logger = createLogger();
+        logger.setRotation(1024 * 1024, 0, SEPARATOR, TERMINATOR);
+        assertTrue(logger.log(null, SEPARATOR, TERMINATOR, 0, "Log started."));
+        assertTrue(logger.logSample(null, sampleLine(10, 1), 10));
+        // Larger than the buffers of the writer, always dropped
+        char[] padding = new char[AsyncLogWriter.DEFAULT_BUFFER_SIZE];
+        Arrays.fill(padding, '0');
+        LogLineEncoder oversized = new LogLineEncoder(SEPARATOR, TERMINATOR).append(20)
+                .append(SENSOR_EVENT_MESSAGE).append(new String(padding)).endLine();
+        assertTrue(logger.logSample(null, oversized, 20));
+        assertTrue(logger.logSample(null, sampleLine(30, 3), 30));
+        assertTrue(logger.isLogging());
+        logger.closeLog(null);
+        assertFalse(logger.isLogging());
+
+        File segment = new File(directory, "session_001.txt");
+        List<String> lines = readLines(segment);
+        assertEquals(5, lines.size());
+        assertEquals("0\tLog started.", lines.get(0));
+        assertTrue(lines.get(1).startsWith("10\t" + SENSOR_EVENT_MESSAGE));
+        assertEquals("30\t" + SimpleLogger.SAMPLES_DROPPED_MESSAGE + "\t1", lines.get(2));
+        assertTrue(lines.get(3).startsWith("30\t" + SENSOR_EVENT_MESSAGE));
+        // Only the logged samples are counted
+        String[] footer = lines.get(4).split(SEPARATOR);
+        assertEquals(SimpleLogger.SEGMENT_FOOTER_MESSAGE, footer[1]);
+        assertEquals("2", footer[2]);
+        assertEquals("10", footer[3]);
+        assertEquals("30", footer[4]);
+        // The writer counts the dropped line
+        List<String> manifest = readLines(new File(directory,
+                "session" + SimpleLogger.MANIFEST_SUFFIX));
+        assertEquals(2, manifest.size());
+        String[] entry = manifest.get(1).split(SEPARATOR);
+        assertEquals("session_001.txt", entry[0]);
+        assertEquals("closed", entry[1]);
+        assertEquals("2", entry[2]);
+        assertEquals("1", entry[6]);
+
+        // The dropped sample is a gap for the parser
+        TsvLogParser parser = new TsvLogParser(new FileInputStream(segment).getChannel(),
+                SEPARATOR, SENSOR_EVENT_MESSAGE, PACKETS_LOST_MESSAGE);
+        try {
+            assertEquals(TsvLogParser.LINE_EVENT, parser.readLine());
+            assertEquals(TsvLogParser.LINE_SAMPLE, parser.readLine());
+            assertEquals(TsvLogParser.LINE_PACKETS_LOST, parser.readLine());
+            assertEquals(1, parser.getLostPackets());
+            assertEquals(TsvLogParser.LINE_SAMPLE, parser.readLine());
+        } finally {
+            parser.close();
+        }
+    }
+
+    @Test
+    public void closedLog_createsNoFile() throws IOException {
+        SimpleLogger logger = createLogger();
+        assertTrue(logger.log(null, SEPARATOR, TERMINATOR, 0, "Log started."));
+        assertTrue(logger.logSample(null, sampleLine(10, 1), 10));
+        logger.closeLog(null);
+        // Late lines are refused instead of starting a log "session(1)"
+        assertFalse(logger.logSample(null, sampleLine(20, 2), 20));
+        assertFalse(logger.log(null, SEPARATOR, TERMINATOR, 30, "Log stopped."));
+        assertFalse(logger.isLogging());
+        String[] names = directory.list();
+        assertNotNull(names);
+        assertEquals(Arrays.asList("session.txt"), Arrays.asList(names));
+        assertEquals(2, readLines(new File(directory, "session.txt")).size());
+    }
+
+    @Test
+    public void sizeRotation_startsSegmentsWithSessionHeaderAndFooter() throws IOException {
+        SimpleLogger logger = createLogger();
+        // A few samples per segment
+        logger.setRotation(200, 0, SEPARATOR, TERMINATOR);
+        assertTrue(logger.log(null, SEPARATOR, TERMINATOR, 0, "Configuration."));
+        assertTrue(logger.log(null, SEPARATOR, TERMINATOR, 0, "Log started."));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(logger.logSample(null, sampleLine(10 * (i + 1), i), 10 * (i + 1)));
+        }
+        logger.closeLog(null);
+
+        List<String> manifest = readLines(new File(directory,
+                "session" + SimpleLogger.MANIFEST_SUFFIX));
+        int segmentCount = manifest.size() - 1;
+        assertTrue(segmentCount > 2);
+        long samples = 0;
+        long lastMillis = 0;
+        for (int index = 1; index <= segmentCount; index++) {
+            String name = String.format(Locale.US, "session_%03d.txt", index);
+            byte[] bytes = readFile(new File(directory, name));
+            List<String> lines = readLines(new File(directory, name));
+            assertEquals("0\tConfiguration.", lines.get(0));
+            assertEquals("0\tLog started.", lines.get(1));
+            String[] footer = checkFooter(bytes, lines);
+            long segmentSamples = Long.parseLong(footer[2]);
+            assertEquals(lines.size() - 3, segmentSamples);
+            // Contiguous time ranges
+            assertEquals(lastMillis + 10, Long.parseLong(footer[3]));
+            lastMillis = Long.parseLong(footer[4]);
+            assertTrue(lines.get(2).startsWith(footer[3] + "\t" + SENSOR_EVENT_MESSAGE));
+            samples += segmentSamples;
+            // The manifest repeats the footer
+            String[] entry = manifest.get(index).split(SEPARATOR);
+            assertEquals(name, entry[0]);
+            assertEquals("closed", entry[1]);
+            assertArrayEquals(Arrays.copyOfRange(footer, 2, 5), Arrays.copyOfRange(entry, 2, 5));
+            assertEquals(footer[5], entry[5]);
+            assertEquals("0", entry[6]);
+            assertEquals(footer[6], entry[7]);
+        }
+        assertEquals(10, samples);
+        assertEquals(100, lastMillis);
+        assertFalse(new File(directory,
+                String.format(Locale.US, "session_%03d.txt", segmentCount + 1)).exists());
+    }
+
+    @Test
+    public void durationRotation_listsOpenSegmentInManifest() throws IOException {
+        SimpleLogger logger = createLogger();
+        logger.setRotation(0, 100, SEPARATOR, TERMINATOR);
+        assertTrue(logger.log(null, SEPARATOR, TERMINATOR, 0, "Log started."));
+        for (int millis = 0; millis < 250; millis += 10) {
+            assertTrue(logger.logSample(null, sampleLine(millis, millis), millis));
+        }
+        // Third segment open
+        File manifestFile = new File(directory, "session" + SimpleLogger.MANIFEST_SUFFIX);
+        List<String> manifest = readLines(manifestFile);
+        assertEquals(4, manifest.size());
+        assertEquals("closed", manifest.get(1).split(SEPARATOR)[1]);
+        assertEquals("closed", manifest.get(2).split(SEPARATOR)[1]);
+        String[] open = manifest.get(3).split(SEPARATOR);
+        assertEquals("session_003.txt", open[0]);
+        assertEquals("open", open[1]);
+        logger.closeLog(null);
+
+        manifest = readLines(manifestFile);
+        assertEquals(4, manifest.size());
+        long[][] ranges = {{10, 0, 90}, {10, 100, 190}, {5, 200, 240}};
+        for (int index = 1; index <= 3; index++) {
+            String name = String.format(Locale.US, "session_%03d.txt", index);
+            File segment = new File(directory, name);
+            String[] footer = checkFooter(readFile(segment), readLines(segment));
+            String[] entry = manifest.get(index).split(SEPARATOR);
+            assertEquals(name, entry[0]);
+            assertEquals("closed", entry[1]);
+            for (int field = 0; field < 3; field++) {
+                assertEquals(ranges[index - 1][field], Long.parseLong(footer[2 + field]));
+                assertEquals(ranges[index - 1][field], Long.parseLong(entry[2 + field]));
+            }
+        }
+        // The manifest is replaced, not left as a temporary file
+        assertFalse(new File(directory,
+                "session" + SimpleLogger.MANIFEST_SUFFIX + ".tmp").exists());
+    }
+
+    @Test
+    public void compressedSegments_decodeToCheckedLines() throws IOException {
+        SimpleLogger logger = createLogger();
+        logger.setRotation(0, 100, SEPARATOR, TERMINATOR);
+        logger.setCompression(true, Deflater.BEST_SPEED);
+        assertTrue(logger.log(null, SEPARATOR, TERMINATOR, 0, "Log started."));
+        for (int millis = 0; millis < 200; millis += 10) {
+            assertTrue(logger.logSample(null, sampleLine(millis, millis), millis));
+        }
+        logger.closeLog(null);
+
+        for (int index = 1; index <= 2; index++) {
+            File segment = new File(directory, String.format(Locale.US, "session_%03d%s",
+                    index, SimpleLogger.COMPRESSED_EXTENSION));
+            // The footer describes the uncompressed bytes
+            byte[] bytes = decompress(segment);
+            List<String> lines = splitLines(bytes);
+            assertEquals(12, lines.size());
+            assertEquals("0\tLog started.", lines.get(0));
+            String[] footer = checkFooter(bytes, lines);
+            assertEquals("10", footer[2]);
+            assertTrue(bytes.length > segment.length());
+        }
+        assertEquals(3, readLines(new File(directory,
+                "session" + SimpleLogger.MANIFEST_SUFFIX)).size());
+    }
+
+    private SimpleLogger createLogger() {
+        SimpleLogger logger = new SimpleLogger("SimpleLoggerTest", "session");
+        logger.setLogDirectory(directory);
+        return logger;
+    }
+
+    /**
+     * Returns the line of a sample as logged by <code>MainActivity</code>, without the converted
+     * values.
+     */
+    private static LogLineEncoder sampleLine(long elapsedMillis, int value) {
+        LogLineEncoder line = new LogLineEncoder(SEPARATOR, TERMINATOR);
+        line.append(elapsedMillis).append(SENSOR_EVENT_MESSAGE);
+        for (int axis = 0; axis < 6; axis++) {
+            line.append(value + axis);
+        }
+        for (int axis = 0; axis < 6; axis++) {
+            line.append("-");
+        }
+        return line.endLine();
+    }
+
+    /**
+     * Checks the length and checksum of the bytes before the footer, the last line of a segment.
+     *
+     * @return the fields of the footer.
+     */
+    private static String[] checkFooter(byte[] bytes, List<String> lines) {
+        String[] footer = lines.get(lines.size() - 1).split(SEPARATOR);
+        assertEquals(7, footer.length);
+        assertEquals(SimpleLogger.SEGMENT_FOOTER_MESSAGE, footer[1]);
+        // Written at the time of the last sample
+        assertEquals(footer[4], footer[0]);
+        int length = bytes.length
+                - (lines.get(lines.size() - 1) + TERMINATOR).getBytes(UTF8).length;
+        assertEquals(length, Long.parseLong(footer[5]));
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        assertEquals(crc.getValue(), Long.parseLong(footer[6], 16));
+        return footer;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] decompress(File file) throws IOException {
+        InputStream input = new GZIPInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = input.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        return splitLines(readFile(file));
+    }
+
+    private static List<String> splitLines(byte[] bytes) {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                new String(bytes, UTF8).split(TERMINATOR, -1)));
+        // After the last terminator
+        assertEquals("", lines.remove(lines.size() - 1));
+        return lines;
+    }
+}
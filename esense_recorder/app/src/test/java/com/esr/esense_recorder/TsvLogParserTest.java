@@ -0,0 +1,223 @@
+package com.esr.esense_recorder;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.SampleBlock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of text logs by the streaming parser, compared with a reference parsing of the split
+ * lines, which will execute on the development machine (host).
+ */
+public class TsvLogParserTest {
+    static final String SEPARATOR = "\t";
+    static final String SENSOR_EVENT_MESSAGE = "Sensor notification.";
+    static final String PACKETS_LOST_MESSAGE = "Packets lost.";
+    static final String BUTTON_EVENT_MESSAGE = "Device button pressed.";
+    private static final int LINE_COUNT = 200000;
+
+    @Test
+    public void parse_matchesReferenceParsing() throws IOException {
+        byte[] log = generateLog(LINE_COUNT, new Random(3));
+        // Small buffer, so that many lines span two reads
+        TsvLogParser parser = createParser(log, 4096);
+        BufferedReader reference = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(log), "UTF-8"));
+        String text;
+        int pendingLostPackets = 0;
+        int samples = 0;
+        while ((text = reference.readLine()) != null) {
+            int type = parser.readLine();
+            String[] fields = text.split(SEPARATOR, -1);
+            String context = "Line " + parser.getLineNumber() + ": " + text;
+            assertEquals(context, Long.parseLong(fields[0]), parser.getElapsedMillis());
+            if (fields[1].equals(SENSOR_EVENT_MESSAGE)) {
+                assertEquals(context, TsvLogParser.LINE_SAMPLE, type);
+                for (int axis = 0; axis < 3; axis++) {
+                    assertEquals(context, Short.parseShort(fields[2 + axis]),
+                            parser.getAccel()[axis]);
+                    assertEquals(context, Short.parseShort(fields[5 + axis]),
+                            parser.getGyro()[axis]);
+                }
+                boolean converted = !fields[8].equals("-");
+                assertEquals(context, converted, parser.hasConvertedValues());
+                for (int axis = 0; axis < 3; axis++) {
+                    // Exactly the same doubles
+                    assertEquals(context, converted ? Double.parseDouble(fields[8 + axis])
+                            : Double.NaN, parser.getConvertedAccel()[axis], 0);
+                    assertEquals(context, converted ? Double.parseDouble(fields[11 + axis])
+                            : Double.NaN, parser.getConvertedGyro()[axis], 0);
+                }
+                assertEquals(context, pendingLostPackets, parser.getLostPackets());
+                pendingLostPackets = 0;
+                samples++;
+            } else if (fields[1].equals(PACKETS_LOST_MESSAGE)) {
+                assertEquals(context, TsvLogParser.LINE_PACKETS_LOST, type);
+                assertEquals(context, Integer.parseInt(fields[2]), parser.getLostPackets());
+                pendingLostPackets += parser.getLostPackets();
+            } else {
+                assertEquals(context, TsvLogParser.LINE_EVENT, type);
+                String[] eventFields = parser.getEventFields();
+                assertNotNull(eventFields);
+                assertEquals(context, fields.length - 1, eventFields.length);
+                for (int i = 1; i < fields.length; i++) {
+                    assertEquals(context, fields[i], eventFields[i - 1]);
+                }
+            }
+        }
+        assertEquals(TsvLogParser.LINE_END, parser.readLine());
+        assertEquals(LINE_COUNT, parser.getLineNumber());
+        assertTrue(samples > LINE_COUNT / 2);
+        parser.close();
+    }
+
+    @Test
+    public void readSamples_countsLostPacketsInNextSample() throws IOException {
+        StringBuilder log = new StringBuilder();
+        log.append("0\tSensor notification.\t1\t2\t3\t4\t5\t6\t-\t-\t-\t-\t-\t-\n");
+        log.append("10\tPackets lost.\t2\n");
+        log.append("10\tPackets lost.\t1\n");
+        log.append("40\tSensor notification.\t-1\t-2\t-3\t-4\t-5\t-6\r\n");
+        log.append("50\tSensor notification.\t7\t8\t9\t10\t11\t12\n");
+        log.append("\n");
+        log.append("55\tDevice button pressed.\n");
+        log.append("60\tSensor notification.\t0\t0\t0\t0\t0\t0");
+        TsvLogParser parser = createParser(log.toString().getBytes("UTF-8"),
+                TsvLogParser.DEFAULT_BUFFER_SIZE);
+        SampleBlock block = new SampleBlock(2);
+        assertEquals(2, parser.readSamples(block));
+        assertEquals(TsvLogParser.LINE_SAMPLE, parser.getLineType());
+        assertEquals(0, block.getLostPackets()[0]);
+        assertEquals(3, block.getLostPackets()[1]);
+        assertEquals(0, block.getPacketIndexes()[0]);
+        assertEquals(4, block.getPacketIndexes()[1]);
+        assertEquals(40, block.getTimestamps()[1]);
+        assertEquals(40000000, block.getSampleTimes()[1]);
+        assertEquals(-6, block.getGyroZ()[1]);
+
+        block.clear();
+        assertEquals(1, parser.readSamples(block));
+        assertEquals(TsvLogParser.LINE_EVENT, parser.getLineType());
+        assertEquals(BUTTON_EVENT_MESSAGE, parser.getEventFields()[0]);
+        assertEquals(5, block.getPacketIndexes()[0]);
+
+        ESenseEvent evt = ESenseEvent.obtain();
+        assertEquals(TsvLogParser.LINE_SAMPLE, parser.readLine());
+        parser.getSample(evt);
+        assertEquals(60, evt.getTimestamp());
+        assertEquals(6, evt.getPacketIndex());
+        evt.recycle();
+        assertEquals(TsvLogParser.LINE_END, parser.readLine());
+        // The blank line is skipped but counted
+        assertEquals(8, parser.getLineNumber());
+    }
+
+    @Test
+    public void configLines_setConfiguration() throws IOException {
+        ESenseConfig expected = new ESenseConfig(ESenseConfig.AccRange.G_8,
+                ESenseConfig.GyroRange.DEG_1000, ESenseConfig.AccLPF.BW_41,
+                ESenseConfig.GyroLPF.BW_20);
+        StringBuilder log = new StringBuilder();
+        appendConfig(log, TsvSessionConverter.SAMPLING_RATE_LABEL, "50");
+        appendConfig(log, TsvSessionConverter.ACC_RANGE_LABEL, expected.getAccRange().toString());
+        appendConfig(log, TsvSessionConverter.GYRO_RANGE_LABEL,
+                expected.getGyroRange().toString());
+        appendConfig(log, TsvSessionConverter.ACC_LPF_LABEL, expected.getAccLPF().toString());
+        appendConfig(log, TsvSessionConverter.GYRO_LPF_LABEL, expected.getGyroLPF().toString());
+        TsvLogParser parser = createParser(log.toString().getBytes("UTF-8"),
+                TsvLogParser.DEFAULT_BUFFER_SIZE);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(TsvLogParser.LINE_CONFIG, parser.readLine());
+            assertNull(parser.getConfig());
+        }
+        assertEquals(50, parser.getSamplingRate());
+        assertEquals(TsvLogParser.LINE_CONFIG, parser.readLine());
+        ESenseConfig config = parser.getConfig();
+        assertNotNull(config);
+        assertEquals(expected.getAccRange(), config.getAccRange());
+        assertEquals(expected.getGyroRange(), config.getGyroRange());
+        assertEquals(expected.getAccLPF(), config.getAccLPF());
+        assertEquals(expected.getGyroLPF(), config.getGyroLPF());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidNumber_isRejected() throws IOException {
+        byte[] log = "0\tSensor notification.\t1\t2\tx\t4\t5\t6\n".getBytes("UTF-8");
+        createParser(log, TsvLogParser.DEFAULT_BUFFER_SIZE).readLine();
+    }
+
+    @Test(expected = IOException.class)
+    public void incompleteSample_isRejected() throws IOException {
+        byte[] log = "0\tSensor notification.\t1\t2\t3\n".getBytes("UTF-8");
+        createParser(log, TsvLogParser.DEFAULT_BUFFER_SIZE).readLine();
+    }
+
+    @Test(expected = IOException.class)
+    public void lineLongerThanBuffer_isRejected() throws IOException {
+        StringBuilder log = new StringBuilder("0\tStart log.\t");
+        for (int i = 0; i < 200; i++) {
+            log.append("0123456789");
+        }
+        createParser(log.toString().getBytes("UTF-8"), 1024).readLine();
+    }
+
+    static TsvLogParser createParser(byte[] log, int bufferSize) {
+        return new TsvLogParser(Channels.newChannel(new ByteArrayInputStream(log)), SEPARATOR,
+                SENSOR_EVENT_MESSAGE, PACKETS_LOST_MESSAGE, bufferSize);
+    }
+
+    /**
+     * Generates a log as written by <code>MainActivity</code>: samples with and without converted
+     * values, lost packet lines and a few events.
+     */
+    private static byte[] generateLog(int lineCount, Random random) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        LogLineEncoder line = new LogLineEncoder(SEPARATOR, "\n");
+        line.reset().append(0).append("Start log.").append("2020-09-13 12:26:40.000").endLine();
+        output.write(line.getBuffer(), 0, line.getLength());
+        int decimals = TsvSessionConverter.CONVERTED_VALUE_DECIMALS;
+        long elapsedMillis = 0;
+        for (int i = 1; i < lineCount; i++) {
+            int kind = random.nextInt(100);
+            line.reset().append(elapsedMillis);
+            if (kind == 0) {
+                line.append(PACKETS_LOST_MESSAGE).append(1 + random.nextInt(20));
+            } else if (kind == 1) {
+                line.append(BUTTON_EVENT_MESSAGE);
+            } else {
+                line.append(SENSOR_EVENT_MESSAGE);
+                for (int axis = 0; axis < 6; axis++) {
+                    line.append((short) random.nextInt());
+                }
+                boolean converted = kind > 10;
+                for (int axis = 0; axis < 6; axis++) {
+                    if (converted) {
+                        double scale = (axis < 3) ? 16 : 2000;
+                        line.append((random.nextDouble() * 2 - 1) * scale, decimals);
+                    } else {
+                        line.append("-");
+                    }
+                }
+                elapsedMillis += random.nextInt(30);
+            }
+            line.endLine();
+            output.write(line.getBuffer(), 0, line.getLength());
+        }
+        return output.toByteArray();
+    }
+
+    private static void appendConfig(StringBuilder log, String label, String value) {
+        log.append(0).append(SEPARATOR).append(label).append(SEPARATOR).append(value).append('\n');
+    }
+}
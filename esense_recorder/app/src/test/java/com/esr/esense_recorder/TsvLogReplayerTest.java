@@ -0,0 +1,200 @@
+package com.esr.esense_recorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.esense.esenselib.ESenseConfig;
+import io.esense.esenselib.ESenseEvent;
+import io.esense.esenselib.ESenseEventListener;
+import io.esense.esenselib.ESenseSensorListener;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pacing and delivery of the samples and events replayed from a text log, which will execute on
+ * the development machine (host).
+ */
+public class TsvLogReplayerTest {
+    // Elapsed time of the first line, e.g. of a rotated log segment
+    private static final long FIRST_ELAPSED_MILLIS = 60000;
+
+    @Test
+    public void replay_deliversSamplesWithRecordedIntervals() throws IOException {
+        Recorder recorder = new Recorder();
+        TsvLogReplayer replayer = new TsvLogReplayer(createParser(generateLog(100)), recorder,
+                recorder, TsvLogParserTest.BUTTON_EVENT_MESSAGE, 0);
+        long before = System.nanoTime();
+        assertEquals(100, replayer.replay());
+        assertEquals(100, replayer.getReplayedSamples());
+        assertNull(replayer.getError());
+
+        assertEquals(100, recorder.sampleTimes.size());
+        // Times from the start of the replay, not from the start of the log
+        long firstTime = recorder.sampleTimes.get(0);
+        assertTrue(firstTime >= before && firstTime <= System.nanoTime());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 10000000L, recorder.sampleTimes.get(i) - firstTime);
+            assertEquals(i * 10, recorder.timestamps.get(i) - recorder.timestamps.get(0));
+            assertEquals((short) i, (long) recorder.accX.get(i));
+        }
+        assertNotNull(recorder.config);
+        assertEquals(ESenseConfig.AccRange.G_4, recorder.config.getAccRange());
+        assertEquals(1, recorder.configCount);
+    }
+
+    @Test
+    public void buttonLines_alternatePressAndRelease() throws IOException {
+        Recorder recorder = new Recorder();
+        TsvLogReplayer replayer = new TsvLogReplayer(createParser(generateLog(100)), recorder,
+                recorder, TsvLogParserTest.BUTTON_EVENT_MESSAGE, 0);
+        replayer.replay();
+        assertEquals(4, recorder.buttonStates.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i % 2 == 0, recorder.buttonStates.get(i));
+        }
+    }
+
+    @Test
+    public void replay_isPacedFromFirstLine() throws IOException {
+        Recorder recorder = new Recorder();
+        // 1 s of samples 10 times faster
+        TsvLogReplayer replayer = new TsvLogReplayer(createParser(generateLog(100)), recorder,
+                null, null, 10);
+        long start = System.nanoTime();
+        replayer.replay();
+        long duration = System.nanoTime() - start;
+        // No initial delay for the elapsed time of the first line
+        assertTrue("Duration " + duration, duration >= 99000000 && duration < 2000000000);
+        // Each sample is delivered at or after its scheduled time
+        for (int i = 0; i < 100; i++) {
+            assertTrue(recorder.arrivalTimes.get(i) - start >= i * 1000000L);
+        }
+        assertTrue(recorder.buttonStates.isEmpty());
+        assertNull(recorder.config);
+    }
+
+    @Test
+    public void stop_endsReplay() throws Exception {
+        Recorder recorder = new Recorder();
+        // 100 s of samples in real time
+        TsvLogReplayer replayer = new TsvLogReplayer(createParser(generateLog(10000)), recorder,
+                null, null, 1);
+        replayer.start("TsvLogReplayerTest-Replay");
+        while (replayer.getReplayedSamples() < 5) {
+            Thread.sleep(10);
+        }
+        replayer.stop();
+        long replayed = replayer.getReplayedSamples();
+        assertTrue(replayed < 10000);
+        Thread.sleep(50);
+        assertEquals(replayed, replayer.getReplayedSamples());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSpeed_isRejected() {
+        Recorder recorder = new Recorder();
+        new TsvLogReplayer(createParser(new byte[0]), recorder, null, null, -1);
+    }
+
+    private static TsvLogParser createParser(byte[] log) {
+        return TsvLogParserTest.createParser(log, TsvLogParser.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Generates a log of samples at 100 Hz starting at <code>FIRST_ELAPSED_MILLIS</code>, with
+     * the configuration before the samples and 4 button lines.
+     */
+    private static byte[] generateLog(int sampleCount) {
+        String separator = TsvLogParserTest.SEPARATOR;
+        LogLineEncoder line = new LogLineEncoder(separator, "\n");
+        StringBuilder log = new StringBuilder();
+        appendLine(log, line.reset().append(FIRST_ELAPSED_MILLIS)
+                .append(TsvSessionConverter.ACC_RANGE_LABEL)
+                .append(ESenseConfig.AccRange.G_4.toString()));
+        appendLine(log, line.reset().append(FIRST_ELAPSED_MILLIS)
+                .append(TsvSessionConverter.GYRO_RANGE_LABEL)
+                .append(ESenseConfig.GyroRange.DEG_500.toString()));
+        appendLine(log, line.reset().append(FIRST_ELAPSED_MILLIS)
+                .append(TsvSessionConverter.ACC_LPF_LABEL)
+                .append(ESenseConfig.AccLPF.BW_5.toString()));
+        appendLine(log, line.reset().append(FIRST_ELAPSED_MILLIS)
+                .append(TsvSessionConverter.GYRO_LPF_LABEL)
+                .append(ESenseConfig.GyroLPF.BW_5.toString()));
+        for (int i = 0; i < sampleCount; i++) {
+            long elapsedMillis = FIRST_ELAPSED_MILLIS + i * 10;
+            if (i % 20 == 10 && i <= 70) {
+                appendLine(log, line.reset().append(elapsedMillis)
+                        .append(TsvLogParserTest.BUTTON_EVENT_MESSAGE));
+            }
+            appendLine(log, line.reset().append(elapsedMillis)
+                    .append(TsvLogParserTest.SENSOR_EVENT_MESSAGE)
+                    .append(i).append(0).append(0).append(0).append(0).append(0)
+                    .append("-").append("-").append("-").append("-").append("-").append("-"));
+        }
+        try {
+            return log.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void appendLine(StringBuilder log, LogLineEncoder line) {
+        line.endLine();
+        for (int i = 0; i < line.getLength(); i++) {
+            log.append((char) line.getBuffer()[i]);
+        }
+    }
+
+    /**
+     * Records the replayed samples and events.
+     */
+    private static class Recorder implements ESenseSensorListener, ESenseEventListener {
+        final List<Long> sampleTimes = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Long> arrivalTimes = new ArrayList<>();
+        final List<Short> accX = new ArrayList<>();
+        final List<Boolean> buttonStates = new ArrayList<>();
+        ESenseConfig config;
+        int configCount = 0;
+
+        @Override
+        public void onSensorChanged(ESenseEvent evt) {
+            arrivalTimes.add(System.nanoTime());
+            sampleTimes.add(evt.getSampleTimeNanos());
+            timestamps.add(evt.getTimestamp());
+            accX.add(evt.getAccel()[0]);
+        }
+
+        @Override
+        public void onButtonEventChanged(boolean pressed) {
+            buttonStates.add(pressed);
+        }
+
+        @Override
+        public void onSensorConfigRead(ESenseConfig config) {
+            this.config = config;
+            configCount++;
+        }
+
+        @Override
+        public void onBatteryRead(double voltage) {}
+
+        @Override
+        public void onAdvertisementAndConnectionIntervalRead(int minAdvertisementInterval,
+                                                             int maxAdvertisementInterval,
+                                                             int minConnectionInterval,
+                                                             int maxConnectionInterval) {}
+
+        @Override
+        public void onDeviceNameRead(String deviceName) {}
+
+        @Override
+        public void onSensorConfigChanged(ESenseConfig config) {}
+
+        @Override
+        public void onAccelerometerOffsetRead(int offsetX, int offsetY, int offsetZ) {}
+    }
+}
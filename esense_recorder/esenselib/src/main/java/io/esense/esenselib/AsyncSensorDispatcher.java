@@ -0,0 +1,196 @@
+package io.esense.esenselib;
+
+import android.util.Log;
+
+/**
+ * Sensor listener that hands the samples over to a dedicated consumer thread.
+ *
+ * <p>
+ *     {@link #onSensorChanged(ESenseEvent)} only copies the sample into a {@link SampleQueue} and
+ *     returns, so that slow consumers (e.g. disk writes) never delay the Bluetooth callback thread.
+ *     The consumer thread delivers the samples one by one to a {@link ESenseSensorListener} or in
+ *     blocks to a {@link ESenseSensorBatchListener}, with the same ownership contract as the
+ *     direct callbacks. Exceptions thrown by the target are logged and do not stop the thread.
+ * </p>
+ */
+public class AsyncSensorDispatcher implements ESenseSensorListener {
+    private final String TAG = "AsyncSensorDispatcher";
+
+    private final SampleQueue mQueue;
+    private final ESenseSensorListener mSensorTarget;
+    private final ESenseSensorBatchListener mBatchTarget;
+    private final String mName;
+    private final int mBatchSize;
+
+    private Thread mConsumerThread;
+    private volatile boolean mRunning = false;
+    private volatile long mErrorCount = 0;
+
+    /**
+     * Constructs a dispatcher delivering samples one by one
+     * @param name name of the consumer thread
+     * @param target listener called on the consumer thread
+     * @param queueCapacity capacity of the queue in samples
+     * @param waitStrategy strategy of the consumer when the queue is empty
+     * @param overflowPolicy behavior of the producer when the queue is full
+     */
+    public AsyncSensorDispatcher(String name, ESenseSensorListener target, int queueCapacity,
+                                 WaitStrategy waitStrategy, OverflowPolicy overflowPolicy){
+        this(name, target, null, 1, queueCapacity, waitStrategy, overflowPolicy);
+    }
+
+    /**
+     * Constructs a dispatcher delivering samples in blocks. A block contains the samples available
+     * when the consumer wakes up, up to the given size.
+     * @param name name of the consumer thread
+     * @param target listener called on the consumer thread
+     * @param batchSize maximum number of samples in a block
+     * @param queueCapacity capacity of the queue in samples
+     * @param waitStrategy strategy of the consumer when the queue is empty
+     * @param overflowPolicy behavior of the producer when the queue is full
+     */
+    public AsyncSensorDispatcher(String name, ESenseSensorBatchListener target, int batchSize,
+                                 int queueCapacity, WaitStrategy waitStrategy,
+                                 OverflowPolicy overflowPolicy){
+        this(name, null, target, batchSize, queueCapacity, waitStrategy, overflowPolicy);
+    }
+
+    private AsyncSensorDispatcher(String name, ESenseSensorListener sensorTarget,
+                                  ESenseSensorBatchListener batchTarget, int batchSize,
+                                  int queueCapacity, WaitStrategy waitStrategy,
+                                  OverflowPolicy overflowPolicy){
+        if (sensorTarget == null && batchTarget == null) {
+            throw new IllegalArgumentException("The target listener must not be null");
+        }
+        mName = name;
+        mSensorTarget = sensorTarget;
+        mBatchTarget = batchTarget;
+        mBatchSize = batchSize;
+        mQueue = new SampleQueue(queueCapacity, waitStrategy, overflowPolicy);
+    }
+
+    /**
+     * Starts the consumer thread. A stopped dispatcher cannot be started again.
+     */
+    public synchronized void start(){
+        if (mConsumerThread != null || mQueue.isClosed()) {
+            return;
+        }
+        mRunning = true;
+        mConsumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, mName);
+        mConsumerThread.start();
+    }
+
+    /**
+     * Stops the consumer thread after the samples already queued have been delivered. Samples
+     * published after this call are dropped.
+     */
+    public void stop(){
+        Thread thread;
+        synchronized (this) {
+            thread = mConsumerThread;
+            mConsumerThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        mQueue.close();
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the queue between the producer and the consumer thread, e.g. to read its counters
+     * @return the sample queue
+     */
+    public SampleQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Returns the number of exceptions thrown by the target listener
+     * @return the number of errors
+     */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    @Override
+    public void onSensorChanged(ESenseEvent evt) {
+        if (mRunning) {
+            mQueue.offer(evt);
+        }
+    }
+
+    /**
+     * Loop of the consumer thread
+     */
+    private void consume(){
+        ESenseEvent evt = (mSensorTarget != null) ? ESenseEvent.obtain() : null;
+        SampleBlock block = (mBatchTarget != null) ? new SampleBlock(mBatchSize) : null;
+        int idleCount = 0;
+        try {
+            while (true) {
+                // Read before polling: once stopped, an empty queue stays empty
+                boolean running = mRunning;
+                boolean delivered = (evt != null) ? deliverSample(evt) : deliverBlock(block);
+                if (delivered) {
+                    idleCount = 0;
+                } else if (!running) {
+                    // Stopped and drained
+                    break;
+                } else {
+                    mQueue.waitForSamples(idleCount++);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Consumer thread " + mName + " interrupted");
+        } finally {
+            mRunning = false;
+            if (evt != null) {
+                evt.recycle();
+            }
+        }
+    }
+
+    private boolean deliverSample(ESenseEvent evt){
+        if (!mQueue.poll(evt)) {
+            return false;
+        }
+        try {
+            mSensorTarget.onSensorChanged(evt);
+        } catch (RuntimeException e) {
+            mErrorCount++;
+            Log.e(TAG, "Sensor listener failed on consumer thread " + mName, e);
+        }
+        return true;
+    }
+
+    private boolean deliverBlock(SampleBlock block){
+        if (mQueue.drainTo(block, mBatchSize) == 0) {
+            return false;
+        }
+        try {
+            mBatchTarget.onSensorBatch(block);
+        } catch (RuntimeException e) {
+            mErrorCount++;
+            Log.e(TAG, "Batch listener failed on consumer thread " + mName, e);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,157 @@
+package io.esense.esenselib;
+
+/**
+ * Stage applying a Butterworth low-pass filter to the samples, in place.
+ *
+ * <p>
+ *     The filter is a cascade of second order sections (biquads) designed with the bilinear
+ *     transform, so that the cutoff frequency is attenuated by 3 dB. The accelerometer and the
+ *     gyroscope have their own cutoff, e.g. the bandwidths of the {@link ESenseConfig.AccLPF}
+ *     and {@link ESenseConfig.GyroLPF} options, to derive from unfiltered samples the samples
+ *     the earable would have filtered. A cutoff of 0, or too high for the sampling rate, leaves
+ *     the channels unchanged.
+ * </p>
+ * <p>
+ *     The state of the filter is initialized with the first sample, as if the signal had been
+ *     constant before, to avoid the transient of the gravity at the start. Lost packets are
+ *     ignored, the samples being filtered as a continuous signal.
+ * </p>
+ */
+public class BiquadFilterStage implements SampleStage {
+    private final double mSamplingRate;
+    private final int mSectionCount;
+    // Coefficients of the sections of the accelerometer and gyroscope, null if not filtered
+    private final double[] mAccCoefficients;
+    private final double[] mGyroCoefficients;
+    // State of the sections of each channel
+    private final double[][] mStates = new double[6][];
+    private boolean mPrimed = false;
+    // Values of a channel between the sections
+    private double[] mBuffer;
+
+    /**
+     * Constructs a filter stage with the bandwidths of a configuration
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param accLPF low pass filter of the accelerometer
+     * @param gyroLPF low pass filter of the gyroscope
+     * @param order order of the filter, a positive even number
+     */
+    public BiquadFilterStage(double samplingRate, ESenseConfig.AccLPF accLPF,
+                             ESenseConfig.GyroLPF gyroLPF, int order){
+        this(samplingRate, accLPF.getBandwidth(), gyroLPF.getBandwidth(), order);
+    }
+
+    /**
+     * Constructs a filter stage
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param accCutoff cutoff frequency of the accelerometer in Hz, 0 to disable
+     * @param gyroCutoff cutoff frequency of the gyroscope in Hz, 0 to disable
+     * @param order order of the filter, a positive even number
+     */
+    public BiquadFilterStage(double samplingRate, double accCutoff, double gyroCutoff, int order){
+        FilterDesign.checkSamplingRate(samplingRate);
+        if (order < 2 || order % 2 != 0) {
+            throw new IllegalArgumentException("The order must be a positive even number");
+        }
+        mSamplingRate = samplingRate;
+        mSectionCount = order / 2;
+        mAccCoefficients = design(accCutoff);
+        mGyroCoefficients = design(gyroCutoff);
+        for (int c = 0; c < 6; c++) {
+            mStates[c] = new double[2 * mSectionCount];
+        }
+    }
+
+    /**
+     * Computes the coefficients b0, b1, b2, a1, a2 of each section
+     */
+    private double[] design(double cutoff){
+        if (!FilterDesign.isEnabled(mSamplingRate, cutoff)) {
+            return null;
+        }
+        double[] coefficients = new double[5 * mSectionCount];
+        double w0 = 2 * Math.PI * cutoff / mSamplingRate;
+        double cos = Math.cos(w0);
+        int order = 2 * mSectionCount;
+        for (int s = 0; s < mSectionCount; s++) {
+            // Quality factor of a pair of poles of the Butterworth filter
+            double q = 1 / (2 * Math.sin(Math.PI * (2 * s + 1) / (2 * order)));
+            double alpha = Math.sin(w0) / (2 * q);
+            double a0 = 1 + alpha;
+            coefficients[5 * s] = (1 - cos) / 2 / a0;
+            coefficients[5 * s + 1] = (1 - cos) / a0;
+            coefficients[5 * s + 2] = (1 - cos) / 2 / a0;
+            coefficients[5 * s + 3] = -2 * cos / a0;
+            coefficients[5 * s + 4] = (1 - alpha) / a0;
+        }
+        return coefficients;
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        mBuffer = new double[maxBlockSize];
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        int size = block.getSize();
+        if (size == 0) {
+            return;
+        }
+        for (int c = 0; c < 6; c++) {
+            double[] coefficients = (c < 3) ? mAccCoefficients : mGyroCoefficients;
+            if (coefficients != null) {
+                filter(coefficients, mStates[c], FilterDesign.getChannel(block, c), size);
+            }
+        }
+        mPrimed = true;
+        output.emit(block);
+    }
+
+    private void filter(double[] coefficients, double[] state, short[] values, int size){
+        if (!mPrimed) {
+            // Steady state of a constant input, with a gain of 1
+            double x = values[0];
+            for (int s = 0; s < mSectionCount; s++) {
+                double b1 = coefficients[5 * s + 1];
+                double b2 = coefficients[5 * s + 2];
+                double a1 = coefficients[5 * s + 3];
+                double a2 = coefficients[5 * s + 4];
+                state[2 * s + 1] = (b2 - a2) * x;
+                state[2 * s] = (b1 - a1) * x + state[2 * s + 1];
+            }
+        }
+        double[] buffer = mBuffer;
+        for (int i = 0; i < size; i++) {
+            buffer[i] = values[i];
+        }
+        for (int s = 0; s < mSectionCount; s++) {
+            double b0 = coefficients[5 * s];
+            double b1 = coefficients[5 * s + 1];
+            double b2 = coefficients[5 * s + 2];
+            double a1 = coefficients[5 * s + 3];
+            double a2 = coefficients[5 * s + 4];
+            double z1 = state[2 * s];
+            double z2 = state[2 * s + 1];
+            for (int i = 0; i < size; i++) {
+                // Transposed direct form II
+                double x = buffer[i];
+                double y = b0 * x + z1;
+                z1 = b1 * x - a1 * y + z2;
+                z2 = b2 * x - a2 * y;
+                buffer[i] = y;
+            }
+            state[2 * s] = z1;
+            state[2 * s + 1] = z2;
+        }
+        for (int i = 0; i < size; i++) {
+            values[i] = FilterDesign.toShort(buffer[i]);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mPrimed = false;
+    }
+}
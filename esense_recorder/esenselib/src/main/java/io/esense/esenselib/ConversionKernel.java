@@ -0,0 +1,140 @@
+package io.esense.esenselib;
+
+/**
+ * Immutable conversion of ADC sensor values to physical units for a sensor configuration.
+ *
+ * <p>
+ *     The sensitivity factors are resolved once when the kernel is created, and the conversions
+ *     write into arrays supplied by the caller, so that converting a sample or a block of samples
+ *     does not allocate. The values are divided by the sensitivity factors, as in
+ *     {@link ESenseEvent#convertAccToG(ESenseConfig)}, so that the results are bit-identical.
+ *     Use {@link ESenseConfig#getConversionKernel()} to get the kernel of a configuration.
+ * </p>
+ */
+public final class ConversionKernel {
+    private final double accSensitivityFactor;
+    private final double gyroSensitivityFactor;
+
+    /**
+     * Constructs a kernel for the current ranges of a configuration
+     * @param config device configuration
+     */
+    public ConversionKernel(ESenseConfig config){
+        this(config.getAccSensitivityFactor(), config.getGyroSensitivityFactor());
+    }
+
+    /**
+     * Constructs a kernel with the given sensitivity factors
+     * @param accSensitivityFactor accelerometer ADC value for 1 g
+     * @param gyroSensitivityFactor gyroscope ADC value for 1 deg/s
+     */
+    public ConversionKernel(double accSensitivityFactor, double gyroSensitivityFactor){
+        this.accSensitivityFactor = accSensitivityFactor;
+        this.gyroSensitivityFactor = gyroSensitivityFactor;
+    }
+
+    public double getAccSensitivityFactor() {
+        return accSensitivityFactor;
+    }
+
+    public double getGyroSensitivityFactor() {
+        return gyroSensitivityFactor;
+    }
+
+    /**
+     * Converts ADC accelerometer values to acceleration in g
+     * @param adc ADC values on X, Y and Z axis
+     * @param dest 3-elements array receiving the acceleration in g
+     * @return the destination array
+     */
+    public double[] convertAcc(short[] adc, double[] dest){
+        double factor = accSensitivityFactor;
+        dest[0] = adc[0] / factor;
+        dest[1] = adc[1] / factor;
+        dest[2] = adc[2] / factor;
+        return dest;
+    }
+
+    /**
+     * Converts ADC gyroscope values to rotational speed in deg/s
+     * @param adc ADC values on X, Y and Z axis
+     * @param dest 3-elements array receiving the rotational speed in deg/s
+     * @return the destination array
+     */
+    public double[] convertGyro(short[] adc, double[] dest){
+        double factor = gyroSensitivityFactor;
+        dest[0] = adc[0] / factor;
+        dest[1] = adc[1] / factor;
+        dest[2] = adc[2] / factor;
+        return dest;
+    }
+
+    /**
+     * Converts the samples of a block to physical units in one pass
+     * @param block block of samples
+     * @param acc 3 columns (X, Y and Z axis) receiving the acceleration in g, each at least as
+     *            long as the block size
+     * @param gyro 3 columns (X, Y and Z axis) receiving the rotational speed in deg/s, each at
+     *             least as long as the block size
+     */
+    public void convertBlock(SampleBlock block, double[][] acc, double[][] gyro){
+        int size = block.getSize();
+        short[] accX = block.getAccX();
+        short[] accY = block.getAccY();
+        short[] accZ = block.getAccZ();
+        short[] gyroX = block.getGyroX();
+        short[] gyroY = block.getGyroY();
+        short[] gyroZ = block.getGyroZ();
+        double[] destAccX = acc[0];
+        double[] destAccY = acc[1];
+        double[] destAccZ = acc[2];
+        double[] destGyroX = gyro[0];
+        double[] destGyroY = gyro[1];
+        double[] destGyroZ = gyro[2];
+        double accFactor = accSensitivityFactor;
+        double gyroFactor = gyroSensitivityFactor;
+        for (int i = 0; i < size; i++) {
+            destAccX[i] = accX[i] / accFactor;
+            destAccY[i] = accY[i] / accFactor;
+            destAccZ[i] = accZ[i] / accFactor;
+            destGyroX[i] = gyroX[i] / gyroFactor;
+            destGyroY[i] = gyroY[i] / gyroFactor;
+            destGyroZ[i] = gyroZ[i] / gyroFactor;
+        }
+    }
+
+    /**
+     * Converts the samples of a block to physical units in one pass, in single precision. The
+     * values are the double precision values rounded to float.
+     * @param block block of samples
+     * @param acc 3 columns (X, Y and Z axis) receiving the acceleration in g, each at least as
+     *            long as the block size
+     * @param gyro 3 columns (X, Y and Z axis) receiving the rotational speed in deg/s, each at
+     *             least as long as the block size
+     */
+    public void convertBlock(SampleBlock block, float[][] acc, float[][] gyro){
+        int size = block.getSize();
+        short[] accX = block.getAccX();
+        short[] accY = block.getAccY();
+        short[] accZ = block.getAccZ();
+        short[] gyroX = block.getGyroX();
+        short[] gyroY = block.getGyroY();
+        short[] gyroZ = block.getGyroZ();
+        float[] destAccX = acc[0];
+        float[] destAccY = acc[1];
+        float[] destAccZ = acc[2];
+        float[] destGyroX = gyro[0];
+        float[] destGyroY = gyro[1];
+        float[] destGyroZ = gyro[2];
+        double accFactor = accSensitivityFactor;
+        double gyroFactor = gyroSensitivityFactor;
+        for (int i = 0; i < size; i++) {
+            destAccX[i] = (float) (accX[i] / accFactor);
+            destAccY[i] = (float) (accY[i] / accFactor);
+            destAccZ[i] = (float) (accZ[i] / accFactor);
+            destGyroX[i] = (float) (gyroX[i] / gyroFactor);
+            destGyroY[i] = (float) (gyroY[i] / gyroFactor);
+            destGyroZ[i] = (float) (gyroZ[i] / gyroFactor);
+        }
+    }
+}
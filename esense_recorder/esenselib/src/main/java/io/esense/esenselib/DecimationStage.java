@@ -0,0 +1,102 @@
+package io.esense.esenselib;
+
+/**
+ * Stage reducing the sampling rate by an integer factor.
+ *
+ * <p>
+ *     Each output sample is the mean of <code>factor</code> consecutive input samples (a box
+ *     filter, which attenuates the frequencies that would alias), rounded to the nearest ADC
+ *     value. Its sample time and timestamp are the middle of the averaged samples, its packet
+ *     index is the one of the last averaged sample and its lost packets are the sum of the lost
+ *     packets of the averaged samples. Groups may span several input blocks.
+ * </p>
+ */
+public class DecimationStage implements SampleStage {
+    private final int mFactor;
+    private SampleBlock mOutput;
+    private final ESenseEvent mSample = new ESenseEvent();
+
+    // Group being averaged
+    private int mCount = 0;
+    private final long[] mSums = new long[6];
+    private long mFirstSampleTime;
+    private long mFirstTimestamp;
+    private int mLostPackets;
+
+    /**
+     * Constructs a decimation stage
+     * @param factor number of input samples per output sample
+     */
+    public DecimationStage(int factor){
+        if (factor < 1) {
+            throw new IllegalArgumentException("The decimation factor must be positive");
+        }
+        mFactor = factor;
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        int maxSize = maxBlockSize / mFactor + 1;
+        mOutput = new SampleBlock(maxSize);
+        return maxSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        mOutput.clear();
+        short[] accX = block.getAccX();
+        short[] accY = block.getAccY();
+        short[] accZ = block.getAccZ();
+        short[] gyroX = block.getGyroX();
+        short[] gyroY = block.getGyroY();
+        short[] gyroZ = block.getGyroZ();
+        long[] sampleTimes = block.getSampleTimes();
+        long[] timestamps = block.getTimestamps();
+        int[] lostPackets = block.getLostPackets();
+        int size = block.getSize();
+        for (int i = 0; i < size; i++) {
+            if (mCount == 0) {
+                mFirstSampleTime = sampleTimes[i];
+                mFirstTimestamp = timestamps[i];
+                mLostPackets = 0;
+            }
+            mSums[0] += accX[i];
+            mSums[1] += accY[i];
+            mSums[2] += accZ[i];
+            mSums[3] += gyroX[i];
+            mSums[4] += gyroY[i];
+            mSums[5] += gyroZ[i];
+            mLostPackets += lostPackets[i];
+            if (++mCount == mFactor) {
+                short[] acc = mSample.getAccel();
+                short[] gyro = mSample.getGyro();
+                for (int axis = 0; axis < 3; axis++) {
+                    acc[axis] = mean(mSums[axis]);
+                    gyro[axis] = mean(mSums[axis + 3]);
+                }
+                mSample.setSampleTimeNanos(
+                        mFirstSampleTime + (sampleTimes[i] - mFirstSampleTime) / 2);
+                mSample.setTimestamp(mFirstTimestamp + (timestamps[i] - mFirstTimestamp) / 2);
+                mSample.setPacketIndex(block.getPacketIndexes()[i]);
+                mSample.setLostPackets(mLostPackets);
+                mOutput.add(mSample);
+                reset();
+            }
+        }
+        if (mOutput.getSize() > 0) {
+            output.emit(mOutput);
+        }
+    }
+
+    @Override
+    public void reset() {
+        mCount = 0;
+        for (int c = 0; c < 6; c++) {
+            mSums[c] = 0;
+        }
+    }
+
+    private short mean(long sum){
+        return (short) Math.round((double) sum / mFactor);
+    }
+}
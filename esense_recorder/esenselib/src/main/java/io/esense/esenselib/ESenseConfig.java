@@ -81,6 +81,32 @@ public class ESenseConfig {
             }
             return "";
         }
+
+        /**
+         * Returns the bandwidth of the filter
+         * @return the bandwidth in Hz, or 0 if the filter is disabled
+         */
+        public double getBandwidth() {
+            switch (this){
+                case BW_250:
+                    return 250;
+                case BW_184:
+                    return 184;
+                case BW_92:
+                    return 92;
+                case BW_41:
+                    return 41;
+                case BW_20:
+                    return 20;
+                case BW_10:
+                    return 10;
+                case BW_5:
+                    return 5;
+                case BW_3600:
+                    return 3600;
+            }
+            return 0;
+        }
     }
 
     /**
@@ -111,12 +137,37 @@ public class ESenseConfig {
             }
             return "";
         }
+
+        /**
+         * Returns the bandwidth of the filter
+         * @return the bandwidth in Hz, or 0 if the filter is disabled
+         */
+        public double getBandwidth() {
+            switch (this){
+                case BW_460:
+                    return 460;
+                case BW_184:
+                    return 184;
+                case BW_92:
+                    return 92;
+                case BW_41:
+                    return 41;
+                case BW_20:
+                    return 20;
+                case BW_10:
+                    return 10;
+                case BW_5:
+                    return 5;
+            }
+            return 0;
+        }
     }
 
     private GyroRange gyroRange;
     private AccRange accRange;
     private GyroLPF gyroLPF;
     private AccLPF accLPF;
+    private ConversionKernel conversionKernel;  //cached, cleared when a range changes
 
     /**
      * Constructs a configuration object with the specified ranges and low pass filter values
@@ -285,12 +336,27 @@ public class ESenseConfig {
         return 1f;
     }
 
+    /**
+     * Returns the conversion of ADC values to physical units for the current ranges. The kernel
+     * is created once and kept until a range is changed.
+     * @return the conversion kernel
+     */
+    public ConversionKernel getConversionKernel(){
+        ConversionKernel kernel = conversionKernel;
+        if (kernel == null) {
+            kernel = new ConversionKernel(this);
+            conversionKernel = kernel;
+        }
+        return kernel;
+    }
+
     public GyroRange getGyroRange() {
         return gyroRange;
     }
 
     public void setGyroRange(GyroRange gyroRange) {
         this.gyroRange = gyroRange;
+        conversionKernel = null;
     }
 
     public AccRange getAccRange() {
@@ -299,6 +365,7 @@ public class ESenseConfig {
 
     public void setAccRange(AccRange accRange) {
         this.accRange = accRange;
+        conversionKernel = null;
     }
 
     public GyroLPF getGyroLPF() {
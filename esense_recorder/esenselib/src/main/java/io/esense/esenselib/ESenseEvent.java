@@ -1,11 +1,30 @@
 package io.esense.esenselib;
 
+/**
+ * Sensor sample received from the device.
+ *
+ * <p>
+ *     Events delivered by the {@link ESenseManager} come from a recycle pool and are only valid
+ *     during {@link ESenseSensorListener#onSensorChanged(ESenseEvent)}. Use {@link #obtain(ESenseEvent)}
+ *     to keep a copy, and {@link #recycle()} it when it is no longer used.
+ * </p>
+ */
 public class ESenseEvent {
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object sPoolSync = new Object();
+    private static ESenseEvent sPool;
+    private static int sPoolSize = 0;
+
     private long timestamp;  //phone's timestamp
+    private long sampleTimeNanos; //reconstructed sample time in the System.nanoTime() time base
     private int packetIndex;
+    private int lostPackets; //number of packets lost just before this one
     private short[] accel;   //3-elements array with X, Y and Z axis for accelerometer
     private short[] gyro;    //3-elements array with X, Y and Z axis for gyroscope
 
+    private ESenseEvent next;   //next event in the recycle pool
+    private boolean recycled;   //true while the event is in the recycle pool
+
     /**
      * Constructs an empty event
      */
@@ -23,6 +42,75 @@ public class ESenseEvent {
         this.gyro = gyro;
     }
 
+    /**
+     * Returns an event from the recycle pool, or a new event if the pool is empty. The returned
+     * event is owned by the caller until {@link #recycle()} is called.
+     * @return an event with 3-elements accelerometer and gyroscope arrays
+     */
+    public static ESenseEvent obtain(){
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                ESenseEvent evt = sPool;
+                sPool = evt.next;
+                evt.next = null;
+                evt.recycled = false;
+                sPoolSize--;
+                return evt;
+            }
+        }
+        return new ESenseEvent();
+    }
+
+    /**
+     * Returns an event from the recycle pool initialized with a copy of the given event
+     * @param orig event to copy
+     * @return a copy of the event, owned by the caller until {@link #recycle()} is called
+     */
+    public static ESenseEvent obtain(ESenseEvent orig){
+        ESenseEvent evt = obtain();
+        evt.copyFrom(orig);
+        return evt;
+    }
+
+    /**
+     * Returns this event to the recycle pool. The event must not be accessed after this call.
+     * @throws IllegalStateException if the event has already been recycled
+     */
+    public void recycle(){
+        if (recycled) {
+            throw new IllegalStateException("This event has already been recycled");
+        }
+        if (accel == null || accel.length != 3 || gyro == null || gyro.length != 3) {
+            // Events with foreign arrays are left to the garbage collector
+            return;
+        }
+        timestamp = 0;
+        sampleTimeNanos = 0;
+        packetIndex = 0;
+        lostPackets = 0;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                recycled = true;
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Copies the values of another event into this event without allocation
+     * @param other event to copy
+     */
+    public void copyFrom(ESenseEvent other){
+        timestamp = other.timestamp;
+        sampleTimeNanos = other.sampleTimeNanos;
+        packetIndex = other.packetIndex;
+        lostPackets = other.lostPackets;
+        System.arraycopy(other.accel, 0, accel, 0, 3);
+        System.arraycopy(other.gyro, 0, gyro, 0, 3);
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -31,6 +119,20 @@ public class ESenseEvent {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Returns the sample time reconstructed from the packet sequence and the sampling rate.
+     * Unlike the arrival timestamp, it is evenly spaced, increasing and corrected for the clock
+     * drift of the device.
+     * @return the sample time in nanoseconds, in the {@link System#nanoTime()} time base
+     */
+    public long getSampleTimeNanos() {
+        return sampleTimeNanos;
+    }
+
+    public void setSampleTimeNanos(long sampleTimeNanos) {
+        this.sampleTimeNanos = sampleTimeNanos;
+    }
+
     public int getPacketIndex() {
         return packetIndex;
     }
@@ -39,6 +141,19 @@ public class ESenseEvent {
         this.packetIndex = packetIndex;
     }
 
+    /**
+     * Returns the number of packets lost between the previous event and this event. A positive
+     * value marks a gap in the sample stream.
+     * @return the number of lost packets
+     */
+    public int getLostPackets() {
+        return lostPackets;
+    }
+
+    public void setLostPackets(int lostPackets) {
+        this.lostPackets = lostPackets;
+    }
+
     public short[] getAccel() {
         return accel;
     }
@@ -61,12 +176,17 @@ public class ESenseEvent {
      * @return acceleration in g on X, Y and Z axis
      */
     public double[] convertAccToG(ESenseConfig config){
-        double[] data = new double[3];
-        for (int i = 0; i < 3; i++) {
-            data[i] = (accel[i] / config.getAccSensitivityFactor());
-        }
+        return convertAccToG(config, new double[3]);
+    }
 
-        return(data);
+    /**
+     * Converts current ADC accelerometer values to acceleration in g without allocation
+     * @param config device configuration
+     * @param dest 3-elements array receiving the acceleration in g on X, Y and Z axis
+     * @return the destination array
+     */
+    public double[] convertAccToG(ESenseConfig config, double[] dest){
+        return config.getConversionKernel().convertAcc(accel, dest);
     }
 
     /**
@@ -75,11 +195,16 @@ public class ESenseEvent {
      * @return rotational speed in deg/s on X, Y and Z axis
      */
     public double[] convertGyroToDegPerSecond(ESenseConfig config){
-        double[] data = new double[3];
-        for (int i = 0; i < 3; i++) {
-            data[i] = (gyro[i] / config.getGyroSensitivityFactor());
-        }
+        return convertGyroToDegPerSecond(config, new double[3]);
+    }
 
-        return(data);
+    /**
+     * Converts current ADC gyroscope values to rotational speed in degrees/second without allocation
+     * @param config device configuration
+     * @param dest 3-elements array receiving the rotational speed in deg/s on X, Y and Z axis
+     * @return the destination array
+     */
+    public double[] convertGyroToDegPerSecond(ESenseConfig config, double[] dest){
+        return config.getConversionKernel().convertGyro(gyro, dest);
     }
 }
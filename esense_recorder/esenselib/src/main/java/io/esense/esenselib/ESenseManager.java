@@ -10,6 +10,7 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.util.Log;
+import android.util.SparseArray;
 
 import java.nio.charset.Charset;
 import java.util.HashMap;
@@ -34,6 +35,9 @@ public class ESenseManager {
     private ESenseConnectionListener mConnectionListener;
     private ESenseEventListener mEventListener;
     private ESenseSensorListener mSensorListener;
+    private final PacketSequenceTracker mSequenceTracker = new PacketSequenceTracker();
+    // Reset with the actual sampling rate when the sensor listener is registered
+    private final TimestampReconstructor mTimestampReconstructor = new TimestampReconstructor(100);
     private BluetoothDevice mDevice;
     private BluetoothManager mBluetoothManager;
     private ESenseBGattCallback mGattCallback;
@@ -286,6 +290,7 @@ public class ESenseManager {
     /**
      * Registers a sensor listener and starts sensor sampling on the connected device.
      * The event {@link ESenseSensorListener#onSensorChanged(ESenseEvent)} is fired every time a new sample is available from the connected device.
+     * To receive the samples in blocks, register a {@link SampleBatcher} as listener.
      * @param listener sensor listener
      * @param samplingRate sensor sampling rate in Hz (min: 1 - max: 100)
      * @return {@link SamplingStatus#STARTED} if the sampling was started successfully,
@@ -311,11 +316,31 @@ public class ESenseManager {
         c.setValue(bytes);
         mGatt.writeCharacteristic(c);
 
+        mSequenceTracker.reset(samplingRate);
+        mTimestampReconstructor.reset(samplingRate);
         mSensorListener = listener;
         enableNotification(SENSOR_CHARACTERISTIC,true);
         return SamplingStatus.STARTED;
     }
 
+    /**
+     * Returns the tracker of the packet index of sensor notifications, with the counters of lost,
+     * duplicated and out-of-order packets since the sensor listener was registered.
+     * @return the packet sequence tracker
+     */
+    public PacketSequenceTracker getSequenceTracker() {
+        return mSequenceTracker;
+    }
+
+    /**
+     * Returns the reconstructor of the sample times, with the estimated clock drift of the device
+     * and the jitter of the notifications since the sensor listener was registered.
+     * @return the timestamp reconstructor
+     */
+    public TimestampReconstructor getTimestampReconstructor() {
+        return mTimestampReconstructor;
+    }
+
     /**
      * Unregisters a sensor listener and stops sensor sampling on the connected device
      */
@@ -433,10 +458,138 @@ public class ESenseManager {
         }).start();
     }
 
+    /**
+     * Handler of the GATT callbacks of one characteristic. The default implementation ignores
+     * all callbacks.
+     */
+    private static abstract class CharacteristicHandler {
+        void onRead(BluetoothGattCharacteristic c) {}
+        void onWrite(BluetoothGattCharacteristic c) {}
+        void onChanged(BluetoothGattCharacteristic c) {}
+    }
+
     /**
      * Collection of GATT callbacks
      */
     private class ESenseBGattCallback extends BluetoothGattCallback{
+        // Handlers of the known characteristics, by UUID
+        private final Map<UUID, CharacteristicHandler> mHandlersByUuid = new HashMap<>();
+        // Handler of the characteristics that are not used by the library
+        private final CharacteristicHandler mUnknownHandler = new CharacteristicHandler() {};
+        // Handlers of the discovered characteristics, by instance ID. Resolved once when the
+        // services are discovered, so that callbacks do not work on UUID strings.
+        private volatile SparseArray<CharacteristicHandler> mHandlers = new SparseArray<>();
+
+        ESenseBGattCallback(){
+            mHandlersByUuid.put(UUID.fromString(DEVICE_NAME_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onRead(BluetoothGattCharacteristic c) {
+                    if (mEventListener != null) {
+                        StringBuilder deviceName = new StringBuilder();
+                        for (byte b : c.getValue()) {
+                            deviceName.append((char) b);
+                        }
+
+                        mEventListener.onDeviceNameRead(deviceName.toString());
+                    }
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(ADV_CONN_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onRead(BluetoothGattCharacteristic c) {
+                    if (mEventListener != null) {
+                        byte[] b = c.getValue();
+                        if (checkCheckSum(b, 1)) {
+                            mEventListener.onAdvertisementAndConnectionIntervalRead(
+                                    (int) (((b[3] & 0xff) * 256 + (b[4] & 0xff)) * 0.625),
+                                    (int) (((b[5] & 0xff) * 256 + (b[6] & 0xff)) * 0.625),
+                                    (int) (((b[7] & 0xff) * 256 + (b[8] & 0xff)) * 1.25),
+                                    (int) (((b[9] & 0xff) * 256 + (b[10] & 0xff)) * 1.25));
+                        }
+                    }
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(BATTERY_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onRead(BluetoothGattCharacteristic c) {
+                    if (mEventListener != null) {
+                        byte[] bytes = c.getValue();
+                        if (checkCheckSum(bytes, 1)) {
+                            mEventListener.onBatteryRead(((bytes[3] & 0xff) * 256 + (bytes[4] & 0xff)) / 1000.0);
+                        }
+                    }
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(SENSOR_CONFIG_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onRead(BluetoothGattCharacteristic c) {
+                    if (mEventListener != null) {
+                        byte[] bytes = c.getValue();
+                        if (checkCheckSum(bytes, 1)) {
+                            ESenseConfig config = new ESenseConfig(bytes);
+                            mEventListener.onSensorConfigRead(config);
+                        }
+                    }
+                }
+
+                @Override
+                void onWrite(BluetoothGattCharacteristic c) {
+                    if (mEventListener != null) {
+                        byte[] bytes = c.getValue();
+                        if (checkCheckSum(bytes, 1)) {
+                            ESenseConfig config = new ESenseConfig(bytes);
+                            mEventListener.onSensorConfigChanged(config);
+                        }
+                    }
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(ACCELEROMETER_OFFSET_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onRead(BluetoothGattCharacteristic c) {
+                    if (mEventListener != null) {
+                        byte[] bytes = c.getValue();
+                        if (checkCheckSum(bytes, 1)) {
+                            // Format is in +-16G in which 1g = 2048
+                            int offsetX = ((int) (bytes[9]) << 8) | (bytes[10] & 0xff);
+                            int offsetY = ((int) (bytes[11]) << 8) | (bytes[12] & 0xff);
+                            int offsetZ = ((int) (bytes[13]) << 8) | (bytes[14] & 0xff);
+                            mEventListener.onAccelerometerOffsetRead(offsetX, offsetY, offsetZ);
+
+                        }
+                    }
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(NAME_WRITE_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onWrite(BluetoothGattCharacteristic c) {
+                    StringBuilder deviceName = new StringBuilder();
+                    for (byte b : c.getValue()) {
+                        deviceName.append((char) b);
+                    }
+
+                    // Update the internal name if the write operation was successful
+                    mDeviceName = deviceName.toString();
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(SENSOR_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onChanged(BluetoothGattCharacteristic c) {
+                    onSensorNotification(c);
+                }
+            });
+            mHandlersByUuid.put(UUID.fromString(BUTTON_CHARACTERISTIC), new CharacteristicHandler() {
+                @Override
+                void onChanged(BluetoothGattCharacteristic c) {
+                    if(mEventListener != null) {
+                        byte[] bytes = c.getValue();
+                        if(checkCheckSum(bytes,1)) {
+                            int value = bytes[3];
+                            mEventListener.onButtonEventChanged(value == 1);
+                        }
+                    }
+                }
+            });
+        }
 
         /**
          * Collects UUID of characteristics
@@ -447,6 +600,15 @@ public class ESenseManager {
             return characteristic.getUuid().toString().toLowerCase();
         }
 
+        /**
+         * Returns the handler of a characteristic
+         * @param c Bluetooth characteristic
+         * @return the handler resolved at service discovery, or the unknown handler
+         */
+        private CharacteristicHandler getHandler(BluetoothGattCharacteristic c){
+            return mHandlers.get(c.getInstanceId(), mUnknownHandler);
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
@@ -454,6 +616,7 @@ public class ESenseManager {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 gatt.close();
                 mCharacteristicMap.clear();
+                mHandlers = new SparseArray<>();
                 if(mConnectionListener != null) {
                     mConnectionListener.onDisconnected(ESenseManager.this);
                 }
@@ -463,11 +626,15 @@ public class ESenseManager {
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            SparseArray<CharacteristicHandler> handlers = new SparseArray<>();
             for (BluetoothGattService s : gatt.getServices()) {
                 for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
                     mCharacteristicMap.put(getKey(c), c);
+                    CharacteristicHandler handler = mHandlersByUuid.get(c.getUuid());
+                    handlers.put(c.getInstanceId(), (handler != null) ? handler : mUnknownHandler);
                 }
             }
+            mHandlers = handlers;
 
             // Fire onConnected event after all the services have been discovered
             if(mConnectionListener != null) {
@@ -481,92 +648,14 @@ public class ESenseManager {
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status) {
             if(status == BluetoothGatt.GATT_SUCCESS) {
-                String key = getKey(c);
-                switch (key) {
-                    case DEVICE_NAME_CHARACTERISTIC:
-                        if (mEventListener != null) {
-                            StringBuilder deviceName = new StringBuilder();
-                            for (byte b : c.getValue()) {
-                                deviceName.append((char) b);
-                            }
-
-                            mEventListener.onDeviceNameRead(deviceName.toString());
-                        }
-                        break;
-
-                    case ADV_CONN_CHARACTERISTIC:
-                        if (mEventListener != null) {
-                            byte[] b = c.getValue();
-                            if (checkCheckSum(b, 1)) {
-                                mEventListener.onAdvertisementAndConnectionIntervalRead(
-                                        (int) (((b[3] & 0xff) * 256 + (b[4] & 0xff)) * 0.625),
-                                        (int) (((b[5] & 0xff) * 256 + (b[6] & 0xff)) * 0.625),
-                                        (int) (((b[7] & 0xff) * 256 + (b[8] & 0xff)) * 1.25),
-                                        (int) (((b[9] & 0xff) * 256 + (b[10] & 0xff)) * 1.25));
-                            }
-                        }
-                        break;
-
-                    case BATTERY_CHARACTERISTIC:
-                        if (mEventListener != null) {
-                            byte[] bytes = c.getValue();
-                            if (checkCheckSum(bytes, 1)) {
-                                mEventListener.onBatteryRead(((bytes[3] & 0xff) * 256 + (bytes[4] & 0xff)) / 1000.0);
-                            }
-                        }
-                        break;
-
-                    case SENSOR_CONFIG_CHARACTERISTIC:
-                        if (mEventListener != null) {
-                            byte[] bytes = c.getValue();
-                            if (checkCheckSum(bytes, 1)) {
-                                ESenseConfig config = new ESenseConfig(bytes);
-                                mEventListener.onSensorConfigRead(config);
-                            }
-                        }
-                        break;
-
-                    case ACCELEROMETER_OFFSET_CHARACTERISTIC:
-                        if (mEventListener != null) {
-                            byte[] bytes = c.getValue();
-                            if (checkCheckSum(bytes, 1)) {
-                                // Format is in +-16G in which 1g = 2048
-                                int offsetX = ((int) (bytes[9]) << 8) | (bytes[10] & 0xff);
-                                int offsetY = ((int) (bytes[11]) << 8) | (bytes[12] & 0xff);
-                                int offsetZ = ((int) (bytes[13]) << 8) | (bytes[14] & 0xff);
-                                mEventListener.onAccelerometerOffsetRead(offsetX, offsetY, offsetZ);
-
-                            }
-                        }
-                        break;
-                }
+                getHandler(c).onRead(c);
             }
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status){
             if(status == BluetoothGatt.GATT_SUCCESS) {
-                String key = getKey(c);
-                switch (key) {
-                    case NAME_WRITE_CHARACTERISTIC:
-                        StringBuilder deviceName = new StringBuilder();
-                        for (byte b : c.getValue()) {
-                            deviceName.append((char) b);
-                        }
-
-                        // Update the internal name if the write operation was successful
-                        mDeviceName = deviceName.toString();
-                        break;
-                    case SENSOR_CONFIG_CHARACTERISTIC:
-                        if (mEventListener != null) {
-                            byte[] bytes = c.getValue();
-                            if (checkCheckSum(bytes, 1)) {
-                                ESenseConfig config = new ESenseConfig(bytes);
-                                mEventListener.onSensorConfigChanged(config);
-                            }
-                        }
-                        break;
-                }
+                getHandler(c).onWrite(c);
             }
         }
 
@@ -575,37 +664,48 @@ public class ESenseManager {
          */
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic c){
-            String key = getKey(c);
-            switch(key){
-                case SENSOR_CHARACTERISTIC:
-                    if(mSensorListener != null){
-                        byte[] bytes = c.getValue();
-                        if(checkCheckSum(bytes, 2)) {
-                            short[] acc = new short[3];
-                            short[] gyro = new short[3];
-                            for (int i = 0; i < 3; i++) {
-                                acc[i] = (short) ((bytes[i*2+10] * 256) + bytes[i*2+11]);
-                                gyro[i] = (short) ((bytes[i*2+4] * 256) + bytes[i*2+5]);
-                            }
-
-                            ESenseEvent eSenseEvent = new ESenseEvent(acc, gyro);
-                            eSenseEvent.setTimestamp(System.currentTimeMillis());
-                            eSenseEvent.setPacketIndex(bytes[1] < 0 ? bytes[1] + 256 : bytes[1]);
-                            mSensorListener.onSensorChanged(eSenseEvent);
-                        }
+            getHandler(c).onChanged(c);
+        }
+
+        /**
+         * Decodes a sensor notification and delivers the sample to the sensor listener
+         * @param c sensor characteristic
+         */
+        private void onSensorNotification(BluetoothGattCharacteristic c){
+            ESenseSensorListener listener = mSensorListener;
+            if(listener != null){
+                byte[] bytes = c.getValue();
+                if(checkCheckSum(bytes, 2)) {
+                    long arrivalNanos = System.nanoTime();
+                    long arrival = System.currentTimeMillis();
+                    int packetIndex = bytes[1] & 0xff;
+                    PacketSequenceTracker.Result result = mSequenceTracker.track(packetIndex, arrival);
+                    if(result == PacketSequenceTracker.Result.DUPLICATE ||
+                            result == PacketSequenceTracker.Result.OUT_OF_ORDER){
+                        // Only counted, the stream stays in order
+                        return;
+                    }
+                    ESenseEvent eSenseEvent = ESenseEvent.obtain();
+                    short[] acc = eSenseEvent.getAccel();
+                    short[] gyro = eSenseEvent.getGyro();
+                    for (int i = 0; i < 3; i++) {
+                        acc[i] = (short) ((bytes[i*2+10] * 256) + bytes[i*2+11]);
+                        gyro[i] = (short) ((bytes[i*2+4] * 256) + bytes[i*2+5]);
                     }
-                    break;
 
-                case BUTTON_CHARACTERISTIC:
-                    if(mEventListener != null) {
-                        byte[] bytes = c.getValue();
-                        if(checkCheckSum(bytes,1)) {
-                            int value = bytes[3];
-                            mEventListener.onButtonEventChanged(value == 1);
-                        }
+                    eSenseEvent.setTimestamp(arrival);
+                    eSenseEvent.setSampleTimeNanos(mTimestampReconstructor.update(
+                            mSequenceTracker.getLastSequence(), arrivalNanos));
+                    eSenseEvent.setPacketIndex(packetIndex);
+                    eSenseEvent.setLostPackets(mSequenceTracker.getLastLostPackets());
+                    try {
+                        listener.onSensorChanged(eSenseEvent);
+                    } finally {
+                        // The event is only valid during the callback
+                        eSenseEvent.recycle();
                     }
-                    break;
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
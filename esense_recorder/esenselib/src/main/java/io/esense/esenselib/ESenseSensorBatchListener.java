@@ -0,0 +1,15 @@
+package io.esense.esenselib;
+
+public interface ESenseSensorBatchListener {
+    /**
+     * Called when a block of consecutive sensor samples is available.
+     *
+     * <p>
+     *     The block is owned by the caller and is cleared and refilled as soon as this method
+     *     returns, so the listener must neither keep a reference to it nor modify it. Values that
+     *     are needed after returning must be copied.
+     * </p>
+     * @param block block containing the sensor samples received
+     */
+    void onSensorBatch(SampleBlock block);
+}
@@ -2,7 +2,14 @@ package io.esense.esenselib;
 
 public interface ESenseSensorListener {
     /**
-     * Called when there is new sensor data available
+     * Called when there is new sensor data available.
+     *
+     * <p>
+     *     The event is owned by the caller and is recycled as soon as this method returns, so the
+     *     listener must neither keep a reference to it nor recycle it. A listener that needs the
+     *     sample after returning must copy it, e.g. with {@link ESenseEvent#obtain(ESenseEvent)},
+     *     and recycle the copy when done.
+     * </p>
      * @param evt object containing the sensor samples received
      */
     void onSensorChanged(ESenseEvent evt);
@@ -0,0 +1,85 @@
+package io.esense.esenselib;
+
+import java.util.ArrayList;
+
+/**
+ * Stage deriving several filtered views of the samples, e.g. with the bandwidths of the
+ * different {@link ESenseConfig.AccLPF} and {@link ESenseConfig.GyroLPF} options, without
+ * reconfiguring the earable.
+ *
+ * <p>
+ *     Each view has its own copy of the input block, processed by its own stage, e.g. a
+ *     {@link BiquadFilterStage} or a {@link FirFilterStage}, whose output is delivered to the
+ *     listener of the view. The input block is then emitted unchanged to the next stage.
+ * </p>
+ */
+public class FilterBankStage implements SampleStage {
+
+    /**
+     * Filtered view delivering the output of its stage to its listener
+     */
+    private static class View implements SampleStageOutput {
+        private final SampleStage mStage;
+        private final ESenseSensorBatchListener mListener;
+        private SampleBlock mInput;
+
+        View(SampleStage stage, ESenseSensorBatchListener listener){
+            mStage = stage;
+            mListener = listener;
+        }
+
+        @Override
+        public void emit(SampleBlock block) {
+            mListener.onSensorBatch(block);
+        }
+    }
+
+    private final ArrayList<View> mViews = new ArrayList<>();
+    private boolean mPrepared = false;
+
+    /**
+     * Adds a view. Must be called before the first block.
+     * @param stage stage processing the samples of the view
+     * @param listener listener of the processed samples, called on the thread of the pipeline
+     * @return this stage, to chain the views
+     */
+    public FilterBankStage addView(SampleStage stage, ESenseSensorBatchListener listener){
+        if (mPrepared) {
+            throw new IllegalStateException("The filter bank has already started");
+        }
+        mViews.add(new View(stage, listener));
+        return this;
+    }
+
+    public int getViewCount() {
+        return mViews.size();
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        mPrepared = true;
+        for (View view : mViews) {
+            view.mStage.prepare(maxBlockSize);
+            view.mInput = new SampleBlock(maxBlockSize);
+        }
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        for (int v = 0; v < mViews.size(); v++) {
+            View view = mViews.get(v);
+            view.mInput.clear();
+            view.mInput.append(block, 0, block.getSize());
+            view.mStage.process(view.mInput, view);
+        }
+        output.emit(block);
+    }
+
+    @Override
+    public void reset() {
+        for (int v = 0; v < mViews.size(); v++) {
+            mViews.get(v).mStage.reset();
+        }
+    }
+}
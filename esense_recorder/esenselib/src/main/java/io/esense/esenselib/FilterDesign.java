@@ -0,0 +1,66 @@
+package io.esense.esenselib;
+
+/**
+ * Helpers shared by the software filters of the samples
+ */
+final class FilterDesign {
+    // Highest cutoff applied, relative to the sampling rate, above which a channel is not filtered
+    static final double MAX_CUTOFF_RATIO = 0.45;
+
+    private FilterDesign(){
+    }
+
+    /**
+     * Returns <code>true</code> if a cutoff frequency can be applied at a sampling rate, i.e. it
+     * is not disabled and below the Nyquist frequency
+     * @param samplingRate sampling rate in Hz
+     * @param cutoff cutoff frequency in Hz, 0 if disabled
+     * @return <code>true</code> if the channels must be filtered
+     */
+    static boolean isEnabled(double samplingRate, double cutoff){
+        return cutoff > 0 && cutoff < MAX_CUTOFF_RATIO * samplingRate;
+    }
+
+    static void checkSamplingRate(double samplingRate){
+        if (!(samplingRate > 0)) {
+            throw new IllegalArgumentException("The sampling rate must be positive");
+        }
+    }
+
+    /**
+     * Returns a channel of a block
+     * @param block block of samples
+     * @param channel channel from 0 to 5: acc x, y, z then gyro x, y, z
+     * @return the values of the channel
+     */
+    static short[] getChannel(SampleBlock block, int channel){
+        switch (channel) {
+            case 0:
+                return block.getAccX();
+            case 1:
+                return block.getAccY();
+            case 2:
+                return block.getAccZ();
+            case 3:
+                return block.getGyroX();
+            case 4:
+                return block.getGyroY();
+            default:
+                return block.getGyroZ();
+        }
+    }
+
+    /**
+     * Rounds a filtered value to the nearest ADC value
+     */
+    static short toShort(double value){
+        long rounded = Math.round(value);
+        if (rounded > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (rounded < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) rounded;
+    }
+}
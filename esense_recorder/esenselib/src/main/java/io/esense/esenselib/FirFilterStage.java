@@ -0,0 +1,181 @@
+package io.esense.esenselib;
+
+/**
+ * Stage applying a windowed-sinc low-pass filter to the samples, in place.
+ *
+ * <p>
+ *     The filter is a linear phase FIR whose coefficients are a sinc truncated by a Hamming
+ *     window, normalized to a gain of 1. Its cutoff frequency is attenuated by 6 dB. The
+ *     accelerometer and the gyroscope have their own cutoff, e.g. the bandwidths of the
+ *     {@link ESenseConfig.AccLPF} and {@link ESenseConfig.GyroLPF} options, but the same number
+ *     of taps so that they are delayed by the same {@link #getDelay()}. The sample times are not
+ *     shifted. A cutoff of 0, or too high for the sampling rate, leaves the channels unchanged.
+ * </p>
+ * <p>
+ *     The history of the filter is initialized with the first sample, as if the signal had been
+ *     constant before. Lost packets are ignored, the samples being filtered as a continuous
+ *     signal.
+ * </p>
+ */
+public class FirFilterStage implements SampleStage {
+    // Maximum number of taps of the default design
+    public static final int MAX_DEFAULT_TAPS = 255;
+
+    private final int mTapCount;
+    // Coefficients of the accelerometer and gyroscope, null if not filtered
+    private final double[] mAccCoefficients;
+    private final double[] mGyroCoefficients;
+    // Last inputs of each channel, stored twice so that the history is always contiguous
+    private final double[][] mHistories = new double[6][];
+    private int mPosition = 0;
+    private boolean mPrimed = false;
+
+    /**
+     * Constructs a filter stage with the bandwidths of a configuration and a default number of
+     * taps
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param accLPF low pass filter of the accelerometer
+     * @param gyroLPF low pass filter of the gyroscope
+     */
+    public FirFilterStage(double samplingRate, ESenseConfig.AccLPF accLPF,
+                          ESenseConfig.GyroLPF gyroLPF){
+        this(samplingRate, accLPF.getBandwidth(), gyroLPF.getBandwidth(),
+                getDefaultTapCount(samplingRate, accLPF.getBandwidth(), gyroLPF.getBandwidth()));
+    }
+
+    /**
+     * Constructs a filter stage
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param accCutoff cutoff frequency of the accelerometer in Hz, 0 to disable
+     * @param gyroCutoff cutoff frequency of the gyroscope in Hz, 0 to disable
+     * @param tapCount number of coefficients, a positive odd number
+     */
+    public FirFilterStage(double samplingRate, double accCutoff, double gyroCutoff, int tapCount){
+        FilterDesign.checkSamplingRate(samplingRate);
+        if (tapCount < 1 || tapCount % 2 == 0) {
+            throw new IllegalArgumentException("The number of taps must be a positive odd number");
+        }
+        mTapCount = tapCount;
+        mAccCoefficients = design(samplingRate, accCutoff, tapCount);
+        mGyroCoefficients = design(samplingRate, gyroCutoff, tapCount);
+        for (int c = 0; c < 6; c++) {
+            mHistories[c] = new double[2 * tapCount];
+        }
+    }
+
+    /**
+     * Returns the number of taps for a transition band about as wide as the lowest cutoff
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param accCutoff cutoff frequency of the accelerometer in Hz, 0 if disabled
+     * @param gyroCutoff cutoff frequency of the gyroscope in Hz, 0 if disabled
+     * @return the number of taps, odd and at most <code>MAX_DEFAULT_TAPS</code>
+     */
+    public static int getDefaultTapCount(double samplingRate, double accCutoff,
+                                         double gyroCutoff){
+        FilterDesign.checkSamplingRate(samplingRate);
+        double cutoff = Double.MAX_VALUE;
+        if (FilterDesign.isEnabled(samplingRate, accCutoff)) {
+            cutoff = accCutoff;
+        }
+        if (FilterDesign.isEnabled(samplingRate, gyroCutoff)) {
+            cutoff = Math.min(cutoff, gyroCutoff);
+        }
+        if (cutoff == Double.MAX_VALUE) {
+            return 1;
+        }
+        // Width of the transition band of the Hamming window: 3.3 / taps of the sampling rate
+        int taps = (int) Math.ceil(3.3 * samplingRate / cutoff);
+        taps = Math.min(taps, MAX_DEFAULT_TAPS);
+        return (taps % 2 == 0) ? taps + 1 : taps;
+    }
+
+    private static double[] design(double samplingRate, double cutoff, int tapCount){
+        if (!FilterDesign.isEnabled(samplingRate, cutoff)) {
+            return null;
+        }
+        double[] coefficients = new double[tapCount];
+        double fc = cutoff / samplingRate;
+        int middle = tapCount / 2;
+        double sum = 0;
+        for (int k = 0; k < tapCount; k++) {
+            int n = k - middle;
+            double sinc = (n == 0) ? 2 * fc : Math.sin(2 * Math.PI * fc * n) / (Math.PI * n);
+            double window = (tapCount == 1) ? 1 :
+                    0.54 - 0.46 * Math.cos(2 * Math.PI * k / (tapCount - 1));
+            coefficients[k] = sinc * window;
+            sum += coefficients[k];
+        }
+        for (int k = 0; k < tapCount; k++) {
+            coefficients[k] /= sum;
+        }
+        return coefficients;
+    }
+
+    /**
+     * Returns the delay of the filtered samples
+     * @return the delay in number of samples
+     */
+    public int getDelay() {
+        return mTapCount / 2;
+    }
+
+    public int getTapCount() {
+        return mTapCount;
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        int size = block.getSize();
+        if (size == 0) {
+            return;
+        }
+        int position = mPosition;
+        for (int c = 0; c < 6; c++) {
+            double[] coefficients = (c < 3) ? mAccCoefficients : mGyroCoefficients;
+            if (coefficients != null) {
+                position = filter(coefficients, mHistories[c], FilterDesign.getChannel(block, c),
+                        size);
+            }
+        }
+        mPosition = position;
+        mPrimed = true;
+        output.emit(block);
+    }
+
+    /**
+     * Filters a channel
+     * @return the position in the history after the last sample
+     */
+    private int filter(double[] coefficients, double[] history, short[] values, int size){
+        int taps = mTapCount;
+        if (!mPrimed) {
+            for (int k = 0; k < 2 * taps; k++) {
+                history[k] = values[0];
+            }
+        }
+        int position = mPosition;
+        for (int i = 0; i < size; i++) {
+            // The newest input is at position + taps - 1 of the contiguous history
+            history[position] = values[i];
+            history[position + taps] = values[i];
+            position = (position + 1 == taps) ? 0 : position + 1;
+            double y = 0;
+            for (int k = 0; k < taps; k++) {
+                y += coefficients[k] * history[position + k];
+            }
+            values[i] = FilterDesign.toShort(y);
+        }
+        return position;
+    }
+
+    @Override
+    public void reset() {
+        mPrimed = false;
+        mPosition = 0;
+    }
+}
@@ -0,0 +1,368 @@
+package io.esense.esenselib;
+
+/**
+ * Codec of blocks of IMU samples, specialized for slowly varying 16-bit channels.
+ *
+ * <p>
+ *     Each column of a {@link SampleBlock} is encoded as residuals: deltas between consecutive
+ *     values for the accelerometer and gyroscope channels, the deviation of the intervals between
+ *     sample times from the mean sampling period of the block (times the number of periods, one
+ *     plus the lost packets), the deviation from the expected packet index, and the lost packet
+ *     counts. The sample times are encoded at a resolution of {@link #TIME_RESOLUTION_NANOS}, i.e.
+ *     rounded to the nearest microsecond from the time base, all other columns are lossless. The
+ *     residuals are zigzag-mapped so that small negative values become
+ *     small positive values, and bit-packed in frames of {@link #FRAME_SIZE} values with the bit
+ *     width of the largest residual of the frame. The first values of a block are written as
+ *     variable-length integers, so that each block can be decoded on its own. The phone
+ *     timestamps are not encoded.
+ * </p>
+ * <p>
+ *     Encoded block layout (count samples):
+ *     <pre>
+ *     seeds:   zigzag varint sample time (us), zigzag varint sampling period (us, if count &gt; 1),
+ *              zigzag varint lost packets, byte packet index,
+ *              zigzag varint acc. X, Y, Z and gyro. X, Y, Z
+ *     columns: lost packets, sample times, packet indexes, acc. X, Y, Z, gyro. X, Y, Z
+ *              (count - 1 residuals each), each as frames of
+ *              byte bit width followed by the residuals, least significant bit first,
+ *              padded to a byte
+ *     </pre>
+ * </p>
+ * <p>
+ *     A codec allocates its working buffers once and is not thread-safe.
+ * </p>
+ */
+public final class ImuDeltaCodec {
+    /**
+     * Number of residuals sharing a bit width
+     */
+    public static final int FRAME_SIZE = 32;
+
+    /**
+     * Resolution of the encoded sample times in ns
+     */
+    public static final long TIME_RESOLUTION_NANOS = 1000;
+
+    // Bit width above which values are packed in two parts, to keep the bit buffer in a long
+    private static final int MAX_DIRECT_WIDTH = 56;
+
+    private final long[] residuals;
+    private final short[][] channels = new short[6][];
+
+    // Bit packing state
+    private byte[] buffer;
+    private int position;
+    private int end;
+    private long bits;
+    private int bitCount;
+
+    /**
+     * Constructs a codec
+     * @param maxCount maximum number of samples of an encoded block
+     */
+    public ImuDeltaCodec(int maxCount){
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("The maximum sample count must be positive");
+        }
+        residuals = new long[maxCount];
+    }
+
+    /**
+     * Returns whether blocks of the given size can be encoded and decoded by this codec
+     * @param count number of samples
+     * @return <code>true</code> if the count is within the maximum count of the codec
+     */
+    public boolean canDecode(int count){
+        return count >= 1 && count <= residuals.length;
+    }
+
+    /**
+     * Returns the maximum size of an encoded block
+     * @param count number of samples
+     * @return maximum number of bytes written by {@link #encode}
+     */
+    public static int getMaxEncodedSize(int count){
+        int frames = (count + FRAME_SIZE - 1) / FRAME_SIZE;
+        // Seeds, frame widths and residuals of at most 64, 33, 9 and 6 x 17 bits
+        return 64 + 9 * (frames + 1) + count * (8 + 5 + 2 + 6 * 3);
+    }
+
+    /**
+     * Encodes samples of a block
+     * @param block source block
+     * @param offset position of the first sample in the block
+     * @param count number of samples to encode
+     * @param timeBase value subtracted from the sample times, e.g. the start time of the session
+     * @param dest destination array, with at least {@link #getMaxEncodedSize(int)} bytes
+     *             from <code>destOffset</code>
+     * @param destOffset position of the encoded block in the destination array
+     * @return number of bytes written
+     */
+    public int encode(SampleBlock block, int offset, int count, long timeBase,
+                      byte[] dest, int destOffset){
+        if (count < 1 || count > residuals.length || offset < 0
+                || offset + count > block.getSize()) {
+            throw new IllegalArgumentException("Invalid sample range");
+        }
+        buffer = dest;
+        position = destOffset;
+        end = dest.length;
+        long[] sampleTimes = block.getSampleTimes();
+        int[] lostPackets = block.getLostPackets();
+        int[] packetIndexes = block.getPacketIndexes();
+        setChannels(block);
+        int last = offset + count;
+
+        // Seeds, with the mean sampling period over the packets of the block
+        long time = toTimeUnits(sampleTimes[offset] - timeBase);
+        putVarLong(zigzag(time));
+        long period = 0;
+        if (count > 1) {
+            long periods = 0;
+            for (int i = offset + 1; i < last; i++) {
+                periods += 1 + (long) lostPackets[i];
+            }
+            long span = toTimeUnits(sampleTimes[last - 1] - timeBase) - time;
+            period = Math.round((double) span / periods);
+            putVarLong(zigzag(period));
+        }
+        putVarLong(zigzag(lostPackets[offset]));
+        dest[position++] = (byte) packetIndexes[offset];
+        for (short[] channel : channels) {
+            putVarLong(zigzag(channel[offset]));
+        }
+
+        // Lost packets
+        int n = 0;
+        for (int i = offset + 1; i < last; i++) {
+            residuals[n++] = zigzag(lostPackets[i]);
+        }
+        packFrames(n);
+        // Sample times: deviation from the sampling period times the number of periods
+        n = 0;
+        for (int i = offset + 1; i < last; i++) {
+            long next = toTimeUnits(sampleTimes[i] - timeBase);
+            residuals[n++] = zigzag(next - time - period * (1 + (long) lostPackets[i]));
+            time = next;
+        }
+        packFrames(n);
+        // Packet indexes: deviation from the previous index plus the lost packets
+        n = 0;
+        for (int i = offset + 1; i < last; i++) {
+            int expected = packetIndexes[i - 1] + 1 + lostPackets[i];
+            residuals[n++] = zigzag((byte) (packetIndexes[i] - expected));
+        }
+        packFrames(n);
+        // Channels: deltas
+        for (short[] channel : channels) {
+            n = 0;
+            for (int i = offset + 1; i < last; i++) {
+                residuals[n++] = zigzag(channel[i] - channel[i - 1]);
+            }
+            packFrames(n);
+        }
+        buffer = null;
+        return position - destOffset;
+    }
+
+    /**
+     * Decodes a block into the first positions of a block of samples
+     * @param src source array
+     * @param offset position of the encoded block in the source array
+     * @param length length of the encoded block
+     * @param count number of samples of the encoded block
+     * @param timeBase value added to the sample times
+     * @param dest destination block, of which the size is set to <code>count</code>; the
+     *             sample times are multiples of {@link #TIME_RESOLUTION_NANOS} from the time
+     *             base, the timestamps are left unchanged
+     * @throws IllegalArgumentException if the encoded block is corrupted
+     */
+    public void decode(byte[] src, int offset, int length, int count, long timeBase,
+                       SampleBlock dest){
+        if (count < 1 || count > residuals.length || count > dest.getCapacity()) {
+            throw new IllegalArgumentException("Invalid sample count: " + count);
+        }
+        if (offset < 0 || length < 0 || offset + length > src.length) {
+            throw new IllegalArgumentException("Invalid encoded range");
+        }
+        buffer = src;
+        position = offset;
+        end = offset + length;
+        long[] sampleTimes = dest.getSampleTimes();
+        int[] lostPackets = dest.getLostPackets();
+        int[] packetIndexes = dest.getPacketIndexes();
+        setChannels(dest);
+        try {
+            // Seeds
+            long time = unzigzag(getVarLong());
+            long period = (count > 1) ? unzigzag(getVarLong()) : 0;
+            lostPackets[0] = (int) unzigzag(getVarLong());
+            checkAvailable(1);
+            packetIndexes[0] = src[position++] & 0xff;
+            for (short[] channel : channels) {
+                channel[0] = (short) unzigzag(getVarLong());
+            }
+
+            // Lost packets
+            unpackFrames(count - 1);
+            for (int i = 1; i < count; i++) {
+                lostPackets[i] = (int) unzigzag(residuals[i - 1]);
+            }
+            // Sample times
+            sampleTimes[0] = time * TIME_RESOLUTION_NANOS + timeBase;
+            unpackFrames(count - 1);
+            for (int i = 1; i < count; i++) {
+                time += period * (1 + (long) lostPackets[i]) + unzigzag(residuals[i - 1]);
+                sampleTimes[i] = time * TIME_RESOLUTION_NANOS + timeBase;
+            }
+            // Packet indexes
+            unpackFrames(count - 1);
+            for (int i = 1; i < count; i++) {
+                int expected = packetIndexes[i - 1] + 1 + lostPackets[i];
+                packetIndexes[i] = (expected + (int) unzigzag(residuals[i - 1])) & 0xff;
+            }
+            // Channels
+            for (short[] channel : channels) {
+                unpackFrames(count - 1);
+                for (int i = 1; i < count; i++) {
+                    channel[i] = (short) (channel[i - 1] + unzigzag(residuals[i - 1]));
+                }
+            }
+        } finally {
+            buffer = null;
+        }
+        dest.setFirstSequence(-1);
+        dest.setSize(count);
+    }
+
+    private void setChannels(SampleBlock block){
+        channels[0] = block.getAccX();
+        channels[1] = block.getAccY();
+        channels[2] = block.getAccZ();
+        channels[3] = block.getGyroX();
+        channels[4] = block.getGyroY();
+        channels[5] = block.getGyroZ();
+    }
+
+    private void packFrames(int n){
+        for (int start = 0; start < n; start += FRAME_SIZE) {
+            int frameEnd = Math.min(start + FRAME_SIZE, n);
+            long union = 0;
+            for (int i = start; i < frameEnd; i++) {
+                union |= residuals[i];
+            }
+            int width = 64 - Long.numberOfLeadingZeros(union);
+            buffer[position++] = (byte) width;
+            if (width > 0) {
+                bits = 0;
+                bitCount = 0;
+                for (int i = start; i < frameEnd; i++) {
+                    putBits(residuals[i], width);
+                }
+                if (bitCount > 0) {
+                    buffer[position++] = (byte) bits;
+                }
+            }
+        }
+    }
+
+    private void unpackFrames(int n){
+        for (int start = 0; start < n; start += FRAME_SIZE) {
+            int frameEnd = Math.min(start + FRAME_SIZE, n);
+            checkAvailable(1);
+            int width = buffer[position++] & 0xff;
+            if (width > 64) {
+                throw new IllegalArgumentException("Invalid bit width: " + width);
+            }
+            checkAvailable(((frameEnd - start) * width + 7) / 8);
+            bits = 0;
+            bitCount = 0;
+            for (int i = start; i < frameEnd; i++) {
+                residuals[i] = getBits(width);
+            }
+        }
+    }
+
+    private void putBits(long value, int width){
+        if (width > MAX_DIRECT_WIDTH) {
+            putBits(value & 0xffffffffL, 32);
+            putBits(value >>> 32, width - 32);
+            return;
+        }
+        // Less than 8 pending bits, the buffer holds the whole value
+        bits |= (value & ((1L << width) - 1)) << bitCount;
+        bitCount += width;
+        while (bitCount >= 8) {
+            buffer[position++] = (byte) bits;
+            bits >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    private long getBits(int width){
+        if (width == 0) {
+            return 0;
+        }
+        if (width > MAX_DIRECT_WIDTH) {
+            long low = getBits(32);
+            return low | (getBits(width - 32) << 32);
+        }
+        while (bitCount < width) {
+            bits |= (buffer[position++] & 0xffL) << bitCount;
+            bitCount += 8;
+        }
+        long value = bits & ((1L << width) - 1);
+        bits >>>= width;
+        bitCount -= width;
+        return value;
+    }
+
+    private void putVarLong(long value){
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private long getVarLong(){
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkAvailable(1);
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid variable-length integer");
+    }
+
+    private void checkAvailable(int count){
+        if (position + count > end) {
+            throw new IllegalArgumentException("Truncated encoded block");
+        }
+    }
+
+    /**
+     * Rounds a time in ns to the nearest multiple of the time resolution
+     */
+    private static long toTimeUnits(long nanos){
+        long units = nanos / TIME_RESOLUTION_NANOS;
+        long remainder = nanos % TIME_RESOLUTION_NANOS;
+        if (remainder >= TIME_RESOLUTION_NANOS / 2) {
+            units++;
+        } else if (remainder < -TIME_RESOLUTION_NANOS / 2) {
+            units--;
+        }
+        return units;
+    }
+
+    private static long zigzag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,198 @@
+package io.esense.esenselib;
+
+/**
+ * Madgwick's gradient descent orientation filter for an IMU (accelerometer and gyroscope).
+ *
+ * <p>
+ *     The orientation of the sensor relative to the earth is a unit quaternion, integrated from
+ *     the angular rate and corrected towards the direction of the gravity measured by the
+ *     accelerometer by a gradient descent step of gain <code>beta</code>. Without magnetometer,
+ *     the yaw is relative to the initial one and drifts slowly. The filter does not allocate.
+ * </p>
+ */
+public class MadgwickFilter {
+    // Default gain, for a gyroscope error of about 5 deg/s: sqrt(3/4) * 5 * PI / 180
+    public static final double DEFAULT_BETA = 0.0756;
+
+    private double mBeta;
+    private double mQ0 = 1;
+    private double mQ1 = 0;
+    private double mQ2 = 0;
+    private double mQ3 = 0;
+    private boolean mInitialized = false;
+
+    /**
+     * Constructs a filter
+     * @param beta gain of the accelerometer correction, in rad/s
+     */
+    public MadgwickFilter(double beta){
+        setBeta(beta);
+    }
+
+    public double getBeta() {
+        return mBeta;
+    }
+
+    public void setBeta(double beta) {
+        if (!(beta >= 0)) {
+            throw new IllegalArgumentException("The gain must be positive");
+        }
+        mBeta = beta;
+    }
+
+    /**
+     * Returns <code>true</code> if the orientation has been initialized from a sample
+     * @return <code>true</code> if the filter is initialized
+     */
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * Updates the orientation with a sample. The first sample after a reset initializes the
+     * orientation from the gravity.
+     * @param gx angular rate around x in rad/s
+     * @param gy angular rate around y in rad/s
+     * @param gz angular rate around z in rad/s
+     * @param ax acceleration along x, in any unit
+     * @param ay acceleration along y, in any unit
+     * @param az acceleration along z, in any unit
+     * @param dt time since the previous sample in s
+     */
+    public void update(double gx, double gy, double gz, double ax, double ay, double az,
+                       double dt){
+        if (!mInitialized) {
+            alignToGravity(ax, ay, az);
+            return;
+        }
+        double q0 = mQ0;
+        double q1 = mQ1;
+        double q2 = mQ2;
+        double q3 = mQ3;
+
+        // Rate of change of the quaternion from the gyroscope
+        double qDot0 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot1 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot2 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot3 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+
+        double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (norm > 0) {
+            ax /= norm;
+            ay /= norm;
+            az /= norm;
+            // Gradient of the error between the measured and the estimated gravity
+            double q0q0 = q0 * q0;
+            double q1q1 = q1 * q1;
+            double q2q2 = q2 * q2;
+            double q3q3 = q3 * q3;
+            double s0 = 4 * q0 * q2q2 + 2 * q2 * ax + 4 * q0 * q1q1 - 2 * q1 * ay;
+            double s1 = 4 * q1 * q3q3 - 2 * q3 * ax + 4 * q0q0 * q1 - 2 * q0 * ay - 4 * q1
+                    + 8 * q1 * q1q1 + 8 * q1 * q2q2 + 4 * q1 * az;
+            double s2 = 4 * q0q0 * q2 + 2 * q0 * ax + 4 * q2 * q3q3 - 2 * q3 * ay - 4 * q2
+                    + 8 * q2 * q1q1 + 8 * q2 * q2q2 + 4 * q2 * az;
+            double s3 = 4 * q1q1 * q3 - 2 * q1 * ax + 4 * q2q2 * q3 - 2 * q2 * ay;
+            double stepNorm = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+            if (stepNorm > 0) {
+                double gain = mBeta / stepNorm;
+                qDot0 -= gain * s0;
+                qDot1 -= gain * s1;
+                qDot2 -= gain * s2;
+                qDot3 -= gain * s3;
+            }
+        }
+
+        q0 += qDot0 * dt;
+        q1 += qDot1 * dt;
+        q2 += qDot2 * dt;
+        q3 += qDot3 * dt;
+        norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        mQ0 = q0 / norm;
+        mQ1 = q1 / norm;
+        mQ2 = q2 / norm;
+        mQ3 = q3 / norm;
+    }
+
+    /**
+     * Sets the roll and pitch from the gravity measured by the accelerometer, keeping the yaw,
+     * e.g. at the start or after a long gap in the samples
+     * @param ax acceleration along x, in any unit
+     * @param ay acceleration along y, in any unit
+     * @param az acceleration along z, in any unit
+     */
+    public void alignToGravity(double ax, double ay, double az){
+        if (ax == 0 && ay == 0 && az == 0) {
+            return;
+        }
+        double roll = Math.atan2(ay, az);
+        double pitch = Math.atan2(-ax, Math.sqrt(ay * ay + az * az));
+        double yaw = mInitialized ? getYawRadians() : 0;
+        setEulerRadians(roll, pitch, yaw);
+        mInitialized = true;
+    }
+
+    /**
+     * Discards the orientation, which is initialized again by the next sample
+     */
+    public void reset(){
+        mQ0 = 1;
+        mQ1 = 0;
+        mQ2 = 0;
+        mQ3 = 0;
+        mInitialized = false;
+    }
+
+    private void setEulerRadians(double roll, double pitch, double yaw){
+        double cr = Math.cos(roll / 2);
+        double sr = Math.sin(roll / 2);
+        double cp = Math.cos(pitch / 2);
+        double sp = Math.sin(pitch / 2);
+        double cy = Math.cos(yaw / 2);
+        double sy = Math.sin(yaw / 2);
+        mQ0 = cr * cp * cy + sr * sp * sy;
+        mQ1 = sr * cp * cy - cr * sp * sy;
+        mQ2 = cr * sp * cy + sr * cp * sy;
+        mQ3 = cr * cp * sy - sr * sp * cy;
+    }
+
+    public double getQuaternionW() {
+        return mQ0;
+    }
+
+    public double getQuaternionX() {
+        return mQ1;
+    }
+
+    public double getQuaternionY() {
+        return mQ2;
+    }
+
+    public double getQuaternionZ() {
+        return mQ3;
+    }
+
+    /**
+     * Returns the rotation around the x axis (Tait-Bryan angles, z-y'-x'' order)
+     * @return the roll in rad, from -PI to PI
+     */
+    public double getRollRadians() {
+        return Math.atan2(2 * (mQ0 * mQ1 + mQ2 * mQ3), 1 - 2 * (mQ1 * mQ1 + mQ2 * mQ2));
+    }
+
+    /**
+     * Returns the rotation around the y axis (Tait-Bryan angles, z-y'-x'' order)
+     * @return the pitch in rad, from -PI/2 to PI/2
+     */
+    public double getPitchRadians() {
+        double sin = 2 * (mQ0 * mQ2 - mQ3 * mQ1);
+        return Math.asin(Math.max(-1, Math.min(1, sin)));
+    }
+
+    /**
+     * Returns the rotation around the z axis (Tait-Bryan angles, z-y'-x'' order)
+     * @return the yaw in rad, from -PI to PI
+     */
+    public double getYawRadians() {
+        return Math.atan2(2 * (mQ0 * mQ3 + mQ1 * mQ2), 1 - 2 * (mQ2 * mQ2 + mQ3 * mQ3));
+    }
+}
@@ -0,0 +1,48 @@
+package io.esense.esenselib;
+
+/**
+ * Sink keeping the latest samples in memory, e.g. for a live view or to save the last minutes
+ * of a session on demand.
+ *
+ * <p>
+ *     The samples are written to a {@link SampleRingBuffer} on the worker thread of the sink, and
+ *     can be read from any thread with the lock-free readers of the buffer.
+ * </p>
+ */
+public class MemorySampleSink implements SampleSink {
+    private final SampleRingBuffer mBuffer;
+    private final ESenseEvent mEvent = new ESenseEvent();
+
+    /**
+     * Constructs a sink
+     * @param capacity minimum number of samples kept, rounded up to a power of two
+     */
+    public MemorySampleSink(int capacity){
+        mBuffer = new SampleRingBuffer(capacity);
+    }
+
+    /**
+     * Returns the buffer of the samples, to be read only
+     * @return the sample buffer
+     */
+    public SampleRingBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public void onSamples(SampleBlock block) {
+        int size = block.getSize();
+        for (int i = 0; i < size; i++) {
+            block.getEvent(i, mEvent);
+            mBuffer.add(mEvent);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
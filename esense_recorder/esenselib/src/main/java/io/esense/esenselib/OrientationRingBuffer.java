@@ -0,0 +1,173 @@
+package io.esense.esenselib;
+
+/**
+ * Fixed-capacity history of orientations stored in primitive columns, e.g. written by an
+ * {@link OrientationStage} and read by the UI or a logger.
+ *
+ * <p>
+ *     As the {@link SampleRingBuffer}, the buffer has a single writer and any number of readers.
+ *     Writing never blocks nor allocates, and readers copy entries without lock into their own
+ *     arrays, the copies being validated against the write sequence after a volatile write, so that
+ *     the reads of a copy cannot be reordered after its validation. An entry is made of the
+ *     <code>VALUES_PER_ENTRY</code> values: the quaternion w, x, y, z then the roll, pitch and
+ *     yaw in degrees.
+ * </p>
+ */
+public class OrientationRingBuffer {
+    // Number of attempts of a reader before giving up when it is lapped by the writer
+    private static final int MAX_READ_ATTEMPTS = 4;
+
+    public static final int VALUES_PER_ENTRY = 7;
+    public static final int QUATERNION_W = 0;
+    public static final int QUATERNION_X = 1;
+    public static final int QUATERNION_Y = 2;
+    public static final int QUATERNION_Z = 3;
+    public static final int ROLL = 4;
+    public static final int PITCH = 5;
+    public static final int YAW = 6;
+
+    private final int capacity;
+    private final int mask;
+    private final long[] sampleTimes;
+    // Values of the entries, VALUES_PER_ENTRY per entry
+    private final float[] values;
+
+    // Sequence number of the next entry to write, published after the entry is written
+    private volatile long writeSequence = 0;
+    // Written by the readers between a copy and its validation, as a load fence
+    private volatile int readFence;
+
+    /**
+     * Constructs an empty ring buffer
+     * @param capacity minimum number of entries kept, rounded up to a power of two
+     */
+    public OrientationRingBuffer(int capacity){
+        if (capacity < 2 || capacity > (1 << 26)) {
+            throw new IllegalArgumentException("Illegal ring buffer capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        sampleTimes = new long[size];
+        values = new float[size * VALUES_PER_ENTRY];
+    }
+
+    /**
+     * Appends the orientation of a filter, overwriting the oldest entry if the buffer is full.
+     * Must only be called from the writer thread.
+     * @param sampleTime reconstructed time of the sample in nanoseconds
+     * @param filter filter giving the orientation
+     */
+    public void add(long sampleTime, MadgwickFilter filter){
+        // Volatile read, the stores below cannot become visible before the previous publication
+        long seq = writeSequence;
+        int i = (int) (seq & mask);
+        int v = i * VALUES_PER_ENTRY;
+        sampleTimes[i] = sampleTime;
+        values[v + QUATERNION_W] = (float) filter.getQuaternionW();
+        values[v + QUATERNION_X] = (float) filter.getQuaternionX();
+        values[v + QUATERNION_Y] = (float) filter.getQuaternionY();
+        values[v + QUATERNION_Z] = (float) filter.getQuaternionZ();
+        values[v + ROLL] = (float) Math.toDegrees(filter.getRollRadians());
+        values[v + PITCH] = (float) Math.toDegrees(filter.getPitchRadians());
+        values[v + YAW] = (float) Math.toDegrees(filter.getYawRadians());
+        // Publish
+        writeSequence = seq + 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the sequence number of the next entry to be written, i.e. the number of entries
+     * written since the buffer was created
+     * @return the write sequence
+     */
+    public long getWriteSequence() {
+        return writeSequence;
+    }
+
+    /**
+     * Returns the sequence number of the oldest entry that can still be read
+     * @return the sequence number of the oldest entry
+     */
+    public long getOldestSequence() {
+        return oldestReadable(writeSequence);
+    }
+
+    /**
+     * Copies the most recent entry
+     * @param dest array of at least <code>VALUES_PER_ENTRY</code> values to fill
+     * @return the sample time of the entry in nanoseconds, or -1 if the buffer is empty or the
+     *         reader has been lapped by the writer
+     */
+    public long getLatest(float[] dest){
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long w = writeSequence;
+            if (w == 0) {
+                return -1;
+            }
+            int i = (int) ((w - 1) & mask);
+            long sampleTime = sampleTimes[i];
+            System.arraycopy(values, i * VALUES_PER_ENTRY, dest, 0, VALUES_PER_ENTRY);
+            // Check that the writer did not overwrite the entry in the meantime
+            if (w - 1 >= oldestReadable(getWriteSequenceAfterCopy())) {
+                return sampleTime;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies consecutive entries, e.g. from the sequence following the last copied entry to log
+     * all the orientations
+     * @param fromSequence sequence number of the first entry to copy
+     * @param count maximum number of entries to copy
+     * @param destTimes array receiving the sample times of the entries
+     * @param destValues array receiving the values of the entries, <code>VALUES_PER_ENTRY</code>
+     *                   per entry
+     * @return the number of entries copied, 0 if the first entry is no longer available (see
+     *         {@link #getOldestSequence()}) or not written yet
+     */
+    public int copyRange(long fromSequence, int count, long[] destTimes, float[] destValues){
+        long w = writeSequence;
+        if (fromSequence < oldestReadable(w)) {
+            return 0;
+        }
+        int n = (int) Math.max(0, Math.min(Math.min(count, destTimes.length), w - fromSequence));
+        n = Math.min(n, destValues.length / VALUES_PER_ENTRY);
+        int start = (int) (fromSequence & mask);
+        int first = Math.min(n, capacity - start);
+        System.arraycopy(sampleTimes, start, destTimes, 0, first);
+        System.arraycopy(values, start * VALUES_PER_ENTRY, destValues, 0,
+                first * VALUES_PER_ENTRY);
+        if (first < n) {
+            System.arraycopy(sampleTimes, 0, destTimes, first, n - first);
+            System.arraycopy(values, 0, destValues, first * VALUES_PER_ENTRY,
+                    (n - first) * VALUES_PER_ENTRY);
+        }
+        // Check that the writer did not overwrite the copied entries in the meantime
+        if (fromSequence < oldestReadable(getWriteSequenceAfterCopy())) {
+            return 0;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the write sequence to validate a copy. The write of the fence keeps the reads of the
+     * copy before the read of the write sequence, as in {@link SampleRingBuffer}.
+     */
+    private long getWriteSequenceAfterCopy(){
+        readFence = 0;
+        return writeSequence;
+    }
+
+    /**
+     * Returns the oldest sequence that is not being overwritten for the given write sequence. The
+     * slot of the oldest entry is the one the writer fills next, so it is excluded.
+     */
+    private long oldestReadable(long w){
+        return Math.max(0, w - capacity + 1);
+    }
+}
@@ -0,0 +1,117 @@
+package io.esense.esenselib;
+
+/**
+ * Stage estimating the orientation of the head from the samples with a {@link MadgwickFilter},
+ * and writing it into an {@link OrientationRingBuffer}.
+ *
+ * <p>
+ *     The angular rates are converted to rad/s with the conversion kernel of the sensor
+ *     configuration. The time step is the difference of the reconstructed sample times, or the
+ *     nominal period of the sampling rate if they are not consistent, so that a gap of lost
+ *     packets is integrated over its duration. After a gap longer than
+ *     <code>MAX_GAP_SECONDS</code>, the integrated rate would be meaningless: the roll and pitch
+ *     are aligned again to the gravity, keeping the yaw. The input blocks are emitted unchanged
+ *     to the next stage. An update costs some tens of floating point operations and does not
+ *     allocate.
+ * </p>
+ */
+public class OrientationStage implements SampleStage {
+    // Longest gap integrated with the angular rate of the sample after it
+    public static final double MAX_GAP_SECONDS = 0.25;
+
+    private final double mPeriodSeconds;
+    private final double mGyroToRadians;
+    private final MadgwickFilter mFilter;
+    private final OrientationRingBuffer mOutput;
+    private long mLastSampleTime;
+
+    /**
+     * Constructs an orientation stage with the default gain
+     * @param samplingRate sampling rate of the sensor notifications in Hz
+     * @param kernel conversion of the sensor configuration
+     * @param output ring buffer receiving the orientation of each sample
+     */
+    public OrientationStage(int samplingRate, ConversionKernel kernel,
+                            OrientationRingBuffer output){
+        this(samplingRate, kernel, MadgwickFilter.DEFAULT_BETA, output);
+    }
+
+    /**
+     * Constructs an orientation stage
+     * @param samplingRate sampling rate of the sensor notifications in Hz
+     * @param kernel conversion of the sensor configuration
+     * @param beta gain of the accelerometer correction of the filter, in rad/s
+     * @param output ring buffer receiving the orientation of each sample
+     */
+    public OrientationStage(int samplingRate, ConversionKernel kernel, double beta,
+                            OrientationRingBuffer output){
+        if (samplingRate < 1) {
+            throw new IllegalArgumentException("The sampling rate must be positive");
+        }
+        if (output == null) {
+            throw new IllegalArgumentException("The output must not be null");
+        }
+        mPeriodSeconds = 1.0 / samplingRate;
+        mGyroToRadians = Math.PI / 180 / kernel.getGyroSensitivityFactor();
+        mFilter = new MadgwickFilter(beta);
+        mOutput = output;
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        int size = block.getSize();
+        long[] sampleTimes = block.getSampleTimes();
+        int[] lostPackets = block.getLostPackets();
+        short[] accX = block.getAccX();
+        short[] accY = block.getAccY();
+        short[] accZ = block.getAccZ();
+        short[] gyroX = block.getGyroX();
+        short[] gyroY = block.getGyroY();
+        short[] gyroZ = block.getGyroZ();
+        MadgwickFilter filter = mFilter;
+        double gyroScale = mGyroToRadians;
+        for (int i = 0; i < size; i++) {
+            // Nominal time step, including the lost packets
+            double nominal = (1 + Math.max(0, lostPackets[i])) * mPeriodSeconds;
+            double dt = nominal;
+            if (filter.isInitialized()) {
+                double measured = (sampleTimes[i] - mLastSampleTime) * 1e-9;
+                // The reconstructed times are within a few percent of the nominal period
+                if (measured > 0.5 * nominal && measured < 2 * nominal) {
+                    dt = measured;
+                }
+            }
+            mLastSampleTime = sampleTimes[i];
+            if (dt > MAX_GAP_SECONDS) {
+                filter.alignToGravity(accX[i], accY[i], accZ[i]);
+            } else {
+                // The accelerometer scale does not matter, its direction is used
+                filter.update(gyroX[i] * gyroScale, gyroY[i] * gyroScale, gyroZ[i] * gyroScale,
+                        accX[i], accY[i], accZ[i], dt);
+            }
+            mOutput.add(sampleTimes[i], filter);
+        }
+        output.emit(block);
+    }
+
+    /**
+     * Discards the orientation, which is initialized again from the gravity of the next sample
+     */
+    @Override
+    public void reset() {
+        mFilter.reset();
+    }
+
+    /**
+     * Returns the filter, e.g. to read the last orientation on the thread of the pipeline
+     * @return the orientation filter
+     */
+    public MadgwickFilter getFilter() {
+        return mFilter;
+    }
+}
@@ -0,0 +1,30 @@
+package io.esense.esenselib;
+
+/**
+ * Behavior of the producer of a {@link SampleQueue} when the queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * The new sample is discarded and counted as dropped. The producer never waits.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest queued sample is discarded to make room for the new one, so that the consumer
+     * gets the most recent samples. The producer never waits.
+     */
+    DROP_OLDEST,
+
+    /**
+     * When the queue is half full, only every other new sample is queued, so that the samples
+     * keep covering the whole stream at a lower rate; when the queue is full, the new sample is
+     * discarded. The producer never waits.
+     */
+    DECIMATE,
+
+    /**
+     * The producer waits until the consumer frees a slot. No sample is lost, but the producer
+     * thread (e.g. the Bluetooth callback thread) is delayed.
+     */
+    BLOCK
+}
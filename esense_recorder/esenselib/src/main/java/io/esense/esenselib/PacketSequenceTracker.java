@@ -0,0 +1,209 @@
+package io.esense.esenselib;
+
+/**
+ * Tracks the 8-bit packet index of sensor notifications to detect lost, duplicated and
+ * out-of-order packets.
+ *
+ * <p>
+ *     The index wraps around at 256. When the sampling rate is known, the arrival time is used to
+ *     detect gaps longer than a full index cycle. Packets are numbered with an unwrapped sequence
+ *     that also counts the lost packets, so that downstream consumers can locate the gaps.
+ * </p>
+ */
+public class PacketSequenceTracker {
+    private static final int INDEX_MODULO = 256;
+    // Backward jumps up to this number of packets are considered as late packets
+    private static final int OUT_OF_ORDER_WINDOW = 32;
+    // Weight of a packet in the recent loss rate
+    private static final double RECENT_LOSS_WEIGHT = 0.01;
+
+    /**
+     * Classification of a packet
+     */
+    public enum Result {
+        /**
+         * First packet of the session
+         */
+        FIRST,
+        /**
+         * Packet following the previous one
+         */
+        IN_ORDER,
+        /**
+         * Packet following lost packets
+         */
+        GAP,
+        /**
+         * Packet with the same index as the previous one, to be discarded
+         */
+        DUPLICATE,
+        /**
+         * Packet older than the previous one, to be discarded
+         */
+        OUT_OF_ORDER
+    }
+
+    private int mSamplingRate;
+    private int mLastIndex = -1;
+    private long mLastArrivalMillis;
+    private long mLastSequence = -1;
+    private int mLastLostPackets;
+
+    // Counters, written by the notification thread only
+    private volatile long mReceivedCount;
+    private volatile long mLostCount;
+    private volatile long mDuplicateCount;
+    private volatile long mOutOfOrderCount;
+    private volatile long mGapCount;
+    private volatile double mRecentLossRate;
+
+    /**
+     * Constructs a tracker for a session with unknown sampling rate
+     */
+    public PacketSequenceTracker(){
+        reset(0);
+    }
+
+    /**
+     * Starts a new session and clears the counters
+     * @param samplingRate sampling rate in Hz, or 0 if unknown
+     */
+    public void reset(int samplingRate){
+        mSamplingRate = samplingRate;
+        mLastIndex = -1;
+        mLastArrivalMillis = 0;
+        mLastSequence = -1;
+        mLastLostPackets = 0;
+        mReceivedCount = 0;
+        mLostCount = 0;
+        mDuplicateCount = 0;
+        mOutOfOrderCount = 0;
+        mGapCount = 0;
+        mRecentLossRate = 0;
+    }
+
+    /**
+     * Tracks a received packet
+     * @param packetIndex index of the packet in range [0-255]
+     * @param arrivalMillis arrival time of the packet in milliseconds
+     * @return the classification of the packet
+     */
+    public Result track(int packetIndex, long arrivalMillis){
+        int index = packetIndex & 0xff;
+        if (mLastIndex < 0) {
+            mLastIndex = index;
+            mLastArrivalMillis = arrivalMillis;
+            mLastSequence = 0;
+            mLastLostPackets = 0;
+            mReceivedCount++;
+            return Result.FIRST;
+        }
+        int delta = (index - mLastIndex) & 0xff;
+        // Number of packets expected from the elapsed time, -1 if unknown
+        double expected = -1;
+        if (mSamplingRate > 0) {
+            expected = (arrivalMillis - mLastArrivalMillis) * mSamplingRate / 1000.;
+        }
+        // A silence longer than the out-of-order window allows for any index
+        boolean longSilence = expected >= INDEX_MODULO - OUT_OF_ORDER_WINDOW;
+        if (!longSilence) {
+            if (delta == 0) {
+                mDuplicateCount++;
+                return Result.DUPLICATE;
+            }
+            if (delta >= INDEX_MODULO - OUT_OF_ORDER_WINDOW) {
+                mOutOfOrderCount++;
+                return Result.OUT_OF_ORDER;
+            }
+        }
+        long steps = (delta == 0) ? INDEX_MODULO : delta;
+        if (longSilence) {
+            // Add the full index cycles that fit in the elapsed time
+            long cycles = Math.round((expected - steps) / INDEX_MODULO);
+            if (cycles > 0) {
+                steps += cycles * INDEX_MODULO;
+            }
+        }
+        int lost = (int) Math.min(Integer.MAX_VALUE, steps - 1);
+        mLastIndex = index;
+        mLastArrivalMillis = arrivalMillis;
+        mLastSequence += steps;
+        mLastLostPackets = lost;
+        mReceivedCount++;
+        double recent = mRecentLossRate;
+        if (lost > 0) {
+            mLostCount += lost;
+            mGapCount++;
+            recent = 1. - (1. - recent) * Math.pow(1. - RECENT_LOSS_WEIGHT, lost);
+        }
+        mRecentLossRate = recent * (1. - RECENT_LOSS_WEIGHT);
+        return (lost > 0) ? Result.GAP : Result.IN_ORDER;
+    }
+
+    /**
+     * Returns the number of packets lost just before the last accepted packet
+     * @return the number of lost packets, 0 if there is no gap
+     */
+    public int getLastLostPackets() {
+        return mLastLostPackets;
+    }
+
+    /**
+     * Returns the unwrapped sequence number of the last accepted packet, counting lost packets
+     * @return the sequence number, or -1 if no packet has been received
+     */
+    public long getLastSequence() {
+        return mLastSequence;
+    }
+
+    public int getSamplingRate() {
+        return mSamplingRate;
+    }
+
+    /**
+     * Returns the number of packets accepted in the session
+     * @return the number of received packets, excluding duplicated and out-of-order packets
+     */
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    public long getOutOfOrderCount() {
+        return mOutOfOrderCount;
+    }
+
+    /**
+     * Returns the number of gaps, i.e. of sequences of consecutive lost packets
+     * @return the number of gaps
+     */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * Returns the ratio of lost packets over the session
+     * @return the loss rate in range [0-1]
+     */
+    public double getLossRate() {
+        long lost = mLostCount;
+        long total = mReceivedCount + lost;
+        return (total == 0) ? 0 : ((double) lost) / total;
+    }
+
+    /**
+     * Returns the ratio of lost packets over the last hundred packets approximately, with an
+     * exponential weighting
+     * @return the recent loss rate in range [0-1]
+     */
+    public double getRecentLossRate() {
+        return mRecentLossRate;
+    }
+}
@@ -0,0 +1,166 @@
+package io.esense.esenselib;
+
+import java.util.HashMap;
+
+/**
+ * Fast Fourier transform of real values, in place in a <code>float</code> array.
+ *
+ * <p>
+ *     The N real values are transformed as N/2 complex values by an iterative radix-2 FFT, whose
+ *     result is then split into the spectrum of the real values. The twiddle factors and the bit
+ *     reversal permutation are computed once per size: use {@link #getInstance(int)} to share
+ *     them. An instance is immutable and can be used from several threads.
+ * </p>
+ * <p>
+ *     The spectrum is packed in the N values: <code>data[0]</code> is the real part of bin 0,
+ *     <code>data[1]</code> the real part of bin N/2 (both imaginary parts are 0), and
+ *     <code>data[2k]</code>, <code>data[2k + 1]</code> are the real and imaginary parts of bin k
+ *     for 0 &lt; k &lt; N/2.
+ * </p>
+ */
+public final class RealFft {
+    private static final HashMap<Integer, RealFft> sInstances = new HashMap<>();
+
+    private final int mSize;
+    // exp(-2 pi i k / N) for 0 <= k < N/2
+    private final float[] mCos;
+    private final float[] mSin;
+    // Bit reversal permutation of the N/2 complex values
+    private final int[] mBitReverse;
+
+    /**
+     * Returns the transform of a size, shared by all its users
+     * @param size number of real values, a power of 2 of at least 2
+     * @return the transform
+     */
+    public static RealFft getInstance(int size){
+        synchronized (sInstances) {
+            RealFft fft = sInstances.get(size);
+            if (fft == null) {
+                fft = new RealFft(size);
+                sInstances.put(size, fft);
+            }
+            return fft;
+        }
+    }
+
+    /**
+     * Returns the smallest size of a transform holding a number of values
+     * @param count number of values
+     * @return the smallest power of 2 of at least 2 and <code>count</code>
+     */
+    public static int getSizeFor(int count){
+        int size = 2;
+        while (size < count) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Constructs a transform, prefer {@link #getInstance(int)} to share the tables
+     * @param size number of real values, a power of 2 of at least 2
+     */
+    public RealFft(int size){
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("The size must be a power of 2 of at least 2");
+        }
+        mSize = size;
+        int half = size / 2;
+        mCos = new float[half];
+        mSin = new float[half];
+        for (int k = 0; k < half; k++) {
+            double angle = -2 * Math.PI * k / size;
+            mCos[k] = (float) Math.cos(angle);
+            mSin[k] = (float) Math.sin(angle);
+        }
+        mBitReverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int k = 0; k < half; k++) {
+            mBitReverse[k] = (bits == 0) ? 0 : Integer.reverse(k) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Transforms real values into their packed spectrum, in place
+     * @param data the <code>getSize()</code> real values, replaced by the packed spectrum
+     */
+    public void forward(float[] data){
+        int half = mSize / 2;
+        float[] cos = mCos;
+        float[] sin = mSin;
+
+        // Complex FFT of z[n] = x[2n] + i x[2n + 1]
+        for (int k = 0; k < half; k++) {
+            int j = mBitReverse[k];
+            if (j > k) {
+                float re = data[2 * k];
+                float im = data[2 * k + 1];
+                data[2 * k] = data[2 * j];
+                data[2 * k + 1] = data[2 * j + 1];
+                data[2 * j] = re;
+                data[2 * j + 1] = im;
+            }
+        }
+        for (int length = 2; length <= half; length <<= 1) {
+            int step = mSize / length;
+            int span = length / 2;
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0; j < span; j++) {
+                    float wr = cos[j * step];
+                    float wi = sin[j * step];
+                    int a = 2 * (start + j);
+                    int b = a + 2 * span;
+                    float tr = wr * data[b] - wi * data[b + 1];
+                    float ti = wr * data[b + 1] + wi * data[b];
+                    data[b] = data[a] - tr;
+                    data[b + 1] = data[a + 1] - ti;
+                    data[a] += tr;
+                    data[a + 1] += ti;
+                }
+            }
+        }
+
+        // Split: X[k] = E[k] + W^k O[k] with E[k] = (Z[k] + conj(Z[M - k])) / 2 and
+        // O[k] = -i (Z[k] - conj(Z[M - k])) / 2, and X[M - k] = conj(E[k] - W^k O[k])
+        float re0 = data[0];
+        float im0 = data[1];
+        data[0] = re0 + im0;
+        data[1] = re0 - im0;
+        for (int k = 1; k <= half / 2; k++) {
+            int a = 2 * k;
+            int b = 2 * (half - k);
+            float evenRe = (data[a] + data[b]) / 2;
+            float evenIm = (data[a + 1] - data[b + 1]) / 2;
+            float oddRe = (data[a + 1] + data[b + 1]) / 2;
+            float oddIm = (data[b] - data[a]) / 2;
+            float tr = cos[k] * oddRe - sin[k] * oddIm;
+            float ti = cos[k] * oddIm + sin[k] * oddRe;
+            data[a] = evenRe + tr;
+            data[a + 1] = evenIm + ti;
+            data[b] = evenRe - tr;
+            data[b + 1] = ti - evenIm;
+        }
+    }
+
+    /**
+     * Computes the squared magnitudes of a packed spectrum
+     * @param spectrum packed spectrum, as computed by {@link #forward(float[])}
+     * @param power squared magnitudes of the bins 0 to N/2, i.e. <code>getSize() / 2 + 1</code>
+     *              values
+     */
+    public void getPower(float[] spectrum, float[] power){
+        int half = mSize / 2;
+        power[0] = spectrum[0] * spectrum[0];
+        power[half] = spectrum[1] * spectrum[1];
+        for (int k = 1; k < half; k++) {
+            float re = spectrum[2 * k];
+            float im = spectrum[2 * k + 1];
+            power[k] = re * re + im * im;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.esense.esenselib;
+
+/**
+ * Sensor listener that groups consecutive samples into a {@link SampleBlock} and delivers them
+ * to a {@link ESenseSensorBatchListener}.
+ *
+ * <p>
+ *     A block is delivered when it holds the maximum number of samples or when its samples span
+ *     the maximum latency, whichever comes first. The latency is checked on sample arrival, so the
+ *     last samples before notifications stop are only delivered by {@link #flush()}. A batcher can
+ *     be registered directly on the {@link ESenseManager} in place of a per-sample listener.
+ * </p>
+ */
+public class SampleBatcher implements ESenseSensorListener {
+    private final SampleBlock mBlock;
+    private final long mMaxLatencyMillis;
+    private final ESenseSensorBatchListener mListener;
+
+    /**
+     * Constructs a batcher
+     * @param listener listener receiving the blocks of samples
+     * @param maxSamples maximum number of samples in a block
+     * @param maxLatencyMillis maximum time span of the samples in a block in milliseconds
+     */
+    public SampleBatcher(ESenseSensorBatchListener listener, int maxSamples, long maxLatencyMillis){
+        if (listener == null) {
+            throw new IllegalArgumentException("The batch listener must not be null");
+        }
+        mListener = listener;
+        mBlock = new SampleBlock(maxSamples);
+        mMaxLatencyMillis = maxLatencyMillis;
+    }
+
+    @Override
+    public void onSensorChanged(ESenseEvent evt) {
+        mBlock.add(evt);
+        if (mBlock.isFull() ||
+                evt.getTimestamp() - mBlock.getTimestamps()[0] >= mMaxLatencyMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Delivers the pending samples, if any. Must be called from the thread delivering the samples
+     * or when no more samples are delivered.
+     */
+    public void flush(){
+        if (mBlock.getSize() > 0) {
+            mListener.onSensorBatch(mBlock);
+            mBlock.clear();
+        }
+    }
+
+    /**
+     * Discards the pending samples
+     */
+    public void reset(){
+        mBlock.clear();
+    }
+
+    public int getMaxSamples() {
+        return mBlock.getCapacity();
+    }
+
+    public long getMaxLatencyMillis() {
+        return mMaxLatencyMillis;
+    }
+}
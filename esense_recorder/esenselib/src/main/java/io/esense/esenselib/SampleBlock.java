@@ -0,0 +1,230 @@
+package io.esense.esenselib;
+
+/**
+ * Block of consecutive sensor samples stored in primitive columns (one array per axis).
+ *
+ * <p>
+ *     A block is allocated once with a fixed capacity and reused: filling it with
+ *     {@link #add(ESenseEvent)} or copying history into it with
+ *     {@link SampleRingBuffer#copyRange(long, int, SampleBlock)} does not allocate.
+ * </p>
+ */
+public class SampleBlock {
+    private final short[] accX;
+    private final short[] accY;
+    private final short[] accZ;
+    private final short[] gyroX;
+    private final short[] gyroY;
+    private final short[] gyroZ;
+    private final long[] timestamps;    //phone's timestamps in milliseconds
+    private final long[] sampleTimes;   //reconstructed sample times in nanoseconds
+    private final int[] packetIndexes;
+    private final int[] lostPackets;    //packets lost just before each sample
+
+    private int size;
+    private long firstSequence;         //sequence number of the first sample, -1 if unknown
+
+    /**
+     * Constructs an empty block
+     * @param capacity maximum number of samples in the block
+     */
+    public SampleBlock(int capacity){
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of a sample block must be positive");
+        }
+        accX = new short[capacity];
+        accY = new short[capacity];
+        accZ = new short[capacity];
+        gyroX = new short[capacity];
+        gyroY = new short[capacity];
+        gyroZ = new short[capacity];
+        timestamps = new long[capacity];
+        sampleTimes = new long[capacity];
+        packetIndexes = new int[capacity];
+        lostPackets = new int[capacity];
+        firstSequence = -1;
+    }
+
+    /**
+     * Removes all samples from the block
+     */
+    public void clear(){
+        size = 0;
+        firstSequence = -1;
+    }
+
+    /**
+     * Appends a copy of the event values to the block
+     * @param evt sensor event
+     * @return <code>true</code> if the sample has been added,
+     *         <code>false</code> if the block is full
+     */
+    public boolean add(ESenseEvent evt){
+        if (size == accX.length) {
+            return false;
+        }
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        accX[size] = acc[0];
+        accY[size] = acc[1];
+        accZ[size] = acc[2];
+        gyroX[size] = gyro[0];
+        gyroY[size] = gyro[1];
+        gyroZ[size] = gyro[2];
+        timestamps[size] = evt.getTimestamp();
+        sampleTimes[size] = evt.getSampleTimeNanos();
+        packetIndexes[size] = evt.getPacketIndex();
+        lostPackets[size] = evt.getLostPackets();
+        size++;
+        return true;
+    }
+
+    /**
+     * Appends a copy of consecutive samples of another block
+     * @param source block to copy from
+     * @param offset position of the first sample to copy in the source block
+     * @param count number of samples to copy
+     * @return the number of samples copied, limited by the remaining capacity
+     */
+    public int append(SampleBlock source, int offset, int count){
+        if (offset < 0 || count < 0 || offset + count > source.size) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + count
+                    + " out of block of size " + source.size);
+        }
+        int n = Math.min(count, accX.length - size);
+        System.arraycopy(source.accX, offset, accX, size, n);
+        System.arraycopy(source.accY, offset, accY, size, n);
+        System.arraycopy(source.accZ, offset, accZ, size, n);
+        System.arraycopy(source.gyroX, offset, gyroX, size, n);
+        System.arraycopy(source.gyroY, offset, gyroY, size, n);
+        System.arraycopy(source.gyroZ, offset, gyroZ, size, n);
+        System.arraycopy(source.timestamps, offset, timestamps, size, n);
+        System.arraycopy(source.sampleTimes, offset, sampleTimes, size, n);
+        System.arraycopy(source.packetIndexes, offset, packetIndexes, size, n);
+        System.arraycopy(source.lostPackets, offset, lostPackets, size, n);
+        if (size == 0) {
+            firstSequence = (source.firstSequence < 0) ? -1 : source.firstSequence + offset;
+        }
+        size += n;
+        return n;
+    }
+
+    /**
+     * Removes the first samples of the block, the following samples are moved to the start
+     * @param count number of samples to remove
+     */
+    public void removeFirst(int count){
+        int n = Math.min(count, size);
+        int remaining = size - n;
+        System.arraycopy(accX, n, accX, 0, remaining);
+        System.arraycopy(accY, n, accY, 0, remaining);
+        System.arraycopy(accZ, n, accZ, 0, remaining);
+        System.arraycopy(gyroX, n, gyroX, 0, remaining);
+        System.arraycopy(gyroY, n, gyroY, 0, remaining);
+        System.arraycopy(gyroZ, n, gyroZ, 0, remaining);
+        System.arraycopy(timestamps, n, timestamps, 0, remaining);
+        System.arraycopy(sampleTimes, n, sampleTimes, 0, remaining);
+        System.arraycopy(packetIndexes, n, packetIndexes, 0, remaining);
+        System.arraycopy(lostPackets, n, lostPackets, 0, remaining);
+        if (firstSequence >= 0) {
+            firstSequence += n;
+        }
+        size = remaining;
+    }
+
+    /**
+     * Copies the sample at the given position into an event
+     * @param index position of the sample in the block
+     * @param dest event to fill
+     */
+    public void getEvent(int index, ESenseEvent dest){
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of block of size " + size);
+        }
+        short[] acc = dest.getAccel();
+        short[] gyro = dest.getGyro();
+        acc[0] = accX[index];
+        acc[1] = accY[index];
+        acc[2] = accZ[index];
+        gyro[0] = gyroX[index];
+        gyro[1] = gyroY[index];
+        gyro[2] = gyroZ[index];
+        dest.setTimestamp(timestamps[index]);
+        dest.setSampleTimeNanos(sampleTimes[index]);
+        dest.setPacketIndex(packetIndexes[index]);
+        dest.setLostPackets(lostPackets[index]);
+    }
+
+    public int getCapacity() {
+        return accX.length;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    public boolean isFull() {
+        return size == accX.length;
+    }
+
+    /**
+     * Returns the sequence number of the first sample when the block has been filled from a
+     * {@link SampleRingBuffer}
+     * @return the sequence number of the first sample, or -1 if unknown
+     */
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    void setFirstSequence(long firstSequence) {
+        this.firstSequence = firstSequence;
+    }
+
+    public short[] getAccX() {
+        return accX;
+    }
+
+    public short[] getAccY() {
+        return accY;
+    }
+
+    public short[] getAccZ() {
+        return accZ;
+    }
+
+    public short[] getGyroX() {
+        return gyroX;
+    }
+
+    public short[] getGyroY() {
+        return gyroY;
+    }
+
+    public short[] getGyroZ() {
+        return gyroZ;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Returns the sample times reconstructed from the packet sequence
+     * @return the sample times in nanoseconds, see {@link ESenseEvent#getSampleTimeNanos()}
+     */
+    public long[] getSampleTimes() {
+        return sampleTimes;
+    }
+
+    public int[] getPacketIndexes() {
+        return packetIndexes;
+    }
+
+    public int[] getLostPackets() {
+        return lostPackets;
+    }
+}
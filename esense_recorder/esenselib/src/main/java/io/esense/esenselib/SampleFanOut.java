@@ -0,0 +1,262 @@
+package io.esense.esenselib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Sensor listener that copies the samples to several destinations, each with its own bounded
+ * queue and worker thread.
+ *
+ * <p>
+ *     Each destination, a {@link SampleSink} or a plain {@link ESenseSensorListener}, is fed by an
+ *     {@link AsyncSensorDispatcher}, so that the slowest destination never throttles the others
+ *     nor the Bluetooth callback thread: when its queue is full, only its own samples are dropped
+ *     according to its {@link OverflowPolicy}. A sink that throws is closed and removed from the
+ *     distribution, and the {@link Listener} is notified, while the other destinations go on.
+ * </p>
+ * <p>
+ *     Destinations can be added and removed at any time from any thread; {@link #onSensorChanged}
+ *     reads an immutable array of destinations and never locks.
+ * </p>
+ */
+public class SampleFanOut implements ESenseSensorListener {
+    private final String TAG = "SampleFanOut";
+
+    // Interval of the periodic flushes of the sinks, in sample time
+    private static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * Listener of the failures of the sinks
+     */
+    public interface Listener {
+        /**
+         * Called on the worker thread of a sink when it fails, after it has been closed
+         * @param name name of the sink
+         * @param error exception thrown by the sink
+         */
+        void onSinkFailed(String name, Exception error);
+    }
+
+    /**
+     * Destination with its dispatcher
+     */
+    private class Branch implements ESenseSensorBatchListener {
+        private final String mBranchName;
+        private final SampleSink mSink;
+        private AsyncSensorDispatcher mDispatcher;
+        private volatile boolean mFailed = false;
+        private long mLastFlushNanos;
+        private boolean mFlushStarted = false;
+
+        Branch(String name, SampleSink sink){
+            mBranchName = name;
+            mSink = sink;
+        }
+
+        @Override
+        public void onSensorBatch(SampleBlock block) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mSink.onSamples(block);
+                long lastSampleTime = block.getSampleTimes()[block.getSize() - 1];
+                if (!mFlushStarted) {
+                    mFlushStarted = true;
+                    mLastFlushNanos = lastSampleTime;
+                } else if (lastSampleTime - mLastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+                    mSink.flush();
+                    mLastFlushNanos = lastSampleTime;
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Closes the sink after a failure and stops the distribution to this branch
+         */
+        private void fail(Exception e){
+            mFailed = true;
+            Log.e(TAG, "Sink " + mBranchName + " failed", e);
+            try {
+                mSink.close();
+            } catch (Exception closeError) {
+                Log.w(TAG, "Unable to close failed sink " + mBranchName, closeError);
+            }
+            removeBranch(this);
+            // Drop the queued samples, the thread ends when the queue is empty
+            mDispatcher.stop();
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onSinkFailed(mBranchName, e);
+            }
+        }
+
+        /**
+         * Waits for the queued samples and closes the sink, on the calling thread
+         */
+        private boolean close(){
+            mDispatcher.stop();
+            if (mFailed) {
+                return false;
+            }
+            try {
+                mSink.close();
+                return true;
+            } catch (IOException e) {
+                mFailed = true;
+                Log.e(TAG, "Unable to close sink " + mBranchName, e);
+                return false;
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final ArrayList<String> mNames = new ArrayList<>();
+    private final ArrayList<AsyncSensorDispatcher> mDispatchers = new ArrayList<>();
+    private final ArrayList<Branch> mBranches = new ArrayList<>();
+    private volatile AsyncSensorDispatcher[] mTargets = new AsyncSensorDispatcher[0];
+    private volatile Listener mListener;
+
+    /**
+     * Sets the listener of the failures of the sinks
+     * @param listener failure listener, or <code>null</code>
+     */
+    public void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    /**
+     * Adds a sink and starts its worker thread, named after the sink
+     * @param name unique name of the sink
+     * @param sink destination of the samples
+     * @param batchSize maximum number of samples delivered at once to the sink
+     * @param queueCapacity capacity of the queue of the sink in samples
+     * @param waitStrategy strategy of the worker when the queue is empty
+     * @param overflowPolicy behavior when the queue of the sink is full
+     */
+    public void addSink(String name, SampleSink sink, int batchSize, int queueCapacity,
+                        WaitStrategy waitStrategy, OverflowPolicy overflowPolicy){
+        Branch branch = new Branch(name, sink);
+        branch.mDispatcher = new AsyncSensorDispatcher(name, branch, batchSize, queueCapacity,
+                waitStrategy, overflowPolicy);
+        add(name, branch.mDispatcher, branch);
+    }
+
+    /**
+     * Adds a listener of the samples one by one, called on its own worker thread. Exceptions
+     * thrown by the listener are logged and counted by its dispatcher.
+     * @param name unique name of the listener
+     * @param listener destination of the samples
+     * @param queueCapacity capacity of the queue of the listener in samples
+     * @param waitStrategy strategy of the worker when the queue is empty
+     * @param overflowPolicy behavior when the queue of the listener is full
+     */
+    public void addListener(String name, ESenseSensorListener listener, int queueCapacity,
+                            WaitStrategy waitStrategy, OverflowPolicy overflowPolicy){
+        add(name, new AsyncSensorDispatcher(name, listener, queueCapacity, waitStrategy,
+                overflowPolicy), null);
+    }
+
+    /**
+     * Removes a destination after the samples already queued have been delivered, and closes it
+     * if it is a sink. Waits for the end of its worker thread.
+     * @param name name of the destination
+     * @return <code>true</code> if the destination was found and, for a sink, has been closed
+     * without error
+     */
+    public boolean remove(String name){
+        AsyncSensorDispatcher dispatcher;
+        Branch branch;
+        synchronized (mLock) {
+            int index = mNames.indexOf(name);
+            if (index < 0) {
+                return false;
+            }
+            mNames.remove(index);
+            dispatcher = mDispatchers.remove(index);
+            branch = mBranches.remove(index);
+            publishTargets();
+        }
+        if (branch != null) {
+            return branch.close();
+        }
+        dispatcher.stop();
+        return true;
+    }
+
+    /**
+     * Removes all the destinations, as with {@link #remove(String)}
+     */
+    public void removeAll(){
+        String[] names;
+        synchronized (mLock) {
+            names = mNames.toArray(new String[0]);
+        }
+        for (String name : names) {
+            remove(name);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a destination is distributed with the given name
+     * @param name name of the destination
+     * @return <code>true</code> if the destination exists and has not failed
+     */
+    public boolean contains(String name){
+        synchronized (mLock) {
+            return mNames.contains(name);
+        }
+    }
+
+    /**
+     * Returns the queue of a destination, e.g. to read its counters
+     * @param name name of the destination
+     * @return the queue of the destination, or <code>null</code> if there is none with this name
+     */
+    public SampleQueue getQueue(String name){
+        synchronized (mLock) {
+            int index = mNames.indexOf(name);
+            return (index < 0) ? null : mDispatchers.get(index).getQueue();
+        }
+    }
+
+    @Override
+    public void onSensorChanged(ESenseEvent evt) {
+        for (AsyncSensorDispatcher dispatcher : mTargets) {
+            dispatcher.onSensorChanged(evt);
+        }
+    }
+
+    private void add(String name, AsyncSensorDispatcher dispatcher, Branch branch){
+        synchronized (mLock) {
+            if (mNames.contains(name)) {
+                throw new IllegalArgumentException("Duplicate destination name: " + name);
+            }
+            dispatcher.start();
+            mNames.add(name);
+            mDispatchers.add(dispatcher);
+            mBranches.add(branch);
+            publishTargets();
+        }
+    }
+
+    private void removeBranch(Branch branch){
+        synchronized (mLock) {
+            int index = mBranches.indexOf(branch);
+            if (index >= 0) {
+                mNames.remove(index);
+                mDispatchers.remove(index);
+                mBranches.remove(index);
+                publishTargets();
+            }
+        }
+    }
+
+    private void publishTargets(){
+        mTargets = mDispatchers.toArray(new AsyncSensorDispatcher[0]);
+    }
+}
@@ -0,0 +1,248 @@
+package io.esense.esenselib;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Chain of {@link SampleStage} processing blocks of samples, with the processing time of each
+ * stage.
+ *
+ * <p>
+ *     The pipeline is a {@link SampleSink} and a {@link ESenseSensorBatchListener}, so that it
+ *     runs on a dedicated worker, e.g. as a sink of a {@link SampleFanOut} attached to the sensor
+ *     listeners, and never delays the recording. Each input block is copied into a block owned by
+ *     the pipeline before the first stage, so that the stages can process it in place. Once
+ *     prepared, the pipeline and the provided stages do not allocate.
+ * </p>
+ * <p>
+ *     The time of a stage excludes the time of the following stages it calls. The timing
+ *     counters are written on the thread of the pipeline and can be read from any thread.
+ * </p>
+ */
+public class SamplePipeline implements SampleSink, ESenseSensorBatchListener {
+    // Output of the last stage
+    private static final SampleStageOutput DISCARD = new SampleStageOutput() {
+        @Override
+        public void emit(SampleBlock block) {
+        }
+    };
+
+    /**
+     * Stage with its timing, called by the previous stage
+     */
+    private static class Link implements SampleStageOutput {
+        private final String mName;
+        private final SampleStage mStage;
+        private Link mPrevious;
+        private SampleStageOutput mNext = DISCARD;
+        // Time spent in the following stages during the calls of this stage
+        private long mDownstreamNanos = 0;
+        private volatile long mTimeNanos = 0;
+        private volatile long mMaxTimeNanos = 0;
+        private volatile long mBlockCount = 0;
+        private volatile long mSampleCount = 0;
+
+        Link(String name, SampleStage stage){
+            mName = name;
+            mStage = stage;
+        }
+
+        @Override
+        public void emit(SampleBlock block) {
+            int size = block.getSize();
+            long downstreamBefore = mDownstreamNanos;
+            long start = System.nanoTime();
+            mStage.process(block, mNext);
+            long elapsed = System.nanoTime() - start;
+            long self = elapsed - (mDownstreamNanos - downstreamBefore);
+            mTimeNanos += self;
+            if (self > mMaxTimeNanos) {
+                mMaxTimeNanos = self;
+            }
+            mBlockCount++;
+            mSampleCount += size;
+            if (mPrevious != null) {
+                mPrevious.mDownstreamNanos += elapsed;
+            }
+        }
+
+        void resetTiming(){
+            mTimeNanos = 0;
+            mMaxTimeNanos = 0;
+            mBlockCount = 0;
+            mSampleCount = 0;
+        }
+    }
+
+    private final ArrayList<Link> mLinks = new ArrayList<>();
+    private final int mMaxBlockSize;
+    private SampleBlock mInput;
+    private volatile boolean mResetRequested = false;
+
+    /**
+     * Constructs an empty pipeline
+     * @param maxBlockSize maximum number of samples passed at once to the first stage, larger
+     *                     input blocks are split
+     */
+    public SamplePipeline(int maxBlockSize){
+        if (maxBlockSize < 1) {
+            throw new IllegalArgumentException("The block size must be positive");
+        }
+        mMaxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Appends a stage to the chain. Must be called before the first block.
+     * @param name name of the stage in the timing reports
+     * @param stage processing stage
+     * @return this pipeline, to chain the stages
+     */
+    public SamplePipeline addStage(String name, SampleStage stage){
+        if (mInput != null) {
+            throw new IllegalStateException("The pipeline has already started");
+        }
+        Link link = new Link(name, stage);
+        if (!mLinks.isEmpty()) {
+            Link last = mLinks.get(mLinks.size() - 1);
+            last.mNext = link;
+            link.mPrevious = last;
+        }
+        mLinks.add(link);
+        return this;
+    }
+
+    /**
+     * Prepares the stages, called before the first block if not called explicitly
+     */
+    public void prepare(){
+        if (mInput != null) {
+            return;
+        }
+        int blockSize = mMaxBlockSize;
+        for (Link link : mLinks) {
+            blockSize = link.mStage.prepare(blockSize);
+        }
+        mInput = new SampleBlock(mMaxBlockSize);
+    }
+
+    /**
+     * Processes a block of samples on the calling thread. The block is not modified.
+     * @param block block of samples
+     */
+    public void process(SampleBlock block){
+        prepare();
+        if (mResetRequested) {
+            mResetRequested = false;
+            for (Link link : mLinks) {
+                link.mStage.reset();
+            }
+        }
+        if (mLinks.isEmpty()) {
+            return;
+        }
+        Link first = mLinks.get(0);
+        int size = block.getSize();
+        for (int offset = 0; offset < size; offset += mMaxBlockSize) {
+            mInput.clear();
+            mInput.append(block, offset, Math.min(mMaxBlockSize, size - offset));
+            first.emit(mInput);
+        }
+    }
+
+    /**
+     * Resets the state of all the stages before the next block, e.g. at a new session. Can be
+     * called from any thread.
+     */
+    public void reset(){
+        mResetRequested = true;
+    }
+
+    @Override
+    public void onSensorBatch(SampleBlock block) {
+        process(block);
+    }
+
+    @Override
+    public void onSamples(SampleBlock block) {
+        process(block);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public int getStageCount() {
+        return mLinks.size();
+    }
+
+    public String getStageName(int index) {
+        return mLinks.get(index).mName;
+    }
+
+    /**
+     * Returns the total processing time of a stage, without the following stages
+     * @param index position of the stage in the chain
+     * @return the processing time in ns
+     */
+    public long getStageTimeNanos(int index) {
+        return mLinks.get(index).mTimeNanos;
+    }
+
+    /**
+     * Returns the longest processing time of a block by a stage, without the following stages
+     * @param index position of the stage in the chain
+     * @return the maximum processing time in ns
+     */
+    public long getStageMaxTimeNanos(int index) {
+        return mLinks.get(index).mMaxTimeNanos;
+    }
+
+    /**
+     * Returns the number of blocks received by a stage
+     * @param index position of the stage in the chain
+     * @return the number of blocks
+     */
+    public long getStageBlockCount(int index) {
+        return mLinks.get(index).mBlockCount;
+    }
+
+    /**
+     * Returns the number of samples received by a stage
+     * @param index position of the stage in the chain
+     * @return the number of samples
+     */
+    public long getStageSampleCount(int index) {
+        return mLinks.get(index).mSampleCount;
+    }
+
+    /**
+     * Resets the timing counters of all the stages
+     */
+    public void resetTiming(){
+        for (Link link : mLinks) {
+            link.resetTiming();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the timing of the stages, e.g. for the debug log
+     * @return the timing summary
+     */
+    public String getTimingSummary(){
+        StringBuilder summary = new StringBuilder();
+        for (Link link : mLinks) {
+            long samples = link.mSampleCount;
+            if (summary.length() > 0) {
+                summary.append(", ");
+            }
+            summary.append(String.format(Locale.US, "%s %.1f ns/sample (max %.1f us/block)",
+                    link.mName, (samples == 0) ? 0.0 : (double) link.mTimeNanos / samples,
+                    link.mMaxTimeNanos / 1000.0));
+        }
+        return summary.toString();
+    }
+}
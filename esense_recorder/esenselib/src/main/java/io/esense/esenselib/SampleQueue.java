@@ -0,0 +1,490 @@
+package io.esense.esenselib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded single-producer single-consumer queue of sensor samples.
+ *
+ * <p>
+ *     Samples are copied into preallocated primitive columns, so that neither publishing nor
+ *     consuming allocates. The producer and the consumer only synchronize through their
+ *     sequence counters (and through a signal when the consumer uses {@link WaitStrategy#BLOCK}).
+ *     Exactly one thread may call {@link #offer(ESenseEvent)} and exactly one other thread may
+ *     consume the samples.
+ * </p>
+ * <p>
+ *     When the queue is full, the {@link OverflowPolicy} decides which samples are sacrificed.
+ *     Samples dropped by the policy, with the packets lost before them, are added to the lost
+ *     packets of the next sample delivered to the consumer, so that the gaps remain visible
+ *     downstream, and are counted per policy.
+ *     With {@link OverflowPolicy#DROP_OLDEST}, the producer takes the oldest sample from the
+ *     consumer with a compare-and-set of the head, and the consumer validates its copies with a
+ *     compare-and-set as well.
+ * </p>
+ */
+public class SampleQueue {
+    // Time the producer parks between attempts with the BLOCK overflow policy
+    private static final long PRODUCER_PARK_NANOS = 100000;
+    // Spins of the SLEEP wait strategy before sleeping
+    private static final int SLEEP_SPINS = 100;
+    // Sleep duration of the SLEEP wait strategy
+    private static final long SLEEP_NANOS = 1000000;
+    // Maximum wait of the BLOCK wait strategy, in case a signal is missed
+    private static final long BLOCK_TIMEOUT_NANOS = 100000000;
+
+    private static final AtomicLongFieldUpdater<SampleQueue> HEAD_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(SampleQueue.class, "head");
+
+    private final int capacity;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+
+    private final short[] accX;
+    private final short[] accY;
+    private final short[] accZ;
+    private final short[] gyroX;
+    private final short[] gyroY;
+    private final short[] gyroZ;
+    private final long[] timestamps;
+    private final long[] sampleTimes;
+    private final int[] packetIndexes;
+    private final int[] lostPackets;
+
+    // Sequence of the next sample to publish, written by the producer only
+    private volatile long tail = 0;
+    // Sequence of the next sample to consume, written by the consumer only, except by the
+    // producer with the DROP_OLDEST policy
+    private volatile long head = 0;
+    // Last value of head seen by the producer, to avoid reading the volatile on every offer
+    private long cachedHead = 0;
+    // Last value of tail seen by the consumer
+    private long cachedTail = 0;
+    // Sequence following the last sample consumed, to detect the samples dropped by the producer
+    private long consumedHead = 0;
+    // Packets lost with the samples dropped by the producer since the last published sample,
+    // i.e. the dropped samples and the packets lost before them
+    private int pendingDropped = 0;
+    // Total of the lost packets of the queued samples dropped with the DROP_OLDEST policy,
+    // written by the producer only after the sample has been taken from the consumer
+    private volatile long droppedOldestLostPackets = 0;
+    // Part of this total already added to the delivered samples, for the consumer
+    private long consumedDroppedOldestLostPackets = 0;
+    // Position of the producer in the decimation pattern
+    private boolean decimationSkip = false;
+
+    // Counters, each written by a single thread
+    private volatile long droppedCount = 0;
+    private volatile long droppedOldestCount = 0;
+    private volatile long decimatedCount = 0;
+    private volatile long blockedCount = 0;
+    private volatile int highWaterMark = 0;
+
+    // Signal for the BLOCK wait strategy
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean consumerWaiting = false;
+
+    // Set when the queue is closed, releases a blocked producer
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs an empty queue
+     * @param capacity minimum number of samples in the queue, rounded up to a power of two
+     * @param waitStrategy strategy of the consumer when the queue is empty
+     * @param overflowPolicy behavior of the producer when the queue is full
+     */
+    public SampleQueue(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy){
+        if (capacity < 2 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal queue capacity: " + capacity);
+        }
+        if (waitStrategy == null || overflowPolicy == null) {
+            throw new IllegalArgumentException("Wait strategy and overflow policy are required");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        accX = new short[size];
+        accY = new short[size];
+        accZ = new short[size];
+        gyroX = new short[size];
+        gyroY = new short[size];
+        gyroZ = new short[size];
+        timestamps = new long[size];
+        sampleTimes = new long[size];
+        packetIndexes = new int[size];
+        lostPackets = new int[size];
+    }
+
+    /**
+     * Publishes a copy of a sample. Must only be called from the producer thread.
+     * @param evt sensor event to copy
+     * @return <code>true</code> if the sample has been published,
+     *         <code>false</code> if it has been dropped
+     */
+    public boolean offer(ESenseEvent evt){
+        long t = tail;
+        if (overflowPolicy == OverflowPolicy.DECIMATE && t - cachedHead >= capacity / 2) {
+            cachedHead = head;
+            if (t - cachedHead >= capacity / 2) {
+                // Under pressure, keep every other sample
+                decimationSkip = !decimationSkip;
+                if (decimationSkip) {
+                    decimatedCount++;
+                    pendingDropped += 1 + evt.getLostPackets();
+                    return false;
+                }
+            } else {
+                decimationSkip = false;
+            }
+        }
+        if (t - cachedHead >= capacity) {
+            cachedHead = head;
+            if (t - cachedHead >= capacity) {
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    dropOldest(t);
+                } else if (!waitForSpace(t)) {
+                    droppedCount++;
+                    pendingDropped += 1 + evt.getLostPackets();
+                    return false;
+                }
+            }
+        }
+        if (t + 1 - cachedHead > highWaterMark) {
+            // The cached head may lag behind the consumer, only a fresh head gives the depth
+            cachedHead = head;
+            int depth = (int) (t + 1 - cachedHead);
+            if (depth > highWaterMark) {
+                highWaterMark = depth;
+            }
+        }
+        int i = (int) (t & mask);
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        accX[i] = acc[0];
+        accY[i] = acc[1];
+        accZ[i] = acc[2];
+        gyroX[i] = gyro[0];
+        gyroY[i] = gyro[1];
+        gyroZ[i] = gyro[2];
+        timestamps[i] = evt.getTimestamp();
+        sampleTimes[i] = evt.getSampleTimeNanos();
+        packetIndexes[i] = evt.getPacketIndex();
+        lostPackets[i] = evt.getLostPackets() + pendingDropped;
+        pendingDropped = 0;
+        // Publish, then wake up the consumer if it is waiting
+        tail = t + 1;
+        if (consumerWaiting) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest sample and copies it into an event. Must only be called from the
+     * consumer thread.
+     * @param dest event to fill
+     * @return <code>true</code> if a sample has been copied,
+     *         <code>false</code> if the queue is empty
+     */
+    public boolean poll(ESenseEvent dest){
+        while (true) {
+            long h = head;
+            if (h >= cachedTail) {
+                cachedTail = tail;
+                if (h >= cachedTail) {
+                    return false;
+                }
+            }
+            int i = (int) (h & mask);
+            short[] acc = dest.getAccel();
+            short[] gyro = dest.getGyro();
+            acc[0] = accX[i];
+            acc[1] = accY[i];
+            acc[2] = accZ[i];
+            gyro[0] = gyroX[i];
+            gyro[1] = gyroY[i];
+            gyro[2] = gyroZ[i];
+            dest.setTimestamp(timestamps[i]);
+            dest.setSampleTimeNanos(sampleTimes[i]);
+            dest.setPacketIndex(packetIndexes[i]);
+            dest.setLostPackets(lostPackets[i]);
+            if (advanceHead(h, 1)) {
+                // Samples dropped by the producer before this one
+                dest.setLostPackets(dest.getLostPackets() + droppedBefore(h));
+                consumedHead = h + 1;
+                return true;
+            }
+            // The sample has been dropped during the copy, retry with the new oldest sample
+        }
+    }
+
+    /**
+     * Removes the oldest samples and copies them into a block. Must only be called from the
+     * consumer thread.
+     * @param dest block to fill, cleared before the copy
+     * @param maxCount maximum number of samples to copy, limited by the block capacity
+     * @return the number of samples copied
+     */
+    public int drainTo(SampleBlock dest, int maxCount){
+        while (true) {
+            dest.clear();
+            long h = head;
+            cachedTail = tail;
+            int n = (int) Math.min(Math.min(maxCount, dest.getCapacity()), cachedTail - h);
+            if (n <= 0) {
+                return 0;
+            }
+            int start = (int) (h & mask);
+            int first = Math.min(n, capacity - start);
+            copySegment(start, 0, first, dest);
+            if (first < n) {
+                copySegment(0, first, n - first, dest);
+            }
+            if (advanceHead(h, n)) {
+                // Samples dropped by the producer before the block
+                dest.getLostPackets()[0] += droppedBefore(h);
+                consumedHead = h + n;
+                dest.setSize(n);
+                dest.setFirstSequence(h);
+                return n;
+            }
+            // Samples have been dropped during the copy, retry from the new oldest sample
+        }
+    }
+
+    /**
+     * Waits for samples according to the wait strategy. Must only be called from the consumer
+     * thread, typically when {@link #poll(ESenseEvent)} or {@link #drainTo(SampleBlock, int)}
+     * returned nothing.
+     * @param idleCount number of consecutive calls without sample, used by the SLEEP strategy
+     * @throws InterruptedException if the consumer thread is interrupted
+     */
+    public void waitForSamples(int idleCount) throws InterruptedException {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case SLEEP:
+                if (idleCount < SLEEP_SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(SLEEP_NANOS);
+                }
+                break;
+            case BLOCK:
+                lock.lockInterruptibly();
+                try {
+                    consumerWaiting = true;
+                    // Check again after the flag is visible to the producer
+                    if (head >= tail && !closed) {
+                        notEmpty.await(BLOCK_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+                    }
+                } finally {
+                    consumerWaiting = false;
+                    lock.unlock();
+                }
+                break;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Closes the queue: a producer blocked by the BLOCK overflow policy drops its sample and a
+     * waiting consumer is woken up. Remaining samples can still be consumed.
+     */
+    public void close(){
+        closed = true;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of samples waiting in the queue
+     * @return the queue depth
+     */
+    public int getDepth() {
+        long h = head;
+        return (int) Math.max(0, tail - h);
+    }
+
+    /**
+     * Returns the number of samples published since the queue was created
+     * @return the number of published samples
+     */
+    public long getPublishedCount() {
+        return tail;
+    }
+
+    /**
+     * Returns the number of samples consumed since the queue was created
+     * @return the number of consumed samples
+     */
+    public long getConsumedCount() {
+        return head;
+    }
+
+    /**
+     * Returns the number of samples dropped by the overflow policy, whatever the policy
+     * @return the number of dropped samples
+     */
+    public long getDroppedCount() {
+        return droppedCount + droppedOldestCount + decimatedCount;
+    }
+
+    /**
+     * Returns the number of new samples dropped because the queue was full, with the
+     * DROP_NEWEST and DECIMATE policies, or when the queue is closed with the BLOCK policy
+     * @return the number of dropped new samples
+     */
+    public long getDroppedNewestCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of queued samples dropped to make room with the DROP_OLDEST policy
+     * @return the number of dropped old samples
+     */
+    public long getDroppedOldestCount() {
+        return droppedOldestCount;
+    }
+
+    /**
+     * Returns the number of samples skipped under pressure with the DECIMATE policy
+     * @return the number of decimated samples
+     */
+    public long getDecimatedCount() {
+        return decimatedCount;
+    }
+
+    /**
+     * Returns the highest depth of the queue seen by the producer when publishing a sample
+     * @return the high-water mark in samples
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Returns the number of times the producer had to wait for free space
+     * @return the number of producer waits
+     */
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    /**
+     * Waits for a free slot with the BLOCK overflow policy.
+     * @return <code>true</code> if a slot is free, <code>false</code> if the sample must be dropped
+     */
+    private boolean waitForSpace(long t){
+        if (overflowPolicy != OverflowPolicy.BLOCK) {
+            return false;
+        }
+        blockedCount++;
+        while (!closed) {
+            LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            cachedHead = head;
+            if (t - cachedHead < capacity) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the oldest queued sample with the DROP_OLDEST policy. Called by the producer when the
+     * queue is full.
+     */
+    private void dropOldest(long t){
+        while (true) {
+            long h = head;
+            if (t - h < capacity) {
+                // The consumer has freed a slot meanwhile
+                cachedHead = h;
+                return;
+            }
+            if (HEAD_UPDATER.compareAndSet(this, h, h + 1)) {
+                cachedHead = h + 1;
+                droppedOldestCount++;
+                // The slot is only written by the producer, it is still intact. Published after
+                // the compare-and-set, so that the consumer never counts a sample it delivered.
+                droppedOldestLostPackets += lostPackets[(int) (h & mask)];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the packets lost with the queued samples dropped by the producer since the last
+     * delivered sample, given the sequence of the next delivered sample. The lost packets of the
+     * dropped samples may be published by the producer slightly later: they are then added to a
+     * following delivered sample.
+     */
+    private int droppedBefore(long h){
+        long lost = droppedOldestLostPackets;
+        int dropped = (int) (h - consumedHead + lost - consumedDroppedOldestLostPackets);
+        consumedDroppedOldestLostPackets = lost;
+        return dropped;
+    }
+
+    /**
+     * Moves the head after consumed samples. With the DROP_OLDEST policy, fails if the producer
+     * has dropped the oldest sample since the head was read.
+     */
+    private boolean advanceHead(long h, int count){
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            return HEAD_UPDATER.compareAndSet(this, h, h + count);
+        }
+        head = h + count;
+        return true;
+    }
+
+    private void copySegment(int srcPos, int destPos, int length, SampleBlock dest){
+        System.arraycopy(accX, srcPos, dest.getAccX(), destPos, length);
+        System.arraycopy(accY, srcPos, dest.getAccY(), destPos, length);
+        System.arraycopy(accZ, srcPos, dest.getAccZ(), destPos, length);
+        System.arraycopy(gyroX, srcPos, dest.getGyroX(), destPos, length);
+        System.arraycopy(gyroY, srcPos, dest.getGyroY(), destPos, length);
+        System.arraycopy(gyroZ, srcPos, dest.getGyroZ(), destPos, length);
+        System.arraycopy(timestamps, srcPos, dest.getTimestamps(), destPos, length);
+        System.arraycopy(sampleTimes, srcPos, dest.getSampleTimes(), destPos, length);
+        System.arraycopy(packetIndexes, srcPos, dest.getPacketIndexes(), destPos, length);
+        System.arraycopy(lostPackets, srcPos, dest.getLostPackets(), destPos, length);
+    }
+}
@@ -0,0 +1,255 @@
+package io.esense.esenselib;
+
+/**
+ * Fixed-capacity history of sensor samples stored in primitive columns.
+ *
+ * <p>
+ *     The buffer has a single writer (typically the Bluetooth callback thread) and any number of
+ *     readers. Samples are identified by a sequence number that increases by one for each sample
+ *     written. Writing never blocks nor allocates; readers copy ranges of samples into their own
+ *     {@link SampleBlock} without lock and the copies are validated against the write sequence, so
+ *     that samples overwritten during the copy are never returned. The validation is preceded
+ *     by a volatile write, so that the reads of the copy cannot be reordered after it.
+ * </p>
+ */
+public class SampleRingBuffer {
+    // Number of attempts of a reader before giving up when it is lapped by the writer
+    private static final int MAX_READ_ATTEMPTS = 4;
+
+    private final int capacity;
+    private final int mask;
+
+    private final short[] accX;
+    private final short[] accY;
+    private final short[] accZ;
+    private final short[] gyroX;
+    private final short[] gyroY;
+    private final short[] gyroZ;
+    private final long[] timestamps;
+    private final long[] sampleTimes;
+    private final int[] packetIndexes;
+    private final int[] lostPackets;
+
+    // Sequence number of the next sample to write, published after the sample is written
+    private volatile long writeSequence = 0;
+    // Sequence number of the first sample after the last clear
+    private volatile long startSequence = 0;
+    // Written by the readers between a copy and its validation, as a load fence
+    private volatile int readFence;
+
+    /**
+     * Constructs an empty ring buffer
+     * @param capacity minimum number of samples kept, rounded up to a power of two
+     */
+    public SampleRingBuffer(int capacity){
+        if (capacity < 2 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal ring buffer capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        accX = new short[size];
+        accY = new short[size];
+        accZ = new short[size];
+        gyroX = new short[size];
+        gyroY = new short[size];
+        gyroZ = new short[size];
+        timestamps = new long[size];
+        sampleTimes = new long[size];
+        packetIndexes = new int[size];
+        lostPackets = new int[size];
+    }
+
+    /**
+     * Appends a sample to the buffer, overwriting the oldest sample if the buffer is full. Must
+     * only be called from the writer thread.
+     * @param evt sensor event to copy
+     */
+    public void add(ESenseEvent evt){
+        // Volatile read, the stores below cannot become visible before the previous publication
+        long seq = writeSequence;
+        int i = (int) (seq & mask);
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        accX[i] = acc[0];
+        accY[i] = acc[1];
+        accZ[i] = acc[2];
+        gyroX[i] = gyro[0];
+        gyroY[i] = gyro[1];
+        gyroZ[i] = gyro[2];
+        timestamps[i] = evt.getTimestamp();
+        sampleTimes[i] = evt.getSampleTimeNanos();
+        packetIndexes[i] = evt.getPacketIndex();
+        lostPackets[i] = evt.getLostPackets();
+        // Publish
+        writeSequence = seq + 1;
+    }
+
+    /**
+     * Discards all samples. Must not be called concurrently with {@link #add(ESenseEvent)}.
+     */
+    public void clear(){
+        startSequence = writeSequence;
+    }
+
+    /**
+     * Returns the number of samples the buffer can hold
+     * @return the capacity of the buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the sequence number of the next sample to be written, i.e. the number of samples
+     * written since the buffer was created
+     * @return the write sequence
+     */
+    public long getWriteSequence() {
+        return writeSequence;
+    }
+
+    /**
+     * Returns the sequence number of the oldest sample that can still be read
+     * @return the sequence number of the oldest sample
+     */
+    public long getOldestSequence() {
+        return oldestReadable(writeSequence);
+    }
+
+    /**
+     * Returns the number of samples available for reading
+     * @return number of readable samples
+     */
+    public int getSize() {
+        long w = writeSequence;
+        return (int) (w - oldestReadable(w));
+    }
+
+    /**
+     * Copies the most recent samples into a block
+     * @param count maximum number of samples to copy, limited by the block capacity
+     * @param dest block to fill, cleared before the copy
+     * @return the number of samples copied
+     */
+    public int copyLatest(int count, SampleBlock dest){
+        int n = Math.min(count, dest.getCapacity());
+        return copyRange(writeSequence - n, n, dest);
+    }
+
+    /**
+     * Copies consecutive samples into a block. If the first requested sample is no longer
+     * available, the copy starts at the oldest available sample; use
+     * {@link SampleBlock#getFirstSequence()} to know where it actually started.
+     * @param fromSequence sequence number of the first sample to copy
+     * @param count maximum number of samples to copy, limited by the block capacity
+     * @param dest block to fill, cleared before the copy
+     * @return the number of samples copied
+     */
+    public int copyRange(long fromSequence, int count, SampleBlock dest){
+        dest.clear();
+        long from = fromSequence;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long w = writeSequence;
+            from = Math.max(from, oldestReadable(w));
+            int n = (int) Math.max(0, Math.min(Math.min(count, dest.getCapacity()), w - from));
+            copyColumns(from, n, dest);
+            // Check that the writer did not overwrite the copied samples in the meantime
+            long oldest = oldestReadable(getWriteSequenceAfterCopy());
+            if (from >= oldest || n == 0) {
+                dest.setSize(n);
+                dest.setFirstSequence(from);
+                return n;
+            }
+            from = oldest;
+        }
+        return 0;
+    }
+
+    /**
+     * Copies a single sample into an event
+     * @param sequence sequence number of the sample
+     * @param dest event to fill
+     * @return <code>true</code> if the sample has been copied,
+     *         <code>false</code> if it is not available
+     */
+    public boolean getEvent(long sequence, ESenseEvent dest){
+        if (sequence < oldestReadable(writeSequence) || sequence >= writeSequence) {
+            return false;
+        }
+        int i = (int) (sequence & mask);
+        short[] acc = dest.getAccel();
+        short[] gyro = dest.getGyro();
+        acc[0] = accX[i];
+        acc[1] = accY[i];
+        acc[2] = accZ[i];
+        gyro[0] = gyroX[i];
+        gyro[1] = gyroY[i];
+        gyro[2] = gyroZ[i];
+        dest.setTimestamp(timestamps[i]);
+        dest.setSampleTimeNanos(sampleTimes[i]);
+        dest.setPacketIndex(packetIndexes[i]);
+        dest.setLostPackets(lostPackets[i]);
+        return sequence >= oldestReadable(getWriteSequenceAfterCopy());
+    }
+
+    /**
+     * Copies the most recent sample into an event
+     * @param dest event to fill
+     * @return <code>true</code> if a sample has been copied,
+     *         <code>false</code> if the buffer is empty
+     */
+    public boolean getLatest(ESenseEvent dest){
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long w = writeSequence;
+            if (w <= startSequence) {
+                return false;
+            }
+            if (getEvent(w - 1, dest)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the oldest sequence that is not being overwritten for the given write sequence. The
+     * slot of the oldest sample is the one the writer fills next, so it is excluded.
+     */
+    private long oldestReadable(long w){
+        return Math.max(startSequence, w - capacity + 1);
+    }
+
+    /**
+     * Returns the write sequence to validate a copy. A plain read may be reordered after a
+     * following volatile read, but not after a following volatile write, and a volatile write is
+     * never reordered after a following volatile read: the write of the fence therefore keeps the
+     * reads of the copy before the read of the write sequence.
+     */
+    private long getWriteSequenceAfterCopy(){
+        readFence = 0;
+        return writeSequence;
+    }
+
+    private void copyColumns(long from, int n, SampleBlock dest){
+        int start = (int) (from & mask);
+        int first = Math.min(n, capacity - start);
+        copySegment(start, 0, first, dest);
+        if (first < n) {
+            copySegment(0, first, n - first, dest);
+        }
+    }
+
+    private void copySegment(int srcPos, int destPos, int length, SampleBlock dest){
+        System.arraycopy(accX, srcPos, dest.getAccX(), destPos, length);
+        System.arraycopy(accY, srcPos, dest.getAccY(), destPos, length);
+        System.arraycopy(accZ, srcPos, dest.getAccZ(), destPos, length);
+        System.arraycopy(gyroX, srcPos, dest.getGyroX(), destPos, length);
+        System.arraycopy(gyroY, srcPos, dest.getGyroY(), destPos, length);
+        System.arraycopy(gyroZ, srcPos, dest.getGyroZ(), destPos, length);
+        System.arraycopy(timestamps, srcPos, dest.getTimestamps(), destPos, length);
+        System.arraycopy(sampleTimes, srcPos, dest.getSampleTimes(), destPos, length);
+        System.arraycopy(packetIndexes, srcPos, dest.getPacketIndexes(), destPos, length);
+        System.arraycopy(lostPackets, srcPos, dest.getLostPackets(), destPos, length);
+    }
+}
@@ -0,0 +1,35 @@
+package io.esense.esenselib;
+
+import java.io.IOException;
+
+/**
+ * Destination of the recorded samples, e.g. a file, a socket or a memory buffer, fed by a
+ * {@link SampleFanOut}.
+ *
+ * <p>
+ *     All methods are called on the worker thread of the sink, so that a sink does not need to be
+ *     thread-safe and a slow sink does not delay the others. An exception thrown by a sink stops
+ *     it: it is closed and receives no more samples, while the other sinks go on.
+ * </p>
+ */
+public interface SampleSink {
+    /**
+     * Called when a block of consecutive samples is available. The block is owned by the caller,
+     * as for {@link ESenseSensorBatchListener#onSensorBatch(SampleBlock)}.
+     * @param block block of samples, with their reconstructed sample times
+     * @throws IOException if the samples cannot be written
+     */
+    void onSamples(SampleBlock block) throws IOException;
+
+    /**
+     * Called about every second of samples, so that buffered samples are not kept indefinitely
+     * @throws IOException if the samples cannot be written
+     */
+    void flush() throws IOException;
+
+    /**
+     * Called once, after the last samples or after a failure of the sink
+     * @throws IOException if the sink cannot be completed
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,34 @@
+package io.esense.esenselib;
+
+/**
+ * Processing stage of a {@link SamplePipeline}, e.g. a filter, a resampler, a window or a
+ * feature extractor.
+ *
+ * <p>
+ *     A stage receives blocks of samples and emits zero or more blocks to the next stage. It may
+ *     modify the input block in place and emit it, or emit output blocks it owns. The next stage
+ *     may in turn modify an emitted block, so a stage must not emit a block holding its own state
+ *     (e.g. the history of a window). Stages are called on the thread of the pipeline and should
+ *     not allocate once prepared.
+ * </p>
+ */
+public interface SampleStage {
+    /**
+     * Prepares the stage before the first block, e.g. allocates its buffers
+     * @param maxBlockSize maximum number of samples of the input blocks
+     * @return maximum number of samples of the emitted blocks
+     */
+    int prepare(int maxBlockSize);
+
+    /**
+     * Processes a block of samples
+     * @param block input block, owned by the pipeline, which may be modified
+     * @param output next stage, to which the processed blocks are emitted
+     */
+    void process(SampleBlock block, SampleStageOutput output);
+
+    /**
+     * Discards the state of the stage, e.g. at a gap in the samples or at a new session
+     */
+    void reset();
+}
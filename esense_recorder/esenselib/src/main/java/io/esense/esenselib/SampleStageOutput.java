@@ -0,0 +1,12 @@
+package io.esense.esenselib;
+
+/**
+ * Destination of the blocks emitted by a {@link SampleStage}
+ */
+public interface SampleStageOutput {
+    /**
+     * Passes a block to the next stage, which may modify it
+     * @param block block of samples
+     */
+    void emit(SampleBlock block);
+}
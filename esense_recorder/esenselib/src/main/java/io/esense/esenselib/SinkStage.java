@@ -0,0 +1,35 @@
+package io.esense.esenselib;
+
+/**
+ * Stage passing the blocks to a batch listener, e.g. to record or display processed samples,
+ * and emitting them unchanged to the next stage
+ */
+public class SinkStage implements SampleStage {
+    private final ESenseSensorBatchListener mListener;
+
+    /**
+     * Constructs a sink stage
+     * @param listener listener of the blocks, called on the thread of the pipeline
+     */
+    public SinkStage(ESenseSensorBatchListener listener){
+        if (listener == null) {
+            throw new IllegalArgumentException("The listener must not be null");
+        }
+        mListener = listener;
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        mListener.onSensorBatch(block);
+        output.emit(block);
+    }
+
+    @Override
+    public void reset() {
+    }
+}
@@ -0,0 +1,280 @@
+package io.esense.esenselib;
+
+/**
+ * Stage computing spectral features of the six IMU channels over sliding windows of samples,
+ * e.g. band powers, dominant frequency and spectral entropy to detect chewing or speaking.
+ *
+ * <p>
+ *     The last <code>size</code> samples of each channel are kept in a ring. As soon as the
+ *     window is complete, then every <code>hop</code> samples, the mean of each channel is
+ *     removed, the samples are multiplied by the window function and padded with zeros to a
+ *     power of 2, and their power spectrum is computed by a {@link RealFft}. The FFT and window
+ *     tables are shared by the stages of the same sizes, and the transform runs in place in a
+ *     buffer of the stage, so that no window allocates.
+ * </p>
+ * <p>
+ *     The features are delivered into a reused {@link SpectralFeatures}. Windows are not split
+ *     at gaps: the lost packets of a window tell if it has some. The input blocks are emitted
+ *     unchanged to the next stage, so that the stage can be fed from the live samples as well as
+ *     from a recorded session.
+ * </p>
+ */
+public class SpectralFeatureStage implements SampleStage {
+    private static final int CHANNELS = WindowStatistics.CHANNEL_COUNT;
+
+    private final int mSize;
+    private final int mHop;
+    private final SpectralFeaturesListener mListener;
+    private final RealFft mFft;
+    private final float[] mWindow;
+    // Normalization of the power of each channel, with the conversion of the ADC values
+    private final double[] mPowerScales = new double[CHANNELS];
+    // First bin of each band, and end of the last band
+    private final int[] mBandBins;
+    private final SpectralFeatures mFeatures;
+    // Buffer of the transform
+    private final float[] mData;
+
+    // Values, sample times and lost packets of the window in rings, as in WindowStatisticsStage
+    private final short[][] mValues = new short[CHANNELS][];
+    private final long[] mSampleTimes;
+    private final int[] mLostPacketRing;
+    private int mLostPackets;
+    private long mSampleCount = 0;
+    private int mSlot = 0;
+    private int mSinceLastWindow = 0;
+
+    /**
+     * Constructs a spectral feature stage, in ADC units
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param size number of samples of a window
+     * @param hop number of samples between the ends of consecutive windows
+     * @param window window function applied to the samples
+     * @param bandEdges increasing frequencies in Hz delimiting the bands, e.g.
+     *                  <code>{0.5, 3, 8, 20}</code> for 3 bands
+     * @param listener listener of the features, called on the thread of the pipeline
+     */
+    public SpectralFeatureStage(double samplingRate, int size, int hop, SpectralWindow window,
+                                double[] bandEdges, SpectralFeaturesListener listener){
+        this(samplingRate, size, hop, window, bandEdges, null, listener);
+    }
+
+    /**
+     * Constructs a spectral feature stage
+     * @param samplingRate sampling rate of the samples in Hz
+     * @param size number of samples of a window
+     * @param hop number of samples between the ends of consecutive windows
+     * @param window window function applied to the samples
+     * @param bandEdges increasing frequencies in Hz delimiting the bands, e.g.
+     *                  <code>{0.5, 3, 8, 20}</code> for 3 bands
+     * @param kernel conversion to g and deg/s, or <code>null</code> for ADC units
+     * @param listener listener of the features, called on the thread of the pipeline
+     */
+    public SpectralFeatureStage(double samplingRate, int size, int hop, SpectralWindow window,
+                                double[] bandEdges, ConversionKernel kernel,
+                                SpectralFeaturesListener listener){
+        if (!(samplingRate > 0)) {
+            throw new IllegalArgumentException("The sampling rate must be positive");
+        }
+        if (size < 2 || hop < 1) {
+            throw new IllegalArgumentException("The window size must be at least 2 and the hop "
+                    + "positive");
+        }
+        if (bandEdges.length < 2) {
+            throw new IllegalArgumentException("At least one band is required");
+        }
+        for (int b = 1; b < bandEdges.length; b++) {
+            if (!(bandEdges[b] > bandEdges[b - 1])) {
+                throw new IllegalArgumentException("The band edges must be increasing");
+            }
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("The listener must not be null");
+        }
+        mSize = size;
+        mHop = hop;
+        mListener = listener;
+        mFft = RealFft.getInstance(RealFft.getSizeFor(size));
+        mWindow = window.getCoefficients(size);
+        int fftSize = mFft.getSize();
+        int binCount = fftSize / 2 + 1;
+        double resolution = samplingRate / fftSize;
+
+        // One-sided power normalized by the energy of the window, so that the bins add up to
+        // the variance
+        double windowEnergy = 0;
+        for (int n = 0; n < size; n++) {
+            windowEnergy += (double) mWindow[n] * mWindow[n];
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            double scale = 1;
+            if (kernel != null) {
+                scale = 1 / ((c < 3) ? kernel.getAccSensitivityFactor() :
+                        kernel.getGyroSensitivityFactor());
+            }
+            mPowerScales[c] = scale * scale / (fftSize * windowEnergy);
+        }
+        mBandBins = new int[bandEdges.length];
+        for (int b = 0; b < bandEdges.length; b++) {
+            int bin = (int) Math.ceil(bandEdges[b] / resolution);
+            mBandBins[b] = Math.max(0, Math.min(binCount, bin));
+        }
+        mFeatures = new SpectralFeatures(bandEdges.clone(), binCount, resolution);
+        mData = new float[fftSize];
+        for (int c = 0; c < CHANNELS; c++) {
+            mValues[c] = new short[size];
+        }
+        mSampleTimes = new long[size];
+        mLostPacketRing = new int[size];
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        int size = block.getSize();
+        long[] sampleTimes = block.getSampleTimes();
+        int[] lostPackets = block.getLostPackets();
+        short[] accX = block.getAccX();
+        short[] accY = block.getAccY();
+        short[] accZ = block.getAccZ();
+        short[] gyroX = block.getGyroX();
+        short[] gyroY = block.getGyroY();
+        short[] gyroZ = block.getGyroZ();
+        for (int i = 0; i < size; i++) {
+            int slot = mSlot;
+            boolean first = mSampleCount == 0;
+            int next = (slot + 1 == mSize) ? 0 : slot + 1;
+            // The lost packets of the oldest sample are before the window
+            if (mSampleCount >= mSize) {
+                mLostPackets -= mLostPacketRing[next];
+            }
+            mLostPacketRing[slot] = first ? 0 : lostPackets[i];
+            mLostPackets += mLostPacketRing[slot];
+            mSampleTimes[slot] = sampleTimes[i];
+            mValues[0][slot] = accX[i];
+            mValues[1][slot] = accY[i];
+            mValues[2][slot] = accZ[i];
+            mValues[3][slot] = gyroX[i];
+            mValues[4][slot] = gyroY[i];
+            mValues[5][slot] = gyroZ[i];
+            mSampleCount++;
+            mSlot = next;
+            mSinceLastWindow++;
+            if (mSampleCount == mSize || (mSampleCount > mSize && mSinceLastWindow >= mHop)) {
+                mSinceLastWindow = 0;
+                deliver();
+            }
+        }
+        output.emit(block);
+    }
+
+    /**
+     * Computes the features of the window and passes them to the listener
+     */
+    private void deliver(){
+        SpectralFeatures features = mFeatures;
+        for (int c = 0; c < CHANNELS; c++) {
+            analyze(c, features);
+        }
+        features.mSampleCount = mSize;
+        // The next slot is the one of the oldest sample
+        features.mStartSampleTime = mSampleTimes[mSlot];
+        features.mEndSampleTime = mSampleTimes[(mSlot == 0) ? mSize - 1 : mSlot - 1];
+        features.mLostPackets = mLostPackets;
+        mListener.onSpectralFeatures(features);
+    }
+
+    private void analyze(int channel, SpectralFeatures features){
+        short[] values = mValues[channel];
+        float[] data = mData;
+        float[] window = mWindow;
+        int size = mSize;
+        int oldest = mSlot;
+
+        // Samples in order, without their mean, windowed and padded
+        long sum = 0;
+        for (int n = 0; n < size; n++) {
+            sum += values[n];
+        }
+        float mean = (float) ((double) sum / size);
+        int n = 0;
+        for (int slot = oldest; slot < size; slot++, n++) {
+            data[n] = (values[slot] - mean) * window[n];
+        }
+        for (int slot = 0; slot < oldest; slot++, n++) {
+            data[n] = (values[slot] - mean) * window[n];
+        }
+        for (; n < data.length; n++) {
+            data[n] = 0;
+        }
+        mFft.forward(data);
+        float[] power = features.mPowerSpectra[channel];
+        mFft.getPower(data, power);
+
+        int last = power.length - 1;
+        float scale = (float) mPowerScales[channel];
+        double total = 0;
+        int dominant = 0;
+        float maxPower = 0;
+        power[0] *= scale;
+        for (int k = 1; k <= last; k++) {
+            float p = power[k] * ((k == last) ? scale : 2 * scale);
+            power[k] = p;
+            total += p;
+            if (p > maxPower) {
+                maxPower = p;
+                dominant = k;
+            }
+        }
+        double entropy = 0;
+        if (total > 0 && last > 1) {
+            for (int k = 1; k <= last; k++) {
+                if (power[k] > 0) {
+                    double p = power[k] / total;
+                    entropy -= p * Math.log(p);
+                }
+            }
+            entropy /= Math.log(last);
+        }
+        features.mTotalPowers[channel] = total;
+        features.mDominantFrequencies[channel] = dominant * features.mFrequencyResolution;
+        features.mEntropies[channel] = entropy;
+        int bandCount = features.mBandCount;
+        for (int b = 0; b < bandCount; b++) {
+            double bandPower = 0;
+            for (int k = mBandBins[b]; k < mBandBins[b + 1]; k++) {
+                bandPower += power[k];
+            }
+            features.mBandPowers[channel * bandCount + b] = bandPower;
+        }
+    }
+
+    @Override
+    public void reset() {
+        mSampleCount = 0;
+        mSlot = 0;
+        mSinceLastWindow = 0;
+        mLostPackets = 0;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getHop() {
+        return mHop;
+    }
+
+    /**
+     * Returns the number of values of the transform, i.e. the window size rounded up to a power
+     * of 2
+     * @return the size of the transform
+     */
+    public int getFftSize() {
+        return mFft.getSize();
+    }
+}
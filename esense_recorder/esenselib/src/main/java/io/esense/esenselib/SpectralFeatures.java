@@ -0,0 +1,135 @@
+package io.esense.esenselib;
+
+/**
+ * Spectral features of the six IMU channels over a window of samples, written by a
+ * {@link SpectralFeatureStage}.
+ *
+ * <p>
+ *     A feature vector is reused for every window: its values must be copied if they are needed
+ *     after the listener returns. The channels are indexed as in {@link WindowStatistics}. The
+ *     power of a bin is the part of the variance of the channel in this bin, so that the powers
+ *     of all the bins add up to about the variance of the window: they are in squared ADC units,
+ *     or in squared g and deg/s if the stage has a conversion kernel.
+ * </p>
+ */
+public class SpectralFeatures {
+    final int mBandCount;
+    final double[] mBandEdges;
+    final double mFrequencyResolution;
+    final float[][] mPowerSpectra = new float[WindowStatistics.CHANNEL_COUNT][];
+    final double[] mBandPowers;
+    final double[] mTotalPowers = new double[WindowStatistics.CHANNEL_COUNT];
+    final double[] mDominantFrequencies = new double[WindowStatistics.CHANNEL_COUNT];
+    final double[] mEntropies = new double[WindowStatistics.CHANNEL_COUNT];
+    int mSampleCount;
+    long mStartSampleTime;
+    long mEndSampleTime;
+    int mLostPackets;
+
+    SpectralFeatures(double[] bandEdges, int binCount, double frequencyResolution){
+        mBandEdges = bandEdges;
+        mBandCount = bandEdges.length - 1;
+        mFrequencyResolution = frequencyResolution;
+        mBandPowers = new double[WindowStatistics.CHANNEL_COUNT * mBandCount];
+        for (int c = 0; c < WindowStatistics.CHANNEL_COUNT; c++) {
+            mPowerSpectra[c] = new float[binCount];
+        }
+    }
+
+    public int getBandCount() {
+        return mBandCount;
+    }
+
+    /**
+     * Returns the lower frequency of a band, which is the upper frequency of the previous one
+     * @param band index of the band, or the band count for the upper frequency of the last band
+     * @return the frequency in Hz
+     */
+    public double getBandEdge(int band) {
+        return mBandEdges[band];
+    }
+
+    /**
+     * Returns the power of a channel in a band, i.e. in the bins whose frequency is at least the
+     * lower edge of the band and below its upper edge
+     * @param channel index of the channel
+     * @param band index of the band
+     * @return the power of the band
+     */
+    public double getBandPower(int channel, int band) {
+        return mBandPowers[channel * mBandCount + band];
+    }
+
+    /**
+     * Returns the power of a channel in all the bins but the mean (bin 0)
+     * @param channel index of the channel
+     * @return the total power
+     */
+    public double getTotalPower(int channel) {
+        return mTotalPowers[channel];
+    }
+
+    /**
+     * Returns the frequency of the bin with the highest power, the mean excluded
+     * @param channel index of the channel
+     * @return the dominant frequency in Hz, 0 if the channel is constant
+     */
+    public double getDominantFrequency(int channel) {
+        return mDominantFrequencies[channel];
+    }
+
+    /**
+     * Returns the Shannon entropy of the power distribution over the bins, the mean excluded,
+     * normalized by the maximum entropy: 1 for a white noise, close to 0 for a pure tone
+     * @param channel index of the channel
+     * @return the spectral entropy from 0 to 1, 0 if the channel is constant
+     */
+    public double getSpectralEntropy(int channel) {
+        return mEntropies[channel];
+    }
+
+    /**
+     * Returns the power spectrum of a channel, which must not be modified
+     * @param channel index of the channel
+     * @return the power of the bins, from 0 Hz to half the sampling rate
+     */
+    public float[] getPowerSpectrum(int channel) {
+        return mPowerSpectra[channel];
+    }
+
+    /**
+     * Returns the frequency step between consecutive bins
+     * @return the frequency resolution in Hz
+     */
+    public double getFrequencyResolution() {
+        return mFrequencyResolution;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the reconstructed time of the first sample of the window
+     * @return the sample time in nanoseconds
+     */
+    public long getStartSampleTime() {
+        return mStartSampleTime;
+    }
+
+    /**
+     * Returns the reconstructed time of the last sample of the window
+     * @return the sample time in nanoseconds
+     */
+    public long getEndSampleTime() {
+        return mEndSampleTime;
+    }
+
+    /**
+     * Returns the number of packets lost between the samples of the window
+     * @return the number of lost packets
+     */
+    public int getLostPackets() {
+        return mLostPackets;
+    }
+}
@@ -0,0 +1,14 @@
+package io.esense.esenselib;
+
+public interface SpectralFeaturesListener {
+    /**
+     * Called when the spectral features of a window are available.
+     *
+     * <p>
+     *     The feature vector is reused for the next window, so the listener must not keep a
+     *     reference to it and must copy the values it needs after returning.
+     * </p>
+     * @param features spectral features of the window
+     */
+    void onSpectralFeatures(SpectralFeatures features);
+}
@@ -0,0 +1,49 @@
+package io.esense.esenselib;
+
+import java.util.HashMap;
+
+/**
+ * Window function applied to the samples before a Fourier transform, to reduce the spectral
+ * leakage. The coefficients are computed once per length and shared.
+ */
+public enum SpectralWindow {
+    RECTANGULAR,
+    HANN,
+    HAMMING;
+
+    private final HashMap<Integer, float[]> mTables = new HashMap<>();
+
+    /**
+     * Returns the coefficients of the window, which must not be modified
+     * @param length number of samples of the window
+     * @return the <code>length</code> coefficients
+     */
+    public float[] getCoefficients(int length){
+        if (length < 1) {
+            throw new IllegalArgumentException("The window length must be positive");
+        }
+        synchronized (mTables) {
+            float[] table = mTables.get(length);
+            if (table == null) {
+                table = new float[length];
+                for (int n = 0; n < length; n++) {
+                    // Periodic windows, as used for spectral analysis
+                    double phase = 2 * Math.PI * n / length;
+                    switch (this) {
+                        case HANN:
+                            table[n] = (float) (0.5 - 0.5 * Math.cos(phase));
+                            break;
+                        case HAMMING:
+                            table[n] = (float) (0.54 - 0.46 * Math.cos(phase));
+                            break;
+                        default:
+                            table[n] = 1;
+                            break;
+                    }
+                }
+                mTables.put(length, table);
+            }
+            return table;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package io.esense.esenselib;
+
+/**
+ * Reconstructs regular sample times from the bursty arrival times of sensor notifications.
+ *
+ * <p>
+ *     Packets are sampled at a fixed rate on the device but delivered in bursts at each BLE
+ *     connection interval. The reconstructor fits the arrival times against the unwrapped packet
+ *     sequence with an exponentially weighted linear regression, which estimates both the actual
+ *     sample period (i.e. the clock drift between the device and the phone) and the mean delivery
+ *     delay. The sample time is the value of the regression line at the sample's sequence.
+ *     Memory and update cost are constant: the regression sums are kept relative to the last
+ *     sample, so that they stay small during long recordings.
+ * </p>
+ */
+public class TimestampReconstructor {
+    // Number of samples weighting the regression (time constant of the forgetting factor), long
+    // enough to average out the connection interval bursts and to resolve a drift of some ppm
+    private static final double REGRESSION_WINDOW = 10000;
+    // Minimum number of samples before the period is estimated from the regression
+    private static final int MIN_SAMPLES_FOR_PERIOD = 50;
+    // Residual above which the history is discarded (e.g. after a device reset), in nanoseconds
+    private static final double RESET_RESIDUAL_NANOS = 1E9;
+    // Maximum relative deviation of the estimated period from the nominal period
+    private static final double MAX_DRIFT = 0.05;
+
+    private final double mForgetting = 1. - 1. / REGRESSION_WINDOW;
+
+    private double mNominalPeriodNanos;
+
+    // Regression sums, with x the sequence and y the arrival time relative to the last sample
+    private double mSw;
+    private double mSx;
+    private double mSy;
+    private double mSxx;
+    private double mSxy;
+    private int mCount;
+
+    private long mLastSequence;
+    private long mLastArrivalNanos;
+    private long mLastSampleTimeNanos;
+
+    private volatile double mPeriodNanos;
+    private volatile double mJitterNanos;
+    private double mJitterVariance;
+
+    /**
+     * Constructs a reconstructor for a sampling rate
+     * @param samplingRate sampling rate in Hz
+     */
+    public TimestampReconstructor(int samplingRate){
+        reset(samplingRate);
+    }
+
+    /**
+     * Discards the history and sets the nominal sampling rate
+     * @param samplingRate sampling rate in Hz
+     */
+    public void reset(int samplingRate){
+        if (samplingRate < 1) {
+            throw new IllegalArgumentException("The sampling rate must be positive");
+        }
+        mNominalPeriodNanos = 1E9 / samplingRate;
+        mPeriodNanos = mNominalPeriodNanos;
+        clearHistory();
+    }
+
+    /**
+     * Adds a sample and returns its reconstructed time
+     * @param sequence unwrapped sequence of the sample, counting lost samples
+     * @param arrivalNanos arrival time of the sample, in the {@link System#nanoTime()} time base
+     * @return the reconstructed sample time in nanoseconds, in the time base of the arrival times
+     */
+    public long update(long sequence, long arrivalNanos){
+        if (mCount > 0 && sequence <= mLastSequence) {
+            // New session of the sequence numbering
+            clearHistory();
+        }
+        if (mCount > 0) {
+            // Move the origin of the sums to the new sample
+            double dx = sequence - mLastSequence;
+            double dy = arrivalNanos - mLastArrivalNanos;
+            double decay = (dx == 1) ? mForgetting : Math.pow(mForgetting, dx);
+            double sw = mSw;
+            double sx = mSx;
+            double sy = mSy;
+            mSxx = decay * (mSxx - 2 * dx * sx + dx * dx * sw);
+            mSxy = decay * (mSxy - dx * sy - dy * sx + dx * dy * sw);
+            mSx = decay * (sx - dx * sw);
+            mSy = decay * (sy - dy * sw);
+            mSw = decay * sw;
+            // Residual of the arrival before the update
+            double residual = -predict();
+            if (Math.abs(residual) > RESET_RESIDUAL_NANOS) {
+                clearHistory();
+            } else {
+                mJitterVariance = mForgetting * mJitterVariance
+                        + (1. - mForgetting) * residual * residual;
+                mJitterNanos = Math.sqrt(mJitterVariance);
+            }
+        }
+        // Add the new sample at the origin
+        mSw += 1;
+        mCount++;
+        mLastSequence = sequence;
+        mLastArrivalNanos = arrivalNanos;
+
+        long sampleTime = arrivalNanos + Math.round(predict());
+        if (mCount > 1) {
+            // Keep the sample times increasing
+            long minTime = mLastSampleTimeNanos + Math.round(mPeriodNanos / 2);
+            if (sampleTime < minTime) {
+                sampleTime = minTime;
+            }
+        }
+        mLastSampleTimeNanos = sampleTime;
+        return sampleTime;
+    }
+
+    /**
+     * Returns the estimated sample period, which differs from the nominal period by the clock
+     * drift between the device and the phone
+     * @return the sample period in nanoseconds
+     */
+    public double getPeriodNanos() {
+        return mPeriodNanos;
+    }
+
+    /**
+     * Returns the estimated relative clock drift of the device
+     * @return the drift in parts per million
+     */
+    public double getDriftPpm() {
+        return (mPeriodNanos / mNominalPeriodNanos - 1.) * 1E6;
+    }
+
+    /**
+     * Returns the standard deviation of the arrival times around the reconstructed times
+     * @return the jitter in nanoseconds
+     */
+    public double getJitterNanos() {
+        return mJitterNanos;
+    }
+
+    /**
+     * Returns the time offset of the regression line at the last sample, relative to its arrival,
+     * and updates the estimated period.
+     */
+    private double predict(){
+        if (mSw <= 0) {
+            return 0;
+        }
+        double period = mNominalPeriodNanos;
+        double det = mSw * mSxx - mSx * mSx;
+        if (mCount >= MIN_SAMPLES_FOR_PERIOD && det > 0) {
+            double slope = (mSw * mSxy - mSx * mSy) / det;
+            if (Math.abs(slope / mNominalPeriodNanos - 1.) <= MAX_DRIFT) {
+                period = slope;
+            }
+        }
+        mPeriodNanos = period;
+        return (mSy - period * mSx) / mSw;
+    }
+
+    private void clearHistory(){
+        mSw = 0;
+        mSx = 0;
+        mSy = 0;
+        mSxx = 0;
+        mSxy = 0;
+        mCount = 0;
+        mLastSequence = 0;
+        mLastArrivalNanos = 0;
+        mLastSampleTimeNanos = 0;
+        mJitterVariance = 0;
+        mJitterNanos = 0;
+    }
+}
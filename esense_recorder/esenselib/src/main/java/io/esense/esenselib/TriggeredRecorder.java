@@ -0,0 +1,270 @@
+package io.esense.esenselib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sensor listener that forwards the samples to a target only around trigger events.
+ *
+ * <p>
+ *     While idle, the samples are kept in a {@link SampleRingBuffer} and discarded when they are
+ *     overwritten. When a trigger fires, the samples of the pre-trigger duration are forwarded
+ *     from the history, followed by the live samples until the hold duration has elapsed since the
+ *     last trigger; a trigger during the hold extends it. Durations are measured on the sample
+ *     times of the events, so that the recorded episodes do not depend on the delivery delays.
+ * </p>
+ * <p>
+ *     Triggers are a motion energy threshold, checked on every sample, and explicit triggers
+ *     (e.g. the button of the device or a user action) requested with {@link #trigger(int)} from
+ *     any thread and applied at the next sample. The motion energy is an exponential moving
+ *     average of the squared magnitude of the angular rate. The recorder must be called from a
+ *     single thread, e.g. the consumer thread of an {@link AsyncSensorDispatcher}, and the target
+ *     and listener are called on that thread.
+ * </p>
+ */
+public class TriggeredRecorder implements ESenseSensorListener {
+    /**
+     * Trigger fired by the motion energy threshold
+     */
+    public static final int TRIGGER_MOTION = 1;
+    /**
+     * Trigger fired by the button of the device
+     */
+    public static final int TRIGGER_BUTTON = 1 << 1;
+    /**
+     * Trigger fired by an application call
+     */
+    public static final int TRIGGER_API = 1 << 2;
+
+    /**
+     * Listener of the recording episodes, called on the thread of the recorder
+     */
+    public interface Listener {
+        /**
+         * Called when a trigger starts an episode, before the history is forwarded
+         * @param triggers triggers that fired, combination of the <code>TRIGGER_</code> flags
+         * @param firstSampleTimeNanos sample time of the first forwarded sample
+         * @param triggerSampleTimeNanos sample time of the sample at which the trigger fired
+         */
+        void onEpisodeStarted(int triggers, long firstSampleTimeNanos, long triggerSampleTimeNanos);
+
+        /**
+         * Called when the hold duration has elapsed, after the last forwarded sample
+         * @param lastSampleTimeNanos sample time of the last forwarded sample
+         */
+        void onEpisodeEnded(long lastSampleTimeNanos);
+    }
+
+    private final ESenseSensorListener mTarget;
+    private final SampleRingBuffer mHistory;
+    private final long mPreTriggerNanos;
+    private final long mHoldNanos;
+    private volatile Listener mListener;
+
+    // Motion trigger, disabled if the threshold is 0
+    private volatile double mMotionThresholdSquared = 0;
+    private volatile double mMotionSmoothing = 1;
+    private double mMotionEnergy = 0;
+
+    // Triggers requested from other threads, and reset request
+    private final AtomicInteger mPendingTriggers = new AtomicInteger();
+    private volatile boolean mResetRequested = false;
+
+    // Episode state, only used on the thread of the recorder
+    private boolean mRecording = false;
+    private long mHoldEndNanos;
+    private long mLastForwardedNanos;
+
+    // Statistics
+    private volatile long mEpisodeCount = 0;
+    private volatile long mForwardedSamples = 0;
+    private volatile long mDiscardedSamples = 0;
+
+    /**
+     * Constructs a recorder
+     * @param target listener of the forwarded samples
+     * @param historyCapacity number of samples kept before a trigger, at least the pre-trigger
+     *                        duration at the highest sampling rate
+     * @param preTriggerNanos duration of the history forwarded when a trigger fires, in ns
+     * @param holdNanos duration of the recording after the last trigger, in ns
+     */
+    public TriggeredRecorder(ESenseSensorListener target, int historyCapacity,
+                             long preTriggerNanos, long holdNanos){
+        if (target == null) {
+            throw new IllegalArgumentException("The target listener must not be null");
+        }
+        if (preTriggerNanos < 0 || holdNanos < 0) {
+            throw new IllegalArgumentException("The durations must not be negative");
+        }
+        mTarget = target;
+        mHistory = new SampleRingBuffer(historyCapacity);
+        mPreTriggerNanos = preTriggerNanos;
+        mHoldNanos = holdNanos;
+    }
+
+    /**
+     * Sets the listener of the recording episodes
+     * @param listener episode listener, or <code>null</code>
+     */
+    public void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    /**
+     * Sets the motion trigger
+     * @param gyroThreshold threshold of the smoothed angular rate magnitude in ADC units (deg/s
+     *                      multiplied by the gyroscope sensitivity factor), 0 to disable
+     * @param smoothingSamples time constant of the moving average of the energy, in samples
+     */
+    public void setMotionTrigger(double gyroThreshold, int smoothingSamples){
+        if (smoothingSamples < 1) {
+            throw new IllegalArgumentException("The smoothing must be at least one sample");
+        }
+        mMotionSmoothing = 1.0 / smoothingSamples;
+        mMotionThresholdSquared = gyroThreshold * gyroThreshold;
+    }
+
+    /**
+     * Fires a trigger at the next sample. Can be called from any thread.
+     * @param trigger trigger source, e.g. {@link #TRIGGER_BUTTON} or {@link #TRIGGER_API}
+     */
+    public void trigger(int trigger){
+        int pending;
+        do {
+            pending = mPendingTriggers.get();
+        } while (!mPendingTriggers.compareAndSet(pending, pending | trigger));
+    }
+
+    /**
+     * Discards the history and ends the current episode at the next sample, without calling the
+     * listener, e.g. when a new log starts. Can be called from any thread.
+     */
+    public void reset(){
+        mResetRequested = true;
+    }
+
+    /**
+     * Returns <code>true</code> if the samples are being forwarded. Only accurate on the thread
+     * of the recorder.
+     * @return <code>true</code> during an episode
+     */
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    public long getEpisodeCount() {
+        return mEpisodeCount;
+    }
+
+    public long getForwardedSamples() {
+        return mForwardedSamples;
+    }
+
+    /**
+     * Returns the number of samples dropped from the history without being forwarded
+     * @return number of discarded samples
+     */
+    public long getDiscardedSamples() {
+        return mDiscardedSamples;
+    }
+
+    @Override
+    public void onSensorChanged(ESenseEvent evt) {
+        if (mResetRequested) {
+            mResetRequested = false;
+            mPendingTriggers.set(0);
+            mDiscardedSamples += mHistory.getSize();
+            mHistory.clear();
+            mRecording = false;
+            mMotionEnergy = 0;
+        }
+        long sampleTime = evt.getSampleTimeNanos();
+        int triggers = mPendingTriggers.getAndSet(0);
+        if (updateMotionEnergy(evt)) {
+            triggers |= TRIGGER_MOTION;
+        }
+        if (mRecording) {
+            if (triggers != 0) {
+                mHoldEndNanos = Math.max(mHoldEndNanos, sampleTime + mHoldNanos);
+            } else if (sampleTime > mHoldEndNanos) {
+                endEpisode();
+            }
+        }
+        if (mRecording) {
+            forward(evt);
+        } else if (triggers != 0) {
+            startEpisode(evt, triggers);
+        } else {
+            // Keep the sample in the history, the oldest one is overwritten
+            if (mHistory.getSize() == mHistory.getCapacity() - 1) {
+                mDiscardedSamples++;
+            }
+            mHistory.add(evt);
+        }
+    }
+
+    /**
+     * Updates the motion energy with a sample
+     * @return <code>true</code> if the energy is above the threshold
+     */
+    private boolean updateMotionEnergy(ESenseEvent evt){
+        double threshold = mMotionThresholdSquared;
+        if (threshold <= 0) {
+            return false;
+        }
+        short[] gyro = evt.getGyro();
+        double squared = (double) gyro[0] * gyro[0] + (double) gyro[1] * gyro[1]
+                + (double) gyro[2] * gyro[2];
+        mMotionEnergy += (squared - mMotionEnergy) * mMotionSmoothing;
+        return mMotionEnergy > threshold;
+    }
+
+    private void startEpisode(ESenseEvent evt, int triggers){
+        long sampleTime = evt.getSampleTimeNanos();
+        mRecording = true;
+        mHoldEndNanos = sampleTime + mHoldNanos;
+        mEpisodeCount++;
+        // Oldest sample of the pre-trigger duration
+        long end = mHistory.getWriteSequence();
+        long first = end;
+        ESenseEvent sample = ESenseEvent.obtain();
+        try {
+            for (long seq = end - 1; seq >= mHistory.getOldestSequence(); seq--) {
+                if (!mHistory.getEvent(seq, sample)
+                        || sampleTime - sample.getSampleTimeNanos() > mPreTriggerNanos) {
+                    break;
+                }
+                first = seq;
+            }
+            mDiscardedSamples += first - mHistory.getOldestSequence();
+            long firstSampleTime = (first < end && mHistory.getEvent(first, sample)) ?
+                    sample.getSampleTimeNanos() : sampleTime;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onEpisodeStarted(triggers, firstSampleTime, sampleTime);
+            }
+            for (long seq = first; seq < end; seq++) {
+                if (mHistory.getEvent(seq, sample)) {
+                    forward(sample);
+                }
+            }
+        } finally {
+            sample.recycle();
+        }
+        mHistory.clear();
+        forward(evt);
+    }
+
+    private void endEpisode(){
+        mRecording = false;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEpisodeEnded(mLastForwardedNanos);
+        }
+    }
+
+    private void forward(ESenseEvent evt){
+        mLastForwardedNanos = evt.getSampleTimeNanos();
+        mForwardedSamples++;
+        mTarget.onSensorChanged(evt);
+    }
+}
@@ -0,0 +1,27 @@
+package io.esense.esenselib;
+
+/**
+ * Strategy used by the consumer of a {@link SampleQueue} while the queue is empty
+ */
+public enum WaitStrategy {
+    /**
+     * Polls the queue continuously. Lowest latency, but keeps a core busy.
+     */
+    BUSY_SPIN,
+
+    /**
+     * Polls the queue and yields the processor between attempts.
+     */
+    YIELD,
+
+    /**
+     * Spins a few times, then sleeps for a short period between attempts.
+     */
+    SLEEP,
+
+    /**
+     * Waits until the producer signals new samples. Uses no processor while idle, at the cost of a
+     * signal from the producer when the consumer is waiting.
+     */
+    BLOCK
+}
@@ -0,0 +1,76 @@
+package io.esense.esenselib;
+
+/**
+ * Stage emitting sliding windows of a fixed number of samples.
+ *
+ * <p>
+ *     A window is emitted as soon as it is complete, then every <code>hop</code> samples: windows
+ *     overlap if the hop is smaller than the window size, and samples are skipped between
+ *     windows if it is larger. An emitted window is a copy, so that the next stage may modify it.
+ *     Windows are not split at gaps: the lost packets of the samples tell where they are.
+ * </p>
+ */
+public class WindowStage implements SampleStage {
+    private final int mSize;
+    private final int mHop;
+    private final SampleBlock mWindow;
+    private final SampleBlock mOutput;
+    // Input samples to skip before filling the next window, when the hop exceeds the size
+    private int mSkip = 0;
+
+    /**
+     * Constructs a window stage
+     * @param size number of samples of a window
+     * @param hop number of samples between the starts of consecutive windows
+     */
+    public WindowStage(int size, int hop){
+        if (size < 1 || hop < 1) {
+            throw new IllegalArgumentException("The window size and hop must be positive");
+        }
+        mSize = size;
+        mHop = hop;
+        mWindow = new SampleBlock(size);
+        mOutput = new SampleBlock(size);
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        return mSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        int size = block.getSize();
+        int offset = 0;
+        while (offset < size) {
+            if (mSkip > 0) {
+                int n = Math.min(mSkip, size - offset);
+                mSkip -= n;
+                offset += n;
+                continue;
+            }
+            offset += mWindow.append(block, offset, size - offset);
+            if (mWindow.isFull()) {
+                mOutput.clear();
+                mOutput.append(mWindow, 0, mSize);
+                output.emit(mOutput);
+                mWindow.removeFirst(mHop);
+                mSkip = Math.max(0, mHop - mSize);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        mWindow.clear();
+        mSkip = 0;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getHop() {
+        return mHop;
+    }
+}
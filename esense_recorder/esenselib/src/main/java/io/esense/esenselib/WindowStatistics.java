@@ -0,0 +1,138 @@
+package io.esense.esenselib;
+
+/**
+ * Statistics of the six IMU channels over a window of samples, written by a
+ * {@link WindowStatisticsStage}.
+ *
+ * <p>
+ *     A feature vector is reused for every window: its values must be copied if they are needed
+ *     after the listener returns. The channels are indexed from 0 to 5: acc x, y, z then gyro x,
+ *     y, z. The values are in ADC units, or in g and deg/s if the stage has a conversion kernel.
+ * </p>
+ */
+public class WindowStatistics {
+    public static final int ACC_X = 0;
+    public static final int ACC_Y = 1;
+    public static final int ACC_Z = 2;
+    public static final int GYRO_X = 3;
+    public static final int GYRO_Y = 4;
+    public static final int GYRO_Z = 5;
+    public static final int CHANNEL_COUNT = 6;
+
+    final double[] mMean = new double[CHANNEL_COUNT];
+    final double[] mVariance = new double[CHANNEL_COUNT];
+    final double[] mRms = new double[CHANNEL_COUNT];
+    final double[] mMin = new double[CHANNEL_COUNT];
+    final double[] mMax = new double[CHANNEL_COUNT];
+    final int[] mZeroCrossings = new int[CHANNEL_COUNT];
+    double mAccSignalMagnitudeArea;
+    double mGyroSignalMagnitudeArea;
+    int mSampleCount;
+    long mStartSampleTime;
+    long mEndSampleTime;
+    int mLostPackets;
+
+    public double getMean(int channel) {
+        return mMean[channel];
+    }
+
+    /**
+     * Returns the population variance of a channel
+     * @param channel index of the channel
+     * @return the variance, in squared units
+     */
+    public double getVariance(int channel) {
+        return mVariance[channel];
+    }
+
+    public double getStandardDeviation(int channel) {
+        return Math.sqrt(mVariance[channel]);
+    }
+
+    public double getRms(int channel) {
+        return mRms[channel];
+    }
+
+    public double getMin(int channel) {
+        return mMin[channel];
+    }
+
+    public double getMax(int channel) {
+        return mMax[channel];
+    }
+
+    /**
+     * Returns the number of sign changes between consecutive samples of the window, a value of
+     * 0 being positive
+     * @param channel index of the channel
+     * @return the number of zero crossings
+     */
+    public int getZeroCrossings(int channel) {
+        return mZeroCrossings[channel];
+    }
+
+    /**
+     * Returns the signal magnitude area of the accelerometer, i.e. the mean of
+     * <code>|x| + |y| + |z|</code> over the window
+     * @return the signal magnitude area
+     */
+    public double getAccSignalMagnitudeArea() {
+        return mAccSignalMagnitudeArea;
+    }
+
+    /**
+     * Returns the signal magnitude area of the gyroscope, i.e. the mean of
+     * <code>|x| + |y| + |z|</code> over the window
+     * @return the signal magnitude area
+     */
+    public double getGyroSignalMagnitudeArea() {
+        return mGyroSignalMagnitudeArea;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the reconstructed time of the first sample of the window
+     * @return the sample time in nanoseconds
+     */
+    public long getStartSampleTime() {
+        return mStartSampleTime;
+    }
+
+    /**
+     * Returns the reconstructed time of the last sample of the window
+     * @return the sample time in nanoseconds
+     */
+    public long getEndSampleTime() {
+        return mEndSampleTime;
+    }
+
+    /**
+     * Returns the number of packets lost between the samples of the window
+     * @return the number of lost packets
+     */
+    public int getLostPackets() {
+        return mLostPackets;
+    }
+
+    /**
+     * Copies the values of another feature vector, e.g. to keep them after the listener returns
+     * @param source feature vector to copy
+     */
+    public void copyFrom(WindowStatistics source){
+        System.arraycopy(source.mMean, 0, mMean, 0, CHANNEL_COUNT);
+        System.arraycopy(source.mVariance, 0, mVariance, 0, CHANNEL_COUNT);
+        System.arraycopy(source.mRms, 0, mRms, 0, CHANNEL_COUNT);
+        System.arraycopy(source.mMin, 0, mMin, 0, CHANNEL_COUNT);
+        System.arraycopy(source.mMax, 0, mMax, 0, CHANNEL_COUNT);
+        System.arraycopy(source.mZeroCrossings, 0, mZeroCrossings, 0, CHANNEL_COUNT);
+        mAccSignalMagnitudeArea = source.mAccSignalMagnitudeArea;
+        mGyroSignalMagnitudeArea = source.mGyroSignalMagnitudeArea;
+        mSampleCount = source.mSampleCount;
+        mStartSampleTime = source.mStartSampleTime;
+        mEndSampleTime = source.mEndSampleTime;
+        mLostPackets = source.mLostPackets;
+    }
+}
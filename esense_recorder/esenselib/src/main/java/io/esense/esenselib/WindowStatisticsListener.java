@@ -0,0 +1,15 @@
+package io.esense.esenselib;
+
+public interface WindowStatisticsListener {
+    /**
+     * Called when the statistics of a window are available.
+     *
+     * <p>
+     *     The feature vector is reused for the next window, so the listener must not keep a
+     *     reference to it. Use {@link WindowStatistics#copyFrom(WindowStatistics)} to keep the
+     *     values.
+     * </p>
+     * @param statistics statistics of the window
+     */
+    void onWindowStatistics(WindowStatistics statistics);
+}
@@ -0,0 +1,314 @@
+package io.esense.esenselib;
+
+/**
+ * Stage computing statistics of the six IMU channels over sliding windows of samples, e.g. for
+ * activity monitoring.
+ *
+ * <p>
+ *     The statistics are updated incrementally in constant time per sample: the sums, sums of
+ *     squares and sums of absolute values are updated as samples enter and leave the window, the
+ *     minimum and maximum are the heads of monotonic deques, and the zero crossings are counted
+ *     as they enter and leave. The sums are integers, so that they do not drift.
+ * </p>
+ * <p>
+ *     The statistics of the last <code>size</code> samples are delivered as soon as the window
+ *     is complete, then every <code>hop</code> samples, into a reused {@link WindowStatistics}.
+ *     Windows are not split at gaps: the lost packets of a window tell if it has some. The input
+ *     blocks are emitted unchanged to the next stage.
+ * </p>
+ */
+public class WindowStatisticsStage implements SampleStage {
+    // Maximum window size, for which the sums of squares cannot overflow
+    public static final int MAX_WINDOW_SIZE = 65536;
+
+    private static final int CHANNELS = WindowStatistics.CHANNEL_COUNT;
+
+    /**
+     * Window of a channel with its running statistics. The samples are in a ring indexed by
+     * their slot, the sample leaving the window being in the slot of the entering one.
+     */
+    private static final class Channel {
+        private final int mSize;
+        private final short[] mValues;
+        // 1 if the sign changed since the previous sample, not counted for the oldest sample
+        // whose previous sample is out of the window
+        private final byte[] mCrossings;
+        private long mSum;
+        private long mSquareSum;
+        private long mAbsoluteSum;
+        private int mCrossingCount;
+        // Monotonic deques of slots: values are decreasing in the max deque and increasing in
+        // the min deque, so that the head is the extremum of the window
+        private final int[] mMaxDeque;
+        private int mMaxHead;
+        private int mMaxCount;
+        private final int[] mMinDeque;
+        private int mMinHead;
+        private int mMinCount;
+
+        Channel(int size){
+            mSize = size;
+            mValues = new short[size];
+            mCrossings = new byte[size];
+            mMaxDeque = new int[size];
+            mMinDeque = new int[size];
+        }
+
+        /**
+         * Adds a sample to the window, removing the oldest one if the window is full
+         */
+        void add(short value, int slot, boolean first, boolean full){
+            int size = mSize;
+            short[] values = mValues;
+            int next = (slot + 1 == size) ? 0 : slot + 1;
+            if (full) {
+                short old = values[slot];
+                mSum -= old;
+                mSquareSum -= old * old;
+                mAbsoluteSum -= Math.abs(old);
+                if (size > 1) {
+                    mCrossingCount -= mCrossings[next];
+                }
+                // The oldest sample leaves the deques if it is their head
+                if (mMaxDeque[mMaxHead] == slot) {
+                    mMaxHead = (mMaxHead + 1 == size) ? 0 : mMaxHead + 1;
+                    mMaxCount--;
+                }
+                if (mMinDeque[mMinHead] == slot) {
+                    mMinHead = (mMinHead + 1 == size) ? 0 : mMinHead + 1;
+                    mMinCount--;
+                }
+            }
+            byte crossing = 0;
+            if (!first && ((values[(slot == 0) ? size - 1 : slot - 1] < 0) != (value < 0))) {
+                crossing = 1;
+            }
+            mCrossings[slot] = crossing;
+            if (size > 1) {
+                mCrossingCount += crossing;
+            }
+            values[slot] = value;
+            mSum += value;
+            mSquareSum += value * value;
+            mAbsoluteSum += Math.abs(value);
+
+            // Removes the samples which cannot be the extremum anymore and appends the new one
+            int count = mMaxCount;
+            int tail = mMaxHead + count - 1;
+            if (tail >= size) {
+                tail -= size;
+            }
+            while (count > 0 && values[mMaxDeque[tail]] <= value) {
+                count--;
+                tail = (tail == 0) ? size - 1 : tail - 1;
+            }
+            mMaxDeque[(tail + 1 == size) ? 0 : tail + 1] = slot;
+            mMaxCount = count + 1;
+
+            count = mMinCount;
+            tail = mMinHead + count - 1;
+            if (tail >= size) {
+                tail -= size;
+            }
+            while (count > 0 && values[mMinDeque[tail]] >= value) {
+                count--;
+                tail = (tail == 0) ? size - 1 : tail - 1;
+            }
+            mMinDeque[(tail + 1 == size) ? 0 : tail + 1] = slot;
+            mMinCount = count + 1;
+        }
+
+        short getMax(){
+            return mValues[mMaxDeque[mMaxHead]];
+        }
+
+        short getMin(){
+            return mValues[mMinDeque[mMinHead]];
+        }
+
+        void reset(){
+            mSum = 0;
+            mSquareSum = 0;
+            mAbsoluteSum = 0;
+            mCrossingCount = 0;
+            mMaxHead = 0;
+            mMaxCount = 0;
+            mMinHead = 0;
+            mMinCount = 0;
+        }
+    }
+
+    private final int mSize;
+    private final int mHop;
+    private final WindowStatisticsListener mListener;
+    private final WindowStatistics mStatistics = new WindowStatistics();
+    // Factor converting ADC values of each channel
+    private final double[] mScales = new double[CHANNELS];
+    private final Channel mAccX;
+    private final Channel mAccY;
+    private final Channel mAccZ;
+    private final Channel mGyroX;
+    private final Channel mGyroY;
+    private final Channel mGyroZ;
+    private final Channel[] mChannels;
+
+    // Sample times and lost packets of the window, in a ring as the values of the channels
+    private final long[] mSampleTimes;
+    private final int[] mLostPacketRing;
+    private int mLostPackets;
+
+    // Number of samples received since the last reset, and slot of the next one
+    private long mSampleCount = 0;
+    private int mSlot = 0;
+    // Samples received since the last delivered window, or since the reset
+    private int mSinceLastWindow = 0;
+
+    /**
+     * Constructs a statistics stage, in ADC units
+     * @param size number of samples of a window, at most <code>MAX_WINDOW_SIZE</code>
+     * @param hop number of samples between the ends of consecutive windows
+     * @param listener listener of the statistics, called on the thread of the pipeline
+     */
+    public WindowStatisticsStage(int size, int hop, WindowStatisticsListener listener){
+        this(size, hop, null, listener);
+    }
+
+    /**
+     * Constructs a statistics stage
+     * @param size number of samples of a window, at most <code>MAX_WINDOW_SIZE</code>
+     * @param hop number of samples between the ends of consecutive windows
+     * @param kernel conversion to g and deg/s, or <code>null</code> for ADC units
+     * @param listener listener of the statistics, called on the thread of the pipeline
+     */
+    public WindowStatisticsStage(int size, int hop, ConversionKernel kernel,
+                                 WindowStatisticsListener listener){
+        if (size < 1 || hop < 1) {
+            throw new IllegalArgumentException("The window size and hop must be positive");
+        }
+        if (size > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("The window size must be at most "
+                    + MAX_WINDOW_SIZE);
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("The listener must not be null");
+        }
+        mSize = size;
+        mHop = hop;
+        mListener = listener;
+        for (int c = 0; c < CHANNELS; c++) {
+            if (kernel == null) {
+                mScales[c] = 1;
+            } else {
+                mScales[c] = 1 / ((c < 3) ? kernel.getAccSensitivityFactor() :
+                        kernel.getGyroSensitivityFactor());
+            }
+        }
+        mAccX = new Channel(size);
+        mAccY = new Channel(size);
+        mAccZ = new Channel(size);
+        mGyroX = new Channel(size);
+        mGyroY = new Channel(size);
+        mGyroZ = new Channel(size);
+        mChannels = new Channel[]{mAccX, mAccY, mAccZ, mGyroX, mGyroY, mGyroZ};
+        mSampleTimes = new long[size];
+        mLostPacketRing = new int[size];
+    }
+
+    @Override
+    public int prepare(int maxBlockSize) {
+        return maxBlockSize;
+    }
+
+    @Override
+    public void process(SampleBlock block, SampleStageOutput output) {
+        int size = block.getSize();
+        long[] sampleTimes = block.getSampleTimes();
+        int[] lostPackets = block.getLostPackets();
+        short[] accX = block.getAccX();
+        short[] accY = block.getAccY();
+        short[] accZ = block.getAccZ();
+        short[] gyroX = block.getGyroX();
+        short[] gyroY = block.getGyroY();
+        short[] gyroZ = block.getGyroZ();
+        for (int i = 0; i < size; i++) {
+            int slot = mSlot;
+            boolean first = mSampleCount == 0;
+            boolean full = mSampleCount >= mSize;
+            int next = (slot + 1 == mSize) ? 0 : slot + 1;
+            // As the zero crossings, the lost packets of the oldest sample are before the window
+            if (full && mSize > 1) {
+                mLostPackets -= mLostPacketRing[next];
+            }
+            mLostPacketRing[slot] = first ? 0 : lostPackets[i];
+            if (mSize > 1) {
+                mLostPackets += mLostPacketRing[slot];
+            }
+            mSampleTimes[slot] = sampleTimes[i];
+            mAccX.add(accX[i], slot, first, full);
+            mAccY.add(accY[i], slot, first, full);
+            mAccZ.add(accZ[i], slot, first, full);
+            mGyroX.add(gyroX[i], slot, first, full);
+            mGyroY.add(gyroY[i], slot, first, full);
+            mGyroZ.add(gyroZ[i], slot, first, full);
+            mSampleCount++;
+            mSlot = next;
+            mSinceLastWindow++;
+            if (mSampleCount == mSize || (mSampleCount > mSize && mSinceLastWindow >= mHop)) {
+                mSinceLastWindow = 0;
+                deliver();
+            }
+        }
+        output.emit(block);
+    }
+
+    /**
+     * Writes the statistics of the window and passes them to the listener
+     */
+    private void deliver(){
+        WindowStatistics statistics = mStatistics;
+        double size = mSize;
+        for (int c = 0; c < CHANNELS; c++) {
+            Channel channel = mChannels[c];
+            double scale = mScales[c];
+            long sum = channel.mSum;
+            long squareSum = channel.mSquareSum;
+            statistics.mMean[c] = sum / size * scale;
+            // Exact numerator: at most 2^16 * 2^16 * 2^30
+            double variance = (double) (mSize * squareSum - sum * sum) / (size * size);
+            statistics.mVariance[c] = variance * scale * scale;
+            statistics.mRms[c] = Math.sqrt(squareSum / size) * scale;
+            statistics.mMax[c] = channel.getMax() * scale;
+            statistics.mMin[c] = channel.getMin() * scale;
+            statistics.mZeroCrossings[c] = channel.mCrossingCount;
+        }
+        statistics.mAccSignalMagnitudeArea = (mAccX.mAbsoluteSum + mAccY.mAbsoluteSum
+                + mAccZ.mAbsoluteSum) / size * mScales[0];
+        statistics.mGyroSignalMagnitudeArea = (mGyroX.mAbsoluteSum + mGyroY.mAbsoluteSum
+                + mGyroZ.mAbsoluteSum) / size * mScales[3];
+        statistics.mSampleCount = mSize;
+        // The next slot is the one of the oldest sample
+        statistics.mStartSampleTime = mSampleTimes[mSlot];
+        statistics.mEndSampleTime = mSampleTimes[(mSlot == 0) ? mSize - 1 : mSlot - 1];
+        statistics.mLostPackets = mLostPackets;
+        mListener.onWindowStatistics(statistics);
+    }
+
+    @Override
+    public void reset() {
+        mSampleCount = 0;
+        mSlot = 0;
+        mSinceLastWindow = 0;
+        mLostPackets = 0;
+        for (Channel channel : mChannels) {
+            channel.reset();
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public int getHop() {
+        return mHop;
+    }
+}
@@ -0,0 +1,204 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frequency response of the Butterworth and windowed-sinc low-pass filter stages measured on
+ * sine waves, which will execute on the development machine (host).
+ */
+public class FilterStageTest {
+    private static final double SAMPLING_RATE = 100;
+    private static final double AMPLITUDE = 10000;
+    private static final int SAMPLE_COUNT = 3000;
+    // Samples left for the transient of the filter before the measurement
+    private static final int SETTLING_COUNT = 1000;
+    private static final int BLOCK_SIZE = 64;
+    // Gain of -3 dB and -6 dB
+    private static final double HALF_POWER_GAIN = Math.sqrt(0.5);
+    private static final double HALF_AMPLITUDE_GAIN = 0.5;
+
+    @Test
+    public void biquad_hasUnitGainAtDc() {
+        BiquadFilterStage stage = new BiquadFilterStage(SAMPLING_RATE, 5, 10, 4);
+        // Constant channels, of different values
+        short[][] input = sines(0, 0, 1234);
+        short[][] output = process(stage, input);
+        for (int c = 0; c < 6; c++) {
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                // Initialized with the first sample, without transient
+                assertEquals(input[c][0], output[c][i]);
+            }
+        }
+    }
+
+    @Test
+    public void biquad_attenuatesCutoffBy3Db() {
+        for (int order = 2; order <= 6; order += 2) {
+            BiquadFilterStage stage = new BiquadFilterStage(SAMPLING_RATE, 5, 10, order);
+            // Cutoff of the accelerometer, 5 Hz, and of the gyroscope, 10 Hz
+            short[][] output = filter(stage, 5, 10, 0);
+            assertEquals("Order " + order, HALF_POWER_GAIN, gain(output[0]), 0.005);
+            assertEquals("Order " + order, HALF_POWER_GAIN, gain(output[3]), 0.005);
+        }
+    }
+
+    @Test
+    public void biquad_passesLowAndStopsHighFrequencies() {
+        BiquadFilterStage stage = new BiquadFilterStage(SAMPLING_RATE, 10, 10, 4);
+        assertEquals(1, gain(filter(stage, 1, 1, 0)[0]), 0.005);
+        stage = new BiquadFilterStage(SAMPLING_RATE, 10, 10, 4);
+        // Two octaves above the cutoff, 24 dB per octave
+        assertTrue(gain(filter(stage, 40, 40, 0)[0]) < 0.005);
+    }
+
+    @Test
+    public void fir_hasUnitGainAtDc() {
+        FirFilterStage stage = new FirFilterStage(SAMPLING_RATE, 5, 10, 67);
+        short[][] input = sines(0, 0, -4321);
+        short[][] output = process(stage, input);
+        for (int c = 0; c < 6; c++) {
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                assertEquals(input[c][0], output[c][i]);
+            }
+        }
+    }
+
+    @Test
+    public void fir_attenuatesCutoffBy6Db() {
+        int taps = FirFilterStage.getDefaultTapCount(SAMPLING_RATE, 5, 10);
+        FirFilterStage stage = new FirFilterStage(SAMPLING_RATE, 5, 10, taps);
+        short[][] output = filter(stage, 5, 10, 0);
+        assertEquals(HALF_AMPLITUDE_GAIN, gain(output[0]), 0.01);
+        assertEquals(HALF_AMPLITUDE_GAIN, gain(output[3]), 0.01);
+        stage = new FirFilterStage(SAMPLING_RATE, 5, 10, taps);
+        // Passband and stopband, beyond the transition band about as wide as the cutoff
+        output = filter(stage, 1, 25, 0);
+        assertEquals(1, gain(output[0]), 0.01);
+        assertTrue(gain(output[3]) < 0.01);
+    }
+
+    @Test
+    public void fir_delaysByHalfItsTaps() {
+        FirFilterStage stage = new FirFilterStage(SAMPLING_RATE, 20, 20, 31);
+        assertEquals(15, stage.getDelay());
+        short[][] input = new short[6][SAMPLE_COUNT];
+        input[0][100] = 10000;
+        short[][] output = process(stage, input);
+        int peak = 0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            if (output[0][i] > output[0][peak]) {
+                peak = i;
+            }
+        }
+        assertEquals(100 + stage.getDelay(), peak);
+    }
+
+    @Test
+    public void defaultTapCount_followsLowestCutoff() {
+        // 3.3 sampling periods per Hz of the lowest cutoff, odd
+        assertEquals(67, FirFilterStage.getDefaultTapCount(SAMPLING_RATE, 5, 10));
+        assertEquals(67, FirFilterStage.getDefaultTapCount(SAMPLING_RATE, 0, 5));
+        assertEquals(FirFilterStage.MAX_DEFAULT_TAPS,
+                FirFilterStage.getDefaultTapCount(SAMPLING_RATE, 0.5, 10));
+        // Not filtered
+        assertEquals(1, FirFilterStage.getDefaultTapCount(SAMPLING_RATE, 0, 0));
+    }
+
+    @Test
+    public void disabledCutoff_leavesChannelsUnchanged() {
+        SampleStage[] stages = {new BiquadFilterStage(SAMPLING_RATE, 5, 0, 2),
+                new FirFilterStage(SAMPLING_RATE, 0, 5, 11)};
+        for (int s = 0; s < stages.length; s++) {
+            short[][] input = sines(10, 10, 100);
+            short[][] output = process(stages[s], input);
+            // The gyroscope of the first stage, the accelerometer of the second one
+            for (int c = 3 * (1 - s); c < 3 * (2 - s); c++) {
+                assertArrayEquals(input[c], output[c]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddOrder_isRejected() {
+        new BiquadFilterStage(SAMPLING_RATE, 5, 5, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void evenTapCount_isRejected() {
+        new FirFilterStage(SAMPLING_RATE, 5, 5, 10);
+    }
+
+    /**
+     * Filters sine waves of the given frequencies on the accelerometer and gyroscope channels
+     */
+    private static short[][] filter(SampleStage stage, double accFrequency, double gyroFrequency,
+                                    int offset) {
+        return process(stage, sines(accFrequency, gyroFrequency, offset));
+    }
+
+    /**
+     * Creates sine waves around an offset, with a phase per channel, constant for a frequency
+     * of 0
+     */
+    private static short[][] sines(double accFrequency, double gyroFrequency, int offset) {
+        short[][] values = new short[6][SAMPLE_COUNT];
+        for (int c = 0; c < 6; c++) {
+            double frequency = (c < 3) ? accFrequency : gyroFrequency;
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                double phase = 2 * Math.PI * frequency * i / SAMPLING_RATE + c;
+                values[c][i] = (short) Math.round(offset + AMPLITUDE * Math.sin(phase));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Processes the samples in blocks and returns the filtered channels
+     */
+    private static short[][] process(SampleStage stage, short[][] input) {
+        stage.prepare(BLOCK_SIZE);
+        final short[][] output = new short[6][SAMPLE_COUNT];
+        final int[] position = {0};
+        SampleStageOutput collector = new SampleStageOutput() {
+            @Override
+            public void emit(SampleBlock block) {
+                short[][] channels = {block.getAccX(), block.getAccY(), block.getAccZ(),
+                        block.getGyroX(), block.getGyroY(), block.getGyroZ()};
+                for (int c = 0; c < 6; c++) {
+                    System.arraycopy(channels[c], 0, output[c], position[0], block.getSize());
+                }
+                position[0] += block.getSize();
+            }
+        };
+        SampleBlock block = new SampleBlock(BLOCK_SIZE);
+        ESenseEvent evt = new ESenseEvent();
+        for (int first = 0; first < SAMPLE_COUNT; first += BLOCK_SIZE) {
+            block.clear();
+            for (int i = first; i < Math.min(first + BLOCK_SIZE, SAMPLE_COUNT); i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    evt.getAccel()[axis] = input[axis][i];
+                    evt.getGyro()[axis] = input[3 + axis][i];
+                }
+                evt.setSampleTimeNanos(i * 10000000L);
+                block.add(evt);
+            }
+            stage.process(block, collector);
+        }
+        assertEquals(SAMPLE_COUNT, position[0]);
+        return output;
+    }
+
+    /**
+     * Returns the amplitude of a filtered sine wave relative to the input, from its RMS value
+     * after the transient
+     */
+    private static double gain(short[] values) {
+        double sum = 0;
+        for (int i = SETTLING_COUNT; i < SAMPLE_COUNT; i++) {
+            sum += (double) values[i] * values[i];
+        }
+        return Math.sqrt(2 * sum / (SAMPLE_COUNT - SETTLING_COUNT)) / AMPLITUDE;
+    }
+}
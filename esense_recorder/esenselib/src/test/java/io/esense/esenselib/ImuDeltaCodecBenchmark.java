@@ -0,0 +1,47 @@
+package io.esense.esenselib;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Throughput of the IMU delta codec on synthetic head motion, which will execute on the
+ * development machine (host). Not part of the default run, as its timings depend on the machine.
+ */
+public class ImuDeltaCodecBenchmark {
+    private static final int SAMPLE_COUNT = 100000;
+    private static final int BLOCK_SIZE = 256;
+    private static final int ROUNDS = 20;
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void throughput() {
+        SampleBlock samples = ImuDeltaCodecTest.createSamples(SAMPLE_COUNT, 4, 8);
+        ImuDeltaCodec codec = new ImuDeltaCodec(BLOCK_SIZE);
+        byte[] encoded = new byte[ImuDeltaCodec.getMaxEncodedSize(BLOCK_SIZE)];
+        SampleBlock decoded = new SampleBlock(BLOCK_SIZE);
+        int blocks = SAMPLE_COUNT / BLOCK_SIZE;
+        // Warm up, then measure
+        for (int pass = 0; pass < 2; pass++) {
+            int length = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int b = 0; b < blocks; b++) {
+                    length = codec.encode(samples, b * BLOCK_SIZE, BLOCK_SIZE, 0, encoded, 0);
+                }
+            }
+            long encodeNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int b = 0; b < blocks; b++) {
+                    codec.decode(encoded, 0, length, BLOCK_SIZE, 0, decoded);
+                }
+            }
+            long decodeNanos = System.nanoTime() - start;
+            if (pass == 1) {
+                double samplesPerRound = (double) ROUNDS * blocks * BLOCK_SIZE;
+                System.out.printf("ImuDeltaCodec: encode %.1f M samples/s, decode %.1f M samples/s%n",
+                        samplesPerRound * 1000 / encodeNanos, samplesPerRound * 1000 / decodeNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip and encoded size of the IMU delta codec on synthetic head motion, which will
+ * execute on the development machine (host).
+ */
+public class ImuDeltaCodecTest {
+    private static final int SAMPLE_COUNT = 100000;
+    private static final int BLOCK_SIZE = 256;
+    // Target size of the encoded samples
+    private static final double MAX_BYTES_PER_SAMPLE = 6;
+
+    @Test
+    public void roundTrip_isLosslessUpToTimeResolution() {
+        SampleBlock samples = createSamples(SAMPLE_COUNT, 4, 8);
+        // Extreme values
+        samples.getAccX()[5] = Short.MIN_VALUE;
+        samples.getAccX()[6] = Short.MAX_VALUE;
+        samples.getLostPackets()[7] = 1000000;
+        samples.getSampleTimes()[9] = Long.MIN_VALUE / 3;
+        ImuDeltaCodec codec = new ImuDeltaCodec(BLOCK_SIZE);
+        byte[] encoded = new byte[ImuDeltaCodec.getMaxEncodedSize(BLOCK_SIZE)];
+        SampleBlock decoded = new SampleBlock(BLOCK_SIZE);
+        for (int offset = 0; offset < SAMPLE_COUNT; offset += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, SAMPLE_COUNT - offset);
+            int length = codec.encode(samples, offset, count, 0, encoded, 0);
+            codec.decode(encoded, 0, length, count, 0, decoded);
+            assertEquals(count, decoded.getSize());
+            for (int i = 0; i < count; i++) {
+                long timeError = decoded.getSampleTimes()[i] - samples.getSampleTimes()[offset + i];
+                assertTrue(Math.abs(timeError) <= ImuDeltaCodec.TIME_RESOLUTION_NANOS / 2);
+                assertEquals(samples.getLostPackets()[offset + i], decoded.getLostPackets()[i]);
+                assertEquals(samples.getPacketIndexes()[offset + i],
+                        decoded.getPacketIndexes()[i]);
+                assertEquals(samples.getAccX()[offset + i], decoded.getAccX()[i]);
+                assertEquals(samples.getAccY()[offset + i], decoded.getAccY()[i]);
+                assertEquals(samples.getAccZ()[offset + i], decoded.getAccZ()[i]);
+                assertEquals(samples.getGyroX()[offset + i], decoded.getGyroX()[i]);
+                assertEquals(samples.getGyroY()[offset + i], decoded.getGyroY()[i]);
+                assertEquals(samples.getGyroZ()[offset + i], decoded.getGyroZ()[i]);
+            }
+        }
+    }
+
+    @Test
+    public void encodedSize_isUnderTarget() {
+        SampleBlock samples = createSamples(SAMPLE_COUNT, 4, 8);
+        ImuDeltaCodec codec = new ImuDeltaCodec(BLOCK_SIZE);
+        byte[] encoded = new byte[ImuDeltaCodec.getMaxEncodedSize(BLOCK_SIZE)];
+        long totalLength = 0;
+        for (int offset = 0; offset < SAMPLE_COUNT; offset += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, SAMPLE_COUNT - offset);
+            totalLength += codec.encode(samples, offset, count, 0, encoded, 0);
+        }
+        assertTrue((double) totalLength / SAMPLE_COUNT < MAX_BYTES_PER_SAMPLE);
+    }
+
+    @Test
+    public void decodedTimes_areOnTimeResolution() {
+        SampleBlock samples = createSamples(BLOCK_SIZE, 4, 8);
+        ImuDeltaCodec codec = new ImuDeltaCodec(BLOCK_SIZE);
+        byte[] encoded = new byte[ImuDeltaCodec.getMaxEncodedSize(BLOCK_SIZE)];
+        SampleBlock decoded = new SampleBlock(BLOCK_SIZE);
+        long timeBase = 123456789;
+        int length = codec.encode(samples, 0, BLOCK_SIZE, timeBase, encoded, 0);
+        codec.decode(encoded, 0, length, BLOCK_SIZE, timeBase, decoded);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            long time = decoded.getSampleTimes()[i];
+            assertEquals(0, (time - timeBase) % ImuDeltaCodec.TIME_RESOLUTION_NANOS);
+            assertTrue(Math.abs(time - samples.getSampleTimes()[i])
+                    <= ImuDeltaCodec.TIME_RESOLUTION_NANOS / 2);
+        }
+        // Encoding the decoded samples again is lossless
+        int again = codec.encode(decoded, 0, BLOCK_SIZE, timeBase, encoded, 0);
+        SampleBlock redecoded = new SampleBlock(BLOCK_SIZE);
+        codec.decode(encoded, 0, again, BLOCK_SIZE, timeBase, redecoded);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            assertEquals(decoded.getSampleTimes()[i], redecoded.getSampleTimes()[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBlock_isRejected() {
+        SampleBlock samples = createSamples(BLOCK_SIZE, 4, 8);
+        ImuDeltaCodec codec = new ImuDeltaCodec(BLOCK_SIZE);
+        byte[] encoded = new byte[ImuDeltaCodec.getMaxEncodedSize(BLOCK_SIZE)];
+        int length = codec.encode(samples, 0, BLOCK_SIZE, 0, encoded, 0);
+        codec.decode(encoded, 0, length / 2, BLOCK_SIZE, 0, new SampleBlock(BLOCK_SIZE));
+    }
+
+    /**
+     * Creates samples at 100 Hz following random walks, with jittered arrival times, lost
+     * packets and reconstructed sample times.
+     */
+    static SampleBlock createSamples(int count, double accNoise, double gyroNoise) {
+        Random random = new Random(3);
+        SampleBlock samples = new SampleBlock(count);
+        ESenseEvent evt = ESenseEvent.obtain();
+        TimestampReconstructor reconstructor = new TimestampReconstructor(100);
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        acc[2] = 8192;
+        long sequence = 0;
+        int packetIndex = 0;
+        for (int i = 0; i < count; i++) {
+            int lost = (random.nextInt(200) == 0) ? random.nextInt(3) + 1 : 0;
+            sequence += 1 + lost;
+            packetIndex = (packetIndex + 1 + lost) & 0xff;
+            for (int axis = 0; axis < 3; axis++) {
+                acc[axis] += (short) (random.nextGaussian() * accNoise);
+                gyro[axis] += (short) (random.nextGaussian() * gyroNoise);
+            }
+            long arrivalNanos = sequence * 10000000L
+                    + (long) (Math.abs(random.nextGaussian()) * 3000000);
+            evt.setSampleTimeNanos(reconstructor.update(sequence, arrivalNanos));
+            evt.setTimestamp(arrivalNanos / 1000000);
+            evt.setPacketIndex(packetIndex);
+            evt.setLostPackets(lost);
+            samples.add(evt);
+        }
+        evt.recycle();
+        return samples;
+    }
+}
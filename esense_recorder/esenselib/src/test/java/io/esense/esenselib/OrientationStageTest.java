@@ -0,0 +1,214 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Head orientation of the Madgwick filter on simulated tilts, rotations and gaps, and reads of
+ * the orientation ring buffer, which will execute on the development machine (host).
+ */
+public class OrientationStageTest {
+    private static final int SAMPLING_RATE = 100;
+    private static final long PERIOD_NANOS = 1000000000L / SAMPLING_RATE;
+    // Sensitivity factors of the default configuration: 4 g and 500 deg/s
+    private static final double ACC_FACTOR = 8192;
+    private static final double GYRO_FACTOR = 65.5;
+
+    @Test
+    public void staticTilt_isEstimatedFromGravity() {
+        Simulation simulation = new Simulation();
+        double roll = Math.toRadians(30);
+        double pitch = Math.toRadians(-20);
+        for (int i = 0; i < 500; i++) {
+            simulation.feed(-Math.sin(pitch), Math.sin(roll) * Math.cos(pitch),
+                    Math.cos(roll) * Math.cos(pitch), 0, 0, 0, 0);
+        }
+        simulation.assertOrientation(30, -20, 0, 0.2);
+    }
+
+    @Test
+    public void yawRotation_isIntegrated() {
+        Simulation simulation = new Simulation();
+        simulation.level(100);
+        // 90 deg/s during 2 s
+        for (int i = 0; i < 200; i++) {
+            simulation.feed(0, 0, 1, 0, 0, 90, 0);
+        }
+        simulation.assertOrientation(0, 0, 180, 0.1);
+    }
+
+    @Test
+    public void rollRotation_followsGyroscopeAndGravity() {
+        Simulation simulation = new Simulation();
+        simulation.level(100);
+        // 45 deg/s during 1 s
+        for (int i = 1; i <= 100; i++) {
+            double angle = Math.toRadians(45 * i / 100.0);
+            simulation.feed(0, Math.sin(angle), Math.cos(angle), 45, 0, 0, 0);
+        }
+        simulation.assertOrientation(45, 0, 0, 1);
+    }
+
+    @Test
+    public void pitchRotation_followsGyroscopeAndGravity() {
+        Simulation simulation = new Simulation();
+        simulation.level(100);
+        // 30 deg/s during 1 s
+        for (int i = 1; i <= 100; i++) {
+            double angle = Math.toRadians(30 * i / 100.0);
+            simulation.feed(-Math.sin(angle), 0, Math.cos(angle), 0, 30, 0, 0);
+        }
+        simulation.assertOrientation(0, 30, 0, 1);
+    }
+
+    @Test
+    public void shortGap_isIntegratedOverItsDuration() {
+        Simulation simulation = new Simulation();
+        simulation.level(100);
+        // 90 deg/s during 100 samples and 5 lost packets, i.e. 1.05 s
+        for (int i = 1; i <= 100; i++) {
+            simulation.feed(0, 0, 1, 0, 0, 90, (i == 50) ? 5 : 0);
+        }
+        simulation.assertOrientation(0, 0, 94.5, 0.1);
+    }
+
+    @Test
+    public void longGap_realignsToGravityKeepingYaw() {
+        Simulation simulation = new Simulation();
+        simulation.level(100);
+        for (int i = 0; i < 50; i++) {
+            simulation.feed(0, 0, 1, 0, 0, 90, 0);
+        }
+        simulation.assertOrientation(0, 0, 45, 0.1);
+        // The head is tilted during 0.6 s of lost packets, the rate of the next sample is not
+        // integrated over the gap
+        double roll = Math.toRadians(40);
+        simulation.feed(0, Math.sin(roll), Math.cos(roll), 0, 0, 500, 60);
+        simulation.assertOrientation(40, 0, 45, 0.1);
+    }
+
+    @Test
+    public void reset_initializesFromNextSample() {
+        Simulation simulation = new Simulation();
+        simulation.level(10);
+        for (int i = 0; i < 50; i++) {
+            simulation.feed(0, 0, 1, 0, 0, 90, 0);
+        }
+        simulation.stage.reset();
+        assertFalse(simulation.stage.getFilter().isInitialized());
+        double pitch = Math.toRadians(15);
+        simulation.feed(-Math.sin(pitch), 0, Math.cos(pitch), 0, 0, 0, 0);
+        assertTrue(simulation.stage.getFilter().isInitialized());
+        simulation.assertOrientation(0, 15, 0, 0.1);
+    }
+
+    @Test
+    public void filter_convergesToGravityFromWrongOrientation() {
+        MadgwickFilter filter = new MadgwickFilter(MadgwickFilter.DEFAULT_BETA);
+        // Initialized on its side, the gravity is then level
+        filter.update(0, 0, 0, 0, 1, 0, 0.01);
+        assertEquals(90, Math.toDegrees(filter.getRollRadians()), 1e-9);
+        for (int i = 0; i < 10000; i++) {
+            filter.update(0, 0, 0, 0, 0, 1, 0.01);
+        }
+        assertEquals(0, Math.toDegrees(filter.getRollRadians()), 0.5);
+        assertEquals(0, Math.toDegrees(filter.getPitchRadians()), 0.5);
+        double norm = Math.sqrt(filter.getQuaternionW() * filter.getQuaternionW()
+                + filter.getQuaternionX() * filter.getQuaternionX()
+                + filter.getQuaternionY() * filter.getQuaternionY()
+                + filter.getQuaternionZ() * filter.getQuaternionZ());
+        assertEquals(1, norm, 1e-12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeGain_isRejected() {
+        new MadgwickFilter(-0.1);
+    }
+
+    @Test
+    public void ringBuffer_copiesConsecutiveEntries() {
+        OrientationRingBuffer buffer = new OrientationRingBuffer(10);
+        assertEquals(16, buffer.getCapacity());
+        float[] latest = new float[OrientationRingBuffer.VALUES_PER_ENTRY];
+        assertEquals(-1, buffer.getLatest(latest));
+        MadgwickFilter filter = new MadgwickFilter(0);
+        filter.alignToGravity(0, 0, 1);
+        for (int i = 0; i < 40; i++) {
+            buffer.add(i * PERIOD_NANOS, filter);
+        }
+        assertEquals(40, buffer.getWriteSequence());
+        // The slot of the next entry is not readable
+        assertEquals(25, buffer.getOldestSequence());
+        assertEquals(39 * PERIOD_NANOS, buffer.getLatest(latest));
+        assertEquals(1, latest[OrientationRingBuffer.QUATERNION_W], 0);
+
+        long[] times = new long[10];
+        float[] values = new float[10 * OrientationRingBuffer.VALUES_PER_ENTRY];
+        // Overwritten entries
+        assertEquals(0, buffer.copyRange(20, 10, times, values));
+        // Across the end of the ring
+        assertEquals(10, buffer.copyRange(28, 10, times, values));
+        for (int i = 0; i < 10; i++) {
+            assertEquals((28 + i) * PERIOD_NANOS, times[i]);
+        }
+        // Up to the last written entry
+        assertEquals(4, buffer.copyRange(36, 10, times, values));
+        assertEquals(0, buffer.copyRange(40, 10, times, values));
+    }
+
+    /**
+     * Feeds samples of given acceleration and angular rate to an orientation stage in a
+     * pipeline, one sample per block.
+     */
+    private static class Simulation {
+        final OrientationRingBuffer buffer = new OrientationRingBuffer(1024);
+        final OrientationStage stage = new OrientationStage(SAMPLING_RATE,
+                new ConversionKernel(ACC_FACTOR, GYRO_FACTOR), buffer);
+        final SamplePipeline pipeline = new SamplePipeline(1).addStage("orientation", stage);
+        final SampleBlock block = new SampleBlock(1);
+        final ESenseEvent evt = new ESenseEvent();
+        final float[] orientation = new float[OrientationRingBuffer.VALUES_PER_ENTRY];
+        long sampleTime = 0;
+
+        /**
+         * Feeds a sample of acceleration in g and angular rate in deg/s, after lost packets
+         */
+        void feed(double ax, double ay, double az, double gx, double gy, double gz,
+                  int lostPackets){
+            sampleTime += (1 + lostPackets) * PERIOD_NANOS;
+            short[] acc = evt.getAccel();
+            short[] gyro = evt.getGyro();
+            acc[0] = (short) Math.round(ax * ACC_FACTOR);
+            acc[1] = (short) Math.round(ay * ACC_FACTOR);
+            acc[2] = (short) Math.round(az * ACC_FACTOR);
+            gyro[0] = (short) Math.round(gx * GYRO_FACTOR);
+            gyro[1] = (short) Math.round(gy * GYRO_FACTOR);
+            gyro[2] = (short) Math.round(gz * GYRO_FACTOR);
+            evt.setSampleTimeNanos(sampleTime);
+            evt.setLostPackets(lostPackets);
+            block.clear();
+            block.add(evt);
+            pipeline.process(block);
+        }
+
+        /**
+         * Feeds level samples at rest
+         */
+        void level(int count){
+            for (int i = 0; i < count; i++) {
+                feed(0, 0, 1, 0, 0, 0, 0);
+            }
+        }
+
+        /**
+         * Checks the latest orientation written into the ring buffer
+         */
+        void assertOrientation(double roll, double pitch, double yaw, double tolerance){
+            assertEquals(sampleTime, buffer.getLatest(orientation));
+            assertEquals(roll, orientation[OrientationRingBuffer.ROLL], tolerance);
+            assertEquals(pitch, orientation[OrientationRingBuffer.PITCH], tolerance);
+            assertEquals(yaw, orientation[OrientationRingBuffer.YAW], tolerance);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packet classification and loss counting of the packet sequence tracker, which will execute on
+ * the development machine (host).
+ */
+public class PacketSequenceTrackerTest {
+    private static final int SAMPLING_RATE = 100;
+    private static final long PERIOD_MILLIS = 1000 / SAMPLING_RATE;
+
+    @Test
+    public void consecutivePackets_wrapAroundWithoutLoss() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        assertEquals(PacketSequenceTracker.Result.FIRST, tracker.track(250, 0));
+        for (int i = 1; i <= 300; i++) {
+            assertEquals(PacketSequenceTracker.Result.IN_ORDER,
+                    tracker.track((250 + i) & 0xff, i * PERIOD_MILLIS));
+            assertEquals(i, tracker.getLastSequence());
+            assertEquals(0, tracker.getLastLostPackets());
+        }
+        assertEquals(301, tracker.getReceivedCount());
+        assertEquals(0, tracker.getLostCount());
+        assertEquals(0, tracker.getGapCount());
+        assertEquals(0, tracker.getLossRate(), 0);
+    }
+
+    @Test
+    public void gap_acrossWrapAround_countsLostPackets() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        tracker.track(253, 0);
+        tracker.track(254, 10);
+        // 255, 0 and 1 are lost
+        assertEquals(PacketSequenceTracker.Result.GAP, tracker.track(2, 40));
+        assertEquals(3, tracker.getLastLostPackets());
+        assertEquals(5, tracker.getLastSequence());
+        assertEquals(PacketSequenceTracker.Result.IN_ORDER, tracker.track(3, 50));
+        assertEquals(0, tracker.getLastLostPackets());
+        assertEquals(6, tracker.getLastSequence());
+        assertEquals(4, tracker.getReceivedCount());
+        assertEquals(3, tracker.getLostCount());
+        assertEquals(1, tracker.getGapCount());
+        assertEquals(3. / 7, tracker.getLossRate(), 1e-12);
+    }
+
+    @Test
+    public void duplicateAndLatePackets_areDiscarded() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        tracker.track(1, 0);
+        tracker.track(2, 10);
+        tracker.track(3, 20);
+        assertEquals(PacketSequenceTracker.Result.DUPLICATE, tracker.track(3, 25));
+        assertEquals(PacketSequenceTracker.Result.OUT_OF_ORDER, tracker.track(1, 26));
+        // Late packet before the wrap around
+        assertEquals(PacketSequenceTracker.Result.OUT_OF_ORDER, tracker.track(250, 27));
+        assertEquals(2, tracker.getLastSequence());
+        assertEquals(PacketSequenceTracker.Result.IN_ORDER, tracker.track(4, 30));
+        assertEquals(3, tracker.getLastSequence());
+        assertEquals(4, tracker.getReceivedCount());
+        assertEquals(1, tracker.getDuplicateCount());
+        assertEquals(2, tracker.getOutOfOrderCount());
+        assertEquals(0, tracker.getLostCount());
+    }
+
+    @Test
+    public void longSilence_countsFullIndexCycles() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        tracker.reset(SAMPLING_RATE);
+        tracker.track(10, 0);
+        // Same index after exactly one cycle: not a duplicate
+        assertEquals(PacketSequenceTracker.Result.GAP, tracker.track(10, 256 * PERIOD_MILLIS));
+        assertEquals(255, tracker.getLastLostPackets());
+        assertEquals(256, tracker.getLastSequence());
+        // 10 index steps and about 2 cycles in 500 expected packets
+        long time = 256 * PERIOD_MILLIS + 500 * PERIOD_MILLIS;
+        assertEquals(PacketSequenceTracker.Result.GAP, tracker.track(20, time));
+        assertEquals(2 * 256 + 10 - 1, tracker.getLastLostPackets());
+        assertEquals(256 + 2 * 256 + 10, tracker.getLastSequence());
+        // A backward jump after a long silence is a gap, not a late packet: 251 index steps are
+        // closer to the 300 expected packets than another cycle
+        time += 300 * PERIOD_MILLIS;
+        assertEquals(PacketSequenceTracker.Result.GAP, tracker.track(15, time));
+        assertEquals(251 - 1, tracker.getLastLostPackets());
+        assertEquals(255 + 521 + 250, tracker.getLostCount());
+        assertEquals(3, tracker.getGapCount());
+    }
+
+    @Test
+    public void backwardJump_withoutSamplingRate_isLate() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        tracker.track(10, 0);
+        assertEquals(PacketSequenceTracker.Result.OUT_OF_ORDER, tracker.track(5, 100000));
+        // Beyond the out-of-order window, a forward gap
+        assertEquals(PacketSequenceTracker.Result.GAP, tracker.track(200, 100010));
+        assertEquals(189, tracker.getLastLostPackets());
+    }
+
+    @Test
+    public void recentLossRate_decaysAfterGap() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        tracker.track(0, 0);
+        tracker.track(11, 10);
+        double afterGap = tracker.getRecentLossRate();
+        assertTrue(afterGap > 0.05 && afterGap < 0.15);
+        int index = 11;
+        for (int i = 0; i < 500; i++) {
+            index = (index + 1) & 0xff;
+            tracker.track(index, 20 + i);
+        }
+        assertTrue(tracker.getRecentLossRate() < afterGap / 100);
+        // The loss rate of the session is not forgotten
+        assertEquals(10. / 512, tracker.getLossRate(), 1e-12);
+    }
+
+    @Test
+    public void reset_startsNewSession() {
+        PacketSequenceTracker tracker = new PacketSequenceTracker();
+        tracker.track(0, 0);
+        tracker.track(5, 10);
+        tracker.track(5, 20);
+        tracker.reset(SAMPLING_RATE);
+        assertEquals(SAMPLING_RATE, tracker.getSamplingRate());
+        assertEquals(-1, tracker.getLastSequence());
+        assertEquals(0, tracker.getReceivedCount());
+        assertEquals(0, tracker.getLostCount());
+        assertEquals(0, tracker.getDuplicateCount());
+        assertEquals(0, tracker.getGapCount());
+        assertEquals(0, tracker.getRecentLossRate(), 0);
+        assertEquals(PacketSequenceTracker.Result.FIRST, tracker.track(5, 30));
+        assertEquals(0, tracker.getLastSequence());
+    }
+}
@@ -0,0 +1,184 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Distribution of the samples to several sinks, isolation of a failing sink and removal of the
+ * sinks, which will execute on the development machine (host).
+ */
+public class SampleFanOutTest {
+    private static final int SAMPLE_COUNT = 5000;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int BATCH_SIZE = 16;
+
+    @Test
+    public void sinks_receiveEverySampleInOrder() {
+        SampleFanOut fanOut = new SampleFanOut();
+        RecordingSink first = new RecordingSink(-1);
+        RecordingSink second = new RecordingSink(-1);
+        fanOut.addSink("first", first, BATCH_SIZE, QUEUE_CAPACITY, WaitStrategy.YIELD,
+                OverflowPolicy.BLOCK);
+        fanOut.addSink("second", second, BATCH_SIZE, QUEUE_CAPACITY, WaitStrategy.BLOCK,
+                OverflowPolicy.BLOCK);
+        feed(fanOut, 0, SAMPLE_COUNT);
+        fanOut.removeAll();
+        for (RecordingSink sink : new RecordingSink[] {first, second}) {
+            assertEquals(SAMPLE_COUNT, sink.sampleCount);
+            assertTrue(sink.inOrder);
+            assertEquals(1, sink.closeCount);
+            // At most a flush per second of samples
+            assertTrue(sink.flushCount > 0 && sink.flushCount < SAMPLE_COUNT / 100);
+        }
+        assertFalse(fanOut.contains("first"));
+    }
+
+    @Test
+    public void failingSink_isClosedWithoutStoppingOthers() throws Exception {
+        SampleFanOut fanOut = new SampleFanOut();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final String[] failedName = new String[1];
+        fanOut.setListener(new SampleFanOut.Listener() {
+            @Override
+            public void onSinkFailed(String name, Exception error) {
+                failedName[0] = name;
+                failed.countDown();
+            }
+        });
+        RecordingSink failing = new RecordingSink(100);
+        RecordingSink healthy = new RecordingSink(-1);
+        fanOut.addSink("failing", failing, BATCH_SIZE, QUEUE_CAPACITY, WaitStrategy.YIELD,
+                OverflowPolicy.BLOCK);
+        fanOut.addSink("healthy", healthy, BATCH_SIZE, QUEUE_CAPACITY, WaitStrategy.YIELD,
+                OverflowPolicy.BLOCK);
+        feed(fanOut, 0, SAMPLE_COUNT / 2);
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        assertEquals("failing", failedName[0]);
+        assertFalse(fanOut.contains("failing"));
+        assertNull(fanOut.getQueue("failing"));
+        feed(fanOut, SAMPLE_COUNT / 2, SAMPLE_COUNT / 2);
+        // Removed already, the failed sink is not closed twice
+        assertFalse(fanOut.remove("failing"));
+        assertTrue(fanOut.remove("healthy"));
+        assertEquals(1, failing.closeCount);
+        assertTrue(failing.sampleCount < SAMPLE_COUNT / 2);
+        assertEquals(SAMPLE_COUNT, healthy.sampleCount);
+        assertTrue(healthy.inOrder);
+        assertEquals(1, healthy.closeCount);
+    }
+
+    @Test
+    public void remove_deliversQueuedSamplesBeforeClosing() {
+        SampleFanOut fanOut = new SampleFanOut();
+        RecordingSink removed = new RecordingSink(-1);
+        RecordingSink kept = new RecordingSink(-1);
+        fanOut.addSink("removed", removed, BATCH_SIZE, QUEUE_CAPACITY, WaitStrategy.SLEEP,
+                OverflowPolicy.BLOCK);
+        fanOut.addSink("kept", kept, BATCH_SIZE, QUEUE_CAPACITY, WaitStrategy.YIELD,
+                OverflowPolicy.BLOCK);
+        feed(fanOut, 0, 1000);
+        assertTrue(fanOut.remove("removed"));
+        assertEquals(1000, removed.sampleCount);
+        assertEquals(1, removed.closeCount);
+        assertFalse(fanOut.contains("removed"));
+        assertFalse(fanOut.remove("removed"));
+        // The remaining sink goes on
+        feed(fanOut, 1000, 1000);
+        assertEquals(1000, removed.sampleCount);
+        fanOut.removeAll();
+        assertEquals(2000, kept.sampleCount);
+        assertTrue(kept.inOrder);
+    }
+
+    @Test
+    public void listener_receivesSamplesOnItsThread() {
+        SampleFanOut fanOut = new SampleFanOut();
+        final long[] count = {0};
+        final Thread[] thread = new Thread[1];
+        fanOut.addListener("listener", new ESenseSensorListener() {
+            @Override
+            public void onSensorChanged(ESenseEvent evt) {
+                count[0]++;
+                thread[0] = Thread.currentThread();
+            }
+        }, QUEUE_CAPACITY, WaitStrategy.YIELD, OverflowPolicy.BLOCK);
+        assertNotNull(fanOut.getQueue("listener"));
+        feed(fanOut, 0, 1000);
+        assertTrue(fanOut.remove("listener"));
+        assertEquals(1000, count[0]);
+        assertNotSame(Thread.currentThread(), thread[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateName_isRejected() {
+        SampleFanOut fanOut = new SampleFanOut();
+        fanOut.addSink("sink", new RecordingSink(-1), BATCH_SIZE, QUEUE_CAPACITY,
+                WaitStrategy.YIELD, OverflowPolicy.BLOCK);
+        try {
+            fanOut.addSink("sink", new RecordingSink(-1), BATCH_SIZE, QUEUE_CAPACITY,
+                    WaitStrategy.YIELD, OverflowPolicy.BLOCK);
+        } finally {
+            fanOut.removeAll();
+        }
+    }
+
+    /**
+     * Feeds samples at 100 Hz, numbered from a first index
+     */
+    private static void feed(SampleFanOut fanOut, int first, int count) {
+        ESenseEvent evt = ESenseEvent.obtain();
+        for (int i = first; i < first + count; i++) {
+            evt.setSampleTimeNanos(i * 10000000L);
+            evt.setTimestamp(i);
+            evt.setPacketIndex(i & 0xff);
+            fanOut.onSensorChanged(evt);
+        }
+        evt.recycle();
+    }
+
+    /**
+     * Counts the samples, flushes and closes, and fails after a given number of samples.
+     */
+    private static class RecordingSink implements SampleSink {
+        private final int failAfter;
+        volatile long sampleCount = 0;
+        volatile boolean inOrder = true;
+        volatile int flushCount = 0;
+        volatile int closeCount = 0;
+        private long previous = -1;
+
+        RecordingSink(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public void onSamples(SampleBlock block) throws IOException {
+            if (failAfter >= 0 && sampleCount + block.getSize() > failAfter) {
+                throw new IOException("Sink full");
+            }
+            for (int i = 0; i < block.getSize(); i++) {
+                long index = block.getTimestamps()[i];
+                if (index != previous + 1) {
+                    inOrder = false;
+                }
+                previous = index;
+            }
+            sampleCount += block.getSize();
+        }
+
+        @Override
+        public void flush() {
+            flushCount++;
+        }
+
+        @Override
+        public void close() {
+            closeCount++;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package io.esense.esenselib;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Chaining, timing and allocations of the sample pipeline and of its basic stages, which will
+ * execute on the development machine (host).
+ */
+public class SamplePipelineTest {
+    private static final int WARM_UP_BLOCKS = 20000;
+    private static final int MEASURED_BLOCKS = 20000;
+    // Allowance for the measurement itself, far below one allocation per block
+    private static final long MAX_ALLOCATED_BYTES = 1024;
+
+    @Test
+    public void process_splitsLargeBlocks() {
+        Recorder recorder = new Recorder();
+        SamplePipeline pipeline = new SamplePipeline(32)
+                .addStage("sink", new SinkStage(recorder));
+        SampleBlock input = createBlock(0, 100);
+        pipeline.process(input);
+        assertEquals(4, recorder.sizes.size());
+        assertEquals(32, (int) recorder.sizes.get(0));
+        assertEquals(4, (int) recorder.sizes.get(3));
+        assertEquals(sampleValue(99), recorder.lastAccX);
+        assertEquals(1, pipeline.getStageCount());
+        assertEquals("sink", pipeline.getStageName(0));
+        assertEquals(4, pipeline.getStageBlockCount(0));
+        assertEquals(100, pipeline.getStageSampleCount(0));
+        assertTrue(pipeline.getStageTimeNanos(0) >= pipeline.getStageMaxTimeNanos(0));
+        pipeline.resetTiming();
+        assertEquals(0, pipeline.getStageSampleCount(0));
+    }
+
+    @Test
+    public void process_doesNotModifyInput() {
+        SamplePipeline pipeline = new SamplePipeline(64)
+                .addStage("clear", new SampleStage() {
+                    @Override
+                    public int prepare(int maxBlockSize) {
+                        return maxBlockSize;
+                    }
+
+                    @Override
+                    public void process(SampleBlock block, SampleStageOutput output) {
+                        // In place
+                        for (int i = 0; i < block.getSize(); i++) {
+                            block.getAccX()[i] = 0;
+                            block.getSampleTimes()[i] = 0;
+                        }
+                        output.emit(block);
+                    }
+
+                    @Override
+                    public void reset() {
+                    }
+                });
+        SampleBlock input = createBlock(0, 64);
+        pipeline.process(input);
+        for (int i = 0; i < 64; i++) {
+            assertEquals(sampleValue(i), input.getAccX()[i]);
+            assertEquals(i * 10000000L, input.getSampleTimes()[i]);
+        }
+    }
+
+    @Test
+    public void decimation_averagesGroupsAcrossBlocks() {
+        Recorder recorder = new Recorder();
+        SamplePipeline pipeline = new SamplePipeline(64)
+                .addStage("decimation", new DecimationStage(4))
+                .addStage("sink", new SinkStage(recorder));
+        SampleBlock input = createBlock(0, 10);
+        input.getLostPackets()[1] = 2;
+        input.getLostPackets()[3] = 1;
+        pipeline.process(input);
+        // 2 complete groups, the third one continues in the next block
+        assertEquals(2, recorder.samples.size());
+        pipeline.process(createBlock(10, 2));
+        assertEquals(3, recorder.samples.size());
+        for (int group = 0; group < 3; group++) {
+            ESenseEvent sample = recorder.samples.get(group);
+            double mean = 0;
+            for (int i = 4 * group; i < 4 * group + 4; i++) {
+                mean += sampleValue(i) / 4.0;
+            }
+            assertEquals(Math.round(mean), sample.getAccel()[0]);
+            // Middle of the group
+            assertEquals((4 * group * 10 + 15) * 1000000L, sample.getSampleTimeNanos());
+            assertEquals((4 * group + 3) & 0xff, sample.getPacketIndex());
+        }
+        assertEquals(3, recorder.samples.get(0).getLostPackets());
+        assertEquals(0, recorder.samples.get(1).getLostPackets());
+    }
+
+    @Test
+    public void window_emitsOverlappingWindows() {
+        Recorder recorder = new Recorder();
+        SamplePipeline pipeline = new SamplePipeline(16)
+                .addStage("window", new WindowStage(10, 4))
+                .addStage("sink", new SinkStage(recorder));
+        pipeline.process(createBlock(0, 50));
+        assertEquals(11, recorder.sizes.size());
+        for (int w = 0; w < recorder.sizes.size(); w++) {
+            assertEquals(10, (int) recorder.sizes.get(w));
+            assertEquals(sampleValue(4 * w), recorder.firstAccX.get(w).shortValue());
+        }
+    }
+
+    @Test
+    public void window_skipsSamplesBetweenWindows() {
+        Recorder recorder = new Recorder();
+        SamplePipeline pipeline = new SamplePipeline(7)
+                .addStage("window", new WindowStage(10, 15))
+                .addStage("sink", new SinkStage(recorder));
+        pipeline.process(createBlock(0, 50));
+        assertEquals(3, recorder.sizes.size());
+        assertEquals(sampleValue(15), recorder.firstAccX.get(1).shortValue());
+        assertEquals(sampleValue(30), recorder.firstAccX.get(2).shortValue());
+    }
+
+    @Test
+    public void reset_discardsStageState() {
+        Recorder recorder = new Recorder();
+        SamplePipeline pipeline = new SamplePipeline(64)
+                .addStage("decimation", new DecimationStage(4))
+                .addStage("sink", new SinkStage(recorder));
+        pipeline.process(createBlock(0, 6));
+        pipeline.reset();
+        pipeline.process(createBlock(100, 4));
+        assertEquals(2, recorder.samples.size());
+        // Only the samples after the reset are averaged
+        assertEquals(Math.round((sampleValue(100) + sampleValue(101) + sampleValue(102)
+                + sampleValue(103)) / 4.0), recorder.samples.get(1).getAccel()[0]);
+    }
+
+    @Test
+    public void process_doesNotAllocateOncePrepared() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        final long[] count = {0};
+        SamplePipeline pipeline = new SamplePipeline(32)
+                .addStage("decimation", new DecimationStage(2))
+                .addStage("window", new WindowStage(64, 16))
+                .addStage("sink", new SinkStage(new ESenseSensorBatchListener() {
+                    @Override
+                    public void onSensorBatch(SampleBlock block) {
+                        count[0] += block.getSize();
+                    }
+                }));
+        // Blocks of various sizes, some split by the pipeline
+        SampleBlock[] blocks = {createBlock(0, 5), createBlock(5, 40), createBlock(45, 17)};
+        for (int i = 0; i < WARM_UP_BLOCKS; i++) {
+            pipeline.process(blocks[i % blocks.length]);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_BLOCKS; i++) {
+            pipeline.process(blocks[i % blocks.length]);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("Allocated " + allocated + " bytes", allocated < MAX_ALLOCATED_BYTES);
+        assertTrue(count[0] > 0);
+    }
+
+    /**
+     * Creates a block of samples at 100 Hz, numbered from a first index.
+     */
+    private static SampleBlock createBlock(int first, int count) {
+        SampleBlock block = new SampleBlock(count);
+        ESenseEvent evt = new ESenseEvent();
+        for (int i = first; i < first + count; i++) {
+            evt.setSampleTimeNanos(i * 10000000L);
+            evt.setTimestamp(i * 10);
+            evt.setPacketIndex(i & 0xff);
+            short value = sampleValue(i);
+            evt.getAccel()[0] = value;
+            evt.getAccel()[1] = (short) -value;
+            evt.getAccel()[2] = (short) 16384;
+            evt.getGyro()[0] = (short) (value / 2);
+            evt.getGyro()[1] = 0;
+            evt.getGyro()[2] = (short) i;
+            block.add(evt);
+        }
+        return block;
+    }
+
+    private static short sampleValue(int index) {
+        return (short) ((index * 37) % 1000);
+    }
+
+    /**
+     * Records the blocks received at the end of a pipeline.
+     */
+    private static class Recorder implements ESenseSensorBatchListener {
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Short> firstAccX = new ArrayList<>();
+        final List<ESenseEvent> samples = new ArrayList<>();
+        short lastAccX;
+
+        @Override
+        public void onSensorBatch(SampleBlock block) {
+            sizes.add(block.getSize());
+            firstAccX.add(block.getAccX()[0]);
+            lastAccX = block.getAccX()[block.getSize() - 1];
+            for (int i = 0; i < block.getSize(); i++) {
+                ESenseEvent sample = new ESenseEvent();
+                block.getEvent(i, sample);
+                samples.add(sample);
+            }
+        }
+    }
+}
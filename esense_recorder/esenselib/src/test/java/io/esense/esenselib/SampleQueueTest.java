@@ -0,0 +1,384 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, overflow policies and lost packet accounting of the sample queue, which will execute
+ * on the development machine (host).
+ *
+ * <p>
+ *     The samples carry the sequence of their packet in their timestamp, so that the gap between
+ *     two delivered samples must equal the lost packets of the second one.
+ * </p>
+ */
+public class SampleQueueTest {
+    private static final int CONCURRENT_SAMPLE_COUNT = 200000;
+    private static final long CONCURRENT_FIRST_SEQUENCE = 11;
+
+    @Test
+    public void poll_returnsSamplesInOrder() {
+        SampleQueue queue = new SampleQueue(8, WaitStrategy.BUSY_SPIN, OverflowPolicy.DROP_NEWEST);
+        Producer producer = new Producer(queue, 0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(producer.offer(0));
+        }
+        ESenseEvent evt = ESenseEvent.obtain();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.poll(evt));
+            assertEquals(i, evt.getTimestamp());
+            assertEquals(i, evt.getAccel()[0]);
+            assertEquals(-i, evt.getGyro()[2]);
+            assertEquals(i * 10, evt.getSampleTimeNanos());
+            assertEquals(i & 0xff, evt.getPacketIndex());
+            assertEquals(0, evt.getLostPackets());
+        }
+        assertFalse(queue.poll(evt));
+        assertEquals(5, queue.getPublishedCount());
+        assertEquals(5, queue.getConsumedCount());
+        assertEquals(0, queue.getDepth());
+        evt.recycle();
+    }
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() {
+        assertEquals(8, new SampleQueue(5, WaitStrategy.YIELD, OverflowPolicy.BLOCK).getCapacity());
+        assertEquals(2, new SampleQueue(2, WaitStrategy.YIELD, OverflowPolicy.BLOCK).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity_isRejected() {
+        new SampleQueue(1, WaitStrategy.YIELD, OverflowPolicy.BLOCK);
+    }
+
+    @Test
+    public void dropNewest_reportsDroppedSamplesOnNextSample() {
+        SampleQueue queue = new SampleQueue(4, WaitStrategy.BUSY_SPIN, OverflowPolicy.DROP_NEWEST);
+        Producer producer = new Producer(queue, 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(producer.offer(0));
+        }
+        // Dropped, the first one after 2 lost packets
+        assertFalse(producer.offer(2));
+        assertFalse(producer.offer(0));
+        assertEquals(2, queue.getDroppedNewestCount());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(4, queue.getHighWaterMark());
+
+        ESenseEvent evt = ESenseEvent.obtain();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.poll(evt));
+            assertEquals(0, evt.getLostPackets());
+        }
+        assertTrue(producer.offer(1));
+        assertTrue(queue.poll(evt));
+        // 1 lost before this sample, 2 dropped samples and the 2 packets lost before them
+        assertEquals(5, evt.getLostPackets());
+        assertEquals(producer.getSequence(), evt.getTimestamp());
+        evt.recycle();
+    }
+
+    @Test
+    public void dropOldest_keepsNewestSamples() {
+        SampleQueue queue = new SampleQueue(4, WaitStrategy.BUSY_SPIN, OverflowPolicy.DROP_OLDEST);
+        Producer producer = new Producer(queue, 0);
+        assertTrue(producer.offer(0));
+        assertTrue(producer.offer(3));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(producer.offer(0));
+        }
+        assertEquals(2, queue.getDroppedOldestCount());
+        assertEquals(4, queue.getDepth());
+
+        ESenseEvent evt = ESenseEvent.obtain();
+        assertTrue(queue.poll(evt));
+        // Third published sample, after the 2 dropped ones and the 3 packets lost before them
+        assertEquals(2 + 3, evt.getTimestamp());
+        assertEquals(5, evt.getLostPackets());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.poll(evt));
+            assertEquals(0, evt.getLostPackets());
+        }
+        assertFalse(queue.poll(evt));
+        evt.recycle();
+    }
+
+    @Test
+    public void decimate_keepsEveryOtherSampleUnderPressure() {
+        SampleQueue queue = new SampleQueue(8, WaitStrategy.BUSY_SPIN, OverflowPolicy.DECIMATE);
+        Producer producer = new Producer(queue, 0);
+        int published = 0;
+        for (int i = 0; i < 12; i++) {
+            if (producer.offer(0)) {
+                published++;
+            }
+        }
+        // Half full after 4 samples, then every other sample until full
+        assertEquals(4, queue.getDecimatedCount());
+        assertEquals(8, published);
+        assertEquals(8, queue.getDepth());
+
+        SampleBlock block = new SampleBlock(16);
+        assertEquals(8, queue.drainTo(block, 16));
+        assertEquals(0, block.getFirstSequence());
+        long previous = -1;
+        for (int i = 0; i < block.getSize(); i++) {
+            long sequence = block.getTimestamps()[i];
+            assertEquals(sequence - previous - 1, block.getLostPackets()[i]);
+            previous = sequence;
+        }
+    }
+
+    @Test
+    public void drainTo_reportsDroppedSamplesOnFirstSample() {
+        SampleQueue queue = new SampleQueue(4, WaitStrategy.BUSY_SPIN, OverflowPolicy.DROP_NEWEST);
+        Producer producer = new Producer(queue, 0);
+        for (int i = 0; i < 4; i++) {
+            producer.offer(0);
+        }
+        assertFalse(producer.offer(4));
+        SampleBlock block = new SampleBlock(2);
+        assertEquals(2, queue.drainTo(block, 10));
+        assertEquals(2, queue.drainTo(block, 10));
+        assertTrue(producer.offer(0));
+        assertTrue(producer.offer(1));
+        assertEquals(2, queue.drainTo(block, 10));
+        assertEquals(4, block.getFirstSequence());
+        assertEquals(5, block.getLostPackets()[0]);
+        assertEquals(1, block.getLostPackets()[1]);
+        assertEquals(0, queue.drainTo(block, 10));
+        assertEquals(0, block.getSize());
+    }
+
+    @Test
+    public void drainTo_copiesAcrossEndOfRing() {
+        SampleQueue queue = new SampleQueue(4, WaitStrategy.BUSY_SPIN, OverflowPolicy.DROP_NEWEST);
+        Producer producer = new Producer(queue, 0);
+        for (int i = 0; i < 3; i++) {
+            producer.offer(0);
+        }
+        SampleBlock block = new SampleBlock(8);
+        assertEquals(2, queue.drainTo(block, 2));
+        assertEquals(0, block.getFirstSequence());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(producer.offer(0));
+        }
+        assertEquals(4, queue.drainTo(block, 10));
+        assertEquals(2, block.getFirstSequence());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2 + i, block.getTimestamps()[i]);
+            assertEquals(2 + i, block.getAccX()[i]);
+            assertEquals(-(2 + i), block.getGyroZ()[i]);
+            assertEquals((2 + i) * 10, block.getSampleTimes()[i]);
+        }
+    }
+
+    @Test
+    public void block_waitsForConsumer() throws Exception {
+        checkConcurrentDelivery(OverflowPolicy.BLOCK, WaitStrategy.BLOCK, 4);
+    }
+
+    @Test
+    public void dropOldest_withConcurrentConsumer_accountsForEveryPacket() throws Exception {
+        checkConcurrentDelivery(OverflowPolicy.DROP_OLDEST, WaitStrategy.BUSY_SPIN, 8);
+    }
+
+    @Test
+    public void dropNewest_withConcurrentConsumer_accountsForEveryPacket() throws Exception {
+        checkConcurrentDelivery(OverflowPolicy.DROP_NEWEST, WaitStrategy.YIELD, 8);
+    }
+
+    @Test
+    public void decimate_withConcurrentConsumer_accountsForEveryPacket() throws Exception {
+        checkConcurrentDelivery(OverflowPolicy.DECIMATE, WaitStrategy.SLEEP, 8);
+    }
+
+    @Test
+    public void close_releasesBlockedProducer() throws Exception {
+        final SampleQueue queue = new SampleQueue(2, WaitStrategy.BLOCK, OverflowPolicy.BLOCK);
+        final Producer producer = new Producer(queue, 0);
+        producer.offer(0);
+        producer.offer(0);
+        final boolean[] result = {true};
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = producer.offer(0);
+            }
+        });
+        thread.start();
+        while (queue.getBlockedCount() == 0) {
+            Thread.yield();
+        }
+        queue.close();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertFalse(result[0]);
+        assertEquals(1, queue.getDroppedNewestCount());
+        // The queued samples can still be consumed
+        assertEquals(2, queue.getDepth());
+    }
+
+    @Test
+    public void highWaterMark_staysLowWhenConsumerKeepsUp() throws Exception {
+        checkHighWaterMark(OverflowPolicy.DECIMATE);
+        checkHighWaterMark(OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Publishes each sample once the consumer thread has taken the previous one, so that the
+     * queue never holds more than one sample.
+     */
+    private static void checkHighWaterMark(OverflowPolicy policy) throws Exception {
+        final SampleQueue queue = new SampleQueue(1024, WaitStrategy.YIELD, policy);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ESenseEvent evt = ESenseEvent.obtain();
+                int idleCount = 0;
+                while (!queue.isClosed() || queue.getDepth() > 0) {
+                    if (queue.poll(evt)) {
+                        idleCount = 0;
+                    } else {
+                        try {
+                            queue.waitForSamples(idleCount++);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                evt.recycle();
+            }
+        }, "SampleQueueTest-Consumer");
+        thread.setDaemon(true);
+        thread.start();
+        Producer producer = new Producer(queue, 0);
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(producer.offer(0));
+            while (queue.getDepth() > 0) {
+                Thread.yield();
+            }
+        }
+        queue.close();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertEquals(5000, queue.getConsumedCount());
+        assertEquals(1, queue.getHighWaterMark());
+    }
+
+    /**
+     * Publishes samples from a producer thread while the consumer alternates polls and drains,
+     * and checks that the samples are delivered in order with every missing packet reported.
+     */
+    private static void checkConcurrentDelivery(OverflowPolicy policy, WaitStrategy waitStrategy,
+                                                int capacity) throws Exception {
+        final SampleQueue queue = new SampleQueue(capacity, waitStrategy, policy);
+        final Producer producer = new Producer(queue, CONCURRENT_FIRST_SEQUENCE);
+        final long[] lastSequence = new long[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(13);
+                for (int i = 0; i < CONCURRENT_SAMPLE_COUNT; i++) {
+                    producer.offer((random.nextInt(50) == 0) ? random.nextInt(4) + 1 : 0);
+                    if (random.nextInt(64) == 0) {
+                        Thread.yield();
+                    }
+                }
+                // The last sample delivers the drops pending in the producer
+                while (!producer.offer(0)) {
+                    Thread.yield();
+                }
+                lastSequence[0] = producer.getSequence();
+                queue.close();
+            }
+        }, "SampleQueueTest-Producer");
+        // Does not keep the tests running if the consumer fails
+        thread.setDaemon(true);
+        thread.start();
+
+        ESenseEvent evt = ESenseEvent.obtain();
+        SampleBlock block = new SampleBlock(5);
+        long previous = CONCURRENT_FIRST_SEQUENCE - 1;
+        long delivered = 0;
+        int idleCount = 0;
+        boolean usePoll = false;
+        while (true) {
+            boolean closed = queue.isClosed();
+            int n;
+            if (usePoll) {
+                n = queue.poll(evt) ? 1 : 0;
+                if (n == 1) {
+                    assertEquals(evt.getTimestamp() - previous - 1, evt.getLostPackets());
+                    previous = evt.getTimestamp();
+                }
+            } else {
+                n = queue.drainTo(block, block.getCapacity());
+                for (int i = 0; i < n; i++) {
+                    long sequence = block.getTimestamps()[i];
+                    assertEquals(sequence - previous - 1, block.getLostPackets()[i]);
+                    previous = sequence;
+                }
+            }
+            usePoll = !usePoll;
+            delivered += n;
+            if (n > 0) {
+                idleCount = 0;
+            } else if (closed) {
+                break;
+            } else {
+                queue.waitForSamples(idleCount++);
+            }
+        }
+        evt.recycle();
+        thread.join();
+
+        assertEquals(lastSequence[0], previous);
+        // The consumed count includes the samples taken from the consumer by DROP_OLDEST
+        assertEquals(queue.getPublishedCount(), queue.getConsumedCount());
+        assertEquals(queue.getPublishedCount(), delivered + queue.getDroppedOldestCount());
+        assertEquals(producer.getOfferedCount(), delivered + queue.getDroppedCount());
+        if (policy == OverflowPolicy.BLOCK) {
+            assertEquals(0, queue.getDroppedCount());
+        }
+    }
+
+    /**
+     * Offers samples numbered by the sequence of their packet.
+     */
+    private static class Producer {
+        private final SampleQueue queue;
+        private final ESenseEvent evt = ESenseEvent.obtain();
+        private long sequence;
+        private long offeredCount = 0;
+
+        Producer(SampleQueue queue, long firstSequence) {
+            this.queue = queue;
+            this.sequence = firstSequence - 1;
+        }
+
+        boolean offer(int lostPackets) {
+            sequence += 1 + lostPackets;
+            int id = (int) sequence;
+            evt.getAccel()[0] = (short) id;
+            evt.getGyro()[2] = (short) -id;
+            evt.setTimestamp(sequence);
+            evt.setSampleTimeNanos(sequence * 10);
+            evt.setPacketIndex(id & 0xff);
+            evt.setLostPackets(lostPackets);
+            offeredCount++;
+            return queue.offer(evt);
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        long getOfferedCount() {
+            return offeredCount;
+        }
+    }
+}
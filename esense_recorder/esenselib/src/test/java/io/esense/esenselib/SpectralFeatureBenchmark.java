@@ -0,0 +1,47 @@
+package io.esense.esenselib;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Throughput of the spectral features, which will execute on the development machine (host).
+ * Not part of the default run, as its timings depend on the machine.
+ */
+public class SpectralFeatureBenchmark {
+    private static final double SAMPLING_RATE = 100;
+    private static final double[] BANDS = {0.5, 3, 8, 20, 50};
+    private static final int ROUNDS = 2000;
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void throughput() {
+        // 2.56 s and 5.12 s windows at 100 Hz, with and without padding
+        int[] sizes = {200, 256, 500, 512};
+        for (int size : sizes) {
+            final double[] sink = new double[1];
+            SpectralFeatureStage stage = new SpectralFeatureStage(SAMPLING_RATE, size, 1,
+                    SpectralWindow.HANN, BANDS, new SpectralFeaturesListener() {
+                        @Override
+                        public void onSpectralFeatures(SpectralFeatures features) {
+                            sink[0] += features.getDominantFrequency(WindowStatistics.ACC_X);
+                        }
+                    });
+            SamplePipeline pipeline = new SamplePipeline(size);
+            pipeline.addStage("spectrum", stage);
+            // A hop of 1 sample: one window of the 6 channels per sample after the first window
+            SampleBlock samples = SpectralFeatureTest.createSamples(size + ROUNDS, 5, 1000);
+            // Warm up, then measure
+            for (int pass = 0; pass < 2; pass++) {
+                pipeline.reset();
+                long start = System.nanoTime();
+                pipeline.process(samples);
+                long nanos = System.nanoTime() - start;
+                if (pass == 1) {
+                    System.out.printf("SpectralFeatureStage: %d samples (FFT %d), "
+                                    + "%.0f windows/s of 6 channels%n", size, stage.getFftSize(),
+                            (ROUNDS + 1) * 1e9 / nanos);
+                }
+            }
+        }
+    }
+}
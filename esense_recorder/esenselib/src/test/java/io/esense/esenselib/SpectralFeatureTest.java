@@ -0,0 +1,103 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accuracy of the real FFT and of the spectral features, which will execute on the development
+ * machine (host).
+ */
+public class SpectralFeatureTest {
+    private static final double SAMPLING_RATE = 100;
+    private static final double[] BANDS = {0.5, 3, 8, 20, 50};
+
+    @Test
+    public void fft_matchesDft() {
+        Random random = new Random(5);
+        for (int size = 2; size <= 1024; size <<= 1) {
+            float[] data = new float[size];
+            double[] values = new double[size];
+            for (int n = 0; n < size; n++) {
+                values[n] = random.nextGaussian() * 1000;
+                data[n] = (float) values[n];
+            }
+            RealFft.getInstance(size).forward(data);
+            for (int k = 0; k <= size / 2; k++) {
+                double re = 0;
+                double im = 0;
+                for (int n = 0; n < size; n++) {
+                    double angle = -2 * Math.PI * k * n / size;
+                    re += values[n] * Math.cos(angle);
+                    im += values[n] * Math.sin(angle);
+                }
+                double tolerance = 1e-4 * 1000 * size;
+                if (k == 0) {
+                    assertEquals(re, data[0], tolerance);
+                } else if (k == size / 2) {
+                    assertEquals(re, data[1], tolerance);
+                } else {
+                    assertEquals(re, data[2 * k], tolerance);
+                    assertEquals(im, data[2 * k + 1], tolerance);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void features_ofTone() {
+        final SpectralFeatures[] last = new SpectralFeatures[1];
+        final int[] windows = {0};
+        SpectralFeatureStage stage = new SpectralFeatureStage(SAMPLING_RATE, 300, 50,
+                SpectralWindow.HANN, BANDS, new SpectralFeaturesListener() {
+                    @Override
+                    public void onSpectralFeatures(SpectralFeatures features) {
+                        last[0] = features;
+                        windows[0]++;
+                    }
+                });
+        // 5 Hz tone of amplitude 1000 on acc x, white noise on gyro x, constant acc z
+        SampleBlock samples = createSamples(1000, 5, 1000);
+        SamplePipeline pipeline = new SamplePipeline(64);
+        pipeline.addStage("spectrum", stage);
+        pipeline.process(samples);
+
+        assertEquals(1 + (1000 - 300) / 50, windows[0]);
+        SpectralFeatures features = last[0];
+        assertEquals(512, stage.getFftSize());
+        assertEquals(5, features.getDominantFrequency(WindowStatistics.ACC_X),
+                features.getFrequencyResolution());
+        // The powers add up to the variance of the tone, mostly in the 3-8 Hz band
+        assertEquals(1000.0 * 1000 / 2, features.getTotalPower(WindowStatistics.ACC_X), 2.5e4);
+        assertTrue(features.getBandPower(WindowStatistics.ACC_X, 1)
+                > 0.99 * features.getTotalPower(WindowStatistics.ACC_X));
+        assertTrue(features.getSpectralEntropy(WindowStatistics.ACC_X) < 0.35);
+        assertTrue(features.getSpectralEntropy(WindowStatistics.GYRO_X) > 0.8);
+        assertEquals(0, features.getTotalPower(WindowStatistics.ACC_Z), 1e-6);
+        assertEquals(0, features.getDominantFrequency(WindowStatistics.ACC_Z), 0);
+    }
+
+    /**
+     * Creates samples at 100 Hz with a tone on acc x, white noise on gyro x and gravity on acc z.
+     */
+    static SampleBlock createSamples(int count, double frequency, double amplitude) {
+        Random random = new Random(7);
+        SampleBlock samples = new SampleBlock(count);
+        ESenseEvent evt = ESenseEvent.obtain();
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        acc[2] = 8192;
+        for (int i = 0; i < count; i++) {
+            acc[0] = (short) Math.round(
+                    amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLING_RATE));
+            gyro[0] = (short) Math.round(random.nextGaussian() * amplitude);
+            evt.setSampleTimeNanos(i * 10000000L);
+            evt.setPacketIndex(i & 0xff);
+            samples.add(evt);
+        }
+        evt.recycle();
+        return samples;
+    }
+}
@@ -0,0 +1,136 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drift estimation and reset of the timestamp reconstructor on simulated BLE deliveries, which
+ * will execute on the development machine (host).
+ */
+public class TimestampReconstructorTest {
+    private static final int SAMPLING_RATE = 100;
+    private static final double NOMINAL_PERIOD_NANOS = 1E9 / SAMPLING_RATE;
+    // Connection interval at which the notifications are delivered in bursts
+    private static final long CONNECTION_INTERVAL_NANOS = 30000000;
+    private static final long DELIVERY_DELAY_NANOS = 5000000;
+
+    @Test
+    public void drift_isEstimatedFromBurstyArrivals() {
+        double driftPpm = 200;
+        double period = NOMINAL_PERIOD_NANOS * (1 + driftPpm * 1E-6);
+        TimestampReconstructor reconstructor = new TimestampReconstructor(SAMPLING_RATE);
+        Random random = new Random(7);
+        int count = 30000;
+        long previous = Long.MIN_VALUE;
+        double maxIntervalError = 0;
+        for (int i = 0; i < count; i++) {
+            long sampleNanos = Math.round(i * period);
+            long time = reconstructor.update(i, arrival(sampleNanos, random));
+            assertTrue(time > previous);
+            if (i >= count / 2) {
+                // Once converged, regular times behind the device clock by the delivery delay,
+                // which follows the phase of the samples in the connection interval
+                maxIntervalError = Math.max(maxIntervalError, Math.abs(time - previous - period));
+                long offset = time - sampleNanos;
+                assertTrue(offset > 0 && offset < CONNECTION_INTERVAL_NANOS + DELIVERY_DELAY_NANOS);
+            }
+            previous = time;
+        }
+        assertEquals(driftPpm, reconstructor.getDriftPpm(), 20);
+        assertEquals(period, reconstructor.getPeriodNanos(), period * 20E-6);
+        assertTrue("Max interval error " + maxIntervalError,
+                maxIntervalError < period * 0.001);
+        // The jitter of the bursts is measured
+        double jitter = reconstructor.getJitterNanos();
+        assertTrue("Jitter " + jitter, jitter > 1000000 && jitter < CONNECTION_INTERVAL_NANOS);
+    }
+
+    @Test
+    public void lostPackets_keepTheirTimeSlots() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor(SAMPLING_RATE);
+        Random random = new Random(11);
+        long sequence = 0;
+        long time = 0;
+        for (int i = 0; i < 5000; i++) {
+            long previousTime = time;
+            int steps = (i % 100 == 99) ? 6 : 1;
+            sequence += steps;
+            time = reconstructor.update(sequence,
+                    arrival(Math.round(sequence * NOMINAL_PERIOD_NANOS), random));
+            if (i > 1000) {
+                assertEquals(steps * NOMINAL_PERIOD_NANOS, time - previousTime,
+                        NOMINAL_PERIOD_NANOS * 0.05);
+            }
+        }
+    }
+
+    @Test
+    public void excessiveDrift_keepsNominalPeriod() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor(SAMPLING_RATE);
+        for (int i = 0; i < 1000; i++) {
+            reconstructor.update(i, Math.round(i * NOMINAL_PERIOD_NANOS * 1.2));
+        }
+        assertEquals(NOMINAL_PERIOD_NANOS, reconstructor.getPeriodNanos(), 0);
+        assertEquals(0, reconstructor.getDriftPpm(), 0);
+    }
+
+    @Test
+    public void sequenceRestart_discardsHistory() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor(SAMPLING_RATE);
+        Random random = new Random(13);
+        for (int i = 0; i < 2000; i++) {
+            reconstructor.update(i + 1000, arrival(Math.round(i * NOMINAL_PERIOD_NANOS), random));
+        }
+        // New numbering, e.g. after a reconnection
+        long arrival = 3600000000000L;
+        assertEquals(arrival, reconstructor.update(0, arrival));
+        long next = reconstructor.update(1, arrival + Math.round(NOMINAL_PERIOD_NANOS));
+        assertEquals(NOMINAL_PERIOD_NANOS, next - arrival, NOMINAL_PERIOD_NANOS * 0.01);
+        assertEquals(0, reconstructor.getJitterNanos(), 1);
+    }
+
+    @Test
+    public void arrivalJump_discardsHistory() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor(SAMPLING_RATE);
+        Random random = new Random(17);
+        for (int i = 0; i < 2000; i++) {
+            reconstructor.update(i, arrival(Math.round(i * NOMINAL_PERIOD_NANOS), random));
+        }
+        // The sequence goes on but the arrivals are 10 s late, e.g. after a device reset
+        long arrival = Math.round(2000 * NOMINAL_PERIOD_NANOS) + 10000000000L;
+        assertEquals(arrival, reconstructor.update(2000, arrival));
+        long next = reconstructor.update(2001, arrival + Math.round(NOMINAL_PERIOD_NANOS));
+        assertEquals(NOMINAL_PERIOD_NANOS, next - arrival, NOMINAL_PERIOD_NANOS * 0.01);
+    }
+
+    @Test
+    public void reset_setsNominalPeriod() {
+        TimestampReconstructor reconstructor = new TimestampReconstructor(SAMPLING_RATE);
+        for (int i = 0; i < 1000; i++) {
+            reconstructor.update(i, Math.round(i * NOMINAL_PERIOD_NANOS * 1.001));
+        }
+        assertEquals(1000, reconstructor.getDriftPpm(), 10);
+        reconstructor.reset(50);
+        assertEquals(2E7, reconstructor.getPeriodNanos(), 0);
+        assertEquals(0, reconstructor.getDriftPpm(), 0);
+        assertEquals(0, reconstructor.getJitterNanos(), 0);
+        assertEquals(123, reconstructor.update(5, 123));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSamplingRate_isRejected() {
+        new TimestampReconstructor(0);
+    }
+
+    /**
+     * Returns the arrival time of a sample delivered at the next connection event, after a
+     * random delay.
+     */
+    private static long arrival(long sampleNanos, Random random) {
+        long event = (sampleNanos / CONNECTION_INTERVAL_NANOS + 1) * CONNECTION_INTERVAL_NANOS;
+        return event + DELIVERY_DELAY_NANOS + (long) (random.nextDouble() * 1000000);
+    }
+}
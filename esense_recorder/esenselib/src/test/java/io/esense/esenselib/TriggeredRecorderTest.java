@@ -0,0 +1,173 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pre-trigger history, hold duration and discarded samples of the triggered recorder, which will
+ * execute on the development machine (host).
+ */
+public class TriggeredRecorderTest {
+    private static final long PERIOD_NANOS = 10000000L;
+    private static final long PRE_TRIGGER_NANOS = 20 * PERIOD_NANOS;
+    private static final long HOLD_NANOS = 30 * PERIOD_NANOS;
+    // Capacity of the history, of which one slot is not readable
+    private static final int HISTORY_CAPACITY = 64;
+
+    @Test
+    public void trigger_forwardsPreTriggerHistory() {
+        Recording recording = new Recording();
+        recording.feed(0, 50);
+        assertEquals(0, recording.forwarded.size());
+        recording.recorder.trigger(TriggeredRecorder.TRIGGER_API);
+        recording.feed(50, 1);
+        assertTrue(recording.recorder.isRecording());
+        assertEquals(1, recording.recorder.getEpisodeCount());
+        assertEquals(TriggeredRecorder.TRIGGER_API, recording.startTriggers);
+        assertEquals(30 * PERIOD_NANOS, recording.startFirstTime);
+        assertEquals(50 * PERIOD_NANOS, recording.startTriggerTime);
+        // The samples within the pre-trigger duration, then the trigger sample
+        assertEquals(21, recording.forwarded.size());
+        for (int i = 0; i < recording.forwarded.size(); i++) {
+            assertEquals((30 + i) * PERIOD_NANOS, (long) recording.forwarded.get(i));
+        }
+        assertEquals(30, recording.recorder.getDiscardedSamples());
+    }
+
+    @Test
+    public void holdDuration_endsEpisodeAfterLastTrigger() {
+        Recording recording = new Recording();
+        recording.feed(0, 50);
+        recording.recorder.trigger(TriggeredRecorder.TRIGGER_BUTTON);
+        recording.feed(50, 40);
+        assertFalse(recording.recorder.isRecording());
+        // The samples up to the end of the hold duration are forwarded
+        assertEquals(80 * PERIOD_NANOS, recording.lastForwardedTime());
+        assertEquals(80 * PERIOD_NANOS, recording.endLastTime);
+        assertEquals(1, recording.endCount);
+        assertEquals(51, recording.recorder.getForwardedSamples());
+    }
+
+    @Test
+    public void triggerDuringHold_extendsEpisode() {
+        Recording recording = new Recording();
+        recording.recorder.trigger(TriggeredRecorder.TRIGGER_API);
+        recording.feed(0, 20);
+        recording.recorder.trigger(TriggeredRecorder.TRIGGER_BUTTON);
+        recording.feed(20, 60);
+        assertEquals(1, recording.recorder.getEpisodeCount());
+        assertEquals(1, recording.endCount);
+        // Hold measured from the second trigger, at the sample 20
+        assertEquals(50 * PERIOD_NANOS, recording.endLastTime);
+        assertEquals(51, recording.forwarded.size());
+    }
+
+    @Test
+    public void idleSamples_areCountedWhenDiscarded() {
+        Recording recording = new Recording();
+        recording.feed(0, 200);
+        // Overwritten once the readable part of the history is full
+        assertEquals(200 - (HISTORY_CAPACITY - 1), recording.recorder.getDiscardedSamples());
+        // The history is discarded by a reset, at the next sample
+        recording.recorder.reset();
+        recording.feed(200, 1);
+        assertEquals(200, recording.recorder.getDiscardedSamples());
+        assertEquals(0, recording.recorder.getForwardedSamples());
+        assertEquals(0, recording.recorder.getEpisodeCount());
+    }
+
+    @Test
+    public void motion_firesTrigger() {
+        Recording recording = new Recording();
+        recording.recorder.setMotionTrigger(1000, 4);
+        recording.feed(0, 10);
+        assertFalse(recording.recorder.isRecording());
+        // The smoothed energy reaches the threshold at the first moving sample, and exceeds it
+        // at the second one
+        recording.gyroX = 2000;
+        recording.feed(10, 1);
+        assertFalse(recording.recorder.isRecording());
+        recording.feed(11, 1);
+        assertTrue(recording.recorder.isRecording());
+        assertEquals(TriggeredRecorder.TRIGGER_MOTION, recording.startTriggers);
+        assertEquals(11 * PERIOD_NANOS, recording.startTriggerTime);
+    }
+
+    @Test
+    public void reset_endsEpisodeWithoutListener() {
+        Recording recording = new Recording();
+        recording.recorder.trigger(TriggeredRecorder.TRIGGER_API);
+        recording.feed(0, 5);
+        assertTrue(recording.recorder.isRecording());
+        recording.recorder.reset();
+        recording.feed(5, 1);
+        assertFalse(recording.recorder.isRecording());
+        assertEquals(0, recording.endCount);
+        assertEquals(5, recording.forwarded.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDuration_isRejected() {
+        new TriggeredRecorder(new Recording(), HISTORY_CAPACITY, -1, HOLD_NANOS);
+    }
+
+    /**
+     * Feeds samples at 100 Hz to a recorder and records the forwarded samples and the episodes.
+     */
+    private static class Recording implements ESenseSensorListener, TriggeredRecorder.Listener {
+        final TriggeredRecorder recorder = new TriggeredRecorder(this, HISTORY_CAPACITY,
+                PRE_TRIGGER_NANOS, HOLD_NANOS);
+        final List<Long> forwarded = new ArrayList<>();
+        final ESenseEvent evt = new ESenseEvent();
+        short gyroX = 0;
+        int startTriggers;
+        long startFirstTime;
+        long startTriggerTime;
+        int endCount = 0;
+        long endLastTime;
+
+        Recording() {
+            recorder.setListener(this);
+        }
+
+        /**
+         * Feeds samples numbered from a first index
+         */
+        void feed(int first, int count) {
+            for (int i = first; i < first + count; i++) {
+                evt.setSampleTimeNanos(i * PERIOD_NANOS);
+                evt.setTimestamp(i * 10);
+                evt.setPacketIndex(i & 0xff);
+                evt.getGyro()[0] = gyroX;
+                recorder.onSensorChanged(evt);
+            }
+        }
+
+        long lastForwardedTime() {
+            return forwarded.get(forwarded.size() - 1);
+        }
+
+        @Override
+        public void onSensorChanged(ESenseEvent evt) {
+            forwarded.add(evt.getSampleTimeNanos());
+        }
+
+        @Override
+        public void onEpisodeStarted(int triggers, long firstSampleTimeNanos,
+                                     long triggerSampleTimeNanos) {
+            startTriggers = triggers;
+            startFirstTime = firstSampleTimeNanos;
+            startTriggerTime = triggerSampleTimeNanos;
+        }
+
+        @Override
+        public void onEpisodeEnded(long lastSampleTimeNanos) {
+            endCount++;
+            endLastTime = lastSampleTimeNanos;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package io.esense.esenselib;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Incremental window statistics compared with a brute force computation over each window, which
+ * will execute on the development machine (host).
+ */
+public class WindowStatisticsStageTest {
+    private static final int SAMPLE_COUNT = 5000;
+    private static final double RELATIVE_TOLERANCE = 1e-9;
+
+    @Test
+    public void statistics_matchBruteForce() {
+        int[][] windows = {{1, 1}, {2, 1}, {7, 3}, {64, 16}, {50, 50}, {20, 45}, {300, 7}};
+        Random random = new Random(19);
+        for (int[] window : windows) {
+            checkWindows(window[0], window[1], createSamples(SAMPLE_COUNT, random), random,
+                    null);
+        }
+    }
+
+    @Test
+    public void statistics_ofExtremeValues_doNotOverflow() {
+        int size = WindowStatisticsStage.MAX_WINDOW_SIZE;
+        short[][] samples = new short[WindowStatistics.CHANNEL_COUNT][size + 1000];
+        for (int c = 0; c < WindowStatistics.CHANNEL_COUNT; c++) {
+            for (int i = 0; i < samples[c].length; i++) {
+                samples[c][i] = (c % 2 == 0) ? Short.MIN_VALUE
+                        : ((i % 2 == 0) ? Short.MIN_VALUE : Short.MAX_VALUE);
+            }
+        }
+        checkWindows(size, 250, samples, new Random(23), null);
+    }
+
+    @Test
+    public void statistics_areConverted() {
+        ConversionKernel kernel = new ConversionKernel(8192, 65.5);
+        checkWindows(32, 8, createSamples(500, new Random(29)), new Random(31), kernel);
+    }
+
+    @Test
+    public void reset_startsNewWindow() {
+        final WindowStatistics last = new WindowStatistics();
+        final int[] count = {0};
+        WindowStatisticsStage stage = new WindowStatisticsStage(4, 2,
+                new WindowStatisticsListener() {
+                    @Override
+                    public void onWindowStatistics(WindowStatistics statistics) {
+                        last.copyFrom(statistics);
+                        count[0]++;
+                    }
+                });
+        short[][] samples = createSamples(20, new Random(37));
+        SampleBlock block = createBlock(samples, 0, 3);
+        block.getLostPackets()[1] = 5;
+        process(stage, block);
+        stage.reset();
+        assertEquals(0, count[0]);
+        // The samples before the reset are not part of the first window
+        process(stage, createBlock(samples, 10, 4));
+        assertEquals(1, count[0]);
+        assertEquals(10 * 10000000L, last.getStartSampleTime());
+        assertEquals(expectedMean(samples[0], 10, 4), last.getMean(WindowStatistics.ACC_X),
+                1e-9);
+        assertEquals(0, last.getLostPackets());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedWindow_isRejected() {
+        new WindowStatisticsStage(WindowStatisticsStage.MAX_WINDOW_SIZE + 1, 1,
+                new WindowStatisticsListener() {
+                    @Override
+                    public void onWindowStatistics(WindowStatistics statistics) {
+                    }
+                });
+    }
+
+    /**
+     * Processes the samples in blocks of random sizes and compares each delivered window with
+     * the statistics computed from scratch.
+     */
+    private static void checkWindows(final int size, final int hop, final short[][] samples,
+                                     Random random, final ConversionKernel kernel) {
+        final int count = samples[0].length;
+        final int[] lostPackets = new int[count];
+        for (int i = 1; i < count; i++) {
+            lostPackets[i] = (random.nextInt(40) == 0) ? random.nextInt(5) + 1 : 0;
+        }
+        final int[] windowCount = {0};
+        WindowStatisticsStage stage = new WindowStatisticsStage(size, hop, kernel,
+                new WindowStatisticsListener() {
+                    @Override
+                    public void onWindowStatistics(WindowStatistics statistics) {
+                        int end = (int) (statistics.getEndSampleTime() / 10000000L);
+                        // First window when complete, then every hop samples
+                        assertEquals(size - 1 + windowCount[0] * hop, end);
+                        checkWindow(statistics, samples, lostPackets, end - size + 1, size,
+                                kernel);
+                        windowCount[0]++;
+                    }
+                });
+        int offset = 0;
+        while (offset < count) {
+            int n = Math.min(count - offset, 1 + random.nextInt(3 * size + 10));
+            SampleBlock block = createBlock(samples, offset, n);
+            System.arraycopy(lostPackets, offset, block.getLostPackets(), 0, n);
+            process(stage, block);
+            offset += n;
+        }
+        int expectedWindows = (count < size) ? 0 : (count - size) / hop + 1;
+        assertEquals(expectedWindows, windowCount[0]);
+    }
+
+    private static void checkWindow(WindowStatistics statistics, short[][] samples,
+                                    int[] lostPackets, int start, int size,
+                                    ConversionKernel kernel) {
+        String context = "Window of " + size + " at " + start;
+        assertEquals(context, size, statistics.getSampleCount());
+        assertEquals(context, start * 10000000L, statistics.getStartSampleTime());
+        int lost = 0;
+        for (int i = start + 1; i < start + size; i++) {
+            lost += lostPackets[i];
+        }
+        assertEquals(context, lost, statistics.getLostPackets());
+        double[] absoluteSums = new double[2];
+        for (int c = 0; c < WindowStatistics.CHANNEL_COUNT; c++) {
+            double scale = 1;
+            if (kernel != null) {
+                scale = 1 / ((c < 3) ? kernel.getAccSensitivityFactor()
+                        : kernel.getGyroSensitivityFactor());
+            }
+            short[] values = samples[c];
+            double mean = expectedMean(values, start, size);
+            double variance = 0;
+            double squareSum = 0;
+            double absoluteSum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            int crossings = 0;
+            for (int i = start; i < start + size; i++) {
+                double deviation = values[i] - mean;
+                variance += deviation * deviation / size;
+                squareSum += (double) values[i] * values[i];
+                absoluteSum += Math.abs(values[i]);
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+                if (i > start && (values[i] < 0) != (values[i - 1] < 0)) {
+                    crossings++;
+                }
+            }
+            absoluteSums[c / 3] += absoluteSum;
+            assertClose(context, mean * scale, statistics.getMean(c), scale);
+            assertClose(context, variance * scale * scale, statistics.getVariance(c),
+                    scale * scale);
+            assertClose(context, Math.sqrt(squareSum / size) * scale, statistics.getRms(c),
+                    scale);
+            assertEquals(context, min * scale, statistics.getMin(c), 0);
+            assertEquals(context, max * scale, statistics.getMax(c), 0);
+            assertEquals(context, crossings, statistics.getZeroCrossings(c));
+        }
+        double accScale = (kernel == null) ? 1 : 1 / kernel.getAccSensitivityFactor();
+        double gyroScale = (kernel == null) ? 1 : 1 / kernel.getGyroSensitivityFactor();
+        assertClose(context, absoluteSums[0] / size * accScale,
+                statistics.getAccSignalMagnitudeArea(), accScale);
+        assertClose(context, absoluteSums[1] / size * gyroScale,
+                statistics.getGyroSignalMagnitudeArea(), gyroScale);
+    }
+
+    /**
+     * Checks a value with a tolerance relative to its magnitude, or to the given unit for the
+     * values close to 0.
+     */
+    private static void assertClose(String context, double expected, double actual,
+                                    double unit) {
+        double tolerance = RELATIVE_TOLERANCE * Math.max(Math.abs(expected), unit);
+        assertEquals(context, expected, actual, tolerance);
+    }
+
+    private static double expectedMean(short[] values, int start, int size) {
+        double sum = 0;
+        for (int i = start; i < start + size; i++) {
+            sum += values[i];
+        }
+        return sum / size;
+    }
+
+    /**
+     * Creates the values of the six channels: noise around an offset, runs of equal values and
+     * full scale values, so that the deques handle ties and the sums the extremes.
+     */
+    private static short[][] createSamples(int count, Random random) {
+        short[][] samples = new short[WindowStatistics.CHANNEL_COUNT][count];
+        for (int c = 0; c < WindowStatistics.CHANNEL_COUNT; c++) {
+            int offset = random.nextInt(2000) - 1000;
+            for (int i = 0; i < count; i++) {
+                int kind = random.nextInt(20);
+                int value;
+                if (kind == 0) {
+                    value = random.nextBoolean() ? Short.MAX_VALUE : Short.MIN_VALUE;
+                } else if (kind < 5 && i > 0) {
+                    value = samples[c][i - 1];
+                } else {
+                    value = offset + (int) (random.nextGaussian() * 3000);
+                }
+                samples[c][i] = (short) Math.max(Short.MIN_VALUE,
+                        Math.min(Short.MAX_VALUE, value));
+            }
+        }
+        return samples;
+    }
+
+    private static SampleBlock createBlock(short[][] samples, int offset, int count) {
+        SampleBlock block = new SampleBlock(count);
+        ESenseEvent evt = new ESenseEvent();
+        short[] acc = evt.getAccel();
+        short[] gyro = evt.getGyro();
+        for (int i = offset; i < offset + count; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                acc[axis] = samples[axis][i];
+                gyro[axis] = samples[3 + axis][i];
+            }
+            evt.setSampleTimeNanos(i * 10000000L);
+            evt.setTimestamp(i * 10);
+            evt.setPacketIndex(i & 0xff);
+            block.add(evt);
+        }
+        return block;
+    }
+
+    private static void process(WindowStatisticsStage stage, SampleBlock block) {
+        stage.process(block, new SampleStageOutput() {
+            @Override
+            public void emit(SampleBlock block) {
+            }
+        });
+    }
+}